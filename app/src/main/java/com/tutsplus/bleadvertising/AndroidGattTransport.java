@@ -0,0 +1,195 @@
+package com.tutsplus.bleadvertising;
+
+import android.Manifest;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothStatusCodes;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresPermission;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 以 Android BluetoothGattServer 實作的 {@link GattTransport}。
+ * BluetoothGattServerCallback 必須在建立 BluetoothGattServer 時就提供，
+ * 因此由各個 Callback 實作把事件轉發到這裡的 {@code dispatchXxx} 方法，再分派給傳輸層的監聽者。
+ *
+ * 特徵物件由所有裝置共用：Android 13 以上直接把值交給 notifyCharacteristicChanged，不碰特徵本身的值；
+ * 舊版 API 只能從特徵讀取要送出的值，因此「設定值 → 通知 → 還原原本的值」在 {@code synchronized (characteristic)} 中完成，
+ * 其他執行緒設定或讀取特徵值時也要鎖同一個物件 (見 ServicesManager)。
+ */
+public class AndroidGattTransport implements GattTransport<BluetoothGattService, BluetoothGattCharacteristic> {
+
+    private static final String TAG = "AndroidGattTransport";
+
+    private final BluetoothGattServer gattServer;
+    private final Map<String, BluetoothDevice> devices = new ConcurrentHashMap<>();
+    private final Map<String, Integer> mtus = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Callback<BluetoothGattService, BluetoothGattCharacteristic>> callbacks = new CopyOnWriteArrayList<>();
+
+    public AndroidGattTransport(@NonNull BluetoothGattServer gattServer) {
+        this.gattServer = gattServer;
+    }
+
+    @Override
+    public void addCallback(Callback<BluetoothGattService, BluetoothGattCharacteristic> callback) {
+        callbacks.addIfAbsent(callback);
+    }
+
+    @Override
+    public void removeCallback(Callback<BluetoothGattService, BluetoothGattCharacteristic> callback) {
+        callbacks.remove(callback);
+    }
+
+    @Override
+    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+    public boolean addService(BluetoothGattService service) {
+        try {
+            return gattServer.addService(service);
+        } catch (SecurityException e) {
+            Log.e(TAG, "加入服務失敗，缺少權限: " + service.getUuid(), e);
+            return false;
+        }
+    }
+
+    @Override
+    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+    public boolean notifyCharacteristicChanged(String deviceId, BluetoothGattCharacteristic characteristic, byte[] value, boolean confirm) {
+        BluetoothDevice device = devices.get(deviceId);
+        if (device == null) return false;
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                return gattServer.notifyCharacteristicChanged(device, characteristic, confirm, value) == BluetoothStatusCodes.SUCCESS;
+            }
+            // 舊版 API 從特徵本身讀取要送出的值 (呼叫返回前就已複製)，送出後還原，讓片段不會變成可讀取的值
+            synchronized (characteristic) {
+                byte[] readable = characteristic.getValue();
+                characteristic.setValue(value);
+                try {
+                    return gattServer.notifyCharacteristicChanged(device, characteristic, confirm);
+                } finally {
+                    characteristic.setValue(readable);
+                }
+            }
+        } catch (SecurityException e) {
+            Log.e(TAG, "發送通知失敗，缺少權限", e);
+            return false;
+        }
+    }
+
+    @Override
+    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+    public boolean sendResponse(String deviceId, int requestId, int status, int offset, byte[] value) {
+        BluetoothDevice device = devices.get(deviceId);
+        if (device == null) return false;
+        try {
+            return gattServer.sendResponse(device, requestId, status, offset, value);
+        } catch (SecurityException e) {
+            Log.e(TAG, "回應請求失敗，缺少權限", e);
+            return false;
+        }
+    }
+
+    @Override
+    public Set<String> getConnectedDevices() {
+        return Collections.unmodifiableSet(new HashSet<>(devices.keySet()));
+    }
+
+    @Override
+    public int getMtu(String deviceId) {
+        Integer mtu = mtus.get(deviceId);
+        return mtu == null ? DEFAULT_MTU : mtu;
+    }
+
+    /**
+     * 由裝置 ID 取回 BluetoothDevice；未連線時回傳 null。
+     */
+    public BluetoothDevice getDevice(String deviceId) {
+        return devices.get(deviceId);
+    }
+
+    @Override
+    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+    public void close() {
+        devices.clear();
+        mtus.clear();
+        try {
+            gattServer.close();
+        } catch (SecurityException e) {
+            Log.e(TAG, "關閉 GATT 伺服器失敗，缺少權限", e);
+        }
+    }
+
+    // --- 由 BluetoothGattServerCallback 轉發的事件 ---
+
+    public void dispatchConnectionStateChange(BluetoothDevice device, int status, int newState) {
+        String deviceId = device.getAddress();
+        boolean connected = status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothGatt.STATE_CONNECTED;
+        if (connected) {
+            devices.put(deviceId, device);
+        } else {
+            devices.remove(deviceId);
+            mtus.remove(deviceId);
+        }
+        for (Callback<BluetoothGattService, BluetoothGattCharacteristic> callback : callbacks) {
+            callback.onConnectionStateChange(deviceId, connected);
+        }
+    }
+
+    public void dispatchServiceAdded(int status, BluetoothGattService service) {
+        boolean success = status == BluetoothGatt.GATT_SUCCESS;
+        for (Callback<BluetoothGattService, BluetoothGattCharacteristic> callback : callbacks) {
+            callback.onServiceAdded(service, success);
+        }
+    }
+
+    public void dispatchNotificationSent(BluetoothDevice device, int status) {
+        boolean success = status == BluetoothGatt.GATT_SUCCESS;
+        for (Callback<BluetoothGattService, BluetoothGattCharacteristic> callback : callbacks) {
+            callback.onNotificationSent(device.getAddress(), success);
+        }
+    }
+
+    public void dispatchMtuChanged(BluetoothDevice device, int mtu) {
+        mtus.put(device.getAddress(), mtu);
+        for (Callback<BluetoothGattService, BluetoothGattCharacteristic> callback : callbacks) {
+            callback.onMtuChanged(device.getAddress(), mtu);
+        }
+    }
+
+    public void dispatchSubscriptionChanged(BluetoothDevice device, BluetoothGattCharacteristic characteristic, byte[] cccdValue) {
+        for (Callback<BluetoothGattService, BluetoothGattCharacteristic> callback : callbacks) {
+            callback.onSubscriptionChanged(device.getAddress(), characteristic, cccdValue);
+        }
+    }
+
+    public void dispatchCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
+        for (Callback<BluetoothGattService, BluetoothGattCharacteristic> callback : callbacks) {
+            callback.onCharacteristicReadRequest(device.getAddress(), requestId, offset, characteristic);
+        }
+    }
+
+    public void dispatchCharacteristicWriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic,
+                                                   boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+        for (Callback<BluetoothGattService, BluetoothGattCharacteristic> callback : callbacks) {
+            callback.onCharacteristicWriteRequest(device.getAddress(), requestId, characteristic, preparedWrite, responseNeeded, offset, value);
+        }
+    }
+
+    public void dispatchExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+        for (Callback<BluetoothGattService, BluetoothGattCharacteristic> callback : callbacks) {
+            callback.onExecuteWrite(device.getAddress(), requestId, execute);
+        }
+    }
+}
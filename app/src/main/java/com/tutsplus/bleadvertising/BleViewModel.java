@@ -10,6 +10,7 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattServer;
 import android.bluetooth.BluetoothGattServerCallback;
 import android.bluetooth.BluetoothGattService;
+import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -18,20 +19,20 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
-import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 public class BleViewModel extends ViewModel {
 
     private static final String TAG = "BleViewModel";
+    private static final int MAX_DISPLAYED_DEVICES = 20;
 
-    // --- GATT 伺服器相關物件 (由外部注入和管理) ---
-    private BluetoothGattServer gattServer;
-    private final HashSet<BluetoothDevice> connectedDevices = new HashSet<>();
+    // --- GATT 傳輸層 (包裝由外部注入的 GATT 伺服器) ---
+    private AndroidGattTransport transport;
 
     // --- 狀態 LiveData ---
     private final MutableLiveData<BleState> _bleState = new MutableLiveData<>(BleState.IDLE);
@@ -40,8 +41,10 @@ public class BleViewModel extends ViewModel {
     // --- UI 顯示資料 LiveData ---
     private final MutableLiveData<String> _scanResultText = new MutableLiveData<>("");
     public final LiveData<String> scanResultText = _scanResultText;
+    // GATT 伺服器設定好之前加入的服務先暫存在這裡
     private final Queue<BluetoothGattService> serviceQueue = new LinkedList<>();
-    private boolean isAddingService = false; // 狀態旗標，防止重複觸發
+    // 依序註冊服務 (含逾時、重試與每個服務的註冊時間)
+    private ServiceRegistrar<BluetoothGattService, BluetoothGattCharacteristic> serviceRegistrar;
     private final MutableLiveData<String> _toastMessage = new MutableLiveData<>();
     public final LiveData<String> toastMessage = _toastMessage;
 
@@ -51,13 +54,13 @@ public class BleViewModel extends ViewModel {
      * @param server 已開啟並加入服務的 BluetoothGattServer 實例。
      */
     public void setupGattServerLogic(@NonNull BluetoothGattServer server) {
-        if (this.gattServer != null) {
+        if (this.transport != null) {
             Log.w(TAG, "GattServer 已經被設定過了，忽略新的設定。");
             return;
         }
-        this.gattServer = server;
-        this.connectedDevices.clear(); // 確保開始時是乾淨的狀態
-        ServicesManager.getInstance().setGattServer(this.gattServer, this.connectedDevices);
+        this.transport = new AndroidGattTransport(server);
+        this.serviceRegistrar = new ServiceRegistrar<>(transport, ServiceRegistrar.Config.defaults(), registrationListener);
+        ServicesManager.getInstance().setTransport(this.transport);
         ServicesManager.getInstance().startSimulation(); // 開始模擬數據
         // 觸發服務添加流程
         processServiceQueue();
@@ -70,35 +73,49 @@ public class BleViewModel extends ViewModel {
         serviceQueue.add(service);
         Log.d(TAG, "服務已加入佇列: " + service.getUuid() + ", 目前佇列大小: " + serviceQueue.size());
 
-        // 如果GattServer已經準備好且沒有正在添加的服務，則開始處理
-        if (gattServer != null && !isAddingService) {
+        // 如果GattServer已經準備好，則交給註冊器處理
+        if (serviceRegistrar != null) {
             processServiceQueue();
         }
     }
 
-    // --- 新增：處理服務佇列的方法 ---
+    // --- 處理服務佇列的方法：交給 ServiceRegistrar 依序加入 ---
     @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
     private void processServiceQueue() {
-        if (isAddingService) return; // 如果正在添加，則等待回呼
-        if (serviceQueue.isEmpty()) {
-            Log.i(TAG, "所有服務都已成功加入。");
-            return; // 所有服務都已添加完畢
-        }
-
-        // 從佇列中取出下一個服務並開始添加
-        BluetoothGattService service = serviceQueue.poll();
-        if (service != null && gattServer != null) {
-            isAddingService = true; // 設定旗標
-            try {
-                gattServer.addService(service);
-                Log.i(TAG, "正在嘗試加入服務: " + service.getUuid());
-            } catch (SecurityException e) {
-                Log.e(TAG, "加入服務失敗，缺少權限: " + service.getUuid(), e);
-                isAddingService = false; // 發生錯誤，重置旗標
-            }
+        BluetoothGattService service;
+        while ((service = serviceQueue.poll()) != null) {
+            serviceRegistrar.enqueue(service, service.getUuid().toString());
         }
     }
 
+    private final ServiceRegistrar.Listener registrationListener = new ServiceRegistrar.Listener() {
+        @Override
+        public void onServiceRegistered(ServiceRegistrar.ServiceStats stats) {
+            Log.i(TAG, "服務已加入: " + stats);
+        }
+
+        @Override
+        public void onServiceFailed(ServiceRegistrar.ServiceStats stats) {
+            // 放棄這個服務，其他服務照常加入
+            Log.e(TAG, "無法加入服務，已放棄: " + stats);
+        }
+
+        @Override
+        public void onQueueDrained(List<ServiceRegistrar.ServiceStats> stats) {
+            int failed = 0;
+            long totalNanos = 0;
+            for (ServiceRegistrar.ServiceStats serviceStats : stats) {
+                if (serviceStats.outcome != ServiceRegistrar.Outcome.REGISTERED) failed++;
+                totalNanos = Math.max(totalNanos, serviceStats.totalNanos);
+            }
+            Log.i(TAG, "服務註冊完成: " + (stats.size() - failed) + "/" + stats.size()
+                    + " 個成功，共 " + TimeUnit.NANOSECONDS.toMillis(totalNanos) + " ms");
+            if (failed > 0) {
+                postToastMessage(failed + " 個服務無法加入");
+            }
+        }
+    };
+
     /**
      * 讓 Activity 可以將 GATT 相關的回呼事件轉發給 ViewModel 處理。
      * @return 一個 BluetoothGattServerCallback 實例，供 Activity 在建立 GattServer 時使用。
@@ -112,91 +129,98 @@ public class BleViewModel extends ViewModel {
         @Override
         public void onServiceAdded(int status, BluetoothGattService service) {
             Log.d(TAG, "服務已加入完成: " + service.getUuid() + ", 狀態: " + (status == BluetoothGatt.GATT_SUCCESS ? "SUCCESS" : "FAILURE"));
-            // 重置旗標，表示當前服務添加流程已結束
-            isAddingService = false;
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                // 觸發下一個服務的添加
-                processServiceQueue();
-            } else {
-                Log.e(TAG, "無法加入服務: " + service.getUuid());
-                // 這裡可以選擇清空佇列或進行其他錯誤處理
-                serviceQueue.clear();
-            }
+            // ServiceRegistrar 透過傳輸層收到結果，接著送出下一個服務或安排重試
+            if (transport != null) transport.dispatchServiceAdded(status, service);
         }
 
         /**
-         * 新增或修改：處理特徵寫入請求，特別是針對 FTMS 控制點。
+         * 處理特徵寫入請求：經由傳輸層交給 ServicesManager，控制點寫入由它的 WriteDispatcher 依 UUID 分派並回應。
          */
         @Override
-        @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
         public void onCharacteristicWriteRequest(BluetoothDevice device, int requestId, BluetoothGattCharacteristic characteristic, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
-            Log.d(TAG, "收到特徵寫入請求: " + characteristic.getUuid() + ", 值: " + Arrays.toString(value));
-
-            final UUID FTMS_CONTROL_POINT_UUID =  UUID.fromString("00002AD9-0000-1000-8000-00805f9b34fb");
-
-            if (FTMS_CONTROL_POINT_UUID.equals(characteristic.getUuid())) {
-                // 將控制命令轉發給 ServicesManager 處理
-                ServicesManager.getInstance().handleFitnessMachineControlCommand(value);
-            }
+            Log.d(TAG, "收到特徵寫入請求: " + characteristic.getUuid() + ", offset: " + offset + ", 值: " + Arrays.toString(value));
+            if (transport == null) return; // 保護機制
+            transport.dispatchCharacteristicWriteRequest(device, requestId, characteristic, preparedWrite, responseNeeded, offset, value);
+        }
 
-            if (responseNeeded) {
-                gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value);
-            }
+        @Override
+        public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+            Log.d(TAG, "收到 Execute Write 請求: " + device.getAddress() + (execute ? " 提交" : " 取消"));
+            if (transport == null) return; // 保護機制
+            transport.dispatchExecuteWrite(device, requestId, execute);
         }
         @Override
         @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
         public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
+            if (transport == null) return; // 保護機制
+            transport.dispatchConnectionStateChange(device, status, newState);
+            int connectedCount = transport.getConnectedDevices().size();
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 if (newState == BluetoothGatt.STATE_CONNECTED) {
-                    connectedDevices.add(device);
-                    Log.i(TAG, "裝置已連接: " + device.getAddress() + " | 目前連線數: " + connectedDevices.size());
+                    Log.i(TAG, "裝置已連接: " + device.getAddress() + " | 目前連線數: " + connectedCount);
                     postToastMessage("裝置已連接: " + device.getAddress());
                 } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
-                    connectedDevices.remove(device);
-                    Log.i(TAG, "裝置已斷線: " + device.getAddress() + " | 目前連線數: " + connectedDevices.size());
+                    Log.i(TAG, "裝置已斷線: " + device.getAddress() + " | 目前連線數: " + connectedCount);
                     postToastMessage("裝置已斷線");
                 }
             } else {
-                connectedDevices.remove(device);
                 Log.e(TAG, "連接時發生錯誤，狀態碼: " + status);
             }
         }
 
         @Override
-        @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+        public void onNotificationSent(BluetoothDevice device, int status) {
+            if (transport != null) transport.dispatchNotificationSent(device, status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothDevice device, int mtu) {
+            Log.d(TAG, "MTU 已變更: " + device.getAddress() + " -> " + mtu);
+            if (transport != null) transport.dispatchMtuChanged(device, mtu);
+        }
+
+        @Override
         public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
             Log.d(TAG, "收到讀取請求: " + characteristic.getUuid());
-            if (gattServer == null) return; // 保護機制
+            if (transport == null) return; // 保護機制
+            transport.dispatchCharacteristicReadRequest(device, requestId, offset, characteristic);
+        }
+
+        @Override
+        @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+        public void onDescriptorReadRequest(BluetoothDevice device, int requestId, int offset, BluetoothGattDescriptor descriptor) {
+            if (transport == null) return; // 保護機制
 
             if (offset != 0) {
-                gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_INVALID_OFFSET, 0, null);
+                transport.sendResponse(device.getAddress(), requestId, BluetoothGatt.GATT_INVALID_OFFSET, 0, null);
                 return;
             }
-            gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, characteristic.getValue());
+            byte[] value = ServicesManager.CCCD_UUID.equals(descriptor.getUuid())
+                    ? ServicesManager.getInstance().getCccdValue(device.getAddress(), descriptor.getCharacteristic())
+                    : descriptor.getValue();
+            transport.sendResponse(device.getAddress(), requestId, BluetoothGatt.GATT_SUCCESS, 0, value);
         }
 
         @Override
         @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
         public void onDescriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
             Log.d(TAG, "收到描述符寫入請求: " + descriptor.getUuid() + ", 值: " + Arrays.toString(value));
-            if (gattServer == null) return; // 保護機制
+            if (transport == null) return; // 保護機制
 
             int status = BluetoothGatt.GATT_SUCCESS;
             // 這裡只處理 CCCD，您也可以擴充處理其他描述符
-            if (descriptor.getUuid().toString().equalsIgnoreCase("00002902-0000-1000-8000-00805f9b34fb")) {
-                if (Arrays.equals(value, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) {
-                    descriptor.setValue(value);
-                    postToastMessage("通知已啟用");
-                } else if (Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
-                    descriptor.setValue(value);
-                    postToastMessage("通知已停用");
+            // CCCD 的值按裝置分別記錄 (由傳輸層轉發給 ServicesManager)，不寫回共用的 descriptor
+            if (ServicesManager.CCCD_UUID.equals(descriptor.getUuid())) {
+                if (SubscriptionRegistry.isValidCccdValue(value)) {
+                    transport.dispatchSubscriptionChanged(device, descriptor.getCharacteristic(), value);
+                    postToastMessage(value[0] != 0 ? "通知已啟用" : "通知已停用");
                 } else {
                     status = BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
                 }
             }
 
             if (responseNeeded) {
-                gattServer.sendResponse(device, requestId, status, 0, null);
+                transport.sendResponse(device.getAddress(), requestId, status, 0, null);
             }
         }
     };
@@ -223,8 +247,28 @@ public class BleViewModel extends ViewModel {
         }
     }
 
-    public void setScanResultText(String text) {
-        _scanResultText.postValue(text);
+    /**
+     * 把掃描彙整器的快照組成畫面上的文字 (在彙整器的執行緒上呼叫，每個快照只組一次字串)。
+     * 和原本一樣只顯示有名稱的裝置，最多 {@link #MAX_DISPLAYED_DEVICES} 個。
+     */
+    public void setScanSnapshot(List<ScanResultAggregator.Device> devices) {
+        StringBuilder builder = new StringBuilder();
+        int shown = 0;
+        int named = 0;
+        for (ScanResultAggregator.Device device : devices) {
+            if (TextUtils.isEmpty(device.name)) continue;
+            named++;
+            if (shown == MAX_DISPLAYED_DEVICES) continue;
+            if (shown++ > 0) builder.append("\n\n");
+            builder.append(device.name).append(" (").append(device.rssi).append(" dBm)");
+            if (device.serviceData != null) {
+                builder.append("\n").append(new String(device.serviceData, StandardCharsets.UTF_8));
+            }
+        }
+        if (named > shown) {
+            builder.append("\n\n… 另有 ").append(named - shown).append(" 個裝置");
+        }
+        _scanResultText.postValue(builder.toString());
     }
 
     public void postToastMessage(String message) {
@@ -235,15 +279,13 @@ public class BleViewModel extends ViewModel {
     protected void onCleared() {
         super.onCleared();
         ServicesManager.getInstance().stopSimulation();
-        if (this.gattServer != null) {
+        if (this.transport != null) {
             Log.d(TAG, "ViewModel onCleared : GATT Server  ");
-            try {
-                gattServer.close();
-            } catch (SecurityException e) {
-                Log.e(TAG, "關閉 GATT 伺服器失敗，缺少權限", e);
-            }
-            this.gattServer = null; // 清除引用
-            this.connectedDevices.clear();
+            serviceRegistrar.close();
+            serviceRegistrar = null;
+            ServicesManager.getInstance().setTransport(null);
+            transport.close();
+            this.transport = null; // 清除引用
         }
     }
 }
@@ -0,0 +1,314 @@
+package com.tutsplus.bleadvertising;
+
+/**
+ * Fitness Machine Control Point (0x2AD9) 的狀態機 (FTMS v1.0 第 4.16 節)。
+ *
+ * 每個寫入都會產生一個 Response Code 指示 (0x80 | 請求 OpCode | 結果)，成功改變狀態時另外送出
+ * Fitness Machine Status (0x2ADA) 事件；目標 (功率、阻力、模擬參數) 改變時呼叫
+ * {@link Listener#onTargetChanged(long)}，讓呼叫端立刻送出一筆 Indoor Bike Data，
+ * 而不是等下一次週期性更新。呼叫順序為：數據更新、回應、狀態。
+ *
+ * 除了 Request Control 之外的指令都要先取得控制權，否則回應 Control Not Permitted。
+ * 此類別不依賴 Android API，所有方法都是執行緒安全的。
+ */
+public final class FitnessMachineControlPoint {
+
+    // --- Control Point OpCodes ---
+    public static final int OP_REQUEST_CONTROL = 0x00;
+    public static final int OP_RESET = 0x01;
+    public static final int OP_SET_TARGET_RESISTANCE = 0x04;
+    public static final int OP_SET_TARGET_POWER = 0x05;
+    public static final int OP_START_OR_RESUME = 0x07;
+    public static final int OP_STOP_OR_PAUSE = 0x08;
+    public static final int OP_SET_INDOOR_BIKE_SIMULATION = 0x11;
+    public static final int OP_RESPONSE_CODE = 0x80;
+
+    // --- Result Codes ---
+    public static final int RESULT_SUCCESS = 0x01;
+    public static final int RESULT_OP_CODE_NOT_SUPPORTED = 0x02;
+    public static final int RESULT_INVALID_PARAMETER = 0x03;
+    public static final int RESULT_OPERATION_FAILED = 0x04;
+    public static final int RESULT_CONTROL_NOT_PERMITTED = 0x05;
+
+    // --- Fitness Machine Status OpCodes ---
+    public static final int STATUS_RESET = 0x01;
+    public static final int STATUS_STOPPED_OR_PAUSED = 0x02;
+    public static final int STATUS_STARTED_OR_RESUMED = 0x04;
+    public static final int STATUS_TARGET_RESISTANCE_CHANGED = 0x07;
+    public static final int STATUS_TARGET_POWER_CHANGED = 0x08;
+    public static final int STATUS_INDOOR_BIKE_SIMULATION_CHANGED = 0x12;
+
+    /** Stop or Pause 的參數。 */
+    public static final int STOP = 0x01;
+    public static final int PAUSE = 0x02;
+
+    /** Supported Power Range (0x2AD8)：0..1000 W，間隔 1 W。 */
+    public static final int MIN_POWER = 0;
+    public static final int MAX_POWER = 1000;
+    /** Supported Resistance Level Range (0x2AD6)：0..20.0，解析度 0.1 (原始值 0..200)。 */
+    public static final int MAX_RESISTANCE = 200;
+
+    /** 目前以哪一種目標決定功率。 */
+    public enum Mode {
+        /** 依阻力等級 (預設)。 */
+        RESISTANCE,
+        /** ERG 模式：輸出固定為目標功率。 */
+        POWER,
+        /** 依坡度、風速等騎乘模擬參數計算。 */
+        SIMULATION
+    }
+
+    public enum State {
+        /** 還沒有客戶端下過 Start；模擬器照常輸出騎乘數據。 */
+        IDLE,
+        STARTED,
+        PAUSED,
+        STOPPED
+    }
+
+    /**
+     * 控制點的輸出。在呼叫 {@link #onWrite} 的執行緒上依序呼叫 (先 onTargetChanged，再 onResponse、onStatus)。
+     */
+    public interface Listener {
+        /** 送出 Control Point 的 Response Code 指示。 */
+        void onResponse(byte[] response);
+
+        /** 送出 Fitness Machine Status 通知。 */
+        void onStatus(byte[] status);
+
+        /**
+         * 目標改變，應立刻送出一筆 Indoor Bike Data。
+         * @param writeNanos 收到寫入時的 System.nanoTime()，用於量測寫入到數據的延遲。
+         */
+        void onTargetChanged(long writeNanos);
+    }
+
+    // 騎乘模擬的物理參數
+    private static final double RIDER_MASS_KG = 75;
+    private static final double GRAVITY = 9.81;
+
+    private final Listener listener;
+
+    private String controllingDevice;
+    private State state = State.IDLE;
+    private Mode mode = Mode.RESISTANCE;
+    private int targetResistance;
+    private int targetPower;
+    // Indoor Bike Simulation Parameters (原始值)
+    private int windSpeed;      // sint16, 0.001 m/s
+    private int grade;          // sint16, 0.01 %
+    private int rollingResistance;  // uint8, 0.0001
+    private int windResistance;     // uint8, 0.01 kg/m
+
+    public FitnessMachineControlPoint(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 處理一個控制點寫入，並透過 listener 送出回應、狀態與數據更新。
+     */
+    public void onWrite(String deviceId, byte[] value) {
+        onWrite(deviceId, value, System.nanoTime());
+    }
+
+    /**
+     * 同上，writeNanos 為收到寫入請求的時間 (寫入在其他執行緒上處理時使用)。
+     */
+    public void onWrite(String deviceId, byte[] value, long writeNanos) {
+        if (value == null || value.length == 0) return;
+        int opCode = value[0] & 0xFF;
+        byte[] status = null;
+        boolean targetChanged = false;
+        int result;
+        synchronized (this) {
+            if (opCode != OP_REQUEST_CONTROL && !deviceId.equals(controllingDevice)) {
+                result = isSupported(opCode) ? RESULT_CONTROL_NOT_PERMITTED : RESULT_OP_CODE_NOT_SUPPORTED;
+            } else {
+                switch (opCode) {
+                    case OP_REQUEST_CONTROL:
+                        if (value.length != 1) {
+                            result = RESULT_INVALID_PARAMETER;
+                        } else if (controllingDevice != null && !controllingDevice.equals(deviceId)) {
+                            // 控制權已被其他客戶端取得
+                            result = RESULT_CONTROL_NOT_PERMITTED;
+                        } else {
+                            controllingDevice = deviceId;
+                            result = RESULT_SUCCESS;
+                        }
+                        break;
+                    case OP_RESET:
+                        if (value.length != 1) {
+                            result = RESULT_INVALID_PARAMETER;
+                            break;
+                        }
+                        resetLocked();
+                        status = new byte[]{STATUS_RESET};
+                        targetChanged = true;
+                        result = RESULT_SUCCESS;
+                        break;
+                    case OP_SET_TARGET_RESISTANCE:
+                        if (value.length != 2 || (value[1] & 0xFF) > MAX_RESISTANCE) {
+                            result = RESULT_INVALID_PARAMETER;
+                            break;
+                        }
+                        targetResistance = value[1] & 0xFF;
+                        mode = Mode.RESISTANCE;
+                        status = new byte[]{STATUS_TARGET_RESISTANCE_CHANGED, value[1]};
+                        targetChanged = true;
+                        result = RESULT_SUCCESS;
+                        break;
+                    case OP_SET_TARGET_POWER: {
+                        int power = value.length == 3 ? (short) ((value[1] & 0xFF) | (value[2] << 8)) : -1;
+                        if (power < MIN_POWER || power > MAX_POWER) {
+                            result = RESULT_INVALID_PARAMETER;
+                            break;
+                        }
+                        targetPower = power;
+                        mode = Mode.POWER;
+                        status = new byte[]{STATUS_TARGET_POWER_CHANGED, value[1], value[2]};
+                        targetChanged = true;
+                        result = RESULT_SUCCESS;
+                        break;
+                    }
+                    case OP_START_OR_RESUME:
+                        if (value.length != 1) {
+                            result = RESULT_INVALID_PARAMETER;
+                            break;
+                        }
+                        state = State.STARTED;
+                        status = new byte[]{STATUS_STARTED_OR_RESUMED};
+                        targetChanged = true;
+                        result = RESULT_SUCCESS;
+                        break;
+                    case OP_STOP_OR_PAUSE:
+                        if (value.length != 2 || (value[1] != STOP && value[1] != PAUSE)) {
+                            result = RESULT_INVALID_PARAMETER;
+                            break;
+                        }
+                        state = value[1] == STOP ? State.STOPPED : State.PAUSED;
+                        status = new byte[]{STATUS_STOPPED_OR_PAUSED, value[1]};
+                        targetChanged = true;
+                        result = RESULT_SUCCESS;
+                        break;
+                    case OP_SET_INDOOR_BIKE_SIMULATION:
+                        if (value.length != 7) {
+                            result = RESULT_INVALID_PARAMETER;
+                            break;
+                        }
+                        windSpeed = (short) ((value[1] & 0xFF) | (value[2] << 8));
+                        grade = (short) ((value[3] & 0xFF) | (value[4] << 8));
+                        rollingResistance = value[5] & 0xFF;
+                        windResistance = value[6] & 0xFF;
+                        mode = Mode.SIMULATION;
+                        status = new byte[7];
+                        status[0] = STATUS_INDOOR_BIKE_SIMULATION_CHANGED;
+                        System.arraycopy(value, 1, status, 1, 6);
+                        targetChanged = true;
+                        result = RESULT_SUCCESS;
+                        break;
+                    default:
+                        result = RESULT_OP_CODE_NOT_SUPPORTED;
+                        break;
+                }
+            }
+        }
+        // 數據更新排在回應指示之前：指示要等到下一個連線事件才會確認，排在後面會多等一到兩個連線間隔
+        if (targetChanged) listener.onTargetChanged(writeNanos);
+        listener.onResponse(new byte[]{(byte) OP_RESPONSE_CODE, (byte) opCode, (byte) result});
+        if (status != null) listener.onStatus(status);
+    }
+
+    /**
+     * 裝置斷線時釋放它的控制權。
+     */
+    public synchronized void onDeviceDisconnected(String deviceId) {
+        if (deviceId.equals(controllingDevice)) {
+            controllingDevice = null;
+        }
+    }
+
+    /**
+     * 回到初始狀態 (釋放控制權、清除所有目標)。
+     */
+    public synchronized void reset() {
+        resetLocked();
+    }
+
+    private void resetLocked() {
+        controllingDevice = null;
+        state = State.IDLE;
+        mode = Mode.RESISTANCE;
+        targetResistance = 0;
+        targetPower = 0;
+        windSpeed = 0;
+        grade = 0;
+        rollingResistance = 0;
+        windResistance = 0;
+    }
+
+    private static boolean isSupported(int opCode) {
+        switch (opCode) {
+            case OP_RESET:
+            case OP_SET_TARGET_RESISTANCE:
+            case OP_SET_TARGET_POWER:
+            case OP_START_OR_RESUME:
+            case OP_STOP_OR_PAUSE:
+            case OP_SET_INDOOR_BIKE_SIMULATION:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 依目前的模式計算輸出功率。
+     * @param speedKmh 目前的速度。
+     * @param basePower 阻力模式下阻力為 0 時的功率。
+     */
+    public synchronized int power(float speedKmh, int basePower) {
+        if (state == State.PAUSED || state == State.STOPPED) return 0;
+        switch (mode) {
+            case POWER:
+                return targetPower;
+            case SIMULATION: {
+                double speed = speedKmh / 3.6;
+                double crr = rollingResistance * 0.0001;
+                double cw = windResistance * 0.01;
+                double relativeWind = speed + windSpeed * 0.001;
+                double force = RIDER_MASS_KG * GRAVITY * (crr + grade * 0.0001)
+                        + 0.5 * cw * relativeWind * Math.abs(relativeWind);
+                return (int) Math.max(0, Math.min(MAX_POWER, Math.round(force * speed)));
+            }
+            default:
+                // 原始值的解析度為 0.1 級；沿用原本「每一級 +10W」的近似
+                return basePower + targetResistance;
+        }
+    }
+
+    /**
+     * 暫停或停止時不輸出速度與踏頻。
+     */
+    public synchronized boolean isMoving() {
+        return state != State.PAUSED && state != State.STOPPED;
+    }
+
+    public synchronized String getControllingDevice() {
+        return controllingDevice;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized Mode getMode() {
+        return mode;
+    }
+
+    public synchronized int getTargetResistance() {
+        return targetResistance;
+    }
+
+    public synchronized int getTargetPower() {
+        return targetPower;
+    }
+}
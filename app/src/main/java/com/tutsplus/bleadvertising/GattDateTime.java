@@ -0,0 +1,218 @@
+package com.tutsplus.bleadvertising;
+
+import java.util.TimeZone;
+
+/**
+ * 牆上時間 (wall-clock) 的 SIG 日期時間編碼器，取代每個封包都呼叫 Calendar.getInstance()。
+ *
+ * 編碼結果以「秒」為單位快取：同一秒內的呼叫只是一次 volatile 讀取加上 arraycopy，不配置任何記憶體。
+ * 跨秒時直接由 epoch 毫秒推算欄位，同一天內只更新時分秒，跨日才重新計算年月日與星期。
+ *
+ * 支援的格式 (皆為 little-endian)：
+ * <ul>
+ *     <li>Date Time (7 bytes)：Year(2) Month(1) Day(1) Hours(1) Minutes(1) Seconds(1)</li>
+ *     <li>Device Time (9 bytes)：Date Time + DayOfWeek(1, Monday=1..Sunday=7) + Fractions256(1)</li>
+ *     <li>Current Time (10 bytes)：Device Time + Adjust Reason(1)</li>
+ * </ul>
+ */
+public final class GattDateTime {
+
+    public static final int DATE_TIME_LENGTH = 7;
+    public static final int DAY_DATE_TIME_LENGTH = 9;
+    public static final int CURRENT_TIME_LENGTH = 10;
+
+    /** Current Time 的 Adjust Reason：手動更新。 */
+    private static final byte ADJUST_REASON_MANUAL = 1;
+    /** 跟隨系統時區時，多久重新讀取一次 TimeZone.getDefault()。 */
+    private static final long ZONE_REFRESH_SECONDS = 60;
+
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    /**
+     * 時間來源，方便測試時注入固定時間。
+     */
+    public interface Clock {
+        long currentTimeMillis();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private static final GattDateTime SYSTEM = new GattDateTime(null, SYSTEM_CLOCK);
+
+    /**
+     * 某一秒的編碼結果，建立後不再修改。
+     */
+    private static final class Snapshot {
+        final long epochSecond;
+        final long localDay;
+        final byte[] encoded = new byte[CURRENT_TIME_LENGTH];
+
+        Snapshot(long epochSecond, long localDay) {
+            this.epochSecond = epochSecond;
+            this.localDay = localDay;
+        }
+    }
+
+    private final Clock clock;
+    private final boolean followSystemZone;
+    private TimeZone zone;
+    private long zoneCheckedAtSecond;
+    private volatile Snapshot snapshot;
+
+    /**
+     * @param zone  編碼使用的時區；null 表示跟隨系統時區 (每分鐘重新讀取一次)。
+     * @param clock 時間來源。
+     */
+    public GattDateTime(TimeZone zone, Clock clock) {
+        this.clock = clock;
+        this.followSystemZone = zone == null;
+        this.zone = zone == null ? TimeZone.getDefault() : zone;
+    }
+
+    /**
+     * 使用系統時鐘與系統時區的共用實例。
+     */
+    public static GattDateTime system() {
+        return SYSTEM;
+    }
+
+    /**
+     * 將目前時間的 Date Time (7 bytes) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #DATE_TIME_LENGTH})。
+     */
+    public int writeDateTime(byte[] out, int offset) {
+        return writeDateTime(out, offset, clock.currentTimeMillis());
+    }
+
+    public int writeDateTime(byte[] out, int offset, long epochMillis) {
+        System.arraycopy(snapshotFor(epochMillis).encoded, 0, out, offset, DATE_TIME_LENGTH);
+        return DATE_TIME_LENGTH;
+    }
+
+    /**
+     * 將目前時間的 Device Time (9 bytes, 含星期與 Fractions256) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #DAY_DATE_TIME_LENGTH})。
+     */
+    public int writeDayDateTime(byte[] out, int offset) {
+        return writeDayDateTime(out, offset, clock.currentTimeMillis());
+    }
+
+    public int writeDayDateTime(byte[] out, int offset, long epochMillis) {
+        System.arraycopy(snapshotFor(epochMillis).encoded, 0, out, offset, DAY_DATE_TIME_LENGTH);
+        return DAY_DATE_TIME_LENGTH;
+    }
+
+    /**
+     * 將目前時間的 Current Time (10 bytes, 含 Adjust Reason) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #CURRENT_TIME_LENGTH})。
+     */
+    public int writeCurrentTime(byte[] out, int offset) {
+        return writeCurrentTime(out, offset, clock.currentTimeMillis());
+    }
+
+    public int writeCurrentTime(byte[] out, int offset, long epochMillis) {
+        System.arraycopy(snapshotFor(epochMillis).encoded, 0, out, offset, CURRENT_TIME_LENGTH);
+        return CURRENT_TIME_LENGTH;
+    }
+
+    /**
+     * 把 Date Time (7 bytes) 的欄位當作 UTC 換算成由 1970-01-01 起算的秒數 (牆上時間，不含時區)，可以直接比較先後。
+     * 年份 0 (未知) 視為 1582 年以前，月、日為 0 時視為 1。
+     */
+    public static long readWallClockSeconds(byte[] in, int offset) {
+        int year = (in[offset] & 0xFF) | ((in[offset + 1] & 0xFF) << 8);
+        int month = Math.max(1, in[offset + 2] & 0xFF);
+        int day = Math.max(1, in[offset + 3] & 0xFF);
+        long seconds = (in[offset + 4] & 0xFF) * 3600L + (in[offset + 5] & 0xFF) * 60L + (in[offset + 6] & 0xFF);
+        return epochDay(year, month, day) * SECONDS_PER_DAY + seconds;
+    }
+
+    private Snapshot snapshotFor(long epochMillis) {
+        long epochSecond = floorDiv(epochMillis, 1000L);
+        Snapshot current = snapshot;
+        if (current != null && current.epochSecond == epochSecond) {
+            return current;
+        }
+        return refresh(epochMillis, epochSecond);
+    }
+
+    private synchronized Snapshot refresh(long epochMillis, long epochSecond) {
+        Snapshot previous = snapshot;
+        if (previous != null && previous.epochSecond == epochSecond) {
+            return previous;
+        }
+        if (followSystemZone && Math.abs(epochSecond - zoneCheckedAtSecond) >= ZONE_REFRESH_SECONDS) {
+            zone = TimeZone.getDefault();
+            zoneCheckedAtSecond = epochSecond;
+        }
+
+        long localSecond = floorDiv(epochMillis + zone.getOffset(epochMillis), 1000L);
+        long localDay = floorDiv(localSecond, SECONDS_PER_DAY);
+        int secondOfDay = (int) (localSecond - localDay * SECONDS_PER_DAY);
+
+        Snapshot next = new Snapshot(epochSecond, localDay);
+        byte[] encoded = next.encoded;
+        if (previous != null && previous.localDay == localDay) {
+            // 同一天：年月日與星期不變
+            System.arraycopy(previous.encoded, 0, encoded, 0, CURRENT_TIME_LENGTH);
+        } else {
+            encodeDate(encoded, localDay);
+            encoded[8] = 0; // Fractions256
+            encoded[9] = ADJUST_REASON_MANUAL;
+        }
+        encoded[4] = (byte) (secondOfDay / 3600);
+        encoded[5] = (byte) (secondOfDay / 60 % 60);
+        encoded[6] = (byte) (secondOfDay % 60);
+
+        snapshot = next;
+        return next;
+    }
+
+    /**
+     * 由 1970-01-01 起算的天數推算西曆年月日 (Howard Hinnant 的 civil_from_days 演算法) 與星期。
+     */
+    private static void encodeDate(byte[] encoded, long epochDay) {
+        long z = epochDay + 719468;
+        long era = floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        encoded[0] = (byte) year;
+        encoded[1] = (byte) (year >> 8);
+        encoded[2] = (byte) month;
+        encoded[3] = (byte) day;
+        // 1970-01-01 是星期四；SIG: Monday=1..Sunday=7
+        encoded[7] = (byte) ((int) (epochDay + 3 - floorDiv(epochDay + 3, 7) * 7) + 1);
+    }
+
+    /**
+     * 西曆年月日到 1970-01-01 起算的天數 (days_from_civil，{@link #encodeDate} 的反運算)。
+     */
+    private static long epochDay(long year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    // Math.floorDiv 要到 API 24 才有
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            q--;
+        }
+        return q;
+    }
+}
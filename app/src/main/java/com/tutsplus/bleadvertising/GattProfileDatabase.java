@@ -0,0 +1,220 @@
+package com.tutsplus.bleadvertising;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 由 app/src/main/gattProfiles/*.json 在建置時編譯出的 GATT 屬性資料庫 (assets/gatt_profiles.bin)。
+ * 編譯工作由 app/build.gradle 的 compileGattProfiles 負責，執行期只讀二進位格式，不需要解析 JSON。
+ *
+ * 格式 (little-endian)：
+ * <pre>
+ * header   : magic u32 ("GATP") | version u16 | profileCount u16
+ * index    : profileCount x { nameLength u8 | name UTF-8 | offset u32 | length u32 }
+ * profile  : service (每個 profile 就是一個服務)
+ * service  : uuid | type u8 (0 = primary, 1 = secondary) | characteristicCount u8 | characteristic...
+ * char     : uuid | properties u8 | permissions u16 | value | descriptorCount u8 | descriptor...
+ * desc     : uuid | permissions u16 | value
+ * uuid     : kind u8 (2 = 16-bit SIG 別名, 16 = 128-bit) | u16 或 msb u64 + lsb u64
+ * value    : length u16 (0xFFFF 表示沒有初始值) | bytes
+ * </pre>
+ * properties/permissions 的位元與 Android 的 BluetoothGattCharacteristic/BluetoothGattDescriptor 常數相同。
+ *
+ * 開啟時只讀取索引，各 profile 的內容在第一次 {@link #getProfile(String)} 時才解碼。
+ * 此類別不依賴 Android API；Android 上由 {@link GattProfileLoader} 以 memory-mapped 方式開啟 asset。
+ */
+public final class GattProfileDatabase {
+
+    public static final int MAGIC = 0x50544147; // "GATP"
+    public static final int VERSION = 1;
+
+    static final int UUID_16 = 2;
+    static final int UUID_128 = 16;
+    static final int NO_VALUE = 0xFFFF;
+    public static final int SERVICE_TYPE_PRIMARY = 0;
+    public static final int SERVICE_TYPE_SECONDARY = 1;
+
+    private static final long SIG_BASE_LSB = 0x800000805F9B34FBL;
+    private static final long SIG_BASE_MSB = 0x0000000000001000L;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    // profile 名稱 -> 內容在 buffer 中的 [offset, length]，依檔案中的順序
+    private final Map<String, int[]> index = new LinkedHashMap<>();
+
+    private GattProfileDatabase(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * 開啟資料庫並讀取索引。buffer 可以是 memory-mapped 的，內容不會被複製。
+     * @throws IllegalArgumentException 格式不正確。
+     */
+    public static GattProfileDatabase open(ByteBuffer source) {
+        ByteBuffer buffer = source.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(0);
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IllegalArgumentException("not a GATT profile database");
+            }
+            int version = buffer.getShort() & 0xFFFF;
+            if (version != VERSION) {
+                throw new IllegalArgumentException("unsupported GATT profile database version: " + version);
+            }
+            GattProfileDatabase database = new GattProfileDatabase(buffer);
+            int profileCount = buffer.getShort() & 0xFFFF;
+            for (int i = 0; i < profileCount; i++) {
+                String name = readString(buffer, buffer.get() & 0xFF);
+                int offset = buffer.getInt();
+                int length = buffer.getInt();
+                if (offset < 0 || length < 0 || offset + length > buffer.limit()) {
+                    throw new IllegalArgumentException("profile out of range: " + name);
+                }
+                database.index.put(name, new int[]{offset, length});
+            }
+            return database;
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated GATT profile database", e);
+        }
+    }
+
+    /**
+     * 資料庫中所有 profile 的名稱，依檔案中的順序。
+     */
+    public List<String> getProfileNames() {
+        return Collections.unmodifiableList(new ArrayList<>(index.keySet()));
+    }
+
+    public boolean hasProfile(String name) {
+        return index.containsKey(name);
+    }
+
+    /**
+     * 解碼並回傳指定的 profile；不存在時回傳 null。每次呼叫都會重新解碼，呼叫端應自行保存結果。
+     * @throws IllegalArgumentException 內容格式不正確。
+     */
+    public Profile getProfile(String name) {
+        int[] range = index.get(name);
+        if (range == null) return null;
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        in.position(range[0]);
+        in.limit(range[0] + range[1]);
+        try {
+            return new Profile(name, readService(in));
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated profile: " + name, e);
+        }
+    }
+
+    private static Service readService(ByteBuffer in) {
+        UUID uuid = readUuid(in);
+        int type = in.get() & 0xFF;
+        int characteristicCount = in.get() & 0xFF;
+        List<Characteristic> characteristics = new ArrayList<>(characteristicCount);
+        for (int c = 0; c < characteristicCount; c++) {
+            UUID characteristicUuid = readUuid(in);
+            int properties = in.get() & 0xFF;
+            int permissions = in.getShort() & 0xFFFF;
+            byte[] value = readValue(in);
+            int descriptorCount = in.get() & 0xFF;
+            List<Descriptor> descriptors = new ArrayList<>(descriptorCount);
+            for (int d = 0; d < descriptorCount; d++) {
+                UUID descriptorUuid = readUuid(in);
+                int descriptorPermissions = in.getShort() & 0xFFFF;
+                descriptors.add(new Descriptor(descriptorUuid, descriptorPermissions, readValue(in)));
+            }
+            characteristics.add(new Characteristic(characteristicUuid, properties, permissions, value, descriptors));
+        }
+        return new Service(uuid, type, characteristics);
+    }
+
+    private static UUID readUuid(ByteBuffer in) {
+        int kind = in.get() & 0xFF;
+        if (kind == UUID_16) {
+            long shortUuid = in.getShort() & 0xFFFFL;
+            return new UUID(SIG_BASE_MSB | (shortUuid << 32), SIG_BASE_LSB);
+        }
+        if (kind == UUID_128) {
+            long msb = in.getLong();
+            long lsb = in.getLong();
+            return new UUID(msb, lsb);
+        }
+        throw new IllegalArgumentException("invalid uuid kind: " + kind);
+    }
+
+    private static byte[] readValue(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if (length == NO_VALUE) return null;
+        byte[] value = new byte[length];
+        in.get(value);
+        return value;
+    }
+
+    private static String readString(ByteBuffer in, int length) {
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * 一個 profile：有名稱的 GATT 服務定義 (對應 ServicesManager 中的一個 LazyProfile)。
+     */
+    public static final class Profile {
+        public final String name;
+        public final Service service;
+
+        Profile(String name, Service service) {
+            this.name = name;
+            this.service = service;
+        }
+    }
+
+    public static final class Service {
+        public final UUID uuid;
+        public final int type;
+        public final List<Characteristic> characteristics;
+
+        Service(UUID uuid, int type, List<Characteristic> characteristics) {
+            this.uuid = uuid;
+            this.type = type;
+            this.characteristics = Collections.unmodifiableList(characteristics);
+        }
+    }
+
+    public static final class Characteristic {
+        public final UUID uuid;
+        public final int properties;
+        public final int permissions;
+        /** 初始值，沒有時為 null。 */
+        public final byte[] value;
+        public final List<Descriptor> descriptors;
+
+        Characteristic(UUID uuid, int properties, int permissions, byte[] value, List<Descriptor> descriptors) {
+            this.uuid = uuid;
+            this.properties = properties;
+            this.permissions = permissions;
+            this.value = value;
+            this.descriptors = Collections.unmodifiableList(descriptors);
+        }
+    }
+
+    public static final class Descriptor {
+        public final UUID uuid;
+        public final int permissions;
+        /** 初始值，沒有時為 null。 */
+        public final byte[] value;
+
+        Descriptor(UUID uuid, int permissions, byte[] value) {
+            this.uuid = uuid;
+            this.permissions = permissions;
+            this.value = value;
+        }
+    }
+}
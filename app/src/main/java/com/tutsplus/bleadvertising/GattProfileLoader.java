@@ -0,0 +1,69 @@
+package com.tutsplus.bleadvertising;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 開啟建置時產生的 GATT 屬性資料庫 (assets/gatt_profiles.bin)，並將其中的定義轉成 BluetoothGattService。
+ *
+ * asset 在 APK 中不壓縮 (見 app/build.gradle 的 noCompress)，因此可以直接 memory-map APK 中的那一段，
+ * 不需要先把內容讀進 heap。
+ */
+final class GattProfileLoader {
+
+    static final String ASSET_NAME = "gatt_profiles.bin";
+
+    private GattProfileLoader() {
+    }
+
+    static GattProfileDatabase open(Context context) throws IOException {
+        AssetFileDescriptor descriptor = context.getAssets().openFd(ASSET_NAME);
+        try {
+            FileInputStream input = descriptor.createInputStream();
+            try {
+                FileChannel channel = input.getChannel();
+                // mapping 在 channel 關閉後仍然有效
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, descriptor.getStartOffset(), descriptor.getLength());
+                return GattProfileDatabase.open(mapped);
+            } finally {
+                input.close();
+            }
+        } finally {
+            descriptor.close();
+        }
+    }
+
+    /**
+     * 依定義建立新的服務實例 (含特徵、描述符與初始值)。
+     */
+    static BluetoothGattService toService(GattProfileDatabase.Service definition) {
+        BluetoothGattService service = new BluetoothGattService(definition.uuid,
+                definition.type == GattProfileDatabase.SERVICE_TYPE_SECONDARY
+                        ? BluetoothGattService.SERVICE_TYPE_SECONDARY
+                        : BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        for (GattProfileDatabase.Characteristic characteristicDefinition : definition.characteristics) {
+            BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(
+                    characteristicDefinition.uuid, characteristicDefinition.properties, characteristicDefinition.permissions);
+            if (characteristicDefinition.value != null) {
+                characteristic.setValue(characteristicDefinition.value.clone());
+            }
+            for (GattProfileDatabase.Descriptor descriptorDefinition : characteristicDefinition.descriptors) {
+                BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(descriptorDefinition.uuid, descriptorDefinition.permissions);
+                if (descriptorDefinition.value != null) {
+                    descriptor.setValue(descriptorDefinition.value.clone());
+                }
+                characteristic.addDescriptor(descriptor);
+            }
+            service.addCharacteristic(characteristic);
+        }
+        return service;
+    }
+}
@@ -0,0 +1,75 @@
+package com.tutsplus.bleadvertising;
+
+import java.util.Set;
+
+/**
+ * GATT 伺服器的傳輸層抽象。
+ * ServicesManager 與 ViewModel 只透過這個介面加入服務、發送通知與回應請求，
+ * 因此同一套「模擬 → 編碼 → 扇出」流程可以跑在 Android 的 BluetoothGattServer 上
+ * ({@link AndroidGattTransport})，也可以跑在純 JVM 的記憶體內迴路上 ({@link LoopbackGattTransport})。
+ *
+ * 裝置一律以字串 ID (Android 上為 MAC 位址) 表示。
+ *
+ * @param <S> 服務的型別 (Android 上為 BluetoothGattService)。
+ * @param <C> 特徵的型別 (Android 上為 BluetoothGattCharacteristic)。
+ */
+public interface GattTransport<S, C> {
+
+    /** 未協商時的預設 ATT MTU。 */
+    int DEFAULT_MTU = 23;
+
+    /**
+     * 傳輸層事件。所有方法都有預設的空實作，只需覆寫關心的事件。
+     * 事件可能在任意執行緒上回呼 (Android 上為 Binder 執行緒)。
+     */
+    interface Callback<S, C> {
+        default void onConnectionStateChange(String deviceId, boolean connected) {}
+
+        default void onServiceAdded(S service, boolean success) {}
+
+        /** 上一個通知已送出 (或指示已收到確認)，可以送下一個。 */
+        default void onNotificationSent(String deviceId, boolean success) {}
+
+        default void onMtuChanged(String deviceId, int mtu) {}
+
+        default void onSubscriptionChanged(String deviceId, C characteristic, byte[] cccdValue) {}
+
+        default void onCharacteristicReadRequest(String deviceId, int requestId, int offset, C characteristic) {}
+
+        default void onCharacteristicWriteRequest(String deviceId, int requestId, C characteristic,
+                                                  boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {}
+
+        /** 客戶端提交 (execute = true) 或取消先前的 Prepare Write。 */
+        default void onExecuteWrite(String deviceId, int requestId, boolean execute) {}
+    }
+
+    void addCallback(Callback<S, C> callback);
+
+    void removeCallback(Callback<S, C> callback);
+
+    /**
+     * 開始加入一個服務，結果透過 {@link Callback#onServiceAdded} 回報。
+     * @return 請求是否成功送出。
+     */
+    boolean addService(S service);
+
+    /**
+     * 對單一裝置發送通知 (confirm = false) 或指示 (confirm = true)。
+     * @return 是否被底層接受；false 通常代表緩衝區已滿或裝置已斷線。
+     */
+    boolean notifyCharacteristicChanged(String deviceId, C characteristic, byte[] value, boolean confirm);
+
+    boolean sendResponse(String deviceId, int requestId, int status, int offset, byte[] value);
+
+    /**
+     * 目前已連線裝置的快照。
+     */
+    Set<String> getConnectedDevices();
+
+    /**
+     * 取得裝置協商後的 ATT MTU；未知時回傳 {@link #DEFAULT_MTU}。
+     */
+    int getMtu(String deviceId);
+
+    void close();
+}
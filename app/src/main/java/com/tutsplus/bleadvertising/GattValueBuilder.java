@@ -1,30 +1,95 @@
 package com.tutsplus.bleadvertising;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.Calendar;
-import java.util.TimeZone;
 
 /**
  * 一個輔助類別，使用建造者模式（Builder-style methods）來封裝建立標準 GATT 特徵值的複雜邏輯。
  * 將高階數據類型 (int, float, etc.) 轉換為符合 SIG 標準的 byte[]。
+ *
+ * 每個編碼器都有兩種形式：
+ * <ul>
+ *     <li>{@code forXxx(...)}：回傳一個新的 byte[]，方便直接交給 setValue。</li>
+ *     <li>{@code forXxx(byte[] out, int offset, ...)}：寫入呼叫端提供的緩衝區，回傳寫入的位元組數，本身不配置任何記憶體。
+ *     緩衝區空間不足時會拋出 ArrayIndexOutOfBoundsException。
+ *     高頻率的呼叫端可以搭配 {@link #pooledBuffer()} 取得每條執行緒專用的暫存緩衝區。</li>
+ * </ul>
+ * 所有多位元組欄位皆為 little-endian。
  */
 public final class GattValueBuilder {
 
+    /** ATT 屬性值的最大長度，也是 {@link #pooledBuffer()} 回傳的緩衝區大小。 */
+    public static final int MAX_VALUE_LENGTH = 512;
+    /** 每條執行緒輪流使用的緩衝區數量。 */
+    public static final int POOL_SIZE = 4;
+
+    public static final int BATTERY_LEVEL_LENGTH = 1;
+    public static final int DEVICE_TIME_LENGTH = 9;
+    public static final int ACTIVE_PRESET_INDEX_LENGTH = 1;
+    public static final int INDOOR_BIKE_DATA_LENGTH = 12;
+    public static final int TREADMILL_DATA_LENGTH = 9;
+    public static final int CROSS_TRAINER_DATA_LENGTH = 9;
+    public static final int TEMPERATURE_MEASUREMENT_LENGTH = 5;
+    public static final int CURRENT_TIME_LENGTH = 10;
+    public static final int ESS_TEMPERATURE_LENGTH = 2;
+    public static final int ESS_HUMIDITY_LENGTH = 2;
+    public static final int ESS_PRESSURE_LENGTH = 4;
+    public static final int ESS_WIND_CHILL_LENGTH = 1;
+    public static final int WEIGHT_SCALE_MEASUREMENT_LENGTH = 3;
+    public static final int CF597_DEVICE_INFO_LENGTH = 13;
+    public static final int CF597_REALTIME_LENGTH = 22;
+    public static final int CF597_HISTORY_LENGTH = 23;
+    public static final int GENERIC_ACK_LENGTH = 3;
+    public static final int GENERIC_MCU_RESPONSE_LENGTH = 5;
+
+    // 血糖濃度的單位換算：mg/dL -> kg/L
+    private static final double MG_PER_DL_TO_KG_PER_L = 1e-5;
+
+    // 模擬的一條 CF597 歷史記錄 TLV：體重(0x01), 心率(0x0D), 阻抗 Z1/Z2(0x05/0x06)
+    private static final byte[] HISTORY_TLVS = {
+            (byte) 0x01, 0x02, (byte) 0x96, (byte) 0x19, // 65.50kg: 6550 -> 0x1996 -> 96 19
+            (byte) 0x0D, 0x01, (byte) 75,                // 75bpm
+            (byte) 0x05, 0x02, (byte) 0xF4, (byte) 0x01, // Z1: 500
+            (byte) 0x06, 0x02, (byte) 0xFA, (byte) 0x01, // Z2: 505
+    };
+
+    private static final ThreadLocal<BufferRing> POOL = new ThreadLocal<BufferRing>() {
+        @Override
+        protected BufferRing initialValue() {
+            return new BufferRing();
+        }
+    };
+
     // 私有建構函式，防止實例化
     private GattValueBuilder() {}
 
+    /**
+     * 取得目前執行緒專用的暫存緩衝區 (長度 {@link #MAX_VALUE_LENGTH})。
+     * 每條執行緒有 {@link #POOL_SIZE} 個緩衝區輪流使用，
+     * 因此回傳的緩衝區在同一條執行緒再取用 {@link #POOL_SIZE} 次之前都不會被覆寫。
+     * 不可以把它交給其他執行緒或長期保存 (例如直接 setValue)。
+     */
+    public static byte[] pooledBuffer() {
+        return POOL.get().next();
+    }
+
     /**
      * 封裝電池電量 (0x2A19) 的值。
      * @param batteryLevel 電量百分比 (0-100)。
      * @return 符合格式的 byte[]。
      */
     public static byte[] forBatteryLevel(int batteryLevel) {
-        // 使用 ByteBuffer 來確保正確的格式和順序，雖然這裡只有一個 byte
-        return ByteBuffer.allocate(1)
-                .order(ByteOrder.LITTLE_ENDIAN)
-                .put((byte) batteryLevel)
-                .array();
+        byte[] value = new byte[BATTERY_LEVEL_LENGTH];
+        forBatteryLevel(value, 0, batteryLevel);
+        return value;
+    }
+
+    /**
+     * 將電池電量 (0x2A19) 寫入 out[offset]。
+     * @return 寫入的位元組數。
+     */
+    public static int forBatteryLevel(byte[] out, int offset, int batteryLevel) {
+        out[offset] = (byte) batteryLevel;
+        return BATTERY_LEVEL_LENGTH;
     }
 
     /**
@@ -39,48 +104,78 @@ public final class GattValueBuilder {
      * @return 符合格式的 byte[]。
      */
     public static byte[] forBloodPressureMeasurement(float systolic, float diastolic, float meanArterialPressure, float pulseRate, boolean hasPulseRate) {
-        // Flags: 單位為 mmHg, 不含時間戳, 含脈率
-        byte flags = (byte) (hasPulseRate ? 0b0000_0010 : 0b0000_0000);
         int bufferSize = 1 + 6; // Flags + 3x SFLOAT
 
         if (hasPulseRate) {
             bufferSize += 2; // Pulse Rate (SFLOAT)
         }
 
-        ByteBuffer buffer = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] value = new byte[bufferSize];
+        forBloodPressureMeasurement(value, 0, systolic, diastolic, meanArterialPressure, pulseRate, hasPulseRate);
+        return value;
+    }
+
+    /**
+     * 將血壓測量 (0x2A35) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 (7，含脈率時為 9)。
+     */
+    public static int forBloodPressureMeasurement(byte[] out, int offset, float systolic, float diastolic, float meanArterialPressure, float pulseRate, boolean hasPulseRate) {
+        // Flags: 單位為 mmHg (bit 0), 不含時間戳 (bit 1), 含脈率 (bit 2)
+        byte flags = (byte) (hasPulseRate ? 0b0000_0100 : 0b0000_0000);
+        int i = offset;
 
         // 1. Flags
-        buffer.put(flags);
+        out[i++] = flags;
 
         // 2. 血壓測量值 (收縮壓, 舒張壓, 平均動脈壓) - SFLOAT
-        // SFLOAT 是一種 16-bit 浮點數，由 4-bit 指數和 12-bit 尾數組成
-        // 這裡為了簡化，我們直接使用 IEEE-754 32-bit float，但客戶端需要知道如何解析
-        // 為了更符合規範，應將 float 轉為 SFLOAT，但這需要額外的轉換邏輯
-        // 此處我們將其直接當作 Float 處理，並佔用相應字節空間
-        // SFLOAT 的字節長度是 2 bytes (16-bit)
-        // SFLOAT 是一種16位元的浮點數。這裡為了簡化，我們直接將 float 轉為 short。
-        // 在真實設備上，需要嚴格按照 SFLOAT (12位尾數 + 4位指數) 格式轉換。
-
-        buffer.putShort((short) systolic);
-        buffer.putShort((short) diastolic);
-        buffer.putShort((short) meanArterialPressure);
+        i = MedicalFloat.putSfloat(out, i, systolic);
+        i = MedicalFloat.putSfloat(out, i, diastolic);
+        i = MedicalFloat.putSfloat(out, i, meanArterialPressure);
 
         // 3. 脈率 (可選)
         if (hasPulseRate) {
-            buffer.putShort((short) pulseRate);
+            i = MedicalFloat.putSfloat(out, i, pulseRate);
         }
 
-        return buffer.array();
+        return i - offset;
     }
 
 
     /**
-     * 封裝 Device Time (0x2B90) 的值。
+     * 封裝目前時間的 Device Time (0x2B90) 值。
      * 結構與 Current Time 相似，但不包含 Adjust Reason。
+     * @return 符合格式的 byte[]。
+     */
+    public static byte[] forDeviceTime() {
+        byte[] value = new byte[DEVICE_TIME_LENGTH];
+        forDeviceTime(value, 0);
+        return value;
+    }
+
+    /**
+     * 將目前時間的 Device Time (0x2B90) 寫入 out 的 offset 位置，使用 {@link GattDateTime} 的每秒快取，不配置記憶體。
+     * @return 寫入的位元組數 ({@link #DEVICE_TIME_LENGTH})。
+     */
+    public static int forDeviceTime(byte[] out, int offset) {
+        return GattDateTime.system().writeDayDateTime(out, offset);
+    }
+
+    /**
+     * 封裝指定時間的 Device Time (0x2B90) 值。
      * @param calendar 一個 Calendar 物件，代表要設定的時間。
      * @return 符合格式的 byte[]。
      */
     public static byte[] forDeviceTime(Calendar calendar) {
+        byte[] value = new byte[DEVICE_TIME_LENGTH];
+        forDeviceTime(value, 0, calendar);
+        return value;
+    }
+
+    /**
+     * 將 Device Time (0x2B90) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #DEVICE_TIME_LENGTH})。
+     */
+    public static int forDeviceTime(byte[] out, int offset, Calendar calendar) {
         int year = calendar.get(Calendar.YEAR);
         int month = calendar.get(Calendar.MONTH) + 1; // Month is 0-based
         int day = calendar.get(Calendar.DAY_OF_MONTH);
@@ -95,34 +190,52 @@ public final class GattValueBuilder {
             dayOfWeek -= 1;
         }
 
-        // 使用 ByteBuffer 確保位元組順序正確 (LITTLE_ENDIAN)
         // 總共 9 bytes: Year(2) + Month(1) + Day(1) + Hour(1) + Minute(1) + Second(1) + DayOfWeek(1) + Fractions256(1)
-        ByteBuffer buffer = ByteBuffer.allocate(9).order(ByteOrder.LITTLE_ENDIAN);
-        buffer.putShort((short) year);
-        buffer.put((byte) month);
-        buffer.put((byte) day);
-        buffer.put((byte) hour);
-        buffer.put((byte) minute);
-        buffer.put((byte) second);
-        buffer.put((byte) dayOfWeek);
-        buffer.put((byte) 0); // Fractions256
-
-        return buffer.array();
+        int i = putUint16(out, offset, year);
+        out[i++] = (byte) month;
+        out[i++] = (byte) day;
+        out[i++] = (byte) hour;
+        out[i++] = (byte) minute;
+        out[i++] = (byte) second;
+        out[i++] = (byte) dayOfWeek;
+        out[i++] = 0; // Fractions256
+
+        return i - offset;
     }
 
     /**
      * 封裝血糖測量 (0x2A18) 的值。
      * @param sequenceNumber 序列號，每個測量值遞增。
-     * @param glucoseConcentration 血糖濃度，單位 mg/dL。
+     * @param glucoseConcentration 血糖濃度，單位 mg/dL；寫入時換算成規範的 kg/L。
      * @param includeTimeOffset 是否包含時間偏移。
-     * @param includeTypeAndLocation 是否包含測量類型和位置。
+     * @param includeTypeAndLocation 是否包含濃度、測量類型和位置 (規範中三者由同一個旗標控制)。
      * @return 符合格式的 byte[]。
      */
     public static byte[] forGlucoseMeasurement(int sequenceNumber, float glucoseConcentration, boolean includeTimeOffset, boolean includeTypeAndLocation) {
+        // --- 計算緩衝區大小 ---
+        // Flags(1) + SeqNum(2) + BaseTime(7) = 10 bytes (基本)
+        int bufferSize = 1 + 2 + 7; // Flags, Sequence Number, Base Time
+        if (includeTimeOffset) {
+            bufferSize += 2; // Time Offset (SINT16)
+        }
+        if (includeTypeAndLocation) {
+            bufferSize += 3; // Concentration (SFLOAT) + Type/Location(1)
+        }
+
+        byte[] value = new byte[bufferSize];
+        forGlucoseMeasurement(value, 0, sequenceNumber, glucoseConcentration, includeTimeOffset, includeTypeAndLocation);
+        return value;
+    }
+
+    /**
+     * 將血糖測量 (0x2A18) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 (10 到 15)。
+     */
+    public static int forGlucoseMeasurement(byte[] out, int offset, int sequenceNumber, float glucoseConcentration, boolean includeTimeOffset, boolean includeTypeAndLocation) {
         // --- Flags (1 byte) ---
         // bit 0: Time Offset Present (1 = true)
         // bit 1: Glucose Concentration, Type, and Sample Location Present (1 = true)
-        // bit 2: Glucose Concentration Units (0 = kg/L, 1 = mol/L) - 我們使用 mg/dL，所以這個位元在此無效，但會被包含。
+        // bit 2: Glucose Concentration Units (0 = kg/L, 1 = mol/L) - 使用 kg/L
         // bit 3: Sensor Status Annunciation Present (1 = true)
         byte flags = 0;
         if (includeTimeOffset) {
@@ -132,54 +245,31 @@ public final class GattValueBuilder {
             flags |= 0b0000_0010;
         }
         // 為了簡化，我們不包含 Sensor Status (bit 3)
-        // 濃度單位將使用 SFLOAT 表示 mg/dL，而不是 mol/L。
-
-        // --- 計算緩衝區大小 ---
-        // Flags(1) + SeqNum(2) + BaseTime(7) + Conc(2) = 12 bytes (基本)
-        int bufferSize = 1 + 2 + 7; // Flags, Sequence Number, Base Time
-        if (includeTimeOffset) {
-            bufferSize += 2; // Time Offset (SINT16)
-        }
-        if (includeTypeAndLocation) {
-            bufferSize += 3; // Concentration (SFLOAT) + Type/Location(1)
-        } else {
-            bufferSize += 2; // Concentration (SFLOAT)
-        }
-
-        ByteBuffer buffer = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        int i = offset;
 
         // 1. Flags
-        buffer.put(flags);
+        out[i++] = flags;
 
         // 2. Sequence Number (UINT16)
-        buffer.putShort((short) sequenceNumber);
+        i = putUint16(out, i, sequenceNumber);
 
         // 3. Base Time (DateTime) - 7 bytes
-        Calendar now = Calendar.getInstance();
-        buffer.putShort((short) now.get(Calendar.YEAR));
-        buffer.put((byte) (now.get(Calendar.MONTH) + 1));
-        buffer.put((byte) now.get(Calendar.DAY_OF_MONTH));
-        buffer.put((byte) now.get(Calendar.HOUR_OF_DAY));
-        buffer.put((byte) now.get(Calendar.MINUTE));
-        buffer.put((byte) now.get(Calendar.SECOND));
+        i += GattDateTime.system().writeDateTime(out, i);
 
         // 4. Time Offset (SINT16) - 可選
         if (includeTimeOffset) {
-            buffer.putShort((short) 0); // 假設沒有時間偏移
+            i = putUint16(out, i, 0); // 假設沒有時間偏移
         }
 
-        // 5. Glucose Concentration (SFLOAT, mg/dL)
-        // SFLOAT 是一種16位元的浮點數。這裡為了簡化，我們直接將 float 轉為 short。
-        buffer.putShort((short) glucoseConcentration);
-
-        // 6. Type and Sample Location (Nibble-Nibble) - 可選
+        // 5. Glucose Concentration (SFLOAT, kg/L) 與 6. Type and Sample Location (Nibble-Nibble) - 由 bit 1 決定是否存在
         if (includeTypeAndLocation) {
+            // 1 mg/dL = 10^-5 kg/L，例如 98.5 mg/dL 編碼成 985 × 10^-6
+            i = MedicalFloat.putSfloat(out, i, glucoseConcentration * MG_PER_DL_TO_KG_PER_L);
             // Type: 1 (毛細管全血), Location: 1 (指尖) -> 0x11
-            byte typeAndLocation = 0x11;
-            buffer.put(typeAndLocation);
+            out[i++] = 0x11;
         }
 
-        return buffer.array();
+        return i - offset;
     }
 
     /**
@@ -191,8 +281,19 @@ public final class GattValueBuilder {
      * @return 符合格式的 byte[]。
      */
     public static byte[] forActivePresetIndex(int presetIndex) {
+        byte[] value = new byte[ACTIVE_PRESET_INDEX_LENGTH];
+        forActivePresetIndex(value, 0, presetIndex);
+        return value;
+    }
+
+    /**
+     * 將助聽器當前預設索引 (0x2FDC) 寫入 out[offset]。
+     * @return 寫入的位元組數。
+     */
+    public static int forActivePresetIndex(byte[] out, int offset, int presetIndex) {
         // Active Preset Index 是一個 UINT8 值。
-        return new byte[]{(byte) presetIndex};
+        out[offset] = (byte) presetIndex;
+        return ACTIVE_PRESET_INDEX_LENGTH;
     }
 
 
@@ -213,42 +314,46 @@ public final class GattValueBuilder {
      * @return 符合格式的 byte[]。
      */
     public static byte[] forIndoorBikeData(float speed, float cadence, int power, int heartRate, int totalDistance) {
+        byte[] value = new byte[INDOOR_BIKE_DATA_LENGTH];
+        forIndoorBikeData(value, 0, speed, cadence, power, heartRate, totalDistance);
+        return value;
+    }
+
+    /**
+     * 將室內自行車數據 (0x2AD2) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #INDOOR_BIKE_DATA_LENGTH})。
+     */
+    public static int forIndoorBikeData(byte[] out, int offset, float speed, float cadence, int power, int heartRate, int totalDistance) {
         // --- Flags (2 bytes, LITTLE_ENDIAN) ---
-        // bit 1: Instantaneous Speed
+        // bit 0: More Data (0 = 含 Instantaneous Speed)
         // bit 2: Instantaneous Cadence
-        // bit 4: Instantaneous Power
-        // bit 5: Heart Rate
-        // bit 8: Total Distance
-        short flags = 0b0000_0001_0011_0110; // 0x0136
-
-        // --- 計算緩衝區大小 ---
-        // Flags(2) + Speed(2) + Cadence(2) + Power(2) + HeartRate(1) + TotalDistance(3)
-        int bufferSize = 2 + 2 + 2 + 2 + 1 + 3;
+        // bit 4: Total Distance
+        // bit 6: Instantaneous Power
+        // bit 9: Heart Rate
+        short flags = 0b0000_0010_0101_0100; // 0x0254
 
-        ByteBuffer buffer = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        // 欄位順序依旗標位元：Flags(2) + Speed(2) + Cadence(2) + TotalDistance(3) + Power(2) + HeartRate(1)
 
         // 1. Flags
-        buffer.putShort(flags);
+        int i = putUint16(out, offset, flags);
 
         // 2. Instantaneous Speed (UINT16, km/h, resolution 0.01)
-        buffer.putShort((short) (speed * 100));
+        i = putUint16(out, i, (short) (speed * 100));
 
         // 3. Instantaneous Cadence (UINT16, rpm, resolution 0.5)
-        buffer.putShort((short) (cadence * 2));
+        i = putUint16(out, i, (short) (cadence * 2));
 
-        // 4. Instantaneous Power (SINT16, watts)
-        buffer.putShort((short) power);
+        // 4. Total Distance (UINT24, meters)
+        // UINT24 需要用 3 個 bytes 來表示
+        i = putUint24(out, i, totalDistance);
 
-        // 5. Heart Rate (UINT8, bpm)
-        buffer.put((byte) heartRate);
+        // 5. Instantaneous Power (SINT16, watts)
+        i = putUint16(out, i, power);
 
-        // 6. Total Distance (UINT24, meters)
-        // UINT24 需要用 3 個 bytes 來表示
-        buffer.put((byte) (totalDistance & 0xFF));
-        buffer.put((byte) ((totalDistance >> 8) & 0xFF));
-        buffer.put((byte) ((totalDistance >> 16) & 0xFF));
+        // 6. Heart Rate (UINT8, bpm)
+        out[i++] = (byte) heartRate;
 
-        return buffer.array();
+        return i - offset;
     }
 
     /**
@@ -259,22 +364,26 @@ public final class GattValueBuilder {
      * @return 符合格式的 byte[]
      */
     public static byte[] forTreadmillData(float speed, float incline, int totalDistance) {
+        byte[] value = new byte[TREADMILL_DATA_LENGTH];
+        forTreadmillData(value, 0, speed, incline, totalDistance);
+        return value;
+    }
+
+    /**
+     * 將跑步機數據 (0x2ACD) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #TREADMILL_DATA_LENGTH})。
+     */
+    public static int forTreadmillData(byte[] out, int offset, float speed, float incline, int totalDistance) {
         // Flags: bit 1 (Speed), bit 8 (Total Distance), bit 9 (Incline)
         short flags = 0b0000_0011_0000_0010; // 0x0302
 
-        // Buffer size: Flags(2) + Speed(2) + Incline(2) + TotalDistance(3)
-        int bufferSize = 2 + 2 + 2 + 3;
-        ByteBuffer buffer = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        // Flags(2) + Speed(2) + Incline(2) + TotalDistance(3)
+        int i = putUint16(out, offset, flags);
+        i = putUint16(out, i, (short) (speed * 100)); // Speed
+        i = putUint16(out, i, (short) (incline * 10)); // Incline, resolution 0.1
+        i = putUint24(out, i, totalDistance); // Total Distance (UINT24)
 
-        buffer.putShort(flags);
-        buffer.putShort((short) (speed * 100)); // Speed
-        buffer.putShort((short) (incline * 10)); // Incline, resolution 0.1
-        // Total Distance (UINT24)
-        buffer.put((byte) (totalDistance & 0xFF));
-        buffer.put((byte) ((totalDistance >> 8) & 0xFF));
-        buffer.put((byte) ((totalDistance >> 16) & 0xFF));
-
-        return buffer.array();
+        return i - offset;
     }
 
     /**
@@ -285,22 +394,26 @@ public final class GattValueBuilder {
      * @return 符合格式的 byte[]
      */
     public static byte[] forCrossTrainerData(float speed, int power, int totalDistance) {
+        byte[] value = new byte[CROSS_TRAINER_DATA_LENGTH];
+        forCrossTrainerData(value, 0, speed, power, totalDistance);
+        return value;
+    }
+
+    /**
+     * 將橢圓機數據 (0x2ACE) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #CROSS_TRAINER_DATA_LENGTH})。
+     */
+    public static int forCrossTrainerData(byte[] out, int offset, float speed, int power, int totalDistance) {
         // Flags: bit 1 (Speed), bit 4 (Power), bit 8 (Total Distance)
         short flags = 0b0000_0001_0001_0010; // 0x0112
 
-        // Buffer size: Flags(2) + Speed(2) + Power(2) + TotalDistance(3)
-        int bufferSize = 2 + 2 + 2 + 3;
-        ByteBuffer buffer = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
-
-        buffer.putShort(flags);
-        buffer.putShort((short) (speed * 100)); // Speed
-        buffer.putShort((short) power); // Power
-        // Total Distance (UINT24)
-        buffer.put((byte) (totalDistance & 0xFF));
-        buffer.put((byte) ((totalDistance >> 8) & 0xFF));
-        buffer.put((byte) ((totalDistance >> 16) & 0xFF));
+        // Flags(2) + Speed(2) + Power(2) + TotalDistance(3)
+        int i = putUint16(out, offset, flags);
+        i = putUint16(out, i, (short) (speed * 100)); // Speed
+        i = putUint16(out, i, power); // Power
+        i = putUint24(out, i, totalDistance); // Total Distance (UINT24)
 
-        return buffer.array();
+        return i - offset;
     }
 
 
@@ -313,32 +426,48 @@ public final class GattValueBuilder {
      * @return 符合格式的 byte[]。
      */
     public static byte[] forHeartRateMeasurement(int heartRate, boolean isUint16HeartRate, boolean isEnergyExpendedPresent, int energyExpended) {
-        byte flags = 0b0000_1000; // 預設：Sensor Contact Not Supported, RR-Interval present
         int bufferSize = 2; // Flags + 8-bit Heart Rate
 
         if (isUint16HeartRate) {
-            flags |= 0b0000_0001; // 設定心率值格式為 UINT16
             bufferSize += 1;
         }
         if (isEnergyExpendedPresent) {
-            flags |= 0b0000_1000; // 設定能量消耗存在
             bufferSize += 2;
         }
 
-        ByteBuffer buffer = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
-        buffer.put(flags);
+        byte[] value = new byte[bufferSize];
+        forHeartRateMeasurement(value, 0, heartRate, isUint16HeartRate, isEnergyExpendedPresent, energyExpended);
+        return value;
+    }
+
+    /**
+     * 將心率測量 (0x2A37) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 (2 到 5)。
+     */
+    public static int forHeartRateMeasurement(byte[] out, int offset, int heartRate, boolean isUint16HeartRate, boolean isEnergyExpendedPresent, int energyExpended) {
+        byte flags = 0b0000_0000; // 預設：8-bit 心率, Sensor Contact Not Supported, 不含 RR-Interval
 
         if (isUint16HeartRate) {
-            buffer.putShort((short) heartRate);
+            flags |= 0b0000_0001; // 設定心率值格式為 UINT16
+        }
+        if (isEnergyExpendedPresent) {
+            flags |= 0b0000_1000; // 設定能量消耗存在
+        }
+
+        int i = offset;
+        out[i++] = flags;
+
+        if (isUint16HeartRate) {
+            i = putUint16(out, i, heartRate);
         } else {
-            buffer.put((byte) heartRate);
+            out[i++] = (byte) heartRate;
         }
 
         if (isEnergyExpendedPresent) {
-            buffer.putShort((short) energyExpended);
+            i = putUint16(out, i, energyExpended);
         }
 
-        return buffer.array();
+        return i - offset;
     }
 
     // 多載一個簡化版，只傳心率
@@ -347,27 +476,65 @@ public final class GattValueBuilder {
         return forHeartRateMeasurement(heartRate, false, false, 0);
     }
 
+    public static int forHeartRateMeasurement(byte[] out, int offset, int heartRate) {
+        return forHeartRateMeasurement(out, offset, heartRate, false, false, 0);
+    }
+
     /**
      * 封裝溫度測量 (0x2A1C) 的值。
      * @param temperature 溫度值（攝氏度）。
      * @return 符合格式的 byte[]。
      */
     public static byte[] forTemperatureMeasurement(float temperature) {
-        byte flags = 0x00; // 預設：攝氏度, 無時間戳, 無溫度類型
+        byte[] value = new byte[TEMPERATURE_MEASUREMENT_LENGTH];
+        forTemperatureMeasurement(value, 0, temperature);
+        return value;
+    }
+
+    /**
+     * 將溫度測量 (0x2A1C) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #TEMPERATURE_MEASUREMENT_LENGTH})。
+     */
+    public static int forTemperatureMeasurement(byte[] out, int offset, float temperature) {
+        out[offset] = 0x00; // 預設：攝氏度, 無時間戳, 無溫度類型
+        MedicalFloat.putFloat(out, offset + 1, temperature); // IEEE 11073 32-bit FLOAT
+        return TEMPERATURE_MEASUREMENT_LENGTH;
+    }
 
-        // 使用 ByteBuffer 來處理 float 和 byte 的轉換，更安全可靠
-        ByteBuffer buffer = ByteBuffer.allocate(5).order(ByteOrder.LITTLE_ENDIAN);
-        buffer.put(flags);
-        buffer.putFloat(temperature);
-        return buffer.array();
+    /**
+     * 封裝目前時間的當前時間 (0x2A2B) 值。
+     * @return 符合格式的 byte[]。
+     */
+    public static byte[] forCurrentTime() {
+        byte[] value = new byte[CURRENT_TIME_LENGTH];
+        forCurrentTime(value, 0);
+        return value;
     }
 
     /**
-     * 封裝當前時間 (0x2A2B) 的值。
+     * 將目前時間的 Current Time (0x2A2B) 寫入 out 的 offset 位置，使用 {@link GattDateTime} 的每秒快取，不配置記憶體。
+     * @return 寫入的位元組數 ({@link #CURRENT_TIME_LENGTH})。
+     */
+    public static int forCurrentTime(byte[] out, int offset) {
+        return GattDateTime.system().writeCurrentTime(out, offset);
+    }
+
+    /**
+     * 封裝指定時間的當前時間 (0x2A2B) 值。
      * @param calendar 一個 Calendar 物件，代表要設定的時間。
      * @return 符合格式的 byte[]。
      */
     public static byte[] forCurrentTime(Calendar calendar) {
+        byte[] value = new byte[CURRENT_TIME_LENGTH];
+        forCurrentTime(value, 0, calendar);
+        return value;
+    }
+
+    /**
+     * 將當前時間 (0x2A2B) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #CURRENT_TIME_LENGTH})。
+     */
+    public static int forCurrentTime(byte[] out, int offset, Calendar calendar) {
         int year = calendar.get(Calendar.YEAR);
         int month = calendar.get(Calendar.MONTH) + 1; // Month is 0-based
         int day = calendar.get(Calendar.DAY_OF_MONTH);
@@ -382,19 +549,17 @@ public final class GattValueBuilder {
             dayOfWeek -= 1;
         }
 
-        // 使用 ByteBuffer 確保位元組順序正確 (LITTLE_ENDIAN)
-        ByteBuffer buffer = ByteBuffer.allocate(10).order(ByteOrder.LITTLE_ENDIAN);
-        buffer.putShort((short) year);
-        buffer.put((byte) month);
-        buffer.put((byte) day);
-        buffer.put((byte) hour);
-        buffer.put((byte) minute);
-        buffer.put((byte) second);
-        buffer.put((byte) dayOfWeek);
-        buffer.put((byte) 0); // Fractions256
-        buffer.put((byte) 1); // Adjust Reason (Manual update)
-
-        return buffer.array();
+        int i = putUint16(out, offset, year);
+        out[i++] = (byte) month;
+        out[i++] = (byte) day;
+        out[i++] = (byte) hour;
+        out[i++] = (byte) minute;
+        out[i++] = (byte) second;
+        out[i++] = (byte) dayOfWeek;
+        out[i++] = 0; // Fractions256
+        out[i++] = 1; // Adjust Reason (Manual update)
+
+        return i - offset;
     }
 
     /**
@@ -412,10 +577,18 @@ public final class GattValueBuilder {
     public static byte[] forTemperature(float temperature) {
         // 根據 SIG 標準，此特徵為 int16，單位為攝氏度，解析度為 0.01。
         // 所以需要將傳入的 float 值乘以 100。
-        short tempValue = (short) (temperature * 100);
-        ByteBuffer buffer = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
-        buffer.putShort(tempValue);
-        return buffer.array();
+        byte[] value = new byte[ESS_TEMPERATURE_LENGTH];
+        forTemperature(value, 0, temperature);
+        return value;
+    }
+
+    /**
+     * 將 ESS 溫度 (0x2A6E) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #ESS_TEMPERATURE_LENGTH})。
+     */
+    public static int forTemperature(byte[] out, int offset, float temperature) {
+        putUint16(out, offset, (short) (temperature * 100));
+        return ESS_TEMPERATURE_LENGTH;
     }
 
     /**
@@ -426,10 +599,18 @@ public final class GattValueBuilder {
     public static byte[] forHumidity(float humidity) {
         // 根據 SIG 標準，此特徵為 uint16，單位為百分比，解析度為 0.01。
         // 所以需要將傳入的 float 值乘以 100。
-        int humidityValue = (int) (humidity * 100);
-        ByteBuffer buffer = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
-        buffer.putShort((short) humidityValue);
-        return buffer.array();
+        byte[] value = new byte[ESS_HUMIDITY_LENGTH];
+        forHumidity(value, 0, humidity);
+        return value;
+    }
+
+    /**
+     * 將 ESS 濕度 (0x2A6F) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #ESS_HUMIDITY_LENGTH})。
+     */
+    public static int forHumidity(byte[] out, int offset, float humidity) {
+        putUint16(out, offset, (int) (humidity * 100));
+        return ESS_HUMIDITY_LENGTH;
     }
 
     /**
@@ -440,10 +621,18 @@ public final class GattValueBuilder {
     public static byte[] forPressure(float pressure) {
         // 根據 SIG 標準，此特徵為 uint32，單位為帕斯卡(Pa)，解析度為 0.1。
         // 傳入值為 hPa (百帕)，所以需要先轉為 Pa (乘以100)，再乘以10得到 uint32 的值。
-        int pressureValue = (int) (pressure * 100 * 10);
-        ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
-        buffer.putInt(pressureValue);
-        return buffer.array();
+        byte[] value = new byte[ESS_PRESSURE_LENGTH];
+        forPressure(value, 0, pressure);
+        return value;
+    }
+
+    /**
+     * 將 ESS 氣壓 (0x2A6D) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #ESS_PRESSURE_LENGTH})。
+     */
+    public static int forPressure(byte[] out, int offset, float pressure) {
+        putInt32(out, offset, (int) (pressure * 100 * 10));
+        return ESS_PRESSURE_LENGTH;
     }
 
     /**
@@ -452,8 +641,19 @@ public final class GattValueBuilder {
      * @return 符合格式的 byte[]。
      */
     public static byte[] forWindChill(int temperature) {
+        byte[] value = new byte[ESS_WIND_CHILL_LENGTH];
+        forWindChill(value, 0, temperature);
+        return value;
+    }
+
+    /**
+     * 將 ESS 風寒 (0x2A79) 寫入 out[offset]。
+     * @return 寫入的位元組數。
+     */
+    public static int forWindChill(byte[] out, int offset, int temperature) {
         // 根據 SIG 標準，此特徵為 sint8，單位為攝氏度。
-        return new byte[]{(byte) temperature};
+        out[offset] = (byte) temperature;
+        return ESS_WIND_CHILL_LENGTH;
     }
 
 
@@ -468,6 +668,22 @@ public final class GattValueBuilder {
      * @return 符合格式的 byte[]。
      */
     public static byte[] forPulseOximeterSpotCheck(float spo2, float pulseRate, boolean includeTimestamp) {
+        // --- 計算緩衝區大小 ---
+        int bufferSize = 1 + 4; // Flags(1) + SpO2(SFLOAT 2) + PulseRate(SFLOAT 2)
+        if (includeTimestamp) {
+            bufferSize += 7; // DateTime(7)
+        }
+
+        byte[] value = new byte[bufferSize];
+        forPulseOximeterSpotCheck(value, 0, spo2, pulseRate, includeTimestamp);
+        return value;
+    }
+
+    /**
+     * 將血氧飽和度單次測量 (0x2A5E) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 (5，含時間戳時為 12)。
+     */
+    public static int forPulseOximeterSpotCheck(byte[] out, int offset, float spo2, float pulseRate, boolean includeTimestamp) {
         // --- Flags (1 byte) ---
         // bit 0: Timestamp present
         // bit 1: Measurement Status present
@@ -475,35 +691,21 @@ public final class GattValueBuilder {
         // bit 3: Pulse Amplitude Index present
         // 為了簡化，我們只實作時間戳
         byte flags = (byte) (includeTimestamp ? 0b0000_0001 : 0b0000_0000);
-
-        // --- 計算緩衝區大小 ---
-        int bufferSize = 1 + 4; // Flags(1) + SpO2(SFLOAT 2) + PulseRate(SFLOAT 2)
-        if (includeTimestamp) {
-            bufferSize += 7; // DateTime(7)
-        }
-
-        ByteBuffer buffer = ByteBuffer.allocate(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        int i = offset;
 
         // 1. Flags
-        buffer.put(flags);
+        out[i++] = flags;
 
         // 2. SpO2 (SFLOAT) 和 Pulse Rate (SFLOAT)
-        // SFLOAT 是一種16位元的浮點數。這裡為了簡化，我們直接將 float 轉為 short。
-        buffer.putShort((short) spo2);
-        buffer.putShort((short) pulseRate);
+        i = MedicalFloat.putSfloat(out, i, spo2);
+        i = MedicalFloat.putSfloat(out, i, pulseRate);
 
         // 3. Timestamp (DateTime) - 可選
         if (includeTimestamp) {
-            Calendar now = Calendar.getInstance();
-            buffer.putShort((short) now.get(Calendar.YEAR));
-            buffer.put((byte) (now.get(Calendar.MONTH) + 1));
-            buffer.put((byte) now.get(Calendar.DAY_OF_MONTH));
-            buffer.put((byte) now.get(Calendar.HOUR_OF_DAY));
-            buffer.put((byte) now.get(Calendar.MINUTE));
-            buffer.put((byte) now.get(Calendar.SECOND));
+            i += GattDateTime.system().writeDateTime(out, i);
         }
 
-        return buffer.array();
+        return i - offset;
     }
 
 
@@ -513,6 +715,16 @@ public final class GattValueBuilder {
      * @return 符合格式的 byte[]。
      */
     public static byte[] forWeightScaleMeasurement(float weight) {
+        byte[] value = new byte[WEIGHT_SCALE_MEASUREMENT_LENGTH];
+        forWeightScaleMeasurement(value, 0, weight);
+        return value;
+    }
+
+    /**
+     * 將體重計量測 (0x2A9D) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #WEIGHT_SCALE_MEASUREMENT_LENGTH})。
+     */
+    public static int forWeightScaleMeasurement(byte[] out, int offset, float weight) {
         // Flags: 0b00000000 表示單位為公斤(kg)，不包含時間戳、使用者索引和BMI/身高。
         byte flags = 0b0000_0000;
 
@@ -520,11 +732,10 @@ public final class GattValueBuilder {
         // 所以需要將傳入的 float 值乘以 200 (1 / 0.005) 來得到 UINT16 的值。
         int weightValue = (int) (weight * 200);
 
-        ByteBuffer buffer = ByteBuffer.allocate(3).order(ByteOrder.LITTLE_ENDIAN);
-        buffer.put(flags);
-        buffer.putShort((short) weightValue);
+        out[offset] = flags;
+        putUint16(out, offset + 1, weightValue);
 
-        return buffer.array();
+        return WEIGHT_SCALE_MEASUREMENT_LENGTH;
     }
 
     /**
@@ -537,32 +748,37 @@ public final class GattValueBuilder {
      * @return 組裝好的 byte[]
      */
     public static byte[] forDeviceInfo_FE36(int batteryLevel, int mcuVersion, int bleVersion) {
-        // 根據 spec: FE 36 電量(1) 設備狀態(1) MCU版本(2) BLE版本(2) UTC時間(4) 校驗和(1)
-        ByteBuffer buffer = ByteBuffer.allocate(13).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] value = new byte[CF597_DEVICE_INFO_LENGTH];
+        forDeviceInfo_FE36(value, 0, batteryLevel, mcuVersion, bleVersion);
+        return value;
+    }
 
-        buffer.put((byte) 0xFE); // 標頭
-        buffer.put((byte) 0x36); // 命令字
+    /**
+     * 將設備信息數據包 (FE 36) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #CF597_DEVICE_INFO_LENGTH})。
+     */
+    public static int forDeviceInfo_FE36(byte[] out, int offset, int batteryLevel, int mcuVersion, int bleVersion) {
+        // 根據 spec: FE 36 電量(1) 設備狀態(1) MCU版本(2) BLE版本(2) UTC時間(4) 校驗和(1)
+        int i = offset;
+        out[i++] = (byte) 0xFE; // 標頭
+        out[i++] = (byte) 0x36; // 命令字
 
-        buffer.put((byte) batteryLevel); // 電量
-        buffer.put((byte) 0x00); // 設備狀態: 00 表示正常，非配網模式
+        out[i++] = (byte) batteryLevel; // 電量
+        out[i++] = (byte) 0x00; // 設備狀態: 00 表示正常，非配網模式
 
         // MCU 版本 (2 bytes, little-endian)
-        buffer.putShort((short) mcuVersion);
+        i = putUint16(out, i, mcuVersion);
         // BLE 版本 (2 bytes, little-endian)
-        buffer.putShort((short) bleVersion);
+        i = putUint16(out, i, bleVersion);
 
-        // UTC 時間 (4 bytes, little-endian)
-        long utcSeconds = Calendar.getInstance(TimeZone.getTimeZone("UTC")).getTimeInMillis() / 1000L;
-        buffer.putInt((int) utcSeconds);
+        // UTC 時間 (4 bytes, little-endian)；epoch 秒數本身與時區無關
+        long utcSeconds = System.currentTimeMillis() / 1000L;
+        i = putInt32(out, i, (int) utcSeconds);
 
         // 計算校驗和 (從 byte[1] 到 byte[11])
-        byte checksum = 0;
-        for (int i = 1; i < 12; i++) {
-            checksum += buffer.get(i);
-        }
-        buffer.put(checksum);
+        out[i] = checksum(out, offset + 1, i);
 
-        return buffer.array();
+        return CF597_DEVICE_INFO_LENGTH;
     }
 
 
@@ -573,36 +789,41 @@ public final class GattValueBuilder {
      * @return 組裝好的 byte[]
      */
     public static byte[] forRealtimeImpedanceData_DF(float weightKg) {
+        byte[] value = new byte[CF597_REALTIME_LENGTH];
+        forRealtimeImpedanceData_DF(value, 0, weightKg);
+        return value;
+    }
+
+    /**
+     * 將即時八電極阻抗數據包 (DF) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #CF597_REALTIME_LENGTH})。
+     */
+    public static int forRealtimeImpedanceData_DF(byte[] out, int offset, float weightKg) {
         // 根據 spec: DF 體重(2) 穩定標誌(1) 保留(1) 阻抗1(2) ... 阻抗8(2) 校驗和(1)
         // 總長度: 1 + 2 + 1 + 1 + (8 * 2) + 1 = 22 bytes
-        ByteBuffer buffer = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
-
-        buffer.put((byte) 0xDF); // 標頭
+        int i = offset;
+        out[i++] = (byte) 0xDF; // 標頭
 
         // 體重: 單位 0.01kg, 所以乘以 100
-        buffer.putShort((short)(weightKg * 100));
+        i = putUint16(out, i, (short) (weightKg * 100));
 
-        buffer.put((byte) 0x01); // 0x01: 體重穩定標誌
-        buffer.put((byte) 0x00); // 保留位
+        out[i++] = (byte) 0x01; // 0x01: 體重穩定標誌
+        out[i++] = (byte) 0x00; // 保留位
 
         // 模擬 8 個部位的阻抗值 (各 2 bytes)
-        buffer.putShort((short) 500); // Z1: 左腿
-        buffer.putShort((short) 505); // Z2: 右腿
-        buffer.putShort((short) 480); // Z3: 軀幹
-        buffer.putShort((short) 610); // Z4: 左臂
-        buffer.putShort((short) 615); // Z5: 右臂
-        buffer.putShort((short) 1100); // Z6: 左腿-左臂
-        buffer.putShort((short) 1120); // Z7: 右腿-右臂
-        buffer.putShort((short) 1000); // Z8: 左臂-右臂
+        i = putUint16(out, i, 500); // Z1: 左腿
+        i = putUint16(out, i, 505); // Z2: 右腿
+        i = putUint16(out, i, 480); // Z3: 軀幹
+        i = putUint16(out, i, 610); // Z4: 左臂
+        i = putUint16(out, i, 615); // Z5: 右臂
+        i = putUint16(out, i, 1100); // Z6: 左腿-左臂
+        i = putUint16(out, i, 1120); // Z7: 右腿-右臂
+        i = putUint16(out, i, 1000); // Z8: 左臂-右臂
 
         // 計算校驗和 (從 byte[1] 到 byte[20])
-        byte checksum = 0;
-        for (int i = 1; i < 21; i++) {
-            checksum += buffer.get(i);
-        }
-        buffer.put(checksum);
+        out[i] = checksum(out, offset + 1, i);
 
-        return buffer.array();
+        return CF597_REALTIME_LENGTH;
     }
 
     /**
@@ -610,50 +831,76 @@ public final class GattValueBuilder {
      * @return 組裝好的 byte[]
      */
     public static byte[] forHistoryTlvData() {
+        byte[] value = new byte[CF597_HISTORY_LENGTH];
+        forHistoryTlvData(value, 0);
+        return value;
+    }
+
+    /**
+     * 將歷史數據記錄 (F2) 寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #CF597_HISTORY_LENGTH})。
+     */
+    public static int forHistoryTlvData(byte[] out, int offset) {
         // 模擬一條歷史記錄
         // TLV 格式: Type(1) Length(1) Value(N)
         // 記錄包含: 體重(0x01), 心率(0x0D), 8個阻抗(0x05-0x0C)
 
         // 數據包: F2 總長(1) 時間戳(4) [TLV1 TLV2 ...] 校驗和(1)
+        int totalLength = 1 + 4 + HISTORY_TLVS.length; // 總長欄位 + 時間戳 + TLV數據長度
 
-        // --- 創建 TLV Payloads ---
-        // 1. 體重 TLV (Type 0x01, Length 2, Value: 65.50kg)
-        byte[] weightTlv = new byte[]{(byte) 0x01, 0x02, (byte)0x96, (byte)0x19}; // 6550 -> 0x1996 -> 96 19
-        // 2. 心率 TLV (Type 0x0D, Length 1, Value: 75bpm)
-        byte[] heartRateTlv = new byte[]{(byte) 0x0D, 0x01, (byte)75};
-        // 3. 八電極阻抗 TLVs (Type 0x05-0x0C, Length 2)
-        byte[] z1_tlv = new byte[]{(byte)0x05, 0x02, (byte)0xF4, (byte)0x01}; // 500
-        byte[] z2_tlv = new byte[]{(byte)0x06, 0x02, (byte)0xFA, (byte)0x01}; // 505
-        // ... (可以繼續添加其他阻抗)
-
-        // 合併所有 TLV
-        ByteBuffer tlvBuffer = ByteBuffer.allocate(50); // 分配足夠空間
-        tlvBuffer.put(weightTlv).put(heartRateTlv).put(z1_tlv).put(z2_tlv);
-        byte[] allTlvs = new byte[tlvBuffer.position()];
-        tlvBuffer.rewind();
-        tlvBuffer.get(allTlvs);
-
-        // --- 創建完整歷史數據包 ---
-        int totalLength = 1 + 4 + allTlvs.length; // 總長欄位 + 時間戳 + TLV數據長度
-        ByteBuffer finalBuffer = ByteBuffer.allocate(totalLength + 3).order(ByteOrder.LITTLE_ENDIAN); // F2 + 總長 + [payload] + 校驗和
-
-        finalBuffer.put((byte) 0xF2); // 標頭
-        finalBuffer.put((byte) totalLength); // Payload總長
+        int i = offset;
+        out[i++] = (byte) 0xF2; // 標頭
+        out[i++] = (byte) totalLength; // Payload總長
 
         // 過去某個時間點的時間戳
         long pastTime = (System.currentTimeMillis() / 1000L) - (3600 * 24); // 模擬一天前的記錄
-        finalBuffer.putInt((int) pastTime);
+        i = putInt32(out, i, (int) pastTime);
 
-        finalBuffer.put(allTlvs); // 放入所有 TLV 數據
+        System.arraycopy(HISTORY_TLVS, 0, out, i, HISTORY_TLVS.length); // 放入所有 TLV 數據
+        i += HISTORY_TLVS.length;
 
+        return finishHistoryRecord(out, offset, i);
+    }
+
+    /**
+     * 將指定內容的歷史數據記錄 (F2) 寫入 out 的 offset 位置，格式與 {@link #forHistoryTlvData(byte[], int)} 相同。
+     * @param utcSeconds 量測時間 (epoch 秒)
+     * @param weightKg 體重 (公斤)
+     * @param heartRate 心率 (bpm)
+     * @param z1 阻抗 Z1 (歐姆)
+     * @param z2 阻抗 Z2 (歐姆)
+     * @return 寫入的位元組數 ({@link #CF597_HISTORY_LENGTH})。
+     */
+    public static int forHistoryTlvData(byte[] out, int offset, long utcSeconds, float weightKg, int heartRate, int z1, int z2) {
+        int i = offset;
+        out[i++] = (byte) 0xF2; // 標頭
+        out[i++] = (byte) (1 + 4 + HISTORY_TLVS.length); // Payload總長
+        i = putInt32(out, i, (int) utcSeconds);
+
+        // TLV 順序與 HISTORY_TLVS 相同
+        out[i++] = 0x01;
+        out[i++] = 0x02;
+        i = putUint16(out, i, Math.round(weightKg * 100)); // 0.01kg
+        out[i++] = 0x0D;
+        out[i++] = 0x01;
+        out[i++] = (byte) heartRate;
+        out[i++] = 0x05;
+        out[i++] = 0x02;
+        i = putUint16(out, i, z1);
+        out[i++] = 0x06;
+        out[i++] = 0x02;
+        i = putUint16(out, i, z2);
+
+        return finishHistoryRecord(out, offset, i);
+    }
+
+    private static int finishHistoryRecord(byte[] out, int offset, int i) {
         // 計算校驗和 (從 byte[1] 到最後一個 payload byte)
-        byte checksum = 0;
-        for (int i = 1; i < finalBuffer.position(); i++) {
-            checksum += finalBuffer.get(i);
-        }
-        finalBuffer.put(checksum);
+        out[i] = checksum(out, offset + 1, i);
+        // 封包長度一直是 totalLength + 3，最後保留一個 0x00
+        out[i + 1] = 0;
 
-        return finalBuffer.array();
+        return CF597_HISTORY_LENGTH;
     }
 
     /**
@@ -664,10 +911,23 @@ public final class GattValueBuilder {
      * @return 組裝好的 byte[]
      */
     public static byte[] forGenericAck(byte subOpCode, byte status) {
+        byte[] value = new byte[GENERIC_ACK_LENGTH];
+        forGenericAck(value, 0, subOpCode, status);
+        return value;
+    }
+
+    /**
+     * 將通用 ACK 包寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #GENERIC_ACK_LENGTH})。
+     */
+    public static int forGenericAck(byte[] out, int offset, byte subOpCode, byte status) {
         // 格式: FD subOpCode status
         // 注意: 這個是簡化的 ACK，用於 F2 等指令的快速響應。
         // 與 MCU -> BLE 的 "55 FD ..." 格式不同。
-        return new byte[]{(byte) 0xFD, subOpCode, status};
+        out[offset] = (byte) 0xFD;
+        out[offset + 1] = subOpCode;
+        out[offset + 2] = status;
+        return GENERIC_ACK_LENGTH;
     }
 
     /**
@@ -677,8 +937,71 @@ public final class GattValueBuilder {
      * @return 組裝好的 byte[]
      */
     public static byte[] forGenericMcuResponse(byte subOpCode) {
+        byte[] value = new byte[GENERIC_MCU_RESPONSE_LENGTH];
+        forGenericMcuResponse(value, 0, subOpCode);
+        return value;
+    }
+
+    /**
+     * 將 MCU -> BLE 通用響應寫入 out 的 offset 位置。
+     * @return 寫入的位元組數 ({@link #GENERIC_MCU_RESPONSE_LENGTH})。
+     */
+    public static int forGenericMcuResponse(byte[] out, int offset, byte subOpCode) {
         // 根據 spec: 55 FD SubOp raw_checksum AA
         // 此處的 raw_checksum 是 App 發來指令的校驗碼，我們這裡用 0x00 佔位
-        return new byte[]{(byte) 0x55, (byte) 0xFD, subOpCode, (byte) 0x00, (byte) 0xAA};
+        out[offset] = (byte) 0x55;
+        out[offset + 1] = (byte) 0xFD;
+        out[offset + 2] = subOpCode;
+        out[offset + 3] = (byte) 0x00;
+        out[offset + 4] = (byte) 0xAA;
+        return GENERIC_MCU_RESPONSE_LENGTH;
+    }
+
+    // --- little-endian 寫入輔助方法，回傳下一個寫入位置 ---
+
+    private static int putUint16(byte[] out, int i, int value) {
+        out[i] = (byte) value;
+        out[i + 1] = (byte) (value >> 8);
+        return i + 2;
+    }
+
+    private static int putUint24(byte[] out, int i, int value) {
+        out[i] = (byte) value;
+        out[i + 1] = (byte) (value >> 8);
+        out[i + 2] = (byte) (value >> 16);
+        return i + 3;
+    }
+
+    private static int putInt32(byte[] out, int i, int value) {
+        out[i] = (byte) value;
+        out[i + 1] = (byte) (value >> 8);
+        out[i + 2] = (byte) (value >> 16);
+        out[i + 3] = (byte) (value >> 24);
+        return i + 4;
+    }
+
+    /**
+     * CF597 校驗和：out[from, to) 的位元組總和 (取低 8 位)。
+     */
+    private static byte checksum(byte[] out, int from, int to) {
+        byte checksum = 0;
+        for (int i = from; i < to; i++) {
+            checksum += out[i];
+        }
+        return checksum;
+    }
+
+    /**
+     * 每條執行緒的暫存緩衝區環。
+     */
+    private static final class BufferRing {
+        private final byte[][] buffers = new byte[POOL_SIZE][MAX_VALUE_LENGTH];
+        private int next;
+
+        byte[] next() {
+            byte[] buffer = buffers[next];
+            next = (next + 1) % POOL_SIZE;
+            return buffer;
+        }
     }
 }
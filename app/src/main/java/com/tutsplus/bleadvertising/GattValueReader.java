@@ -0,0 +1,825 @@
+package com.tutsplus.bleadvertising;
+
+/**
+ * {@link GattValueBuilder} 的反向：把特徵值解碼成欄位，供 client 端功能與負載測試的往返驗證使用。
+ *
+ * 有旗標的特徵以 flyweight view 表示：view 本身可以重複使用，{@code wrap(...)} 只讀旗標並算出各個可選欄位的位置，
+ * 欄位的值在呼叫存取方法時才從原本的 byte[] 讀出，不複製資料，也不配置任何記憶體。
+ * wrap 在資料比旗標宣告的欄位還短 (或標頭不符) 時回傳 false，此時存取方法的結果沒有意義。
+ * 不存在的可選欄位，數值型別回傳 NaN，整數型別回傳 -1。
+ *
+ * 只有單一欄位的 ESS 特徵不需要 view，直接以靜態方法解碼。
+ * Current Time 與 Device Time 沒有旗標，也以 view 表示，wrap 只檢查長度。
+ * 時間戳 (DateTime) 以 {@link GattDateTime#readWallClockSeconds} 的秒數表示。
+ * view 不是執行緒安全的，每條執行緒應使用自己的實例。此類別不依賴 Android API。
+ */
+public final class GattValueReader {
+
+    private GattValueReader() {}
+
+    /**
+     * 所有 view 的共同部分：包住的緩衝區範圍與 little-endian 讀取輔助方法。
+     */
+    public abstract static class View {
+        byte[] value;
+        int offset;
+        int length;
+
+        /**
+         * 包住 value[offset, offset + length)。
+         * @return 資料足以容納旗標宣告的所有欄位時為 true。
+         */
+        public final boolean wrap(byte[] value, int offset, int length) {
+            this.value = value;
+            this.offset = offset;
+            this.length = length;
+            if (length < 1) return false;
+            int required = layout();
+            return required >= 0 && required <= length;
+        }
+
+        public final boolean wrap(byte[] value) {
+            return wrap(value, 0, value.length);
+        }
+
+        /**
+         * 依旗標算出各欄位的位置。
+         * @return 需要的最短長度 (相對 offset)，標頭不符時為 -1。
+         */
+        abstract int layout();
+
+        final int uint8(int position) {
+            return value[offset + position] & 0xFF;
+        }
+
+        final int uint16(int position) {
+            int i = offset + position;
+            return (value[i] & 0xFF) | ((value[i + 1] & 0xFF) << 8);
+        }
+
+        final int sint16(int position) {
+            return (short) uint16(position);
+        }
+
+        final int uint24(int position) {
+            return uint16(position) | (uint8(position + 2) << 16);
+        }
+
+        final int int32(int position) {
+            return uint24(position) | (value[offset + position + 3] << 24);
+        }
+
+        final float sfloat(int position) {
+            return position < 0 ? Float.NaN : (float) MedicalFloat.readSfloat(value, offset + position);
+        }
+
+        final long dateTime(int position) {
+            return GattDateTime.readWallClockSeconds(value, offset + position);
+        }
+
+        final boolean flag(int flags, int mask) {
+            return (flags & mask) != 0;
+        }
+
+        /**
+         * CF597 封包的校驗和：從 from 到 checksum 前一個位元組的總和 (取低 8 位)。
+         */
+        final boolean checksumAt(int from, int checksum) {
+            byte sum = 0;
+            for (int i = from; i < checksum; i++) {
+                sum += value[offset + i];
+            }
+            return sum == value[offset + checksum];
+        }
+    }
+
+    /**
+     * 心率測量 (0x2A37)。
+     */
+    public static final class HeartRateMeasurement extends View {
+        private int flags;
+        private int energyExpended;
+        private int rrIntervals;
+
+        @Override
+        int layout() {
+            flags = uint8(0);
+            int i = flag(flags, 0x01) ? 3 : 2;
+            energyExpended = -1;
+            if (flag(flags, 0x08)) {
+                energyExpended = i;
+                i += 2;
+            }
+            rrIntervals = flag(flags, 0x10) ? i : -1;
+            return i;
+        }
+
+        public int flags() {
+            return flags;
+        }
+
+        public int heartRate() {
+            return flag(flags, 0x01) ? uint16(1) : uint8(1);
+        }
+
+        public boolean isSensorContactSupported() {
+            return flag(flags, 0x04);
+        }
+
+        public boolean isSensorContactDetected() {
+            return (flags & 0x06) == 0x06;
+        }
+
+        /** 能量消耗 (千焦耳)，不存在時為 -1。 */
+        public int energyExpended() {
+            return energyExpended < 0 ? -1 : uint16(energyExpended);
+        }
+
+        public int rrIntervalCount() {
+            return rrIntervals < 0 ? 0 : (length - rrIntervals) / 2;
+        }
+
+        /** 第 index 個 RR-Interval，單位 1/1024 秒。 */
+        public int rrInterval(int index) {
+            return uint16(rrIntervals + index * 2);
+        }
+    }
+
+    /**
+     * 血壓測量 (0x2A35)。
+     */
+    public static final class BloodPressureMeasurement extends View {
+        private int flags;
+        private int timestamp;
+        private int pulseRate;
+        private int userId;
+        private int measurementStatus;
+
+        @Override
+        int layout() {
+            flags = uint8(0);
+            int i = 7;
+            timestamp = -1;
+            pulseRate = -1;
+            userId = -1;
+            measurementStatus = -1;
+            if (flag(flags, 0x02)) {
+                timestamp = i;
+                i += GattDateTime.DATE_TIME_LENGTH;
+            }
+            if (flag(flags, 0x04)) {
+                pulseRate = i;
+                i += 2;
+            }
+            if (flag(flags, 0x08)) {
+                userId = i;
+                i += 1;
+            }
+            if (flag(flags, 0x10)) {
+                measurementStatus = i;
+                i += 2;
+            }
+            return i;
+        }
+
+        /** 壓力單位是否為 kPa (否則為 mmHg)。 */
+        public boolean isKilopascal() {
+            return flag(flags, 0x01);
+        }
+
+        public float systolic() {
+            return sfloat(1);
+        }
+
+        public float diastolic() {
+            return sfloat(3);
+        }
+
+        public float meanArterialPressure() {
+            return sfloat(5);
+        }
+
+        public boolean hasTimestamp() {
+            return timestamp >= 0;
+        }
+
+        public long timestampSeconds() {
+            return timestamp < 0 ? -1 : dateTime(timestamp);
+        }
+
+        public float pulseRate() {
+            return sfloat(pulseRate);
+        }
+
+        public int userId() {
+            return userId < 0 ? -1 : uint8(userId);
+        }
+
+        public int measurementStatus() {
+            return measurementStatus < 0 ? -1 : uint16(measurementStatus);
+        }
+    }
+
+    /**
+     * 血糖測量 (0x2A18)。
+     */
+    public static final class GlucoseMeasurement extends View {
+        private int flags;
+        private int timeOffset;
+        private int concentration;
+        private int sensorStatus;
+
+        @Override
+        int layout() {
+            flags = uint8(0);
+            int i = 3 + GattDateTime.DATE_TIME_LENGTH;
+            timeOffset = -1;
+            concentration = -1;
+            sensorStatus = -1;
+            if (flag(flags, 0x01)) {
+                timeOffset = i;
+                i += 2;
+            }
+            if (flag(flags, 0x02)) {
+                concentration = i;
+                i += 3;
+            }
+            if (flag(flags, 0x08)) {
+                sensorStatus = i;
+                i += 2;
+            }
+            return i;
+        }
+
+        public int sequenceNumber() {
+            return uint16(1);
+        }
+
+        public long baseTimeSeconds() {
+            return dateTime(3);
+        }
+
+        /** Time Offset (分鐘)，不存在時為 0。 */
+        public int timeOffsetMinutes() {
+            return timeOffset < 0 ? 0 : sint16(timeOffset);
+        }
+
+        /** Base Time 加上 Time Offset，即 RACP 以使用者時間篩選時比較的值。 */
+        public long userFacingTimeSeconds() {
+            return baseTimeSeconds() + timeOffsetMinutes() * 60L;
+        }
+
+        public boolean hasConcentration() {
+            return concentration >= 0;
+        }
+
+        /** 濃度單位是否為 mol/L (否則為 kg/L)。 */
+        public boolean isMolPerLiter() {
+            return flag(flags, 0x04);
+        }
+
+        public float concentration() {
+            return sfloat(concentration);
+        }
+
+        public int type() {
+            return concentration < 0 ? -1 : uint8(concentration + 2) & 0x0F;
+        }
+
+        public int sampleLocation() {
+            return concentration < 0 ? -1 : uint8(concentration + 2) >> 4;
+        }
+
+        public int sensorStatus() {
+            return sensorStatus < 0 ? -1 : uint16(sensorStatus);
+        }
+
+        public boolean isContextInformationFollowing() {
+            return flag(flags, 0x10);
+        }
+    }
+
+    /**
+     * 溫度測量 (0x2A1C)。
+     */
+    public static final class TemperatureMeasurement extends View {
+        private int flags;
+        private int timestamp;
+        private int temperatureType;
+
+        @Override
+        int layout() {
+            flags = uint8(0);
+            int i = 5;
+            timestamp = -1;
+            temperatureType = -1;
+            if (flag(flags, 0x02)) {
+                timestamp = i;
+                i += GattDateTime.DATE_TIME_LENGTH;
+            }
+            if (flag(flags, 0x04)) {
+                temperatureType = i;
+                i += 1;
+            }
+            return i;
+        }
+
+        /** 溫度單位是否為華氏 (否則為攝氏)。 */
+        public boolean isFahrenheit() {
+            return flag(flags, 0x01);
+        }
+
+        public float temperature() {
+            return (float) MedicalFloat.readFloat(value, offset + 1);
+        }
+
+        public long timestampSeconds() {
+            return timestamp < 0 ? -1 : dateTime(timestamp);
+        }
+
+        public int temperatureType() {
+            return temperatureType < 0 ? -1 : uint8(temperatureType);
+        }
+    }
+
+    /**
+     * 血氧飽和度單次測量 (PLX Spot-Check, 0x2A5E)。
+     */
+    public static final class PlxSpotCheck extends View {
+        private int flags;
+        private int timestamp;
+        private int measurementStatus;
+        private int deviceAndSensorStatus;
+        private int pulseAmplitudeIndex;
+
+        @Override
+        int layout() {
+            flags = uint8(0);
+            int i = 5;
+            timestamp = -1;
+            measurementStatus = -1;
+            deviceAndSensorStatus = -1;
+            pulseAmplitudeIndex = -1;
+            if (flag(flags, 0x01)) {
+                timestamp = i;
+                i += GattDateTime.DATE_TIME_LENGTH;
+            }
+            if (flag(flags, 0x02)) {
+                measurementStatus = i;
+                i += 2;
+            }
+            if (flag(flags, 0x04)) {
+                deviceAndSensorStatus = i;
+                i += 3;
+            }
+            if (flag(flags, 0x08)) {
+                pulseAmplitudeIndex = i;
+                i += 2;
+            }
+            return i;
+        }
+
+        public float spo2() {
+            return sfloat(1);
+        }
+
+        public float pulseRate() {
+            return sfloat(3);
+        }
+
+        public long timestampSeconds() {
+            return timestamp < 0 ? -1 : dateTime(timestamp);
+        }
+
+        public int measurementStatus() {
+            return measurementStatus < 0 ? -1 : uint16(measurementStatus);
+        }
+
+        public int deviceAndSensorStatus() {
+            return deviceAndSensorStatus < 0 ? -1 : uint24(deviceAndSensorStatus);
+        }
+
+        public float pulseAmplitudeIndex() {
+            return sfloat(pulseAmplitudeIndex);
+        }
+
+        public boolean isDeviceClockSet() {
+            return !flag(flags, 0x10);
+        }
+    }
+
+    /**
+     * 體重計量測 (0x2A9D)。
+     */
+    public static final class WeightMeasurement extends View {
+        private int flags;
+        private int timestamp;
+        private int userId;
+        private int bmiAndHeight;
+
+        @Override
+        int layout() {
+            flags = uint8(0);
+            int i = 3;
+            timestamp = -1;
+            userId = -1;
+            bmiAndHeight = -1;
+            if (flag(flags, 0x02)) {
+                timestamp = i;
+                i += GattDateTime.DATE_TIME_LENGTH;
+            }
+            if (flag(flags, 0x04)) {
+                userId = i;
+                i += 1;
+            }
+            if (flag(flags, 0x08)) {
+                bmiAndHeight = i;
+                i += 4;
+            }
+            return i;
+        }
+
+        /** 單位是否為英制 (lb / inch，否則為 kg / m)。 */
+        public boolean isImperial() {
+            return flag(flags, 0x01);
+        }
+
+        /** 體重：SI 解析度 0.005 kg，英制解析度 0.01 lb。 */
+        public float weight() {
+            return uint16(1) * (isImperial() ? 0.01f : 0.005f);
+        }
+
+        public long timestampSeconds() {
+            return timestamp < 0 ? -1 : dateTime(timestamp);
+        }
+
+        public int userId() {
+            return userId < 0 ? -1 : uint8(userId);
+        }
+
+        /** BMI，解析度 0.1。 */
+        public float bmi() {
+            return bmiAndHeight < 0 ? Float.NaN : uint16(bmiAndHeight) * 0.1f;
+        }
+
+        /** 身高：SI 解析度 0.001 m，英制解析度 0.1 inch。 */
+        public float height() {
+            return bmiAndHeight < 0 ? Float.NaN : uint16(bmiAndHeight + 2) * (isImperial() ? 0.1f : 0.001f);
+        }
+    }
+
+    /**
+     * 室內自行車數據 (0x2AD2)。欄位依旗標位元的順序排列，位置由 {@link #FIELD_LENGTHS} 查表累加。
+     */
+    public static final class IndoorBikeData extends View {
+        static final int INSTANTANEOUS_SPEED = 0;
+        static final int AVERAGE_SPEED = 1;
+        static final int INSTANTANEOUS_CADENCE = 2;
+        static final int AVERAGE_CADENCE = 3;
+        static final int TOTAL_DISTANCE = 4;
+        static final int RESISTANCE_LEVEL = 5;
+        static final int INSTANTANEOUS_POWER = 6;
+        static final int AVERAGE_POWER = 7;
+        static final int EXPENDED_ENERGY = 8;
+        static final int HEART_RATE = 9;
+        static final int METABOLIC_EQUIVALENT = 10;
+        static final int ELAPSED_TIME = 11;
+        static final int REMAINING_TIME = 12;
+
+        // 每個旗標位元對應欄位的長度；bit 0 (More Data) 為 0 時才有 Instantaneous Speed
+        private static final int[] FIELD_LENGTHS = {2, 2, 2, 2, 3, 2, 2, 2, 5, 1, 1, 2, 2};
+
+        private final int[] positions = new int[FIELD_LENGTHS.length];
+        private int flags;
+
+        @Override
+        int layout() {
+            if (length < 2) return -1;
+            flags = uint16(0);
+            // 反轉 bit 0，讓每個位元都代表「欄位存在」
+            int present = flags ^ 0x01;
+            int i = 2;
+            for (int field = 0; field < FIELD_LENGTHS.length; field++) {
+                if ((present & (1 << field)) != 0) {
+                    positions[field] = i;
+                    i += FIELD_LENGTHS[field];
+                } else {
+                    positions[field] = -1;
+                }
+            }
+            return i;
+        }
+
+        public int flags() {
+            return flags;
+        }
+
+        public boolean hasMoreData() {
+            return flag(flags, 0x01);
+        }
+
+        /** km/h，解析度 0.01。 */
+        public float instantaneousSpeed() {
+            return unsigned(INSTANTANEOUS_SPEED, 0.01f);
+        }
+
+        public float averageSpeed() {
+            return unsigned(AVERAGE_SPEED, 0.01f);
+        }
+
+        /** rpm，解析度 0.5。 */
+        public float instantaneousCadence() {
+            return unsigned(INSTANTANEOUS_CADENCE, 0.5f);
+        }
+
+        public float averageCadence() {
+            return unsigned(AVERAGE_CADENCE, 0.5f);
+        }
+
+        /** 公尺，不存在時為 -1。 */
+        public int totalDistance() {
+            int position = positions[TOTAL_DISTANCE];
+            return position < 0 ? -1 : uint24(position);
+        }
+
+        /** 無單位，解析度 0.1。 */
+        public float resistanceLevel() {
+            int position = positions[RESISTANCE_LEVEL];
+            return position < 0 ? Float.NaN : sint16(position) * 0.1f;
+        }
+
+        /** watts，不存在時為 Integer.MIN_VALUE (功率可以是負數)。 */
+        public int instantaneousPower() {
+            int position = positions[INSTANTANEOUS_POWER];
+            return position < 0 ? Integer.MIN_VALUE : sint16(position);
+        }
+
+        public int averagePower() {
+            int position = positions[AVERAGE_POWER];
+            return position < 0 ? Integer.MIN_VALUE : sint16(position);
+        }
+
+        /** 總能量消耗 (kcal)，不存在時為 -1。 */
+        public int totalEnergy() {
+            int position = positions[EXPENDED_ENERGY];
+            return position < 0 ? -1 : uint16(position);
+        }
+
+        public int energyPerHour() {
+            int position = positions[EXPENDED_ENERGY];
+            return position < 0 ? -1 : uint16(position + 2);
+        }
+
+        public int energyPerMinute() {
+            int position = positions[EXPENDED_ENERGY];
+            return position < 0 ? -1 : uint8(position + 4);
+        }
+
+        public int heartRate() {
+            int position = positions[HEART_RATE];
+            return position < 0 ? -1 : uint8(position);
+        }
+
+        public float metabolicEquivalent() {
+            return positions[METABOLIC_EQUIVALENT] < 0 ? Float.NaN : uint8(positions[METABOLIC_EQUIVALENT]) * 0.1f;
+        }
+
+        /** 秒，不存在時為 -1。 */
+        public int elapsedTime() {
+            int position = positions[ELAPSED_TIME];
+            return position < 0 ? -1 : uint16(position);
+        }
+
+        public int remainingTime() {
+            int position = positions[REMAINING_TIME];
+            return position < 0 ? -1 : uint16(position);
+        }
+
+        private float unsigned(int field, float resolution) {
+            int position = positions[field];
+            return position < 0 ? Float.NaN : uint16(position) * resolution;
+        }
+    }
+
+    /**
+     * Current Time (0x2A2B)：Day Date Time + Fractions256 + Adjust Reason，固定長度。
+     */
+    public static final class CurrentTime extends View {
+        @Override
+        int layout() {
+            return GattValueBuilder.CURRENT_TIME_LENGTH;
+        }
+
+        public long dateTimeSeconds() {
+            return dateTime(0);
+        }
+
+        /** 1 = 星期一 ... 7 = 星期日，0 表示未知。 */
+        public int dayOfWeek() {
+            return uint8(7);
+        }
+
+        public int fractions256() {
+            return uint8(8);
+        }
+
+        public int adjustReason() {
+            return uint8(9);
+        }
+    }
+
+    /**
+     * Device Time (0x2B90)：與 {@link CurrentTime} 相同，但沒有 Adjust Reason (見 {@link GattValueBuilder#forDeviceTime()})。
+     */
+    public static final class DeviceTime extends View {
+        @Override
+        int layout() {
+            return GattValueBuilder.DEVICE_TIME_LENGTH;
+        }
+
+        public long dateTimeSeconds() {
+            return dateTime(0);
+        }
+
+        /** 1 = 星期一 ... 7 = 星期日，0 表示未知。 */
+        public int dayOfWeek() {
+            return uint8(7);
+        }
+
+        public int fractions256() {
+            return uint8(8);
+        }
+    }
+
+    /**
+     * CF597 設備信息數據包 (FE 36)。
+     */
+    public static final class DeviceInfo extends View {
+        @Override
+        int layout() {
+            if (length < 2 || value[offset] != (byte) 0xFE || value[offset + 1] != 0x36) return -1;
+            return GattValueBuilder.CF597_DEVICE_INFO_LENGTH;
+        }
+
+        public int batteryLevel() {
+            return uint8(2);
+        }
+
+        public int deviceStatus() {
+            return uint8(3);
+        }
+
+        public int mcuVersion() {
+            return uint16(4);
+        }
+
+        public int bleVersion() {
+            return uint16(6);
+        }
+
+        public long utcSeconds() {
+            return int32(8) & 0xFFFFFFFFL;
+        }
+
+        public boolean isChecksumValid() {
+            return checksumAt(1, GattValueBuilder.CF597_DEVICE_INFO_LENGTH - 1);
+        }
+    }
+
+    /**
+     * CF597 即時八電極阻抗數據包 (DF)。
+     */
+    public static final class RealtimeImpedance extends View {
+        public static final int IMPEDANCES = 8;
+
+        @Override
+        int layout() {
+            if (value[offset] != (byte) 0xDF) return -1;
+            return GattValueBuilder.CF597_REALTIME_LENGTH;
+        }
+
+        /** 公斤，解析度 0.01。 */
+        public float weightKg() {
+            return uint16(1) * 0.01f;
+        }
+
+        public boolean isStable() {
+            return uint8(3) == 0x01;
+        }
+
+        /** 第 index 個部位 (0 .. 7，對應 Z1 .. Z8) 的阻抗 (歐姆)。 */
+        public int impedance(int index) {
+            return uint16(5 + index * 2);
+        }
+
+        public boolean isChecksumValid() {
+            return checksumAt(1, GattValueBuilder.CF597_REALTIME_LENGTH - 1);
+        }
+    }
+
+    /**
+     * CF597 歷史數據記錄 (F2 總長 時間戳 TLV... 校驗和)。TLV 以位置走訪，不建立物件：
+     * <pre>
+     * for (int i = view.firstTlv(); i >= 0; i = view.nextTlv(i)) { view.tlvType(i); view.tlvValue(i); }
+     * </pre>
+     */
+    public static final class HistoryRecord extends View {
+        public static final int TLV_WEIGHT = 0x01;
+        public static final int TLV_IMPEDANCE_Z1 = 0x05;
+        public static final int TLV_IMPEDANCE_Z2 = 0x06;
+        public static final int TLV_HEART_RATE = 0x0D;
+
+        // TLV 區段的結尾 (校驗和的位置)
+        private int end;
+
+        @Override
+        int layout() {
+            if (length < 2 || value[offset] != (byte) 0xF2) return -1;
+            // 總長包含自己 (1) 與時間戳 (4)，校驗和緊接在後；TLV 必須剛好填滿
+            end = 1 + uint8(1);
+            if (end < 6 || end >= length) return -1;
+            for (int i = 6; i < end; i += 2 + uint8(i + 1)) {
+                if (i + 2 > end || i + 2 + uint8(i + 1) > end) return -1;
+            }
+            return end + 1;
+        }
+
+        public long utcSeconds() {
+            return int32(2) & 0xFFFFFFFFL;
+        }
+
+        public int firstTlv() {
+            return end > 6 ? 6 : -1;
+        }
+
+        public int nextTlv(int position) {
+            int next = position + 2 + uint8(position + 1);
+            return next < end ? next : -1;
+        }
+
+        public int tlvType(int position) {
+            return uint8(position);
+        }
+
+        public int tlvLength(int position) {
+            return uint8(position + 1);
+        }
+
+        /** TLV 的值 (little-endian 無號整數，最多 4 bytes)。 */
+        public long tlvValue(int position) {
+            int bytes = Math.min(4, tlvLength(position));
+            long result = 0;
+            for (int i = 0; i < bytes; i++) {
+                result |= (long) uint8(position + 2 + i) << (8 * i);
+            }
+            return result;
+        }
+
+        /** 第一個 type 相符的 TLV 的位置，找不到時為 -1。 */
+        public int findTlv(int type) {
+            for (int i = firstTlv(); i >= 0; i = nextTlv(i)) {
+                if (tlvType(i) == type) return i;
+            }
+            return -1;
+        }
+
+        /** 體重 (公斤，解析度 0.01)，沒有這個 TLV 時為 NaN。 */
+        public float weightKg() {
+            int position = findTlv(TLV_WEIGHT);
+            return position < 0 ? Float.NaN : tlvValue(position) * 0.01f;
+        }
+
+        public int heartRate() {
+            int position = findTlv(TLV_HEART_RATE);
+            return position < 0 ? -1 : (int) tlvValue(position);
+        }
+
+        public boolean isChecksumValid() {
+            return checksumAt(1, end);
+        }
+    }
+
+    // --- ESS：沒有旗標的單一欄位特徵 ---
+
+    /** ESS 溫度 (0x2A6E)：sint16，攝氏度，解析度 0.01。 */
+    public static float essTemperature(byte[] value, int offset) {
+        return (short) ((value[offset] & 0xFF) | ((value[offset + 1] & 0xFF) << 8)) * 0.01f;
+    }
+
+    /** ESS 濕度 (0x2A6F)：uint16，%，解析度 0.01。 */
+    public static float essHumidity(byte[] value, int offset) {
+        return ((value[offset] & 0xFF) | ((value[offset + 1] & 0xFF) << 8)) * 0.01f;
+    }
+
+    /** ESS 氣壓 (0x2A6D)：uint32，Pa，解析度 0.1；回傳百帕 (hPa)，與 {@link GattValueBuilder#forPressure} 的輸入相同。 */
+    public static float essPressureHectopascals(byte[] value, int offset) {
+        long raw = ((value[offset] & 0xFF) | ((value[offset + 1] & 0xFF) << 8)
+                | ((value[offset + 2] & 0xFF) << 16) | ((long) (value[offset + 3] & 0xFF) << 24));
+        return raw / 1000f;
+    }
+
+    /** ESS 風寒 (0x2A79)：sint8，攝氏度。 */
+    public static int essWindChill(byte[] value, int offset) {
+        return value[offset];
+    }
+}
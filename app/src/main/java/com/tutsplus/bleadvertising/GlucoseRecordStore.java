@@ -0,0 +1,330 @@
+package com.tutsplus.bleadvertising;
+
+import java.util.Arrays;
+
+/**
+ * 血糖測量 (0x2A18) 的儲存記錄與索引，供 Record Access Control Point 查詢。
+ *
+ * 記錄依加入順序存放在平行的基本型別陣列中：延伸序號 (int[])、使用者時間 (long[]) 與編碼後的記錄本身 (byte[])，
+ * 沒有任何每筆記錄的物件。序號遞增，時間通常也遞增，因此以序號或時間篩選都是二分搜尋，
+ * 十萬筆以上的記錄也只需要數十次比較；時間不是遞增時 (例如時鐘被往回調) 才退回線性掃描。
+ *
+ * 量測中的 Sequence Number 只有 16 bits，這裡把它延伸成不會回繞的序號：
+ * 每筆新記錄的序號是前一筆加上兩者低 16 bits 的差。RACP 的序號運算元同樣只有 16 bits，
+ * 以最新記錄往回 65536 個序號的範圍解讀；不在已儲存範圍內的運算元視為比最新的記錄還新。
+ * 使用者時間是 Base Time 加上 Time Offset，以 {@link GattDateTime#readWallClockSeconds} 的秒數表示。
+ *
+ * 所有方法都是執行緒安全的。此類別不依賴 Android API。
+ */
+public final class GlucoseRecordStore {
+
+    /** 一筆血糖測量的長度上限：Flags、序號、Base Time、Time Offset、濃度、Type/Location、Sensor Status。 */
+    public static final int MAX_RECORD_LENGTH = 1 + 2 + GattDateTime.DATE_TIME_LENGTH + 2 + 3 + 2;
+    /** 最短的血糖測量：Flags、序號、Base Time。 */
+    public static final int MIN_RECORD_LENGTH = 1 + 2 + GattDateTime.DATE_TIME_LENGTH;
+
+    private static final int FLAG_TIME_OFFSET = 0x01;
+
+    /**
+     * 篩選條件，對應 RACP 的 Operator 與 Filter Type。
+     */
+    public static final class Query {
+        public static final int ALL = 0x01;
+        public static final int LESS_OR_EQUAL = 0x02;
+        public static final int GREATER_OR_EQUAL = 0x03;
+        public static final int RANGE = 0x04;
+        public static final int FIRST = 0x05;
+        public static final int LAST = 0x06;
+
+        public static final int FILTER_SEQUENCE_NUMBER = 0x01;
+        public static final int FILTER_USER_FACING_TIME = 0x02;
+
+        final int operator;
+        final int filterType;
+        final long min;
+        final long max;
+
+        private Query(int operator, int filterType, long min, long max) {
+            this.operator = operator;
+            this.filterType = filterType;
+            this.min = min;
+            this.max = max;
+        }
+
+        public static Query all() {
+            return new Query(ALL, 0, 0, 0);
+        }
+
+        public static Query first() {
+            return new Query(FIRST, 0, 0, 0);
+        }
+
+        public static Query last() {
+            return new Query(LAST, 0, 0, 0);
+        }
+
+        /**
+         * 以序號 (16-bit 運算元) 篩選。
+         * @param operator {@link #LESS_OR_EQUAL}、{@link #GREATER_OR_EQUAL} 或 {@link #RANGE}；
+         *                 前兩者只使用 max 或 min。
+         */
+        public static Query sequenceNumber(int operator, int min, int max) {
+            return new Query(operator, FILTER_SEQUENCE_NUMBER, min & 0xFFFF, max & 0xFFFF);
+        }
+
+        /**
+         * 以使用者時間 ({@link GattDateTime#readWallClockSeconds} 的秒數) 篩選。
+         */
+        public static Query userFacingTime(int operator, long minSeconds, long maxSeconds) {
+            return new Query(operator, FILTER_USER_FACING_TIME, minSeconds, maxSeconds);
+        }
+    }
+
+    private int[] sequences;
+    private long[] times;
+    private byte[] records;
+    private byte[] lengths;
+    private int size;
+    private boolean timesOrdered = true;
+    // 下一筆記錄的延伸序號；刪除記錄不會讓它倒退
+    private int nextSequence;
+    private boolean empty = true;
+
+    public GlucoseRecordStore(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        sequences = new int[capacity];
+        times = new long[capacity];
+        records = new byte[capacity * MAX_RECORD_LENGTH];
+        lengths = new byte[capacity];
+    }
+
+    /**
+     * 加入一筆編碼好的血糖測量。
+     * @return 記錄的延伸序號。
+     * @throws IllegalArgumentException 長度不是合法的血糖測量。
+     */
+    public synchronized int append(byte[] measurement, int offset, int length) {
+        if (length < MIN_RECORD_LENGTH || length > MAX_RECORD_LENGTH) {
+            throw new IllegalArgumentException("glucose measurement of " + length + " bytes");
+        }
+        int sequenceNumber = (measurement[offset + 1] & 0xFF) | ((measurement[offset + 2] & 0xFF) << 8);
+        int sequence;
+        if (empty) {
+            sequence = sequenceNumber;
+            empty = false;
+        } else {
+            int delta = (sequenceNumber - nextSequence) & 0xFFFF;
+            sequence = nextSequence + delta;
+        }
+        long time = GattDateTime.readWallClockSeconds(measurement, offset + 3);
+        if ((measurement[offset] & FLAG_TIME_OFFSET) != 0 && length >= MIN_RECORD_LENGTH + 2) {
+            time += (short) ((measurement[offset + 10] & 0xFF) | ((measurement[offset + 11] & 0xFF) << 8)) * 60L;
+        }
+        if (size == sequences.length) grow();
+        if (size > 0 && time < times[size - 1]) timesOrdered = false;
+        sequences[size] = sequence;
+        times[size] = time;
+        System.arraycopy(measurement, offset, records, size * MAX_RECORD_LENGTH, length);
+        lengths[size] = (byte) length;
+        size++;
+        nextSequence = sequence + 1;
+        return sequence;
+    }
+
+    public int append(byte[] measurement) {
+        return append(measurement, 0, measurement.length);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * 下一筆記錄的延伸序號 (最後加入的記錄之後；沒有加入過記錄時為 0)，用來接續模擬器的序號。
+     */
+    public synchronized int nextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * 符合條件的記錄數。
+     */
+    public synchronized int count(Query query) {
+        if (isOrdered(query)) {
+            long range = range(query);
+            return (int) range - (int) (range >>> 32);
+        }
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (matchesTime(i, query)) count++;
+        }
+        return count;
+    }
+
+    /**
+     * 符合條件的記錄的延伸序號 (遞增)。串流時以序號逐筆取出，期間加入或刪除記錄都不影響結果的意義。
+     */
+    public synchronized int[] select(Query query) {
+        if (isOrdered(query)) {
+            long range = range(query);
+            int from = (int) (range >>> 32);
+            return Arrays.copyOfRange(sequences, from, Math.max(from, (int) range));
+        }
+        int[] selected = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (matchesTime(i, query)) selected[count++] = sequences[i];
+        }
+        return Arrays.copyOf(selected, count);
+    }
+
+    /**
+     * 刪除符合條件的記錄。
+     * @return 刪除的筆數。
+     */
+    public synchronized int delete(Query query) {
+        if (isOrdered(query)) {
+            long range = range(query);
+            int from = (int) (range >>> 32);
+            int to = (int) range;
+            if (to <= from) return 0;
+            int tail = size - to;
+            System.arraycopy(sequences, to, sequences, from, tail);
+            System.arraycopy(times, to, times, from, tail);
+            System.arraycopy(lengths, to, lengths, from, tail);
+            System.arraycopy(records, to * MAX_RECORD_LENGTH, records, from * MAX_RECORD_LENGTH, tail * MAX_RECORD_LENGTH);
+            size -= to - from;
+            return to - from;
+        }
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (matchesTime(i, query)) continue;
+            if (kept != i) {
+                sequences[kept] = sequences[i];
+                times[kept] = times[i];
+                lengths[kept] = lengths[i];
+                System.arraycopy(records, i * MAX_RECORD_LENGTH, records, kept * MAX_RECORD_LENGTH, MAX_RECORD_LENGTH);
+            }
+            kept++;
+        }
+        int deleted = size - kept;
+        size = kept;
+        timesOrdered = true;
+        for (int i = 1; i < size && timesOrdered; i++) {
+            timesOrdered = times[i] >= times[i - 1];
+        }
+        return deleted;
+    }
+
+    /**
+     * 以延伸序號取得記錄的複本；記錄已被刪除時回傳 null。
+     */
+    public synchronized byte[] get(int sequence) {
+        int index = Arrays.binarySearch(sequences, 0, size, sequence);
+        if (index < 0) return null;
+        return Arrays.copyOfRange(records, index * MAX_RECORD_LENGTH, index * MAX_RECORD_LENGTH + lengths[index]);
+    }
+
+    public synchronized void clear() {
+        size = 0;
+        timesOrdered = true;
+    }
+
+    private boolean isOrdered(Query query) {
+        return query.filterType != Query.FILTER_USER_FACING_TIME || timesOrdered;
+    }
+
+    /**
+     * 在已排序的鍵上以二分搜尋找出符合條件的連續範圍，回傳 (from << 32) | to。
+     */
+    private long range(Query query) {
+        int from = 0;
+        int to = size;
+        switch (query.operator) {
+            case Query.ALL:
+                break;
+            case Query.FIRST:
+                to = Math.min(1, size);
+                break;
+            case Query.LAST:
+                from = Math.max(0, size - 1);
+                break;
+            default:
+                long min;
+                long max;
+                if (query.filterType == Query.FILTER_SEQUENCE_NUMBER) {
+                    if (size == 0) return 0;
+                    min = resolveSequence((int) query.min);
+                    max = resolveSequence((int) query.max);
+                } else {
+                    min = query.min;
+                    max = query.max;
+                }
+                if (query.operator != Query.LESS_OR_EQUAL) from = lowerBound(query.filterType, min);
+                if (query.operator != Query.GREATER_OR_EQUAL) to = upperBound(query.filterType, max);
+                break;
+        }
+        return ((long) from << 32) | Math.max(from, to);
+    }
+
+    /**
+     * 16-bit 序號運算元對應的延伸序號。
+     */
+    private long resolveSequence(int sequenceNumber) {
+        long newest = sequences[size - 1];
+        long sequence = (newest & ~0xFFFFL) | sequenceNumber;
+        if (sequence > newest && sequence - 0x10000 >= sequences[0]) sequence -= 0x10000;
+        return sequence;
+    }
+
+    private long key(int filterType, int index) {
+        return filterType == Query.FILTER_SEQUENCE_NUMBER ? sequences[index] : times[index];
+    }
+
+    /** 第一個鍵 >= value 的索引。 */
+    private int lowerBound(int filterType, long value) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (key(filterType, mid) < value) low = mid + 1; else high = mid;
+        }
+        return low;
+    }
+
+    /** 第一個鍵 > value 的索引。 */
+    private int upperBound(int filterType, long value) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (key(filterType, mid) <= value) low = mid + 1; else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * 時間沒有排序時，第 index 筆記錄是否符合以時間篩選的條件。
+     */
+    private boolean matchesTime(int index, Query query) {
+        long time = times[index];
+        switch (query.operator) {
+            case Query.LESS_OR_EQUAL:
+                return time <= query.max;
+            case Query.GREATER_OR_EQUAL:
+                return time >= query.min;
+            case Query.RANGE:
+                return time >= query.min && time <= query.max;
+            default:
+                return false;
+        }
+    }
+
+    private void grow() {
+        int capacity = sequences.length * 2;
+        sequences = Arrays.copyOf(sequences, capacity);
+        times = Arrays.copyOf(times, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        records = Arrays.copyOf(records, capacity * MAX_RECORD_LENGTH);
+    }
+}
@@ -0,0 +1,251 @@
+package com.tutsplus.bleadvertising;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CF597 歷史記錄的串流傳輸。
+ *
+ * 客戶端送出 F2 後，依序把 {@link MeasurementHistory} 中的記錄以通知送給該裝置。
+ * 不以計時器送出，而是依 {@link NotificationQueue} 的發送額度推進：每次 onNotificationSent
+ * 都把該裝置佇列中等待的封包補到 windowPackets 個，連線能送多快就送多快，又不會塞滿佇列、
+ * 擠掉同一個裝置的其他通知。
+ *
+ * 每個通知裝入 MTU 放得下的整數筆記錄 (F2 封包自帶長度，客戶端可以逐筆切開)；
+ * MTU 放不下一筆記錄時 (預設 MTU 23) 以 {@link PayloadFramer} 切片。
+ * 全部送出後再送一個 {@code FD F2 00} 表示傳輸結束。
+ *
+ * 斷線時記錄續傳點：窗口中可能還沒送到的記錄都算未送達，因此續傳最多重送一個窗口的記錄，不會漏掉。
+ * 客戶端也可以直接指定起始索引。
+ *
+ * 此類別不依賴 Android API。
+ *
+ * @param <S> 服務的型別。
+ * @param <C> 特徵的型別。
+ */
+public final class HistoryTransfer<S, C> {
+
+    /** 傳輸結束時呼叫，在傳輸層回呼的執行緒上執行。 */
+    public interface Listener {
+        void onTransferFinished(Stats stats);
+    }
+
+    private static final byte[] END_OF_TRANSFER = GattValueBuilder.forGenericAck((byte) 0xF2, (byte) 0x00);
+
+    /**
+     * 一個已排入佇列的通知 (可能有多個片段) 與它包含的第一筆記錄。
+     */
+    private static final class Batch {
+        final int firstIndex;
+        final int packets;
+
+        Batch(int firstIndex, int packets) {
+            this.firstIndex = firstIndex;
+            this.packets = packets;
+        }
+    }
+
+    private final class Session {
+        final String deviceId;
+        final C characteristic;
+        final int fromIndex;
+        final int endIndex;
+        final long startNanos = System.nanoTime();
+        // 最近排入、可能還沒送達的通知
+        final ArrayDeque<Batch> window = new ArrayDeque<>();
+        int windowPacketCount;
+        int next;
+        long packets;
+        long bytes;
+        boolean endQueued;
+
+        Session(String deviceId, C characteristic, int fromIndex, int endIndex) {
+            this.deviceId = deviceId;
+            this.characteristic = characteristic;
+            this.fromIndex = fromIndex;
+            this.endIndex = endIndex;
+            this.next = fromIndex;
+        }
+
+        /**
+         * 斷線時的續傳點：窗口中最舊的通知的第一筆記錄。
+         */
+        int resumeIndex() {
+            Batch oldest = window.peek();
+            return oldest == null ? next : oldest.firstIndex;
+        }
+
+        void remember(Batch batch) {
+            window.add(batch);
+            windowPacketCount += batch.packets;
+            // 佇列中最多 windowPackets 個、傳輸層中最多一個，更早的一定已經送出
+            while (windowPacketCount - window.peek().packets >= windowPackets + 1) {
+                windowPacketCount -= window.poll().packets;
+            }
+        }
+
+        Stats stats(boolean complete) {
+            return new Stats(deviceId, fromIndex, next - fromIndex, packets, bytes, System.nanoTime() - startNanos, complete);
+        }
+    }
+
+    private final GattTransport<S, C> transport;
+    private final NotificationQueue<S, C> queue;
+    private final MeasurementHistory history;
+    private final int windowPackets;
+    private final Listener listener;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<String, Integer> resumeIndexes = new ConcurrentHashMap<>();
+
+    private final GattTransport.Callback<S, C> callback = new GattTransport.Callback<S, C>() {
+        @Override
+        public void onConnectionStateChange(String deviceId, boolean connected) {
+            if (connected) return;
+            Session session = sessions.remove(deviceId);
+            if (session == null) return;
+            synchronized (session) {
+                resumeIndexes.put(deviceId, session.resumeIndex());
+            }
+            if (listener != null) listener.onTransferFinished(session.stats(false));
+        }
+
+        @Override
+        public void onNotificationSent(String deviceId, boolean success) {
+            Session session = sessions.get(deviceId);
+            if (session != null) pump(session);
+        }
+    };
+
+    /**
+     * 建立後註冊為傳輸層的監聽者，不再使用時要呼叫 {@link #close()}。
+     * queue 必須比這個物件先建立，這樣 onNotificationSent 時佇列已經先送出下一個封包。
+     * @param windowPackets 每個裝置佇列中最多等待的歷史封包數 (要小於佇列的 maxDepth，留空間給其他通知)。
+     */
+    public HistoryTransfer(GattTransport<S, C> transport, NotificationQueue<S, C> queue, MeasurementHistory history,
+                           int windowPackets, Listener listener) {
+        if (windowPackets <= 0) throw new IllegalArgumentException("windowPackets must be positive");
+        this.transport = transport;
+        this.queue = queue;
+        this.history = history;
+        this.windowPackets = windowPackets;
+        this.listener = listener;
+        transport.addCallback(callback);
+    }
+
+    /**
+     * 開始傳送 fromIndex 之後的所有記錄；該裝置已經有傳輸時從新的位置重新開始。
+     */
+    public void start(String deviceId, C characteristic, int fromIndex) {
+        Session session = new Session(deviceId, characteristic, Math.max(0, fromIndex), history.size());
+        resumeIndexes.remove(deviceId);
+        sessions.put(deviceId, session);
+        pump(session);
+    }
+
+    /**
+     * 從上次斷線時的續傳點繼續；沒有中斷過的傳輸時從頭開始。
+     */
+    public void resume(String deviceId, C characteristic) {
+        Integer from = resumeIndexes.get(deviceId);
+        start(deviceId, characteristic, from == null ? 0 : from);
+    }
+
+    /**
+     * 上次中斷的傳輸的續傳點；沒有時回傳 -1。
+     */
+    public int getResumeIndex(String deviceId) {
+        Integer from = resumeIndexes.get(deviceId);
+        return from == null ? -1 : from;
+    }
+
+    public boolean isActive(String deviceId) {
+        return sessions.containsKey(deviceId);
+    }
+
+    public void close() {
+        transport.removeCallback(callback);
+        sessions.clear();
+    }
+
+    /**
+     * 把佇列補到 windowPackets 個封包；全部送出且佇列清空後結束傳輸。
+     */
+    private void pump(Session session) {
+        Stats finished = null;
+        synchronized (session) {
+            if (sessions.get(session.deviceId) != session) return;
+            // 斷線回呼到達前傳輸層就會拒絕通知，這時排入的封包不會送出，也不能把窗口往前推
+            if (!transport.getConnectedDevices().contains(session.deviceId)) return;
+            int mtu = queue.getMtu(session.deviceId);
+            int recordsPerNotification = Math.max(1, PayloadFramer.maxNotificationLength(mtu) / MeasurementHistory.RECORD_LENGTH);
+            while (session.next < session.endIndex) {
+                int count = Math.min(recordsPerNotification, session.endIndex - session.next);
+                byte[] value = new byte[count * MeasurementHistory.RECORD_LENGTH];
+                count = history.copy(session.next, count, value, 0);
+                byte[][] fragments = PayloadFramer.split(value, mtu);
+                if (queue.depth(session.deviceId) + fragments.length > windowPackets
+                        || !queue.offerAll(session.deviceId, session.characteristic, fragments, false)) {
+                    break;
+                }
+                session.remember(new Batch(session.next, fragments.length));
+                session.next += count;
+                session.packets += fragments.length;
+                session.bytes += value.length;
+            }
+            if (session.next == session.endIndex) {
+                if (!session.endQueued) {
+                    session.endQueued = queue.offerAll(session.deviceId, session.characteristic, new byte[][]{END_OF_TRANSFER}, false);
+                } else if (queue.depth(session.deviceId) == 0) {
+                    sessions.remove(session.deviceId, session);
+                    finished = session.stats(true);
+                }
+            }
+        }
+        queue.flush(session.deviceId);
+        if (finished != null && listener != null) listener.onTransferFinished(finished);
+    }
+
+    /**
+     * 一次傳輸的統計。時間單位為奈秒。
+     */
+    public static final class Stats {
+        public final String deviceId;
+        public final int fromIndex;
+        /** 交給傳輸層的記錄數。 */
+        public final int records;
+        /** 通知數 (含片段)。 */
+        public final long packets;
+        /** 記錄的位元組數 (不含片段標頭)。 */
+        public final long bytes;
+        public final long elapsedNanos;
+        /** 是否送完所有記錄 (false 表示因斷線中斷)。 */
+        public final boolean complete;
+
+        Stats(String deviceId, int fromIndex, int records, long packets, long bytes, long elapsedNanos, boolean complete) {
+            this.deviceId = deviceId;
+            this.fromIndex = fromIndex;
+            this.records = records;
+            this.packets = packets;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+            this.complete = complete;
+        }
+
+        public double recordsPerSecond() {
+            return elapsedNanos == 0 ? 0 : records * 1e9 / elapsedNanos;
+        }
+
+        public double bytesPerSecond() {
+            return elapsedNanos == 0 ? 0 : bytes * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s from=%d records=%d packets=%d bytes=%d %.0fms %.1f records/s %.0f B/s%s",
+                    deviceId, fromIndex, records, packets, bytes, elapsedNanos / 1e6,
+                    recordsPerSecond(), bytesPerSecond(), complete ? "" : " (interrupted)");
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.tutsplus.bleadvertising;
+
+/**
+ * 延遲建立、只建立一次 (memoized) 的 GATT profile。
+ * 第一次呼叫 {@link #get()} 時才執行工廠方法，並記錄建立所花的時間；之後都回傳同一個實例。
+ *
+ * 此類別不依賴 Android API。
+ *
+ * @param <T> profile 的型別 (在 Android 上是 BluetoothGattService)。
+ */
+public final class LazyProfile<T> {
+
+    /**
+     * 建立 profile 的工廠方法。
+     */
+    public interface Factory<T> {
+        T create();
+    }
+
+    private final String name;
+    private final Factory<T> factory;
+    private volatile T value;
+    private long constructionNanos;
+
+    public LazyProfile(String name, Factory<T> factory) {
+        this.name = name;
+        this.factory = factory;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 取得 profile，必要時建立。可以在多個執行緒上同時呼叫，工廠方法只會執行一次。
+     */
+    public T get() {
+        T result = value;
+        if (result != null) return result;
+        synchronized (this) {
+            if (value == null) {
+                long start = System.nanoTime();
+                T created = factory.create();
+                constructionNanos = System.nanoTime() - start;
+                value = created;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * 是否已經建立過。不會觸發建立。
+     */
+    public boolean isBuilt() {
+        return value != null;
+    }
+
+    /**
+     * 建立所花的時間 (奈秒)，尚未建立時為 0。
+     */
+    public synchronized long getConstructionNanos() {
+        return constructionNanos;
+    }
+
+    @Override
+    public String toString() {
+        return isBuilt() ? name + " built in " + (getConstructionNanos() / 1000) + "us" : name + " (not built)";
+    }
+}
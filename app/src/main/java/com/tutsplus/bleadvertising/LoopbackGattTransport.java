@@ -0,0 +1,371 @@
+package com.tutsplus.bleadvertising;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 純 JVM 的記憶體內 {@link GattTransport}，用於在沒有藍牙硬體的環境 (例如 CI) 測量吞吐量與延遲。
+ *
+ * 模擬的連線行為：
+ * <ul>
+ *     <li>連線間隔 (connection interval)：封包只會在每個連線事件 (connection event) 送出。</li>
+ *     <li>每個連線事件最多送出 {@link Link#packetsPerEvent} 個通知。</li>
+ *     <li>控制器緩衝區 (notification credits)：最多 {@link Link#bufferDepth} 個尚未送出的通知，滿了 notify 會回傳 false。</li>
+ *     <li>MTU：超過 MTU - 3 的值會被截斷，與實際藍牙堆疊行為一致。</li>
+ *     <li>指示 (indication)：同時只允許一個未確認的指示，確認在下一個連線事件才會回來。</li>
+ * </ul>
+ * 所有回呼都在內部的單一事件執行緒上執行。
+ */
+public final class LoopbackGattTransport<S, C> implements GattTransport<S, C> {
+
+    /**
+     * 虛擬 central 端，接收伺服器送出的通知與回應。
+     */
+    public interface Central<C> {
+        void onNotification(String deviceId, C characteristic, byte[] value, boolean indication, long enqueuedAtNanos);
+
+        default void onResponse(int requestId, int status, int offset, byte[] value) {}
+
+        default void onDisconnected() {}
+    }
+
+    /**
+     * 模擬的連線參數。
+     */
+    public static final class Link {
+        public final long intervalMicros;
+        public final int packetsPerEvent;
+        public final int bufferDepth;
+        public final int mtu;
+
+        public Link(long intervalMicros, int packetsPerEvent, int bufferDepth, int mtu) {
+            if (intervalMicros <= 0 || packetsPerEvent <= 0 || bufferDepth <= 0 || mtu < DEFAULT_MTU) {
+                throw new IllegalArgumentException("invalid link parameters");
+            }
+            this.intervalMicros = intervalMicros;
+            this.packetsPerEvent = packetsPerEvent;
+            this.bufferDepth = bufferDepth;
+            this.mtu = mtu;
+        }
+
+        /** 典型手機連線：30ms 間隔、每事件 4 個封包、緩衝 8 個、預設 MTU。 */
+        public static Link typical() {
+            return new Link(30_000, 4, 8, DEFAULT_MTU);
+        }
+    }
+
+    private static final class Packet<C> {
+        final C characteristic;
+        final byte[] value;
+        final boolean indication;
+        final long enqueuedAtNanos;
+
+        Packet(C characteristic, byte[] value, boolean indication, long enqueuedAtNanos) {
+            this.characteristic = characteristic;
+            this.value = value;
+            this.indication = indication;
+            this.enqueuedAtNanos = enqueuedAtNanos;
+        }
+    }
+
+    private final class Connection implements Runnable {
+        final String deviceId;
+        final Central<C> central;
+        final Link link;
+        final ArrayDeque<Packet<C>> buffer = new ArrayDeque<>();
+        volatile int mtu;
+        boolean indicationInFlight;
+        boolean confirmationDue;
+        ScheduledFuture<?> ticker;
+
+        Connection(String deviceId, Central<C> central, Link link) {
+            this.deviceId = deviceId;
+            this.central = central;
+            this.link = link;
+            this.mtu = link.mtu;
+        }
+
+        synchronized boolean offer(Packet<C> packet) {
+            if (buffer.size() >= link.bufferDepth) return false;
+            if (packet.indication && indicationInFlight) return false;
+            if (packet.indication) indicationInFlight = true;
+            buffer.add(packet);
+            return true;
+        }
+
+        /** 一個連線事件。 */
+        @Override
+        public void run() {
+            int sentNotifications = 0;
+            boolean confirmed = false;
+            @SuppressWarnings("unchecked")
+            Packet<C>[] delivered = (Packet<C>[]) new Packet<?>[link.packetsPerEvent];
+            int count = 0;
+            synchronized (this) {
+                if (confirmationDue) {
+                    confirmationDue = false;
+                    indicationInFlight = false;
+                    confirmed = true;
+                }
+                while (count < link.packetsPerEvent && !buffer.isEmpty()) {
+                    Packet<C> packet = buffer.peek();
+                    // 指示在收到確認前，後面的封包不能越過它
+                    if (packet.indication && confirmationDue) break;
+                    buffer.poll();
+                    delivered[count++] = packet;
+                    if (packet.indication) {
+                        confirmationDue = true;
+                    } else {
+                        sentNotifications++;
+                    }
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                Packet<C> packet = delivered[i];
+                central.onNotification(deviceId, packet.characteristic, packet.value, packet.indication, packet.enqueuedAtNanos);
+            }
+            for (int i = 0; i < sentNotifications; i++) {
+                fireNotificationSent(deviceId);
+            }
+            if (confirmed) {
+                fireNotificationSent(deviceId);
+            }
+        }
+    }
+
+    private final ScheduledExecutorService eventLoop;
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+    private final Set<S> services = Collections.newSetFromMap(new ConcurrentHashMap<S, Boolean>());
+    private final CopyOnWriteArrayList<Callback<S, C>> callbacks = new CopyOnWriteArrayList<>();
+    private final AtomicInteger requestIds = new AtomicInteger();
+    // 等待伺服器回應的請求 -> 發出請求的連線 (斷線時清除)；sendResponse 的 deviceId 必須與該連線相同
+    private final Map<Integer, Connection> pendingRequests = new ConcurrentHashMap<>();
+    private volatile long serviceAddDelayMicros = 0;
+
+    public LoopbackGattTransport() {
+        this.eventLoop = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ble-loopback");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 模擬 addService 到 onServiceAdded 之間的延遲。
+     */
+    public void setServiceAddDelayMicros(long delayMicros) {
+        this.serviceAddDelayMicros = delayMicros;
+    }
+
+    @Override
+    public void addCallback(Callback<S, C> callback) {
+        callbacks.addIfAbsent(callback);
+    }
+
+    @Override
+    public void removeCallback(Callback<S, C> callback) {
+        callbacks.remove(callback);
+    }
+
+    @Override
+    public boolean addService(final S service) {
+        eventLoop.schedule(() -> {
+            boolean added = services.add(service);
+            for (Callback<S, C> callback : callbacks) {
+                callback.onServiceAdded(service, added);
+            }
+        }, serviceAddDelayMicros, TimeUnit.MICROSECONDS);
+        return true;
+    }
+
+    public Set<S> getServices() {
+        return Collections.unmodifiableSet(services);
+    }
+
+    @Override
+    public boolean notifyCharacteristicChanged(String deviceId, C characteristic, byte[] value, boolean confirm) {
+        Connection connection = connections.get(deviceId);
+        if (connection == null) return false;
+        int maxLength = connection.mtu - 3;
+        byte[] payload = value.length > maxLength ? Arrays.copyOf(value, maxLength) : value;
+        return connection.offer(new Packet<>(characteristic, payload, confirm, System.nanoTime()));
+    }
+
+    @Override
+    public boolean sendResponse(String deviceId, int requestId, int status, int offset, byte[] value) {
+        Connection connection = pendingRequests.get(requestId);
+        // 回應送到別的裝置時，Android 會送給另一個 BluetoothDevice；這裡同樣不交給原本的 central，請求維持等待
+        if (connection == null || !connection.deviceId.equals(deviceId)) return false;
+        if (!pendingRequests.remove(requestId, connection)) return false;
+        connection.central.onResponse(requestId, status, offset, value);
+        return true;
+    }
+
+    @Override
+    public Set<String> getConnectedDevices() {
+        return Collections.unmodifiableSet(new HashSet<>(connections.keySet()));
+    }
+
+    @Override
+    public int getMtu(String deviceId) {
+        Connection connection = connections.get(deviceId);
+        return connection == null ? DEFAULT_MTU : connection.mtu;
+    }
+
+    @Override
+    public void close() {
+        for (String deviceId : getConnectedDevices()) {
+            disconnect(deviceId);
+        }
+        eventLoop.shutdownNow();
+    }
+
+    // --- central 端操作 ---
+
+    /**
+     * 建立一個虛擬連線。連線事件會依 {@link Link#intervalMicros} 週期性觸發。
+     */
+    public void connect(final String deviceId, Link link, Central<C> central) {
+        final Connection connection = new Connection(deviceId, central, link);
+        if (connections.putIfAbsent(deviceId, connection) != null) {
+            throw new IllegalStateException("already connected: " + deviceId);
+        }
+        connection.ticker = eventLoop.scheduleAtFixedRate(connection, link.intervalMicros, link.intervalMicros, TimeUnit.MICROSECONDS);
+        eventLoop.execute(() -> {
+            for (Callback<S, C> callback : callbacks) {
+                callback.onConnectionStateChange(deviceId, true);
+            }
+            if (connection.mtu != DEFAULT_MTU) {
+                for (Callback<S, C> callback : callbacks) {
+                    callback.onMtuChanged(deviceId, connection.mtu);
+                }
+            }
+        });
+    }
+
+    public void disconnect(final String deviceId) {
+        final Connection connection = connections.remove(deviceId);
+        if (connection == null) return;
+        connection.ticker.cancel(false);
+        eventLoop.execute(() -> {
+            // 斷線後伺服器對這些請求的回應不會再送到 central
+            Iterator<Connection> pending = pendingRequests.values().iterator();
+            while (pending.hasNext()) {
+                if (pending.next() == connection) pending.remove();
+            }
+            connection.central.onDisconnected();
+            for (Callback<S, C> callback : callbacks) {
+                callback.onConnectionStateChange(deviceId, false);
+            }
+        });
+    }
+
+    /**
+     * 模擬 MTU 交換。
+     */
+    public void requestMtu(final String deviceId, final int mtu) {
+        final Connection connection = connections.get(deviceId);
+        if (connection == null) return;
+        eventLoop.execute(() -> {
+            connection.mtu = Math.max(DEFAULT_MTU, mtu);
+            for (Callback<S, C> callback : callbacks) {
+                callback.onMtuChanged(deviceId, connection.mtu);
+            }
+        });
+    }
+
+    /**
+     * 模擬客戶端寫入 CCCD。
+     */
+    public void writeCccd(final String deviceId, final C characteristic, final byte[] cccdValue) {
+        eventLoop.execute(() -> {
+            for (Callback<S, C> callback : callbacks) {
+                callback.onSubscriptionChanged(deviceId, characteristic, cccdValue);
+            }
+        });
+    }
+
+    /**
+     * 模擬客戶端寫入特徵。
+     * @return requestId；伺服器的回應會送到該 central 的 {@link Central#onResponse}。
+     */
+    public int writeCharacteristic(final String deviceId, final C characteristic, final byte[] value, final boolean responseNeeded) {
+        final int requestId = requestIds.incrementAndGet();
+        Connection connection = connections.get(deviceId);
+        if (connection == null) return -1;
+        if (responseNeeded) pendingRequests.put(requestId, connection);
+        eventLoop.execute(() -> {
+            for (Callback<S, C> callback : callbacks) {
+                callback.onCharacteristicWriteRequest(deviceId, requestId, characteristic, false, responseNeeded, 0, value);
+            }
+        });
+        return requestId;
+    }
+
+    /**
+     * 模擬客戶端的 Prepare Write Request (Long Write 的一個片段)。
+     * @return requestId；伺服器的回應會送到該 central 的 {@link Central#onResponse}。
+     */
+    public int prepareWrite(final String deviceId, final C characteristic, final int offset, final byte[] value) {
+        final int requestId = requestIds.incrementAndGet();
+        Connection connection = connections.get(deviceId);
+        if (connection == null) return -1;
+        pendingRequests.put(requestId, connection);
+        eventLoop.execute(() -> {
+            for (Callback<S, C> callback : callbacks) {
+                callback.onCharacteristicWriteRequest(deviceId, requestId, characteristic, true, true, offset, value);
+            }
+        });
+        return requestId;
+    }
+
+    /**
+     * 模擬客戶端的 Execute Write Request。
+     */
+    public int executeWrite(final String deviceId, final boolean execute) {
+        final int requestId = requestIds.incrementAndGet();
+        Connection connection = connections.get(deviceId);
+        if (connection == null) return -1;
+        pendingRequests.put(requestId, connection);
+        eventLoop.execute(() -> {
+            for (Callback<S, C> callback : callbacks) {
+                callback.onExecuteWrite(deviceId, requestId, execute);
+            }
+        });
+        return requestId;
+    }
+
+    /**
+     * 模擬客戶端讀取特徵。
+     */
+    public int readCharacteristic(final String deviceId, final C characteristic) {
+        final int requestId = requestIds.incrementAndGet();
+        Connection connection = connections.get(deviceId);
+        if (connection == null) return -1;
+        pendingRequests.put(requestId, connection);
+        eventLoop.execute(() -> {
+            for (Callback<S, C> callback : callbacks) {
+                callback.onCharacteristicReadRequest(deviceId, requestId, 0, characteristic);
+            }
+        });
+        return requestId;
+    }
+
+    private void fireNotificationSent(String deviceId) {
+        for (Callback<S, C> callback : callbacks) {
+            callback.onNotificationSent(deviceId, true);
+        }
+    }
+}
@@ -12,6 +12,7 @@ import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.pm.PackageManager;
@@ -40,18 +41,29 @@ import com.tutsplus.bleadvertising.databinding.ActivityMainBinding;
 
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
+    /**
+     * 只廣播指定的 profile (名稱見 {@link ServicesManager#getProfileNames()})，其他 profile 不會被建立也不會產生模擬數據。
+     * 沒有指定時廣播所有 profile。例如：
+     * {@code adb shell am start -n com.tutsplus.bleadvertising/.MainActivity --esa profiles heartRate,glucose}
+     */
+    public static final String EXTRA_PROFILES = "profiles";
+    // 支援硬體批次掃描時的回報間隔
+    private static final long SCAN_REPORT_DELAY_MILLIS = 500;
     private ActivityMainBinding binding;
     private BleViewModel bleViewModel;
     private BluetoothManager bluetoothManager;
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothLeScanner bleScanner;
     private BluetoothLeAdvertiser bleAdvertiser;
+    // 掃描期間存在：合併掃描結果並定期更新 UI
+    private ScanResultAggregator<ScanResult> scanAggregator;
 
     private final ActivityResultLauncher<String[]> requestPermissionLauncher =
             registerForActivityResult(new ActivityResultContracts.RequestMultiplePermissions(), this::onPermissionsResult);
@@ -179,13 +191,21 @@ public class MainActivity extends AppCompatActivity {
             bleViewModel.updateState(BleState.FAILURE);
             return;
         }
-        final ScanSettings settings = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build();
+        final ScanSettings.Builder settingsBuilder = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+        if (bluetoothAdapter.isOffloadedScanBatchingSupported()) {
+            // 由控制器累積結果，每 SCAN_REPORT_DELAY_MILLIS 才整批透過 onBatchScanResults 交給 app
+            settingsBuilder.setReportDelay(SCAN_REPORT_DELAY_MILLIS);
+        }
+        closeScanAggregator();
+        scanAggregator = new ScanResultAggregator<>(ScanResultAggregator.Config.defaults(),
+                SCAN_RESULT_ADAPTER, bleViewModel::setScanSnapshot);
         try {
-            bleScanner.startScan(filters, settings, scanCallback);
+            bleScanner.startScan(filters, settingsBuilder.build(), scanCallback);
             Log.i(TAG, "BLE scan started.");
             bleViewModel.updateState(BleState.SCANNING);
         } catch (SecurityException e) {
             Log.e(TAG, "無法開始掃描，缺少權限", e);
+            closeScanAggregator();
             bleViewModel.postToastMessage("缺少權限，無法開始掃描");
             bleViewModel.updateState(BleState.FAILURE);
         }
@@ -201,6 +221,35 @@ public class MainActivity extends AppCompatActivity {
             }
         }
         bleScanner = null;
+        closeScanAggregator();
+    }
+
+    /**
+     * 依 {@link #EXTRA_PROFILES} 取得要廣播的服務，只有被選到的 profile 會被建立。
+     */
+    private List<BluetoothGattService> selectServices() {
+        ServicesManager servicesManager = ServicesManager.getInstance();
+        String[] selected = getIntent().getStringArrayExtra(EXTRA_PROFILES);
+        if (selected == null || selected.length == 0) {
+            return servicesManager.getAllServices();
+        }
+        List<String> names = Arrays.asList(selected);
+        List<String> known = servicesManager.getProfileNames();
+        for (String name : names) {
+            if (!known.contains(name)) {
+                Log.w(TAG, "未知的 profile: " + name + "，可用的 profile: " + known);
+            }
+        }
+        List<BluetoothGattService> services = servicesManager.getServices(names);
+        Log.i(TAG, "只廣播指定的 profile: " + names + " (" + services.size() + " 個服務)");
+        return services;
+    }
+
+    private void closeScanAggregator() {
+        if (scanAggregator != null) {
+            scanAggregator.close();
+            scanAggregator = null;
+        }
     }
 
     @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
@@ -211,7 +260,11 @@ public class MainActivity extends AppCompatActivity {
             checkAndRequestPermissions();
             return;
         }
-        List<BluetoothGattService> services = ServicesManager.getInstance().getAllServices();
+        // 先載入建置時編譯的 GATT profile 資料庫 (assets/gatt_profiles.bin)
+        ServicesManager.getInstance().loadProfileDatabase(getApplicationContext());
+        // 模擬器產生的值寫入量測日誌 (files/measurement-journal)，在背景開啟，重建完成後才開始模擬
+        ServicesManager.getInstance().openJournal(getApplicationContext());
+        List<BluetoothGattService> services = selectServices();
 
 
         if (areConnectPermissionsGranted()) {
@@ -429,27 +482,60 @@ public class MainActivity extends AppCompatActivity {
         binding.advertiseBtn.setEnabled(false);
     }
 
-    private final ScanCallback scanCallback = new ScanCallback() {
+    /**
+     * 讀取 ScanResult 的欄位，在彙整器的執行緒上呼叫。
+     * 名稱優先使用廣播封包中的 Local Name，沒有時才查詢 BluetoothDevice.getName (需要 IPC)。
+     */
+    private static final ScanResultAggregator.Adapter<ScanResult> SCAN_RESULT_ADAPTER = new ScanResultAggregator.Adapter<ScanResult>() {
         @Override
-        public void onScanResult(int callbackType, ScanResult result) {
-            Log.e("MainActivity", "onScanResult : " + result);
-            if (result == null || result.getDevice() == null) return;
-            String deviceName;
+        public String address(ScanResult result) {
+            return result.getDevice() == null ? null : result.getDevice().getAddress();
+        }
+
+        @Override
+        public int rssi(ScanResult result) {
+            return result.getRssi();
+        }
+
+        @Override
+        public String name(ScanResult result) {
+            final ScanRecord record = result.getScanRecord();
+            if (record != null && !TextUtils.isEmpty(record.getDeviceName())) {
+                return record.getDeviceName();
+            }
             try {
-                deviceName = result.getDevice().getName();
+                return result.getDevice().getName();
             } catch (SecurityException e) {
-                deviceName = "Unnamed Device";
+                return null;
             }
-            if (TextUtils.isEmpty(deviceName)) return;
+        }
 
-            final StringBuilder builder = new StringBuilder(deviceName);
-            if (result.getScanRecord() != null && result.getScanRecord().getServiceUuids() != null && !result.getScanRecord().getServiceUuids().isEmpty()) {
-                ParcelUuid pUuid = result.getScanRecord().getServiceUuids().get(0);
-                if (result.getScanRecord().getServiceData(pUuid) != null) {
-                    builder.append("\n").append(new String(result.getScanRecord().getServiceData(pUuid), StandardCharsets.UTF_8));
-                }
+        @Override
+        public byte[] serviceData(ScanResult result) {
+            final ScanRecord record = result.getScanRecord();
+            if (record == null || record.getServiceUuids() == null || record.getServiceUuids().isEmpty()) {
+                return null;
+            }
+            return record.getServiceData(record.getServiceUuids().get(0));
+        }
+    };
+
+    private final ScanCallback scanCallback = new ScanCallback() {
+        // 只把結果交給彙整器，解析、去重與組字串都不在主執行緒上做
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            final ScanResultAggregator<ScanResult> aggregator = scanAggregator;
+            if (result == null || aggregator == null) return;
+            aggregator.offer(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            final ScanResultAggregator<ScanResult> aggregator = scanAggregator;
+            if (results == null || aggregator == null) return;
+            for (ScanResult result : results) {
+                if (result != null) aggregator.offer(result);
             }
-            bleViewModel.setScanResultText(builder.toString());
         }
 
         @Override
@@ -724,6 +810,7 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        closeScanAggregator();
         Log.d(TAG, "onDestroy(): 正在關閉 GATT 伺服器...");
 //        // Activity 銷毀時，確實關閉其擁有的 GattServer
 //        if (gattServer != null) {
@@ -0,0 +1,83 @@
+package com.tutsplus.bleadvertising;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * CF597 的歷史量測記錄。
+ *
+ * 每筆記錄在加入時就編碼成 F2 封包 ({@link GattValueBuilder#CF597_HISTORY_LENGTH} bytes)，
+ * 依序存放在同一個位元組陣列中，以索引取出時只需要一次 arraycopy，不需要重新編碼。
+ * 數千筆記錄只佔幾十 KB。
+ *
+ * 所有方法都是執行緒安全的。此類別不依賴 Android API。
+ */
+public final class MeasurementHistory {
+
+    /** 每筆記錄的長度。 */
+    public static final int RECORD_LENGTH = GattValueBuilder.CF597_HISTORY_LENGTH;
+
+    private byte[] records;
+    private int size;
+
+    public MeasurementHistory(int initialCapacity) {
+        records = new byte[Math.max(1, initialCapacity) * RECORD_LENGTH];
+    }
+
+    /**
+     * 加入一筆記錄。
+     * @return 記錄的索引。
+     */
+    public synchronized int append(long utcSeconds, float weightKg, int heartRate, int z1, int z2) {
+        if ((size + 1) * RECORD_LENGTH > records.length) {
+            records = Arrays.copyOf(records, records.length * 2);
+        }
+        GattValueBuilder.forHistoryTlvData(records, size * RECORD_LENGTH, utcSeconds, weightKg, heartRate, z1, z2);
+        return size++;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * 從索引 from 開始複製最多 count 筆記錄到 out 的 offset 位置。
+     * @return 實際複製的筆數。
+     */
+    public synchronized int copy(int from, int count, byte[] out, int offset) {
+        int copied = Math.max(0, Math.min(count, size - from));
+        if (copied > 0) {
+            System.arraycopy(records, from * RECORD_LENGTH, out, offset, copied * RECORD_LENGTH);
+        }
+        return copied;
+    }
+
+    public synchronized void clear() {
+        size = 0;
+    }
+
+    /**
+     * 產生多位使用者一段期間的模擬量測：每位使用者每天量 perDay 次，體重在各自的基準附近緩慢變化。
+     * 記錄依時間排序，最後一筆在 endUtcSeconds 之前。
+     */
+    public synchronized void simulate(int users, int days, int perDay, long endUtcSeconds, long seed) {
+        Random random = new Random(seed);
+        float[] weights = new float[users];
+        for (int user = 0; user < users; user++) {
+            weights[user] = 50 + random.nextInt(40);
+        }
+        long start = endUtcSeconds - days * 86400L;
+        long step = 86400L / Math.max(1, perDay * users);
+        long time = start;
+        for (int day = 0; day < days; day++) {
+            for (int n = 0; n < perDay; n++) {
+                for (int user = 0; user < users; user++) {
+                    weights[user] += (random.nextFloat() - 0.5f) * 0.4f;
+                    int z = 450 + random.nextInt(100);
+                    append(time, weights[user], 60 + random.nextInt(40), z, z + random.nextInt(10));
+                    time += step;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package com.tutsplus.bleadvertising;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * 只能附加的量測日誌：模擬器產生的每個值都以固定長度的記錄寫入記憶體對映 (mmap) 的分段檔。
+ *
+ * 每個分段檔固定可放 recordsPerSegment 筆記錄，建立時一次對映整個檔案，
+ * 之後附加記錄只是對映區域中的一次陣列複製，不需要任何系統呼叫；分段寫滿時才建立下一個分段。
+ * 檔名是分段第一筆記錄的序號，超過 maxSegments 個分段時刪除最舊的分段。
+ *
+ * 記錄格式 ({@link #RECORD_LENGTH} bytes，little-endian)：
+ * <pre>
+ *   0  uint32  CRC-32 (byte 4 到 payload 結尾)
+ *   4  int64   序號 (從 0 開始連續遞增)
+ *   12 int64   時間 (epoch 毫秒)
+ *   20 uint16  特徵 ID (16-bit UUID)
+ *   22 uint8   payload 長度
+ *   23 uint8   保留
+ *   24 payload (最多 {@link #MAX_PAYLOAD_LENGTH} bytes)
+ * </pre>
+ * 程序當掉時已寫入對映區域的記錄仍會由系統寫回檔案；寫到一半的記錄在重新開啟時以 CRC 與序號辨識，
+ * 最新分段從第一筆無效的記錄之後都視為未寫入 (tail recovery)，之後的記錄會覆蓋它。
+ * 要確保斷電也不遺失時呼叫 {@link #flush()}。
+ *
+ * 所有方法都是執行緒安全的。此類別不依賴 Android API。
+ */
+public final class MeasurementJournal implements Closeable {
+
+    /** 每筆記錄的長度。 */
+    public static final int RECORD_LENGTH = 64;
+    /** 記錄標頭的長度。 */
+    public static final int HEADER_LENGTH = 24;
+    /** payload 的長度上限。 */
+    public static final int MAX_PAYLOAD_LENGTH = RECORD_LENGTH - HEADER_LENGTH;
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    /**
+     * 走訪記錄。payload 陣列會被重複使用，只在呼叫期間有效。
+     */
+    public interface Visitor {
+        /**
+         * @return 是否繼續走訪。
+         */
+        boolean visit(long sequence, long timestampMillis, int characteristicId, byte[] payload, int offset, int length);
+    }
+
+    private static final class Segment {
+        final long baseSequence;
+        final File file;
+        final MappedByteBuffer buffer;
+        int count;
+
+        Segment(long baseSequence, File file, MappedByteBuffer buffer) {
+            this.baseSequence = baseSequence;
+            this.file = file;
+            this.buffer = buffer;
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private final File directory;
+    private final int recordsPerSegment;
+    private final int maxSegments;
+    private final List<Segment> segments = new ArrayList<>();
+    private final byte[] scratch = new byte[RECORD_LENGTH];
+    private final byte[] readScratch = new byte[RECORD_LENGTH];
+    private final CRC32 crc = new CRC32();
+    private long nextSequence;
+    private boolean closed;
+    // 統計
+    private final int recoveredRecords;
+    private final boolean tornTail;
+    private long appended;
+    private long rejected;
+    private long corrupted;
+    private long deletedSegments;
+
+    private MeasurementJournal(File directory, int recordsPerSegment, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.recordsPerSegment = recordsPerSegment;
+        this.maxSegments = maxSegments;
+        long[] bases = listSegments(directory);
+        for (long base : bases) {
+            segments.add(map(base));
+        }
+        if (segments.isEmpty()) {
+            segments.add(map(0));
+        }
+        // 較舊的分段一定已經寫滿 (寫滿才會建立下一個分段)，只需要檢查最新的分段
+        for (int i = 0; i < segments.size() - 1; i++) {
+            segments.get(i).count = recordsPerSegment;
+        }
+        Segment last = segments.get(segments.size() - 1);
+        int valid = 0;
+        while (valid < recordsPerSegment && read(last, valid, readScratch)) {
+            valid++;
+        }
+        last.count = valid;
+        tornTail = valid < recordsPerSegment && hasData(last, valid);
+        nextSequence = last.baseSequence + valid;
+        recoveredRecords = (int) Math.min(Integer.MAX_VALUE, nextSequence - segments.get(0).baseSequence);
+    }
+
+    /**
+     * 開啟 (或建立) directory 中的日誌，並從最新分段的最後一筆有效記錄之後繼續附加。
+     * 同一個目錄每次都要以相同的 recordsPerSegment 開啟。
+     * @param recordsPerSegment 每個分段檔的記錄數。
+     * @param maxSegments 保留的分段數上限，0 表示不限。
+     */
+    public static MeasurementJournal open(File directory, int recordsPerSegment, int maxSegments) throws IOException {
+        if (recordsPerSegment <= 0 || maxSegments < 0) {
+            throw new IllegalArgumentException("invalid journal parameters");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create journal directory " + directory);
+        }
+        return new MeasurementJournal(directory, recordsPerSegment, maxSegments);
+    }
+
+    /**
+     * 附加一筆記錄。
+     * @return 記錄的序號。
+     * @throws IllegalArgumentException payload 超過 {@link #MAX_PAYLOAD_LENGTH} 或特徵 ID 不是 16-bit。
+     * @throws IOException 建立下一個分段失敗。
+     */
+    public long append(long timestampMillis, int characteristicId, byte[] payload) throws IOException {
+        return append(timestampMillis, characteristicId, payload, 0, payload.length);
+    }
+
+    public synchronized long append(long timestampMillis, int characteristicId, byte[] payload, int offset, int length) throws IOException {
+        if (length > MAX_PAYLOAD_LENGTH || (characteristicId & ~0xFFFF) != 0) {
+            rejected++;
+            throw new IllegalArgumentException("record of " + length + " bytes for 0x"
+                    + Integer.toHexString(characteristicId) + " does not fit in the journal");
+        }
+        ensureOpen();
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.count == recordsPerSegment) {
+            segment = roll();
+        }
+        long sequence = nextSequence;
+        byte[] record = scratch;
+        putLong(record, 4, sequence);
+        putLong(record, 12, timestampMillis);
+        record[20] = (byte) characteristicId;
+        record[21] = (byte) (characteristicId >> 8);
+        record[22] = (byte) length;
+        record[23] = 0;
+        System.arraycopy(payload, offset, record, HEADER_LENGTH, length);
+        Arrays.fill(record, HEADER_LENGTH + length, RECORD_LENGTH, (byte) 0);
+        crc.reset();
+        crc.update(record, 4, HEADER_LENGTH - 4 + length);
+        putInt(record, 0, (int) crc.getValue());
+        segment.buffer.position(segment.count * RECORD_LENGTH);
+        segment.buffer.put(record, 0, RECORD_LENGTH);
+        segment.count++;
+        nextSequence++;
+        appended++;
+        return sequence;
+    }
+
+    /**
+     * 最舊的一筆仍保留的記錄的序號。
+     */
+    public synchronized long firstSequence() {
+        return segments.isEmpty() ? nextSequence : segments.get(0).baseSequence;
+    }
+
+    /**
+     * 下一筆記錄的序號 (也就是目前為止附加過的記錄總數)。
+     */
+    public synchronized long nextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * 依序號遞增走訪 fromSequence 之後的記錄 (CRC 錯誤的記錄會被略過)。
+     * @return 走訪到的最後一筆記錄的下一個序號。
+     */
+    public long scan(long fromSequence, Visitor visitor) {
+        return scan(fromSequence, null, visitor);
+    }
+
+    /**
+     * 只走訪特徵 ID 在 characteristicIds 中的記錄。其他記錄只讀出標頭中的特徵 ID，不複製也不檢查 CRC，
+     * 只需要重播少數特徵時不必讀遍整個日誌。characteristicIds 為 null 時走訪所有記錄。
+     * @return 走訪到的最後一筆記錄的下一個序號。
+     */
+    public synchronized long scan(long fromSequence, int[] characteristicIds, Visitor visitor) {
+        ensureOpen();
+        long sequence = Math.max(fromSequence, firstSequence());
+        for (int s = indexOf(sequence); s < segments.size() && s >= 0; s++) {
+            Segment segment = segments.get(s);
+            for (int i = (int) (Math.max(sequence, segment.baseSequence) - segment.baseSequence); i < segment.count; i++) {
+                sequence = segment.baseSequence + i + 1;
+                if (characteristicIds != null && !contains(characteristicIds, characteristicId(segment, i))) continue;
+                if (!read(segment, i, readScratch)) {
+                    corrupted++;
+                    continue;
+                }
+                if (!visitRecord(visitor, segment.baseSequence + i)) return sequence;
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * 從最新的記錄往回走訪 (CRC 錯誤的記錄會被略過)。
+     */
+    public synchronized void scanBackward(Visitor visitor) {
+        ensureOpen();
+        for (int s = segments.size() - 1; s >= 0; s--) {
+            Segment segment = segments.get(s);
+            for (int i = segment.count - 1; i >= 0; i--) {
+                if (!read(segment, i, readScratch)) {
+                    corrupted++;
+                    continue;
+                }
+                if (!visitRecord(visitor, segment.baseSequence + i)) return;
+            }
+        }
+    }
+
+    /**
+     * 把最新分段寫回儲存裝置 (fsync)。
+     */
+    public synchronized void flush() {
+        if (closed) return;
+        segments.get(segments.size() - 1).buffer.force();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        flush();
+        closed = true;
+        segments.clear();
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(segments.size(), firstSequence(), nextSequence, recoveredRecords, tornTail,
+                appended, rejected, corrupted, deletedSegments);
+    }
+
+    private void ensureOpen() {
+        if (closed) throw new IllegalStateException("journal is closed");
+    }
+
+    private boolean visitRecord(Visitor visitor, long sequence) {
+        byte[] record = readScratch;
+        return visitor.visit(sequence, getLong(record, 12), (record[20] & 0xFF) | ((record[21] & 0xFF) << 8),
+                record, HEADER_LENGTH, record[22] & 0xFF);
+    }
+
+    /**
+     * 寫滿的分段寫回儲存裝置後建立下一個分段，必要時刪除最舊的分段。
+     */
+    private Segment roll() throws IOException {
+        Segment full = segments.get(segments.size() - 1);
+        full.buffer.force();
+        Segment next = map(full.baseSequence + recordsPerSegment);
+        segments.add(next);
+        while (maxSegments > 0 && segments.size() > maxSegments) {
+            Segment oldest = segments.remove(0);
+            if (oldest.file.delete()) deletedSegments++;
+        }
+        return next;
+    }
+
+    /**
+     * 建立 (或開啟) 分段檔並對映整個檔案。對映在檔案關閉後仍然有效。
+     */
+    private Segment map(long baseSequence) throws IOException {
+        File file = new File(directory, String.format(Locale.ROOT, "%020d%s", baseSequence, SEGMENT_SUFFIX));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) recordsPerSegment * RECORD_LENGTH);
+            return new Segment(baseSequence, file, buffer);
+        }
+    }
+
+    private static long[] listSegments(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) return new long[0];
+        long[] bases = new long[files.length];
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) continue;
+            try {
+                bases[count++] = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                // 不是分段檔
+            }
+        }
+        bases = Arrays.copyOf(bases, count);
+        Arrays.sort(bases);
+        return bases;
+    }
+
+    /**
+     * 包含此序號的分段的索引；序號在保留範圍之外時回傳 segments.size()。
+     */
+    private int indexOf(long sequence) {
+        for (int s = segments.size() - 1; s >= 0; s--) {
+            if (segments.get(s).baseSequence <= sequence) {
+                return sequence < nextSequence ? s : segments.size();
+            }
+        }
+        return segments.size();
+    }
+
+    /**
+     * 讀出分段中第 index 筆記錄到 out，檢查 CRC 與序號。
+     */
+    private boolean read(Segment segment, int index, byte[] out) {
+        segment.buffer.position(index * RECORD_LENGTH);
+        segment.buffer.get(out, 0, RECORD_LENGTH);
+        int length = out[22] & 0xFF;
+        if (length > MAX_PAYLOAD_LENGTH || getLong(out, 4) != segment.baseSequence + index) return false;
+        crc.reset();
+        crc.update(out, 4, HEADER_LENGTH - 4 + length);
+        return getInt(out, 0) == (int) crc.getValue();
+    }
+
+    /**
+     * 直接從對映區域讀出第 index 筆記錄的特徵 ID (未檢查 CRC)。
+     */
+    private static int characteristicId(Segment segment, int index) {
+        return segment.buffer.getShort(index * RECORD_LENGTH + 20) & 0xFFFF;
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) return true;
+        }
+        return false;
+    }
+
+    /**
+     * 第 index 筆記錄的標頭是否有非零的資料，用來區分寫到一半的記錄與從未寫入的空間。
+     */
+    private static boolean hasData(Segment segment, int index) {
+        int position = index * RECORD_LENGTH;
+        return segment.buffer.getLong(position) != 0 || segment.buffer.getLong(position + 8) != 0
+                || segment.buffer.getLong(position + 16) != 0;
+    }
+
+    private static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) value;
+        out[offset + 1] = (byte) (value >> 8);
+        out[offset + 2] = (byte) (value >> 16);
+        out[offset + 3] = (byte) (value >> 24);
+    }
+
+    private static void putLong(byte[] out, int offset, long value) {
+        putInt(out, offset, (int) value);
+        putInt(out, offset + 4, (int) (value >> 32));
+    }
+
+    private static int getInt(byte[] in, int offset) {
+        return (in[offset] & 0xFF) | ((in[offset + 1] & 0xFF) << 8) | ((in[offset + 2] & 0xFF) << 16) | ((in[offset + 3] & 0xFF) << 24);
+    }
+
+    private static long getLong(byte[] in, int offset) {
+        return (getInt(in, offset) & 0xFFFFFFFFL) | ((long) getInt(in, offset + 4) << 32);
+    }
+
+    /**
+     * 日誌的統計。
+     */
+    public static final class Stats {
+        public final int segments;
+        public final long firstSequence;
+        public final long nextSequence;
+        /** 開啟時已存在的記錄數。 */
+        public final int recoveredRecords;
+        /** 開啟時最新分段的結尾有寫到一半的記錄。 */
+        public final boolean tornTail;
+        public final long appended;
+        /** 因為太長而拒絕的記錄數。 */
+        public final long rejected;
+        /** 讀取時 CRC 錯誤而略過的記錄數。 */
+        public final long corrupted;
+        public final long deletedSegments;
+
+        Stats(int segments, long firstSequence, long nextSequence, int recoveredRecords, boolean tornTail,
+              long appended, long rejected, long corrupted, long deletedSegments) {
+            this.segments = segments;
+            this.firstSequence = firstSequence;
+            this.nextSequence = nextSequence;
+            this.recoveredRecords = recoveredRecords;
+            this.tornTail = tornTail;
+            this.appended = appended;
+            this.rejected = rejected;
+            this.corrupted = corrupted;
+            this.deletedSegments = deletedSegments;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "segments=%d sequence=[%d,%d) recovered=%d%s appended=%d rejected=%d corrupted=%d deleted=%d",
+                    segments, firstSequence, nextSequence, recoveredRecords, tornTail ? " (torn tail)" : "",
+                    appended, rejected, corrupted, deletedSegments);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.tutsplus.bleadvertising;
+
+/**
+ * IEEE 11073-20601 的 SFLOAT (16-bit) 與 FLOAT (32-bit) 編解碼。
+ * 血壓、血糖、體溫與血氧等健康類特徵的數值都使用這兩種格式。
+ *
+ * 兩者都是十進位浮點數：值 = 尾數 × 10^指數，尾數與指數都是 2 的補數。
+ * SFLOAT 是 4-bit 指數 + 12-bit 尾數，FLOAT 是 8-bit 指數 + 24-bit 尾數。
+ * 指數為 0 時，尾數最大的兩個值與最小的三個值保留給 +INF、NaN、NRes (解析度不足)、保留值與 -INF。
+ *
+ * 規範只在指數為 0 時把這些尾數當成特殊值，但有些解碼器只比對尾數，因此編碼器的尾數絕對值一律不超過
+ * {@link #SFLOAT_MAX_MANTISSA} / {@link #FLOAT_MAX_MANTISSA}；解碼則接受任何指數不為 0 的尾數。
+ *
+ * 編碼時選擇放得下尾數的最小指數，也就是格式能保留的最多有效位數；超出範圍的值編碼成 ±INF，
+ * 太小的值編碼成 0。指數以 {@link Math#getExponent(double)} 的二進位指數查表得到，最多再修正一次，
+ * 不需要 log10 或逐一嘗試每個指數。所有方法都不配置記憶體。此類別不依賴 Android API。
+ */
+public final class MedicalFloat {
+
+    public static final int SFLOAT_POSITIVE_INFINITY = 0x07FE;
+    public static final int SFLOAT_NAN = 0x07FF;
+    public static final int SFLOAT_NRES = 0x0800;
+    public static final int SFLOAT_RESERVED = 0x0801;
+    public static final int SFLOAT_NEGATIVE_INFINITY = 0x0802;
+
+    public static final int FLOAT_POSITIVE_INFINITY = 0x007FFFFE;
+    public static final int FLOAT_NAN = 0x007FFFFF;
+    public static final int FLOAT_NRES = 0x00800000;
+    public static final int FLOAT_RESERVED = 0x00800001;
+    public static final int FLOAT_NEGATIVE_INFINITY = 0x00800002;
+
+    /** 一般數值可用的最大尾數絕對值；再大的尾數保留給特殊值。 */
+    public static final int SFLOAT_MAX_MANTISSA = 0x07FD;
+    public static final int FLOAT_MAX_MANTISSA = 0x007FFFFD;
+
+    public static final int SFLOAT_MIN_EXPONENT = -8;
+    public static final int SFLOAT_MAX_EXPONENT = 7;
+    public static final int FLOAT_MIN_EXPONENT = -128;
+    public static final int FLOAT_MAX_EXPONENT = 127;
+
+    // 特殊值依 (原始值 - +INF) 的順序：+INF、NaN、NRes、保留值、-INF
+    private static final double[] SPECIAL_VALUES = {
+            Double.POSITIVE_INFINITY, Double.NaN, Double.NaN, Double.NaN, Double.NEGATIVE_INFINITY,
+    };
+
+    // 10^0 .. 10^(FLOAT_MAX_EXPONENT + 2)；多出的項目給指數修正後的溢位判斷使用
+    private static final double[] POW10 = new double[FLOAT_MAX_EXPONENT + 3];
+
+    // Math.getExponent 的結果 (-1023 .. 1024) 加上 EXPONENT_BIAS 作為索引，
+    // 值是該二進位區間 [2^b, 2^(b+1)) 可能使用的最小十進位指數；等於最大指數 + 1 表示一定溢位
+    private static final int EXPONENT_BIAS = -Double.MIN_EXPONENT + 1;
+    private static final short[] SFLOAT_EXPONENTS = new short[Double.MAX_EXPONENT + EXPONENT_BIAS + 2];
+    private static final short[] FLOAT_EXPONENTS = new short[Double.MAX_EXPONENT + EXPONENT_BIAS + 2];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+        // 10^22 以內的 double 是精確的；更大的用字面值取得最接近的 double，避免連乘累積誤差
+        for (int i = 23; i < POW10.length; i++) {
+            POW10[i] = Double.parseDouble("1e" + i);
+        }
+        fillExponents(SFLOAT_EXPONENTS, SFLOAT_MIN_EXPONENT, SFLOAT_MAX_EXPONENT, SFLOAT_MAX_MANTISSA);
+        fillExponents(FLOAT_EXPONENTS, FLOAT_MIN_EXPONENT, FLOAT_MAX_EXPONENT, FLOAT_MAX_MANTISSA);
+    }
+
+    private MedicalFloat() {}
+
+    /**
+     * 將數值編碼成 SFLOAT。
+     * @return 16-bit 的原始值 (0 .. 0xFFFF)。
+     */
+    public static int toSfloat(double value) {
+        if (value != value) return SFLOAT_NAN;
+        double magnitude = Math.abs(value);
+        int exponent = SFLOAT_EXPONENTS[Math.getExponent(magnitude) + EXPONENT_BIAS];
+        long mantissa = scale(magnitude, exponent);
+        // 查表得到的是整個二進位區間的下限，區間上半部的值可能要再大一個指數
+        if (mantissa > SFLOAT_MAX_MANTISSA) mantissa = scale(magnitude, ++exponent);
+        if (exponent > SFLOAT_MAX_EXPONENT) return value < 0 ? SFLOAT_NEGATIVE_INFINITY : SFLOAT_POSITIVE_INFINITY;
+        if (mantissa == 0) return 0;
+        int signed = (int) (value < 0 ? -mantissa : mantissa);
+        return ((exponent << 12) | (signed & 0x0FFF)) & 0xFFFF;
+    }
+
+    /**
+     * 將數值編碼成 FLOAT。
+     * @return 32-bit 的原始值。
+     */
+    public static int toFloat(double value) {
+        if (value != value) return FLOAT_NAN;
+        double magnitude = Math.abs(value);
+        int exponent = FLOAT_EXPONENTS[Math.getExponent(magnitude) + EXPONENT_BIAS];
+        long mantissa = scale(magnitude, exponent);
+        if (mantissa > FLOAT_MAX_MANTISSA) mantissa = scale(magnitude, ++exponent);
+        if (exponent > FLOAT_MAX_EXPONENT) return value < 0 ? FLOAT_NEGATIVE_INFINITY : FLOAT_POSITIVE_INFINITY;
+        if (mantissa == 0) return 0;
+        int signed = (int) (value < 0 ? -mantissa : mantissa);
+        return (exponent << 24) | (signed & 0x00FFFFFF);
+    }
+
+    /**
+     * 解碼 SFLOAT (只使用低 16 bits)。NaN、NRes 與保留值都解碼成 NaN。
+     */
+    public static double sfloatToDouble(int raw) {
+        int special = (raw & 0xFFFF) - SFLOAT_POSITIVE_INFINITY;
+        if (special >= 0 && special < SPECIAL_VALUES.length) return SPECIAL_VALUES[special];
+        int mantissa = (raw << 20) >> 20;
+        int exponent = (raw << 16) >> 28;
+        return exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+    }
+
+    /**
+     * 解碼 FLOAT。NaN、NRes 與保留值都解碼成 NaN。
+     */
+    public static double floatToDouble(int raw) {
+        int special = raw - FLOAT_POSITIVE_INFINITY;
+        if (special >= 0 && special < SPECIAL_VALUES.length) return SPECIAL_VALUES[special];
+        int mantissa = (raw << 8) >> 8;
+        int exponent = raw >> 24;
+        return exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+    }
+
+    /**
+     * 將數值以 SFLOAT (little-endian) 寫入 out[offset]。
+     * @return 下一個寫入位置。
+     */
+    public static int putSfloat(byte[] out, int offset, double value) {
+        int raw = toSfloat(value);
+        out[offset] = (byte) raw;
+        out[offset + 1] = (byte) (raw >> 8);
+        return offset + 2;
+    }
+
+    /**
+     * 將數值以 FLOAT (little-endian) 寫入 out[offset]。
+     * @return 下一個寫入位置。
+     */
+    public static int putFloat(byte[] out, int offset, double value) {
+        int raw = toFloat(value);
+        out[offset] = (byte) raw;
+        out[offset + 1] = (byte) (raw >> 8);
+        out[offset + 2] = (byte) (raw >> 16);
+        out[offset + 3] = (byte) (raw >> 24);
+        return offset + 4;
+    }
+
+    public static double readSfloat(byte[] in, int offset) {
+        return sfloatToDouble((in[offset] & 0xFF) | ((in[offset + 1] & 0xFF) << 8));
+    }
+
+    public static double readFloat(byte[] in, int offset) {
+        return floatToDouble((in[offset] & 0xFF) | ((in[offset + 1] & 0xFF) << 8)
+                | ((in[offset + 2] & 0xFF) << 16) | (in[offset + 3] << 24));
+    }
+
+    /**
+     * magnitude / 10^exponent 四捨五入後的尾數。負指數用乘法，讓 10^k 保持精確。
+     */
+    private static long scale(double magnitude, int exponent) {
+        return exponent < 0 ? Math.round(magnitude * POW10[-exponent]) : Math.round(magnitude / POW10[exponent]);
+    }
+
+    /**
+     * 對每個二進位區間找出區間下限 2^b 放得下尾數的最小十進位指數。
+     * 十進位指數每加一，可表示的範圍就放大十倍，而區間的上限只是下限的兩倍，
+     * 因此區間內任何值的最佳指數不是這個值就是它加一。
+     */
+    private static void fillExponents(short[] table, int minExponent, int maxExponent, int maxMantissa) {
+        for (int i = 0; i < table.length; i++) {
+            double lower = Math.scalb(1.0, i - EXPONENT_BIAS);
+            int exponent = minExponent;
+            while (exponent <= maxExponent && scale(lower, exponent) > maxMantissa) exponent++;
+            table[i] = (short) exponent;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.tutsplus.bleadvertising;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 一次編碼、多次扇出 (encode once, fan out many)。
+ *
+ * 每次 {@link #publish} 只做一次：把編碼好的值複製成不可變的 {@link Payload}、從 {@link SubscriptionRegistry}
+ * 取出訂閱者遮罩。接著分兩個階段分派給遮罩中的每個裝置：先把同一個 Payload 排入所有裝置的 {@link NotificationQueue}
+ * (每個裝置只是一次加鎖的佇列操作)，再逐一送出。因此每個裝置的額外成本不包含編碼、複製或 CCCD 查詢，
+ * 而且第一個與最後一個裝置拿到封包的時間差不會包含其他裝置的傳輸層呼叫。
+ *
+ * 每個 slot (見 {@link SubscriptionRegistry}) 以 lock-free 計數器記錄排入/拒絕的次數與位元組數，
+ * 多個模擬執行緒可以同時呼叫 publish。
+ *
+ * 此類別不依賴 Android API，可以搭配 {@link LoopbackGattTransport} 在一般 JVM 上使用。
+ */
+public final class NotificationFanOut<S, C> {
+
+    /**
+     * 不可變的共用通知內容，所有裝置的佇列都參照同一個陣列。
+     */
+    public static final class Payload {
+        public final long sequence;
+        public final long encodedAtNanos;
+        private final byte[] bytes;
+
+        Payload(long sequence, byte[] bytes) {
+            this.sequence = sequence;
+            this.encodedAtNanos = System.nanoTime();
+            this.bytes = bytes;
+        }
+
+        public int length() {
+            return bytes.length;
+        }
+
+        /**
+         * 內容的複本。
+         */
+        public byte[] toByteArray() {
+            return bytes.clone();
+        }
+    }
+
+    private final SubscriptionRegistry<String> subscriptions;
+    private final NotificationQueue<S, C> queue;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong withoutSubscribers = new AtomicLong();
+    private final AtomicLong deliveries = new AtomicLong();
+    // 以 slot 為索引的計數器；slot 換了裝置時歸零
+    private final AtomicReferenceArray<String> slotOwners = new AtomicReferenceArray<>(SubscriptionRegistry.MAX_DEVICES);
+    private final AtomicLongArray offered = new AtomicLongArray(SubscriptionRegistry.MAX_DEVICES);
+    private final AtomicLongArray rejected = new AtomicLongArray(SubscriptionRegistry.MAX_DEVICES);
+    private final AtomicLongArray bytesOffered = new AtomicLongArray(SubscriptionRegistry.MAX_DEVICES);
+
+    public NotificationFanOut(SubscriptionRegistry<String> subscriptions, NotificationQueue<S, C> queue) {
+        this.subscriptions = subscriptions;
+        this.queue = queue;
+    }
+
+    /**
+     * 是否有任何裝置訂閱了這個特徵。沒有時呼叫端可以跳過編碼。
+     */
+    public boolean hasSubscribers(C characteristic, boolean indication) {
+        return subscriptions.subscribers(characteristic, indication) != 0;
+    }
+
+    /**
+     * 將值送給所有訂閱了該特徵的裝置。value 會被複製一次，之後呼叫端可以重複使用 value 的陣列。
+     * @return 共用的 Payload；沒有任何訂閱者時不複製，回傳 null。
+     */
+    public Payload publish(C characteristic, byte[] value, boolean indication) {
+        return publish(characteristic, value, indication, true);
+    }
+
+    /**
+     * 同 {@link #publish}，但 value 直接成為共用的 Payload，不再複製。
+     * 用於呼叫端已經自己複製過一次的值 (例如同一份複本也當作特徵值)；交出後不可以再修改 value。
+     */
+    Payload publishShared(C characteristic, byte[] value, boolean indication) {
+        return publish(characteristic, value, indication, false);
+    }
+
+    private Payload publish(C characteristic, byte[] value, boolean indication, boolean copy) {
+        published.incrementAndGet();
+        long subscribers = subscriptions.subscribers(characteristic, indication);
+        if (subscribers == 0 || value == null) {
+            withoutSubscribers.incrementAndGet();
+            return null;
+        }
+        Payload payload = new Payload(sequence.incrementAndGet(), copy ? value.clone() : value);
+
+        // 階段一：排入每個裝置的佇列
+        int count = 0;
+        long remaining = subscribers;
+        while (remaining != 0) {
+            int slot = Long.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+            String deviceId = subscriptions.deviceAt(slot);
+            if (deviceId == null) continue;
+            claimSlot(slot, deviceId);
+            offered.incrementAndGet(slot);
+            if (queue.offer(deviceId, characteristic, payload.bytes, indication)) {
+                bytesOffered.addAndGet(slot, payload.bytes.length);
+                count++;
+            } else {
+                rejected.incrementAndGet(slot);
+            }
+        }
+        deliveries.addAndGet(count);
+
+        // 階段二：送出 (被拒絕的裝置 flush 也沒有副作用)
+        remaining = subscribers;
+        while (remaining != 0) {
+            int slot = Long.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+            String deviceId = subscriptions.deviceAt(slot);
+            if (deviceId != null) queue.flush(deviceId);
+        }
+        return payload;
+    }
+
+    /**
+     * 同 {@link #publish}，但依每個裝置協商後的 MTU 以 {@link PayloadFramer} 切片，
+     * 放不進一個通知的值不會被截斷。同一個 MTU 的裝置共用同一組片段。
+     * 某裝置的佇列放不下全部片段時，該裝置整個值都不排入 (記為拒絕)。
+     * @return 共用的 Payload (未切片的原值)；沒有任何訂閱者時回傳 null。
+     * @throws IllegalArgumentException 值超過某個訂閱者 MTU 下的 {@link PayloadFramer#maxPayloadLength(int)}。
+     */
+    public Payload publishFramed(C characteristic, byte[] value, boolean indication) {
+        return publishFramed(characteristic, value, indication, true);
+    }
+
+    /**
+     * 同 {@link #publishFramed}，但 value 直接成為共用的 Payload，不再複製；交出後不可以再修改 value。
+     */
+    Payload publishFramedShared(C characteristic, byte[] value, boolean indication) {
+        return publishFramed(characteristic, value, indication, false);
+    }
+
+    private Payload publishFramed(C characteristic, byte[] value, boolean indication, boolean copy) {
+        published.incrementAndGet();
+        long subscribers = subscriptions.subscribers(characteristic, indication);
+        if (subscribers == 0 || value == null) {
+            withoutSubscribers.incrementAndGet();
+            return null;
+        }
+        Payload payload = new Payload(sequence.incrementAndGet(), copy ? value.clone() : value);
+
+        int count = 0;
+        int lastMtu = -1;
+        byte[][] fragments = null;
+        long remaining = subscribers;
+        while (remaining != 0) {
+            int slot = Long.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+            String deviceId = subscriptions.deviceAt(slot);
+            if (deviceId == null) continue;
+            int mtu = queue.getMtu(deviceId);
+            if (mtu != lastMtu) {
+                fragments = PayloadFramer.split(payload.bytes, mtu);
+                lastMtu = mtu;
+            }
+            claimSlot(slot, deviceId);
+            offered.incrementAndGet(slot);
+            if (queue.offerAll(deviceId, characteristic, fragments, indication)) {
+                bytesOffered.addAndGet(slot, payload.bytes.length);
+                count++;
+            } else {
+                rejected.incrementAndGet(slot);
+            }
+        }
+        deliveries.addAndGet(count);
+
+        remaining = subscribers;
+        while (remaining != 0) {
+            int slot = Long.numberOfTrailingZeros(remaining);
+            remaining &= remaining - 1;
+            String deviceId = subscriptions.deviceAt(slot);
+            if (deviceId != null) queue.flush(deviceId);
+        }
+        return payload;
+    }
+
+    /**
+     * slot 被新的裝置使用時，把上一個裝置的計數歸零。
+     */
+    private void claimSlot(int slot, String deviceId) {
+        String owner = slotOwners.get(slot);
+        if (deviceId.equals(owner)) return;
+        if (slotOwners.compareAndSet(slot, owner, deviceId)) {
+            offered.set(slot, 0);
+            rejected.set(slot, 0);
+            bytesOffered.set(slot, 0);
+        }
+    }
+
+    public Stats getStats() {
+        List<DeviceStats> devices = new ArrayList<>();
+        for (int slot = 0; slot < SubscriptionRegistry.MAX_DEVICES; slot++) {
+            String owner = slotOwners.get(slot);
+            if (owner == null || !owner.equals(subscriptions.deviceAt(slot))) continue;
+            devices.add(new DeviceStats(owner, offered.get(slot), rejected.get(slot), bytesOffered.get(slot)));
+        }
+        return new Stats(published.get(), withoutSubscribers.get(), deliveries.get(), devices);
+    }
+
+    /**
+     * 整體扇出統計。
+     */
+    public static final class Stats {
+        /** publish 的呼叫次數。 */
+        public final long published;
+        /** 沒有任何訂閱者、因此沒有複製也沒有分派的次數。 */
+        public final long withoutSubscribers;
+        /** 成功排入裝置佇列的總次數。 */
+        public final long deliveries;
+        /** 目前連線中的裝置各自的統計。 */
+        public final List<DeviceStats> devices;
+
+        Stats(long published, long withoutSubscribers, long deliveries, List<DeviceStats> devices) {
+            this.published = published;
+            this.withoutSubscribers = withoutSubscribers;
+            this.deliveries = deliveries;
+            this.devices = devices;
+        }
+
+        @Override
+        public String toString() {
+            long encoded = published - withoutSubscribers;
+            return "published=" + published
+                    + " withoutSubscribers=" + withoutSubscribers
+                    + " deliveries=" + deliveries
+                    + " fanOut=" + (encoded == 0 ? 0 : String.format(Locale.ROOT, "%.2f", (double) deliveries / encoded));
+        }
+    }
+
+    /**
+     * 單一裝置的扇出統計。
+     */
+    public static final class DeviceStats {
+        public final String deviceId;
+        /** 分派給這個裝置的次數。 */
+        public final long offered;
+        /** 被裝置佇列拒絕 (佇列已滿) 的次數。 */
+        public final long rejected;
+        /** 排入佇列的位元組數。 */
+        public final long bytes;
+
+        DeviceStats(String deviceId, long offered, long rejected, long bytes) {
+            this.deviceId = deviceId;
+            this.offered = offered;
+            this.rejected = rejected;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            return deviceId + " offered=" + offered + " rejected=" + rejected + " bytes=" + bytes;
+        }
+    }
+}
@@ -0,0 +1,592 @@
+package com.tutsplus.bleadvertising;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每個裝置各自的通知/指示發送佇列，以 onNotificationSent 作為流量控制的依據。
+ *
+ * Android 要求在收到 {@code BluetoothGattServerCallback.onNotificationSent} 之前不可以再對同一個裝置送出下一個通知，
+ * 否則 notifyCharacteristicChanged 會直接失敗 (例如 ESS 一次連續送出四個特徵)。
+ * 這裡每個裝置有 {@link Config#credits} 個發送額度：送出一個封包用掉一個額度，收到 onNotificationSent 歸還一個，
+ * 沒有額度時封包會留在佇列中，等額度歸還後依序送出。
+ * 傳輸層拒絕封包 (notifyCharacteristicChanged 回傳 false，通常是堆疊的緩衝區已滿) 時，封包放回佇列最前面並停止送出，
+ * 等下一個 onNotificationSent 或 {@link Config#busyBackoffMillis} 之後再試；只有裝置已經斷線時才丟棄。
+ *
+ * 佇列長度上限為 {@link Config#maxDepth}，滿了之後依 {@link OverflowPolicy} 丟棄最舊或最新的封包。
+ * 以 {@link #offerAll} 排入的封包 (歷史傳輸、RACP 串流、切片後的值) 呼叫端已經記為送出，不會被丟棄：
+ * DROP_OLDEST 只丟棄最舊的一般封包，佇列中全部都是這類封包時改為拒絕新的封包。
+ * 只在乎最新值的特徵 (例如 Indoor Bike Data、電量) 可以用 {@link #setConflated} 設為合併模式：
+ * 若同一裝置上已有該特徵的封包在排隊，新值會直接取代舊值 (保留原本的排隊位置)，不會累積過期的資料。
+ * 每個裝置都會記錄佇列深度與送出/丟棄/合併/失敗次數。
+ * 裝置的佇列只在連線時建立 (以及建立本物件時已經連線的裝置)，斷線時移除；對未連線的裝置排入封包會回傳 false。
+ *
+ * 指示 (indication) 需要等待客戶端的 ATT 確認：每個裝置同時最多只有一個未確認的指示，
+ * 而且指示只在沒有其他通知等待回呼時才送出、確認前也不再送出任何封包，
+ * 因此下一個 onNotificationSent 一定就是該指示的確認。
+ * 超過 {@link Config#indicationTimeoutMillis} (預設為 ATT 交易時限 30 秒) 沒有確認時只記錄逾時並丟棄該指示，不在應用層重送：
+ * 堆疊仍在等待原本的確認，這時再送 Android 只會回報忙碌。逾時後堆疊仍視該指示為未確認，
+ * 因此在遲到的 onNotificationSent 回來 (或斷線) 之前不再送出任何封包，遲到的確認也不會算到下一個封包上；
+ * 沒有封包在途中時收到的 onNotificationSent 一律忽略。
+ * 確認的往返時間 (RTT) 會記錄在統計中，可以當作連線品質的指標。
+ *
+ * 此類別不依賴 Android API，可以搭配 {@link LoopbackGattTransport} 在一般 JVM 上使用。
+ */
+public final class NotificationQueue<S, C> {
+
+    // ATT 交易時限 (Core Spec Vol 3, Part F, 3.3.3)
+    private static final long DEFAULT_INDICATION_TIMEOUT_MS = 30_000;
+    private static final long DEFAULT_BUSY_BACKOFF_MS = 20;
+
+    /**
+     * 佇列已滿時的處理方式。
+     */
+    public enum OverflowPolicy {
+        /** 丟棄佇列中最舊的封包 ({@link NotificationQueue#offerAll} 排入的除外)，保留新的。 */
+        DROP_OLDEST,
+        /** 丟棄新進來的封包。 */
+        DROP_NEWEST
+    }
+
+    /**
+     * 佇列設定。
+     */
+    public static final class Config {
+        /** 每個裝置同時可以等待 onNotificationSent 的封包數；Android 上必須是 1。 */
+        public final int credits;
+        /** 每個裝置佇列的最大長度 (不含已送出、等待回呼的封包)。 */
+        public final int maxDepth;
+        public final OverflowPolicy overflowPolicy;
+        /** 等待指示確認的時限，逾時後丟棄該指示。 */
+        public final long indicationTimeoutMillis;
+        /** 傳輸層拒絕封包後，沒有 onNotificationSent 時多久再試一次。 */
+        public final long busyBackoffMillis;
+
+        public Config(int credits, int maxDepth, OverflowPolicy overflowPolicy) {
+            this(credits, maxDepth, overflowPolicy, DEFAULT_INDICATION_TIMEOUT_MS);
+        }
+
+        public Config(int credits, int maxDepth, OverflowPolicy overflowPolicy, long indicationTimeoutMillis) {
+            this(credits, maxDepth, overflowPolicy, indicationTimeoutMillis, DEFAULT_BUSY_BACKOFF_MS);
+        }
+
+        public Config(int credits, int maxDepth, OverflowPolicy overflowPolicy, long indicationTimeoutMillis,
+                      long busyBackoffMillis) {
+            if (credits <= 0 || maxDepth <= 0 || overflowPolicy == null || indicationTimeoutMillis <= 0
+                    || busyBackoffMillis <= 0) {
+                throw new IllegalArgumentException("invalid notification queue config");
+            }
+            this.credits = credits;
+            this.maxDepth = maxDepth;
+            this.overflowPolicy = overflowPolicy;
+            this.indicationTimeoutMillis = indicationTimeoutMillis;
+            this.busyBackoffMillis = busyBackoffMillis;
+        }
+
+        /** Android 的預設值：一次一個、每個裝置最多排 32 個、滿了丟最舊的；指示等 30 秒；被拒絕後 20ms 再試。 */
+        public static Config defaults() {
+            return new Config(1, 32, OverflowPolicy.DROP_OLDEST);
+        }
+    }
+
+    private static final class Packet<C> {
+        final C characteristic;
+        byte[] value;
+        final boolean indication;
+        // 以 offerAll 排入，佇列滿了也不丟棄
+        final boolean pinned;
+
+        Packet(C characteristic, byte[] value, boolean indication, boolean pinned) {
+            this.characteristic = characteristic;
+            this.value = value;
+            this.indication = indication;
+            this.pinned = pinned;
+        }
+    }
+
+    private static final class DeviceQueue<C> {
+        final String deviceId;
+        final ArrayDeque<Packet<C>> pending = new ArrayDeque<>();
+        // 合併模式特徵目前在排隊中的封包
+        final Map<C, Packet<C>> conflatable = new HashMap<>();
+        int credits;
+        long enqueued;
+        long sent;
+        long dropped;
+        long conflated;
+        long failed;
+        long rejected;
+        int maxDepth;
+        // 裝置已斷線：傳輸層拒絕的封包直接丟棄
+        boolean closed;
+        // 傳輸層拒絕後排定的重試
+        ScheduledFuture<?> busyRetry;
+
+        // 未確認的指示
+        Packet<C> indicationInFlight;
+        long indicationSentAtNanos;
+        long indicationSeq;
+        ScheduledFuture<?> indicationTimeout;
+        // 已逾時、但堆疊仍在等待確認的指示
+        boolean indicationAbandoned;
+        long indicationsConfirmed;
+        long indicationTimeouts;
+        long lateConfirmations;
+        long strayCallbacks;
+        long lastRttNanos;
+        long maxRttNanos;
+        long totalRttNanos;
+
+        DeviceQueue(String deviceId, int credits) {
+            this.deviceId = deviceId;
+            this.credits = credits;
+        }
+    }
+
+    private final GattTransport<S, C> transport;
+    private final Config config;
+    private final Map<String, DeviceQueue<C>> queues = new ConcurrentHashMap<>();
+    private final Set<C> conflatedCharacteristics = Collections.newSetFromMap(new ConcurrentHashMap<C, Boolean>());
+    private final ScheduledExecutorService timer;
+    private final GattTransport.Callback<S, C> callback = new GattTransport.Callback<S, C>() {
+        @Override
+        public void onConnectionStateChange(String deviceId, boolean connected) {
+            if (connected) {
+                queues.putIfAbsent(deviceId, new DeviceQueue<C>(deviceId, config.credits));
+            } else {
+                DeviceQueue<C> queue = queues.remove(deviceId);
+                if (queue != null) {
+                    synchronized (queue) {
+                        queue.closed = true;
+                        cancelIndicationTimeout(queue);
+                        cancelBusyRetry(queue);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onNotificationSent(String deviceId, boolean success) {
+            NotificationQueue.this.onNotificationSent(deviceId, success);
+        }
+    };
+
+    /**
+     * 建立佇列並註冊為傳輸層的監聽者，不再使用時要呼叫 {@link #close()}。
+     */
+    public NotificationQueue(GattTransport<S, C> transport, Config config) {
+        this.transport = transport;
+        this.config = config;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ble-indication-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        transport.addCallback(callback);
+        for (String deviceId : transport.getConnectedDevices()) {
+            queues.putIfAbsent(deviceId, new DeviceQueue<C>(deviceId, config.credits));
+        }
+    }
+
+    /**
+     * 設定某特徵是否使用合併 (latest-value) 模式。只對之後排入的封包生效。
+     */
+    public void setConflated(C characteristic, boolean conflated) {
+        if (conflated) {
+            conflatedCharacteristics.add(characteristic);
+        } else {
+            conflatedCharacteristics.remove(characteristic);
+        }
+    }
+
+    /**
+     * 將一個通知/指示排入該裝置的佇列，有額度時立刻送出。
+     * 合併模式的特徵若已有封包在排隊，會直接以新值取代。
+     * 呼叫端在送出前不可以再修改 value 的內容。
+     * @return 是否被接受 (裝置未連線，或佇列已滿且採用 {@link OverflowPolicy#DROP_NEWEST}、
+     *         或佇列中沒有可以丟棄的封包時回傳 false)。
+     */
+    public boolean enqueue(String deviceId, C characteristic, byte[] value, boolean indication) {
+        DeviceQueue<C> queue = queues.get(deviceId);
+        if (queue == null) return false;
+        boolean accepted = offer(queue, characteristic, value, indication);
+        drain(queue);
+        return accepted;
+    }
+
+    /**
+     * 只排入佇列、不送出，之後要呼叫 {@link #flush(String)}。
+     * 扇出時先把同一個值排入所有裝置的佇列，再逐一送出，讓第一個與最後一個裝置的時間差不包含其他裝置的傳輸層呼叫。
+     */
+    boolean offer(String deviceId, C characteristic, byte[] value, boolean indication) {
+        DeviceQueue<C> queue = queues.get(deviceId);
+        return queue != null && offer(queue, characteristic, value, indication);
+    }
+
+    /**
+     * 把同一個值的所有片段一起排入佇列 (不送出)：佇列放不下全部片段時一個都不排入；
+     * 排入後的片段也不會被之後的 {@link #offer} 或 {@link #enqueue} 丟棄，客戶端不會收到缺片段的值。
+     * 採用 {@link OverflowPolicy#DROP_OLDEST} 時會先丟棄最舊的一般封包騰出空間。片段不使用合併模式。
+     * @return 是否被接受。
+     */
+    boolean offerAll(String deviceId, C characteristic, byte[][] values, boolean indication) {
+        DeviceQueue<C> queue = queues.get(deviceId);
+        if (queue == null) return false;
+        synchronized (queue) {
+            queue.enqueued += values.length;
+            int overflow = queue.pending.size() + values.length - config.maxDepth;
+            if (overflow > 0 && (config.overflowPolicy == OverflowPolicy.DROP_NEWEST || evictable(queue) < overflow)) {
+                queue.dropped += values.length;
+                return false;
+            }
+            for (; overflow > 0; overflow--) {
+                evictOldest(queue);
+                queue.dropped++;
+            }
+            for (byte[] value : values) {
+                queue.pending.add(new Packet<>(characteristic, value, indication, true));
+            }
+            if (queue.pending.size() > queue.maxDepth) {
+                queue.maxDepth = queue.pending.size();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 裝置協商後的 ATT MTU。
+     */
+    int getMtu(String deviceId) {
+        return transport.getMtu(deviceId);
+    }
+
+    /**
+     * 在額度內送出某裝置排隊中的封包。
+     */
+    void flush(String deviceId) {
+        DeviceQueue<C> queue = queues.get(deviceId);
+        if (queue != null) drain(queue);
+    }
+
+    private boolean offer(DeviceQueue<C> queue, C characteristic, byte[] value, boolean indication) {
+        boolean conflate = !indication && conflatedCharacteristics.contains(characteristic);
+        synchronized (queue) {
+            queue.enqueued++;
+            if (conflate) {
+                Packet<C> queued = queue.conflatable.get(characteristic);
+                if (queued != null) {
+                    queued.value = value;
+                    queue.conflated++;
+                    return true;
+                }
+            }
+            if (queue.pending.size() >= config.maxDepth) {
+                queue.dropped++;
+                if (config.overflowPolicy == OverflowPolicy.DROP_NEWEST || !evictOldest(queue)) {
+                    return false;
+                }
+            }
+            Packet<C> packet = new Packet<>(characteristic, value, indication, false);
+            queue.pending.add(packet);
+            if (conflate) {
+                queue.conflatable.put(characteristic, packet);
+            }
+            if (queue.pending.size() > queue.maxDepth) {
+                queue.maxDepth = queue.pending.size();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 歸還一個發送額度並送出下一個排隊中的封包。
+     * 若有未確認的指示，這個回呼就是它的確認 (指示送出期間不會有其他封包在途中)；
+     * 若指示已經逾時，這是遲到的確認，只歸還額度。沒有封包在途中時忽略。
+     */
+    void onNotificationSent(String deviceId, boolean success) {
+        DeviceQueue<C> queue = queues.get(deviceId);
+        if (queue == null) return;
+        synchronized (queue) {
+            if (queue.credits >= config.credits) {
+                queue.strayCallbacks++;
+                return;
+            }
+            if (!success) queue.failed++;
+            if (queue.indicationAbandoned) {
+                queue.indicationAbandoned = false;
+                queue.lateConfirmations++;
+            } else if (queue.indicationInFlight != null) {
+                long rtt = System.nanoTime() - queue.indicationSentAtNanos;
+                cancelIndicationTimeout(queue);
+                queue.indicationInFlight = null;
+                if (success) {
+                    queue.indicationsConfirmed++;
+                    queue.lastRttNanos = rtt;
+                    queue.totalRttNanos += rtt;
+                    if (rtt > queue.maxRttNanos) queue.maxRttNanos = rtt;
+                }
+            }
+            queue.credits++;
+            // 堆疊有空間了，不用等退避時間
+            cancelBusyRetry(queue);
+        }
+        drain(queue);
+    }
+
+    /**
+     * 目前某裝置排隊中的封包數 (不含已送出、等待回呼的封包)。
+     */
+    public int depth(String deviceId) {
+        DeviceQueue<C> queue = queues.get(deviceId);
+        if (queue == null) return 0;
+        synchronized (queue) {
+            return queue.pending.size();
+        }
+    }
+
+    /**
+     * 取得每個裝置的佇列統計。
+     */
+    public List<DeviceStats> getStats() {
+        List<DeviceStats> result = new ArrayList<>();
+        for (DeviceQueue<C> queue : queues.values()) {
+            synchronized (queue) {
+                result.add(new DeviceStats(queue, config.credits - queue.credits));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 取消註冊並清空所有佇列。
+     */
+    public void close() {
+        transport.removeCallback(callback);
+        timer.shutdownNow();
+        queues.clear();
+    }
+
+    /**
+     * 佇列中可以丟棄的一般封包數。
+     */
+    private static <C> int evictable(DeviceQueue<C> queue) {
+        int count = 0;
+        for (Packet<C> packet : queue.pending) {
+            if (!packet.pinned) count++;
+        }
+        return count;
+    }
+
+    /**
+     * 丟棄最舊的一般封包；以 offerAll 排入的封包不丟棄。
+     * @return 是否丟棄了封包 (false 表示佇列中全部都是不能丟棄的封包)。
+     */
+    private static <C> boolean evictOldest(DeviceQueue<C> queue) {
+        Iterator<Packet<C>> it = queue.pending.iterator();
+        while (it.hasNext()) {
+            Packet<C> packet = it.next();
+            if (!packet.pinned) {
+                it.remove();
+                forget(queue, packet);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 封包離開佇列時，若它是合併模式特徵目前的排隊封包就移除對照。
+     */
+    private static <C> void forget(DeviceQueue<C> queue, Packet<C> packet) {
+        if (queue.conflatable.get(packet.characteristic) == packet) {
+            queue.conflatable.remove(packet.characteristic);
+        }
+    }
+
+    /**
+     * 在額度內依序送出排隊中的封包。實際呼叫傳輸層時不持有鎖，避免與傳輸層的回呼互相等待。
+     * 指示要等所有在途中的通知都回呼後才送出，送出後在確認 (或逾時後的遲到確認) 前不再送出任何封包。
+     * 傳輸層拒絕時封包放回最前面並停止送出，等下一個 onNotificationSent 或退避時間後再試。
+     */
+    private void drain(DeviceQueue<C> queue) {
+        while (true) {
+            Packet<C> packet;
+            long seq = 0;
+            synchronized (queue) {
+                if (queue.busyRetry != null) return;
+                if (queue.indicationInFlight != null || queue.indicationAbandoned) return;
+                if (queue.credits == 0 || queue.pending.isEmpty()) return;
+                if (queue.pending.peek().indication && queue.credits < config.credits) return;
+                packet = queue.pending.poll();
+                forget(queue, packet);
+                queue.credits--;
+                if (packet.indication) {
+                    queue.indicationInFlight = packet;
+                    seq = ++queue.indicationSeq;
+                    queue.indicationSentAtNanos = System.nanoTime();
+                }
+            }
+            boolean accepted = transport.notifyCharacteristicChanged(queue.deviceId, packet.characteristic, packet.value, packet.indication);
+            synchronized (queue) {
+                if (accepted) {
+                    queue.sent++;
+                    if (packet.indication) {
+                        armIndicationTimeout(queue, seq);
+                    }
+                } else {
+                    // 傳輸層拒絕時不會有 onNotificationSent，直接歸還額度
+                    queue.credits++;
+                    if (queue.indicationInFlight == packet) {
+                        queue.indicationInFlight = null;
+                    }
+                    if (queue.closed) {
+                        queue.failed++;
+                    } else {
+                        // 通常是堆疊的緩衝區已滿：放回最前面，稍後再試，不要在迴圈中把整個佇列丟光
+                        queue.rejected++;
+                        requeue(queue, packet);
+                        scheduleBusyRetry(queue);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 把被拒絕的封包放回佇列最前面 (合併模式的特徵若沒有更新的值在排隊，恢復對照)。
+     */
+    private void requeue(DeviceQueue<C> queue, Packet<C> packet) {
+        queue.pending.addFirst(packet);
+        if (!packet.indication && conflatedCharacteristics.contains(packet.characteristic)
+                && !queue.conflatable.containsKey(packet.characteristic)) {
+            queue.conflatable.put(packet.characteristic, packet);
+        }
+    }
+
+    private void scheduleBusyRetry(final DeviceQueue<C> queue) {
+        if (queue.busyRetry != null) return;
+        try {
+            queue.busyRetry = timer.schedule(() -> {
+                synchronized (queue) {
+                    queue.busyRetry = null;
+                }
+                drain(queue);
+            }, config.busyBackoffMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // 已經 close()
+        }
+    }
+
+    private static void cancelBusyRetry(DeviceQueue<?> queue) {
+        if (queue.busyRetry != null) {
+            queue.busyRetry.cancel(false);
+            queue.busyRetry = null;
+        }
+    }
+
+    private void armIndicationTimeout(final DeviceQueue<C> queue, final long seq) {
+        // 確認可能已經在傳輸層呼叫返回前就到了
+        if (queue.indicationInFlight == null || queue.indicationSeq != seq) return;
+        try {
+            queue.indicationTimeout = timer.schedule(() -> onIndicationTimeout(queue, seq),
+                    config.indicationTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // 已經 close()
+        }
+    }
+
+    private static void cancelIndicationTimeout(DeviceQueue<?> queue) {
+        if (queue.indicationTimeout != null) {
+            queue.indicationTimeout.cancel(false);
+            queue.indicationTimeout = null;
+        }
+    }
+
+    /**
+     * 指示逾時：記錄並丟棄，不重送。額度不歸還，等堆疊送來遲到的確認或斷線。
+     */
+    private void onIndicationTimeout(DeviceQueue<C> queue, long seq) {
+        synchronized (queue) {
+            if (queue.indicationInFlight == null || queue.indicationSeq != seq) return;
+            queue.indicationTimeout = null;
+            queue.indicationInFlight = null;
+            queue.indicationAbandoned = true;
+            queue.indicationTimeouts++;
+        }
+    }
+
+    /**
+     * 單一裝置的佇列統計。時間單位為奈秒。
+     */
+    public static final class DeviceStats {
+        public final String deviceId;
+        public final int depth;
+        public final int maxDepth;
+        public final int inFlight;
+        public final long enqueued;
+        public final long sent;
+        public final long dropped;
+        public final long conflated;
+        public final long failed;
+        /** 傳輸層拒絕、放回佇列稍後重試的次數。 */
+        public final long rejected;
+        public final long indicationsConfirmed;
+        public final long indicationTimeouts;
+        /** 逾時之後才收到的指示確認數。 */
+        public final long lateConfirmations;
+        /** 沒有封包在途中時收到、被忽略的 onNotificationSent 數。 */
+        public final long strayCallbacks;
+        public final long lastRttNanos;
+        public final long maxRttNanos;
+        public final long meanRttNanos;
+
+        DeviceStats(DeviceQueue<?> queue, int inFlight) {
+            this.deviceId = queue.deviceId;
+            this.depth = queue.pending.size();
+            this.maxDepth = queue.maxDepth;
+            this.inFlight = inFlight;
+            this.enqueued = queue.enqueued;
+            this.sent = queue.sent;
+            this.dropped = queue.dropped;
+            this.conflated = queue.conflated;
+            this.failed = queue.failed;
+            this.rejected = queue.rejected;
+            this.indicationsConfirmed = queue.indicationsConfirmed;
+            this.indicationTimeouts = queue.indicationTimeouts;
+            this.lateConfirmations = queue.lateConfirmations;
+            this.strayCallbacks = queue.strayCallbacks;
+            this.lastRttNanos = queue.lastRttNanos;
+            this.maxRttNanos = queue.maxRttNanos;
+            this.meanRttNanos = queue.indicationsConfirmed == 0 ? 0 : queue.totalRttNanos / queue.indicationsConfirmed;
+        }
+
+        @Override
+        public String toString() {
+            return deviceId + " depth=" + depth
+                    + " maxDepth=" + maxDepth
+                    + " inFlight=" + inFlight
+                    + " enqueued=" + enqueued
+                    + " sent=" + sent
+                    + " dropped=" + dropped
+                    + " conflated=" + conflated
+                    + " failed=" + failed
+                    + " rejected=" + rejected
+                    + " indications(confirmed/timedOut/late)=" + indicationsConfirmed + "/" + indicationTimeouts + "/" + lateConfirmations
+                    + " stray=" + strayCallbacks
+                    + " rtt(mean/max/last)=" + (meanRttNanos / 1000) + "/" + (maxRttNanos / 1000) + "/" + (lastRttNanos / 1000) + "us";
+        }
+    }
+}
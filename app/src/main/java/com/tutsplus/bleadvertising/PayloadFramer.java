@@ -0,0 +1,139 @@
+package com.tutsplus.bleadvertising;
+
+import java.util.Arrays;
+
+/**
+ * 依 ATT MTU 把超過一個通知長度的值切成多個片段 (例如 CF597 的 F2 歷史記錄)。
+ *
+ * 一個通知最多只能帶 MTU-3 個位元組，超過的部分會被藍牙堆疊截掉。
+ * 值放得進一個通知時原封不動送出，與既有客戶端相容；放不下時切成多個片段，每個片段前面加一個標頭位元組：
+ * <pre>
+ *   bit 0-5: 片段序號 (第一個片段為 0，依序遞增)
+ *   bit 6  : 最後一個片段
+ *   bit 7  : 0
+ * </pre>
+ * 第一個片段的標頭一定是 0x00，CF597 的封包標頭 (0xF2、0xFE、0xDF、0xFD、0x55) 都不是 0x00，
+ * 所以客戶端收到 0x00 開頭的通知就知道後面接著片段，其餘通知照原本的格式解析。
+ * 一個值最多切成 {@link #MAX_FRAGMENTS} 個片段。
+ *
+ * 此類別不依賴 Android API。
+ */
+public final class PayloadFramer {
+
+    /** 每個片段的標頭長度。 */
+    public static final int HEADER_LENGTH = 1;
+    /** 一個值最多的片段數 (序號 6 bits)。 */
+    public static final int MAX_FRAGMENTS = 64;
+
+    private static final int SEQUENCE_MASK = 0x3F;
+    private static final int LAST_FRAGMENT = 0x40;
+
+    private PayloadFramer() {}
+
+    /**
+     * 一個通知最多可以帶的位元組數 (MTU-3)。
+     */
+    public static int maxNotificationLength(int mtu) {
+        return Math.max(GattTransport.DEFAULT_MTU, mtu) - 3;
+    }
+
+    /**
+     * 以此 MTU 送出 length 個位元組需要的通知數。
+     */
+    public static int fragmentCount(int length, int mtu) {
+        int max = maxNotificationLength(mtu);
+        if (length <= max) return 1;
+        int perFragment = max - HEADER_LENGTH;
+        return (length + perFragment - 1) / perFragment;
+    }
+
+    /**
+     * 以此 MTU 送出時，一個值的長度上限。
+     */
+    public static int maxPayloadLength(int mtu) {
+        return MAX_FRAGMENTS * (maxNotificationLength(mtu) - HEADER_LENGTH);
+    }
+
+    /**
+     * 把值切成依序送出的通知。放得進一個通知時回傳只含 value 本身的陣列 (不複製)。
+     * @throws IllegalArgumentException 值超過 {@link #maxPayloadLength(int)}。
+     */
+    public static byte[][] split(byte[] value, int mtu) {
+        int max = maxNotificationLength(mtu);
+        if (value.length <= max) {
+            return new byte[][]{value};
+        }
+        int count = fragmentCount(value.length, mtu);
+        if (count > MAX_FRAGMENTS) {
+            throw new IllegalArgumentException("payload of " + value.length + " bytes exceeds " + maxPayloadLength(mtu) + " at MTU " + mtu);
+        }
+        int perFragment = max - HEADER_LENGTH;
+        byte[][] fragments = new byte[count][];
+        for (int seq = 0; seq < count; seq++) {
+            int from = seq * perFragment;
+            int length = Math.min(perFragment, value.length - from);
+            byte[] fragment = new byte[HEADER_LENGTH + length];
+            fragment[0] = (byte) (seq == count - 1 ? seq | LAST_FRAGMENT : seq);
+            System.arraycopy(value, from, fragment, HEADER_LENGTH, length);
+            fragments[seq] = fragment;
+        }
+        return fragments;
+    }
+
+    /**
+     * 客戶端的重組器：依序餵入收到的通知，組成完整的值。
+     * 片段遺失 (序號不連續) 時丟棄整個值。
+     */
+    public static final class Reassembler {
+        private byte[] buffer = new byte[64];
+        private int length;
+        private int expected = -1;
+        // 片段遺失後略過同一個值剩下的片段
+        private boolean skipping;
+        private long discarded;
+
+        /**
+         * @return 完整的值；還在等後續片段或片段被丟棄時回傳 null。
+         */
+        public byte[] onNotification(byte[] value) {
+            if (value.length == 0) return null;
+            int header = value[0] & 0xFF;
+            if (expected < 0) {
+                if (skipping && header != 0 && header < 0x80) {
+                    if ((header & LAST_FRAGMENT) != 0) skipping = false;
+                    return null;
+                }
+                skipping = false;
+                if (header != 0) return value; // 沒有切片的值
+                length = 0;
+                expected = 0;
+            }
+            if (header >= 0x80 || (header & SEQUENCE_MASK) != expected) {
+                // 片段遺失；若這是新值的第一個片段或沒有切片的值就從它重新開始
+                discarded++;
+                expected = -1;
+                skipping = true;
+                return onNotification(value);
+            }
+            int add = value.length - HEADER_LENGTH;
+            if (length + add > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + add));
+            }
+            System.arraycopy(value, HEADER_LENGTH, buffer, length, add);
+            length += add;
+            if ((header & LAST_FRAGMENT) != 0) {
+                expected = -1;
+                return Arrays.copyOf(buffer, length);
+            }
+            expected++;
+            return null;
+        }
+
+        /**
+         * 因片段遺失而丟棄的值的數量。
+         */
+        public long getDiscarded() {
+            return discarded;
+        }
+    }
+}
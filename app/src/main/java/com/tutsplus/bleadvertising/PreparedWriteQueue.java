@@ -0,0 +1,279 @@
+package com.tutsplus.bleadvertising;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ATT Prepare Write / Execute Write (Long Write、Reliable Write) 的重組緩衝區。
+ *
+ * 客戶端要寫入超過 MTU-3 的值時，會先送出多個帶 offset 的 Prepare Write Request，
+ * 最後以 Execute Write Request 一次提交或取消。這裡為每個裝置保留一個有上限的佇列：
+ * 片段依序複製到固定大小的位元組區，提交時每個特徵重組成一個完整的值，再交給寫入處理器
+ * (通常是 {@link WriteDispatcher#dispatch})，處理器看到的就跟一次寫入完整值一樣。
+ *
+ * 佇列物件在提交、取消或斷線後放回池中重複使用，不會因為每次 Long Write 重新配置緩衝區。
+ * 不同裝置可以在不同執行緒上同時呼叫；同一個裝置的請求由藍牙堆疊依序送達。
+ * 此類別不依賴 Android API。
+ *
+ * @param <C> 特徵的型別 (Android 上為 BluetoothGattCharacteristic)。
+ */
+public final class PreparedWriteQueue<C> {
+
+    /** ATT 成功。 */
+    public static final int STATUS_SUCCESS = 0x00;
+    /** ATT Invalid Offset：片段的 offset 超過目前已重組的長度。 */
+    public static final int STATUS_INVALID_OFFSET = 0x07;
+    /** ATT Prepare Queue Full。 */
+    public static final int STATUS_PREPARE_QUEUE_FULL = 0x09;
+    /** ATT Invalid Attribute Value Length：重組後超過屬性值的長度上限。 */
+    public static final int STATUS_INVALID_ATTRIBUTE_LENGTH = 0x0D;
+
+    /** ATT 屬性值的長度上限。 */
+    public static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+    // 池中最多保留的佇列物件數
+    private static final int MAX_POOLED = 8;
+
+    /**
+     * 單一裝置的片段佇列。
+     */
+    private static final class Segments<C> {
+        final byte[] data;
+        final Object[] characteristics;
+        final int[] offsets;
+        final int[] starts;
+        final int[] lengths;
+        int count;
+        int used;
+
+        Segments(int maxBytes, int maxSegments) {
+            data = new byte[maxBytes];
+            characteristics = new Object[maxSegments];
+            offsets = new int[maxSegments];
+            starts = new int[maxSegments];
+            lengths = new int[maxSegments];
+        }
+
+        boolean add(C characteristic, int offset, byte[] value) {
+            if (count == offsets.length || used + value.length > data.length) return false;
+            System.arraycopy(value, 0, data, used, value.length);
+            characteristics[count] = characteristic;
+            offsets[count] = offset;
+            starts[count] = used;
+            lengths[count] = value.length;
+            count++;
+            used += value.length;
+            return true;
+        }
+
+        void clear() {
+            for (int i = 0; i < count; i++) characteristics[i] = null;
+            count = 0;
+            used = 0;
+        }
+    }
+
+    private final int maxBytes;
+    private final int maxSegments;
+    private final Map<String, Segments<C>> queues = new ConcurrentHashMap<>();
+    private final ArrayDeque<Segments<C>> pool = new ArrayDeque<>();
+    // 重組用的暫存區；提交在 execute 內加鎖進行
+    private final byte[] scratch = new byte[MAX_ATTRIBUTE_LENGTH];
+
+    private final AtomicLong prepared = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+
+    /**
+     * @param maxBytes 每個裝置一次交易最多暫存的位元組數。
+     * @param maxSegments 每個裝置一次交易最多暫存的片段數。
+     */
+    public PreparedWriteQueue(int maxBytes, int maxSegments) {
+        if (maxBytes <= 0 || maxSegments <= 0) {
+            throw new IllegalArgumentException("maxBytes and maxSegments must be positive");
+        }
+        this.maxBytes = maxBytes;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * 暫存一個 Prepare Write 片段。值會被複製，呼叫端可以重複使用 value。
+     * @return {@link #STATUS_SUCCESS} 或 {@link #STATUS_PREPARE_QUEUE_FULL}。
+     */
+    public int prepare(String deviceId, C characteristic, int offset, byte[] value) {
+        if (value == null) value = new byte[0];
+        Segments<C> segments = queues.get(deviceId);
+        if (segments == null) {
+            segments = acquire();
+            Segments<C> existing = queues.putIfAbsent(deviceId, segments);
+            if (existing != null) {
+                release(segments);
+                segments = existing;
+            }
+        }
+        boolean added;
+        synchronized (segments) {
+            added = segments.add(characteristic, offset, value);
+        }
+        if (!added) {
+            rejected.incrementAndGet();
+            return STATUS_PREPARE_QUEUE_FULL;
+        }
+        prepared.incrementAndGet();
+        return STATUS_SUCCESS;
+    }
+
+    /**
+     * 處理 Execute Write Request。
+     * @param execute true 為提交，false 為取消 (丟棄所有片段)。
+     * @param handler 提交時，每個特徵重組後的完整值依第一個片段的順序交給它。
+     * @return 要回應給客戶端的 ATT 狀態：重組失敗時為 {@link #STATUS_INVALID_OFFSET} 或
+     *         {@link #STATUS_INVALID_ATTRIBUTE_LENGTH} (此時不會呼叫任何處理器)，
+     *         否則為第一個回傳非 0 狀態的處理器的狀態。
+     */
+    public int execute(String deviceId, boolean execute, WriteDispatcher.Handler<C> handler) {
+        Segments<C> segments = queues.remove(deviceId);
+        if (segments == null) {
+            return STATUS_SUCCESS;
+        }
+        if (!execute) {
+            cancelled.incrementAndGet();
+            release(segments);
+            return STATUS_SUCCESS;
+        }
+        executed.incrementAndGet();
+        Object[] characteristics;
+        byte[][] values;
+        synchronized (segments) {
+            characteristics = distinctCharacteristics(segments);
+            values = new byte[characteristics.length][];
+            synchronized (scratch) {
+                for (int i = 0; i < characteristics.length; i++) {
+                    int length = reassemble(segments, characteristics[i]);
+                    if (length < 0) {
+                        release(segments);
+                        return -length;
+                    }
+                    values[i] = new byte[length];
+                    System.arraycopy(scratch, 0, values[i], 0, length);
+                }
+            }
+        }
+        release(segments);
+        int status = STATUS_SUCCESS;
+        for (int i = 0; i < characteristics.length; i++) {
+            @SuppressWarnings("unchecked")
+            C characteristic = (C) characteristics[i];
+            int result = handler.onWrite(deviceId, characteristic, values[i]);
+            if (status == STATUS_SUCCESS) status = result;
+        }
+        return status;
+    }
+
+    /**
+     * 裝置斷線時丟棄它尚未提交的片段。
+     */
+    public void onDeviceDisconnected(String deviceId) {
+        Segments<C> segments = queues.remove(deviceId);
+        if (segments != null) {
+            cancelled.incrementAndGet();
+            release(segments);
+        }
+    }
+
+    /**
+     * 目前暫存中的位元組數 (尚未提交的片段)。
+     */
+    public int pendingBytes(String deviceId) {
+        Segments<C> segments = queues.get(deviceId);
+        if (segments == null) return 0;
+        synchronized (segments) {
+            return segments.used;
+        }
+    }
+
+    private static Object[] distinctCharacteristics(Segments<?> segments) {
+        Object[] distinct = new Object[segments.count];
+        int count = 0;
+        outer:
+        for (int i = 0; i < segments.count; i++) {
+            Object characteristic = segments.characteristics[i];
+            for (int j = 0; j < count; j++) {
+                if (distinct[j] == characteristic) continue outer;
+            }
+            distinct[count++] = characteristic;
+        }
+        Object[] result = new Object[count];
+        System.arraycopy(distinct, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * 依序把該特徵的片段寫入 scratch。
+     * @return 重組後的長度；失敗時為負的 ATT 狀態。
+     */
+    private int reassemble(Segments<?> segments, Object characteristic) {
+        int length = 0;
+        for (int i = 0; i < segments.count; i++) {
+            if (segments.characteristics[i] != characteristic) continue;
+            int offset = segments.offsets[i];
+            // 片段可以覆寫已寫入的部分，但不能留下空洞
+            if (offset > length) return -STATUS_INVALID_OFFSET;
+            int end = offset + segments.lengths[i];
+            if (end > MAX_ATTRIBUTE_LENGTH) return -STATUS_INVALID_ATTRIBUTE_LENGTH;
+            System.arraycopy(segments.data, segments.starts[i], scratch, offset, segments.lengths[i]);
+            length = Math.max(length, end);
+        }
+        return length;
+    }
+
+    private Segments<C> acquire() {
+        synchronized (pool) {
+            Segments<C> segments = pool.poll();
+            if (segments != null) return segments;
+        }
+        return new Segments<>(maxBytes, maxSegments);
+    }
+
+    private void release(Segments<C> segments) {
+        synchronized (segments) {
+            segments.clear();
+        }
+        synchronized (pool) {
+            if (pool.size() < MAX_POOLED) pool.push(segments);
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(prepared.get(), rejected.get(), executed.get(), cancelled.get());
+    }
+
+    /**
+     * Prepare/Execute Write 的累計次數。
+     */
+    public static final class Stats {
+        /** 成功暫存的片段數。 */
+        public final long prepared;
+        /** 因佇列已滿而拒絕的片段數。 */
+        public final long rejected;
+        /** 提交的交易數。 */
+        public final long executed;
+        /** 取消 (含斷線時丟棄) 的交易數。 */
+        public final long cancelled;
+
+        Stats(long prepared, long rejected, long executed, long cancelled) {
+            this.prepared = prepared;
+            this.rejected = rejected;
+            this.executed = executed;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public String toString() {
+            return "prepared=" + prepared + " rejected=" + rejected + " executed=" + executed + " cancelled=" + cancelled;
+        }
+    }
+}
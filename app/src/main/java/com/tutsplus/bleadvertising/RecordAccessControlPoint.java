@@ -0,0 +1,307 @@
+package com.tutsplus.bleadvertising;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Glucose 的 Record Access Control Point (0x2A52)。
+ *
+ * 支援的 Op Code：Report Stored Records (0x01)、Delete Stored Records (0x02)、Abort Operation (0x03)、
+ * Report Number of Stored Records (0x04)；Operator：All、≤、≥、Range、First、Last；
+ * Filter Type：Sequence Number (0x01, UINT16) 與 User Facing Time (0x02, Date Time)。
+ * 查詢由 {@link GlucoseRecordStore} 的索引處理。
+ *
+ * Report Stored Records 把符合的記錄以通知從量測特徵 (0x2A18) 串流給寫入的裝置，
+ * 與 {@link HistoryTransfer} 一樣依 {@link NotificationQueue} 的發送額度推進，
+ * 每次 onNotificationSent 把該裝置佇列中等待的記錄補到 windowPackets 筆；
+ * 最後一筆記錄之後排入 Response Code 的指示，佇列依序送出，所以回應一定在所有記錄之後。
+ * 其他指令的回應也以指示只送給寫入的裝置。
+ * 記錄與回應都以 {@link NotificationQueue#offerAll} 排入，佇列滿了也不會被模擬器的其他通知擠掉，
+ * 客戶端不會收到缺記錄的 SUCCESS，也不會一直等不到回應。
+ *
+ * 此類別不依賴 Android API。
+ *
+ * @param <S> 服務的型別。
+ * @param <C> 特徵的型別。
+ */
+public final class RecordAccessControlPoint<S, C> {
+
+    public static final int OP_REPORT_STORED_RECORDS = 0x01;
+    public static final int OP_DELETE_STORED_RECORDS = 0x02;
+    public static final int OP_ABORT_OPERATION = 0x03;
+    public static final int OP_REPORT_NUMBER_OF_RECORDS = 0x04;
+    public static final int OP_NUMBER_OF_RECORDS_RESPONSE = 0x05;
+    public static final int OP_RESPONSE_CODE = 0x06;
+
+    public static final int OPERATOR_NULL = 0x00;
+
+    public static final int RESPONSE_SUCCESS = 0x01;
+    public static final int RESPONSE_OP_CODE_NOT_SUPPORTED = 0x02;
+    public static final int RESPONSE_INVALID_OPERATOR = 0x03;
+    public static final int RESPONSE_OPERATOR_NOT_SUPPORTED = 0x04;
+    public static final int RESPONSE_INVALID_OPERAND = 0x05;
+    public static final int RESPONSE_NO_RECORDS_FOUND = 0x06;
+    public static final int RESPONSE_ABORT_UNSUCCESSFUL = 0x07;
+    public static final int RESPONSE_OPERAND_NOT_SUPPORTED = 0x09;
+
+    /** ATT 錯誤：上一個程序還沒結束 (Abort 之外的指令)。 */
+    public static final int ATT_PROCEDURE_ALREADY_IN_PROGRESS = 0xFE;
+
+    /** 寫入成功 (與 {@link WriteDispatcher#STATUS_SUCCESS} 相同)。 */
+    private static final int STATUS_SUCCESS = 0;
+    private static final int SEQUENCE_OPERAND_LENGTH = 2;
+
+    /**
+     * 記錄被刪除後呼叫 (在寫入的執行緒上)，例如寫入量測日誌以便重新啟動後重播。
+     */
+    public interface Listener {
+        void onRecordsDeleted(String deviceId, byte[] command, int deleted);
+
+        default void onReportFinished(String deviceId, int records, long elapsedNanos, boolean complete) {}
+    }
+
+    private final class Session {
+        final String deviceId;
+        final C measurement;
+        final C racp;
+        final int[] sequences;
+        final long startNanos = System.nanoTime();
+        int next;
+        int sent;
+
+        Session(String deviceId, C measurement, C racp, int[] sequences) {
+            this.deviceId = deviceId;
+            this.measurement = measurement;
+            this.racp = racp;
+            this.sequences = sequences;
+        }
+    }
+
+    private final GattTransport<S, C> transport;
+    private final NotificationQueue<S, C> queue;
+    private final GlucoseRecordStore store;
+    private final int windowPackets;
+    private final Listener listener;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    private final GattTransport.Callback<S, C> callback = new GattTransport.Callback<S, C>() {
+        @Override
+        public void onConnectionStateChange(String deviceId, boolean connected) {
+            if (connected) return;
+            Session session = sessions.remove(deviceId);
+            if (session != null) finished(session, false);
+        }
+
+        @Override
+        public void onNotificationSent(String deviceId, boolean success) {
+            Session session = sessions.get(deviceId);
+            if (session != null) pump(session);
+        }
+    };
+
+    /**
+     * 建立後註冊為傳輸層的監聽者，不再使用時要呼叫 {@link #close()}。
+     * @param windowPackets 串流時每個裝置佇列中最多等待的記錄數 (要小於佇列的 maxDepth)。
+     */
+    public RecordAccessControlPoint(GattTransport<S, C> transport, NotificationQueue<S, C> queue, GlucoseRecordStore store,
+                                    int windowPackets, Listener listener) {
+        if (windowPackets <= 0) throw new IllegalArgumentException("windowPackets must be positive");
+        this.transport = transport;
+        this.queue = queue;
+        this.store = store;
+        this.windowPackets = windowPackets;
+        this.listener = listener;
+        transport.addCallback(callback);
+    }
+
+    /**
+     * 處理對 RACP 的寫入。
+     * @param measurement 串流記錄用的量測特徵。
+     * @param racp RACP 特徵 (回應以指示送出)。
+     * @return ATT 狀態：成功時為 0；有程序進行中時為 {@link #ATT_PROCEDURE_ALREADY_IN_PROGRESS}。
+     */
+    public int onWrite(String deviceId, C measurement, C racp, byte[] value) {
+        if (value == null || value.length == 0) return STATUS_SUCCESS;
+        int opCode = value[0] & 0xFF;
+        if (opCode == OP_ABORT_OPERATION) {
+            if (value.length != 2 || value[1] != OPERATOR_NULL) {
+                respond(deviceId, racp, opCode, RESPONSE_INVALID_OPERATOR);
+                return STATUS_SUCCESS;
+            }
+            Session session = sessions.remove(deviceId);
+            if (session != null) finished(session, false);
+            respond(deviceId, racp, opCode, RESPONSE_SUCCESS);
+            return STATUS_SUCCESS;
+        }
+        if (sessions.containsKey(deviceId)) {
+            return ATT_PROCEDURE_ALREADY_IN_PROGRESS;
+        }
+        if (opCode != OP_REPORT_STORED_RECORDS && opCode != OP_DELETE_STORED_RECORDS && opCode != OP_REPORT_NUMBER_OF_RECORDS) {
+            respond(deviceId, racp, opCode, RESPONSE_OP_CODE_NOT_SUPPORTED);
+            return STATUS_SUCCESS;
+        }
+        int[] error = new int[1];
+        GlucoseRecordStore.Query query = parseQuery(value, error);
+        if (query == null) {
+            respond(deviceId, racp, opCode, error[0]);
+            return STATUS_SUCCESS;
+        }
+        switch (opCode) {
+            case OP_REPORT_NUMBER_OF_RECORDS: {
+                // Number of Records 是 UINT16，超過時回報上限
+                int count = Math.min(0xFFFF, store.count(query));
+                enqueue(deviceId, racp, new byte[]{(byte) OP_NUMBER_OF_RECORDS_RESPONSE, OPERATOR_NULL,
+                        (byte) count, (byte) (count >> 8)});
+                break;
+            }
+            case OP_DELETE_STORED_RECORDS: {
+                int deleted = store.delete(query);
+                if (deleted > 0 && listener != null) listener.onRecordsDeleted(deviceId, value.clone(), deleted);
+                respond(deviceId, racp, opCode, deleted > 0 ? RESPONSE_SUCCESS : RESPONSE_NO_RECORDS_FOUND);
+                break;
+            }
+            default: {
+                int[] sequences = store.select(query);
+                if (sequences.length == 0) {
+                    respond(deviceId, racp, opCode, RESPONSE_NO_RECORDS_FOUND);
+                    break;
+                }
+                Session session = new Session(deviceId, measurement, racp, sequences);
+                sessions.put(deviceId, session);
+                pump(session);
+                break;
+            }
+        }
+        return STATUS_SUCCESS;
+    }
+
+    /**
+     * 重新啟動後重播量測日誌中的刪除指令，讓已刪除的記錄不會再出現。
+     * @return 刪除的筆數；指令無效時回傳 0。
+     */
+    public static int replayDelete(GlucoseRecordStore store, byte[] command) {
+        if (command.length == 0 || (command[0] & 0xFF) != OP_DELETE_STORED_RECORDS) return 0;
+        GlucoseRecordStore.Query query = parseQuery(command, new int[1]);
+        return query == null ? 0 : store.delete(query);
+    }
+
+    public boolean isActive(String deviceId) {
+        return sessions.containsKey(deviceId);
+    }
+
+    public void close() {
+        transport.removeCallback(callback);
+        sessions.clear();
+    }
+
+    /**
+     * 解析 Operator 與運算元。
+     * @param error 無效時寫入 Response Code Value。
+     * @return 查詢條件；無效時回傳 null。
+     */
+    static GlucoseRecordStore.Query parseQuery(byte[] value, int[] error) {
+        if (value.length < 2) {
+            error[0] = RESPONSE_INVALID_OPERATOR;
+            return null;
+        }
+        int operator = value[1] & 0xFF;
+        if (operator == OPERATOR_NULL) {
+            error[0] = RESPONSE_INVALID_OPERATOR;
+            return null;
+        }
+        if (operator > GlucoseRecordStore.Query.LAST) {
+            error[0] = RESPONSE_OPERATOR_NOT_SUPPORTED;
+            return null;
+        }
+        if (operator == GlucoseRecordStore.Query.ALL || operator == GlucoseRecordStore.Query.FIRST
+                || operator == GlucoseRecordStore.Query.LAST) {
+            if (value.length != 2) {
+                error[0] = RESPONSE_INVALID_OPERAND;
+                return null;
+            }
+            return operator == GlucoseRecordStore.Query.ALL ? GlucoseRecordStore.Query.all()
+                    : operator == GlucoseRecordStore.Query.FIRST ? GlucoseRecordStore.Query.first()
+                    : GlucoseRecordStore.Query.last();
+        }
+        if (value.length < 3) {
+            error[0] = RESPONSE_INVALID_OPERAND;
+            return null;
+        }
+        int filterType = value[2] & 0xFF;
+        int operandLength;
+        if (filterType == GlucoseRecordStore.Query.FILTER_SEQUENCE_NUMBER) {
+            operandLength = SEQUENCE_OPERAND_LENGTH;
+        } else if (filterType == GlucoseRecordStore.Query.FILTER_USER_FACING_TIME) {
+            operandLength = GattDateTime.DATE_TIME_LENGTH;
+        } else {
+            error[0] = RESPONSE_OPERAND_NOT_SUPPORTED;
+            return null;
+        }
+        int operands = operator == GlucoseRecordStore.Query.RANGE ? 2 : 1;
+        if (value.length != 3 + operands * operandLength) {
+            error[0] = RESPONSE_INVALID_OPERAND;
+            return null;
+        }
+        long first = readOperand(value, 3, filterType);
+        long second = operands == 2 ? readOperand(value, 3 + operandLength, filterType) : first;
+        if (second < first) {
+            error[0] = RESPONSE_INVALID_OPERAND;
+            return null;
+        }
+        if (filterType == GlucoseRecordStore.Query.FILTER_SEQUENCE_NUMBER) {
+            return GlucoseRecordStore.Query.sequenceNumber(operator, (int) first, (int) second);
+        }
+        return GlucoseRecordStore.Query.userFacingTime(operator, first, second);
+    }
+
+    private static long readOperand(byte[] value, int offset, int filterType) {
+        if (filterType == GlucoseRecordStore.Query.FILTER_SEQUENCE_NUMBER) {
+            return (value[offset] & 0xFF) | ((value[offset + 1] & 0xFF) << 8);
+        }
+        return GattDateTime.readWallClockSeconds(value, offset);
+    }
+
+    /**
+     * 把佇列補到 windowPackets 筆記錄；最後一筆之後排入成功的回應並結束串流。
+     */
+    private void pump(Session session) {
+        boolean done = false;
+        synchronized (session) {
+            if (sessions.get(session.deviceId) != session) return;
+            // 斷線回呼到達前傳輸層就會拒絕通知，不再排入
+            if (!transport.getConnectedDevices().contains(session.deviceId)) return;
+            while (session.next < session.sequences.length && queue.depth(session.deviceId) < windowPackets) {
+                // 串流期間被其他裝置刪除的記錄略過
+                byte[] record = store.get(session.sequences[session.next]);
+                if (record != null && !queue.offerAll(session.deviceId, session.measurement, new byte[][]{record}, false)) {
+                    break;
+                }
+                session.next++;
+                if (record != null) session.sent++;
+            }
+            if (session.next == session.sequences.length
+                    && queue.offerAll(session.deviceId, session.racp, new byte[][]{responseCode(OP_REPORT_STORED_RECORDS, RESPONSE_SUCCESS)}, true)) {
+                done = sessions.remove(session.deviceId, session);
+            }
+        }
+        queue.flush(session.deviceId);
+        if (done) finished(session, true);
+    }
+
+    private void finished(Session session, boolean complete) {
+        if (listener != null) listener.onReportFinished(session.deviceId, session.sent, System.nanoTime() - session.startNanos, complete);
+    }
+
+    private void respond(String deviceId, C racp, int requestOpCode, int responseCode) {
+        enqueue(deviceId, racp, responseCode(requestOpCode, responseCode));
+    }
+
+    private void enqueue(String deviceId, C racp, byte[] response) {
+        queue.offerAll(deviceId, racp, new byte[][]{response}, true);
+        queue.flush(deviceId);
+    }
+
+    static byte[] responseCode(int requestOpCode, int responseCode) {
+        return new byte[]{(byte) OP_RESPONSE_CODE, OPERATOR_NULL, (byte) requestOpCode, (byte) responseCode};
+    }
+}
@@ -0,0 +1,296 @@
+package com.tutsplus.bleadvertising;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 掃描結果的彙整器：把大量的廣播封包依裝置位址合併，定期把目前的裝置清單交給 UI。
+ *
+ * 擁擠的環境中每秒會收到上千個廣播，若每個結果都在主執行緒上組字串並 postValue，UI 會完全卡住。
+ * 這裡的 {@link #offer} 只把原始結果放進無鎖佇列 (主執行緒上只有 O(1) 的工作)，
+ * 解析與合併都在彙整器自己的執行緒上，每 {@link Config#publishIntervalMillis} 處理一次：
+ * 同一個位址只保留最新的 RSSI 與 Service Data，名稱只在裝置還沒有名稱時才解析 (BluetoothDevice.getName 需要 IPC)。
+ * 裝置表以 LRU 保留最近出現的 {@link Config#capacity} 個裝置；只有內容改變時才發佈新的快照。
+ * 佇列累積超過 {@link Config#maxPending} 個結果 (彙整器跟不上) 時，新的結果會被丟棄並計數。
+ *
+ * 搭配 ScanSettings 的 report delay 時，整批結果 ({@code onBatchScanResults}) 可以直接逐一 offer。
+ * 此類別不依賴 Android API，Android 的 ScanResult 透過 {@link Adapter} 讀取。
+ */
+public final class ScanResultAggregator<T> {
+
+    private static final int NAME_RETRY_SIGHTINGS = 32;
+
+    /**
+     * 從平台的掃描結果讀出欄位，都在彙整器的執行緒上呼叫。
+     */
+    public interface Adapter<T> {
+        String address(T result);
+
+        int rssi(T result);
+
+        /** 裝置名稱，只在該位址還沒有名稱時呼叫 (而且不是每次)；沒有名稱時回傳 null。 */
+        String name(T result);
+
+        /** 要顯示的 Service Data，沒有時回傳 null。 */
+        byte[] serviceData(T result);
+    }
+
+    /**
+     * 接收裝置清單快照，在彙整器的執行緒上呼叫。
+     */
+    public interface Listener {
+        /** @param devices 依最後出現時間排列 (最新的在前) 的不可變清單。 */
+        void onSnapshot(List<Device> devices);
+    }
+
+    public static final class Config {
+        /** 裝置表最多保留的裝置數，超過時移除最久沒出現的裝置。 */
+        public final int capacity;
+        /** 合併與發佈快照的間隔。 */
+        public final long publishIntervalMillis;
+        /** 還沒合併的結果上限。 */
+        public final int maxPending;
+
+        public Config(int capacity, long publishIntervalMillis, int maxPending) {
+            if (capacity <= 0 || publishIntervalMillis <= 0 || maxPending <= 0) {
+                throw new IllegalArgumentException("invalid scan aggregator config");
+            }
+            this.capacity = capacity;
+            this.publishIntervalMillis = publishIntervalMillis;
+            this.maxPending = maxPending;
+        }
+
+        /** 128 個裝置、每 250 毫秒更新一次 UI、最多 8192 個結果等待合併。 */
+        public static Config defaults() {
+            return new Config(128, 250, 8192);
+        }
+    }
+
+    /**
+     * 快照中的一個裝置 (不可變)。
+     */
+    public static final class Device {
+        public final String address;
+        /** 沒有名稱時為 null。 */
+        public final String name;
+        public final int rssi;
+        /** 沒有 Service Data 時為 null；不可修改。 */
+        public final byte[] serviceData;
+        /** 這個位址被看到的次數。 */
+        public final long sightings;
+
+        Device(String address, String name, int rssi, byte[] serviceData, long sightings) {
+            this.address = address;
+            this.name = name;
+            this.rssi = rssi;
+            this.serviceData = serviceData;
+            this.sightings = sightings;
+        }
+    }
+
+    public static final class Stats {
+        /** offer 收到的結果數。 */
+        public final long received;
+        /** 因為佇列已滿而丟棄的結果數。 */
+        public final long dropped;
+        /** 因為 LRU 容量而移除的裝置數。 */
+        public final long evicted;
+        public final long snapshots;
+        public final int devices;
+
+        Stats(long received, long dropped, long evicted, long snapshots, int devices) {
+            this.received = received;
+            this.dropped = dropped;
+            this.evicted = evicted;
+            this.snapshots = snapshots;
+            this.devices = devices;
+        }
+    }
+
+    private static final class DeviceEntry {
+        final String address;
+        String name;
+        int rssi;
+        byte[] serviceData;
+        long sightings;
+
+        DeviceEntry(String address) {
+            this.address = address;
+        }
+    }
+
+    private final Config config;
+    private final Adapter<T> adapter;
+    private final Listener listener;
+    private final ScheduledExecutorService executor;
+    private final ConcurrentLinkedQueue<T> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+
+    // 以下只在彙整器的執行緒上存取
+    private final LinkedHashMap<String, DeviceEntry> devices;
+    private boolean dirty;
+    // 只由彙整器的執行緒寫入，getStats 可以從其他執行緒讀取
+    private volatile long evicted;
+    private volatile long snapshots;
+    private volatile int deviceCount;
+
+    /**
+     * 建立彙整器並開始定期發佈快照，不再使用時要呼叫 {@link #close()}。
+     */
+    public ScanResultAggregator(Config config, Adapter<T> adapter, Listener listener) {
+        this.config = config;
+        this.adapter = adapter;
+        this.listener = listener;
+        // access order：每次 get 都把裝置移到最後，最久沒出現的在最前面
+        this.devices = new LinkedHashMap<String, DeviceEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DeviceEntry> eldest) {
+                if (size() <= ScanResultAggregator.this.config.capacity) return false;
+                evicted = evicted + 1;
+                dirty = true;
+                return true;
+            }
+        };
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ble-scan-aggregator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::drainAndPublish,
+                config.publishIntervalMillis, config.publishIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 交出一個掃描結果，可以在任何執行緒 (通常是主執行緒) 呼叫。
+     * @return 結果被接受時為 true；佇列已滿或已關閉時為 false。
+     */
+    public boolean offer(T result) {
+        if (closed) return false;
+        received.incrementAndGet();
+        if (pendingCount.incrementAndGet() > config.maxPending) {
+            pendingCount.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        pending.add(result);
+        return true;
+    }
+
+    /**
+     * 立刻合併所有等待中的結果並在有變化時發佈快照，等到完成才返回。
+     */
+    public void flush() throws InterruptedException {
+        try {
+            executor.submit(this::drainAndPublish).get(5, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException | ExecutionException | TimeoutException e) {
+            // 已關閉：沒有快照可以發佈
+        }
+    }
+
+    /**
+     * 清空裝置表與等待中的結果 (例如開始新的一次掃描)。
+     */
+    public void clear() {
+        try {
+            executor.execute(() -> {
+                discardPending();
+                devices.clear();
+                dirty = true;
+            });
+        } catch (RejectedExecutionException ignored) {
+            // 已關閉
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(received.get(), dropped.get(), evicted, snapshots, deviceCount);
+    }
+
+    /**
+     * 停止發佈快照並丟棄等待中的結果。
+     */
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+        discardPending();
+    }
+
+    private void discardPending() {
+        while (pending.poll() != null) {
+            pendingCount.decrementAndGet();
+        }
+    }
+
+    private void drainAndPublish() {
+        T result;
+        while ((result = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            merge(result);
+        }
+        deviceCount = devices.size();
+        if (!dirty) return;
+        dirty = false;
+        snapshots = snapshots + 1;
+        try {
+            listener.onSnapshot(snapshot());
+        } catch (RuntimeException e) {
+            // listener 的例外不能中止之後的定期發佈
+        }
+    }
+
+    private void merge(T result) {
+        String address = adapter.address(result);
+        if (address == null) return;
+        DeviceEntry entry = devices.get(address);
+        if (entry == null) {
+            entry = new DeviceEntry(address);
+            devices.put(address, entry);
+            dirty = true;
+        }
+        // 沒有名稱的裝置不是每次都重新解析：第一次看到時解析，之後每 NAME_RETRY_SIGHTINGS 次再試一次
+        if (entry.name == null && entry.sightings % NAME_RETRY_SIGHTINGS == 0) {
+            entry.name = adapter.name(result);
+            if (entry.name != null) dirty = true;
+        }
+        entry.sightings++;
+        int rssi = adapter.rssi(result);
+        if (rssi != entry.rssi) {
+            entry.rssi = rssi;
+            dirty = true;
+        }
+        byte[] serviceData = adapter.serviceData(result);
+        if (!Arrays.equals(serviceData, entry.serviceData)) {
+            entry.serviceData = serviceData == null ? null : serviceData.clone();
+            dirty = true;
+        }
+    }
+
+    private List<Device> snapshot() {
+        List<Device> snapshot = new ArrayList<>(devices.size());
+        Iterator<DeviceEntry> iterator = devices.values().iterator();
+        while (iterator.hasNext()) {
+            DeviceEntry entry = iterator.next();
+            // serviceData 只會被整個替換、不會被修改，可以直接共用
+            snapshot.add(new Device(entry.address, entry.name, entry.rssi, entry.serviceData, entry.sightings));
+        }
+        Collections.reverse(snapshot);
+        return Collections.unmodifiableList(snapshot);
+    }
+}
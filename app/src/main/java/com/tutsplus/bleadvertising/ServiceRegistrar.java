@@ -0,0 +1,364 @@
+package com.tutsplus.bleadvertising;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 依序把服務加入 GATT 伺服器，並記錄每個服務的註冊時間。
+ *
+ * Android 的 BluetoothGattServer 同一時間只能有一個 addService 在進行，必須等 onServiceAdded 回呼後才能加入下一個，
+ * 所以這裡一次只送出一個請求，但收到回呼後會立刻 (在回呼的執行緒上) 送出下一個，不經過主執行緒。
+ *
+ * 失敗處理：
+ * <ul>
+ *     <li>addService 回傳 false、onServiceAdded 回報失敗、或超過 {@link Config#timeoutMillis} 沒有回呼，都算一次失敗。</li>
+ *     <li>失敗的服務會排到佇列尾端，等待退避時間 (每次加倍，最多 {@link Config#maxBackoffMillis}) 後重試，
+ *     期間先處理其他服務；重試 {@link Config#maxRetries} 次仍失敗就放棄這個服務，其餘服務照常加入。</li>
+ *     <li>逾時後才到達的成功回呼仍會把該服務標記為已註冊。</li>
+ * </ul>
+ *
+ * 此類別不依賴 Android API，可以搭配 {@link LoopbackGattTransport} 在一般 JVM 上使用。
+ */
+public final class ServiceRegistrar<S, C> {
+
+    /**
+     * 註冊設定。
+     */
+    public static final class Config {
+        /** 等待 onServiceAdded 的時限。 */
+        public final long timeoutMillis;
+        /** 失敗後的重試次數，用完後放棄該服務。 */
+        public final int maxRetries;
+        /** 第一次重試前的等待時間，之後每次加倍。 */
+        public final long initialBackoffMillis;
+        public final long maxBackoffMillis;
+
+        public Config(long timeoutMillis, int maxRetries, long initialBackoffMillis, long maxBackoffMillis) {
+            if (timeoutMillis <= 0 || maxRetries < 0 || initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+                throw new IllegalArgumentException("invalid service registrar config");
+            }
+            this.timeoutMillis = timeoutMillis;
+            this.maxRetries = maxRetries;
+            this.initialBackoffMillis = initialBackoffMillis;
+            this.maxBackoffMillis = maxBackoffMillis;
+        }
+
+        public static Config defaults() {
+            return new Config(2000, 2, 100, 1000);
+        }
+    }
+
+    /**
+     * 註冊進度的通知，可能在任意執行緒上回呼。
+     */
+    public interface Listener {
+        default void onServiceRegistered(ServiceStats stats) {}
+
+        /** 重試次數用完，放棄這個服務。 */
+        default void onServiceFailed(ServiceStats stats) {}
+
+        /** 佇列中已經沒有待處理的服務 (每個服務不是已註冊就是已放棄)。 */
+        default void onQueueDrained(List<ServiceStats> stats) {}
+    }
+
+    public enum Outcome {
+        PENDING,
+        REGISTERED,
+        FAILED
+    }
+
+    private static final class Entry<S> {
+        final S service;
+        final String name;
+        final long enqueuedAtNanos;
+        Outcome outcome = Outcome.PENDING;
+        int attempts;
+        int timeouts;
+        long attemptStartNanos;
+        long lastAttemptNanos;
+        long completedAtNanos;
+        long readyAtNanos;
+
+        Entry(S service, String name, long now) {
+            this.service = service;
+            this.name = name;
+            this.enqueuedAtNanos = now;
+            this.readyAtNanos = now;
+        }
+    }
+
+    private final GattTransport<S, C> transport;
+    private final Config config;
+    private final Listener listener;
+    private final ScheduledExecutorService timer;
+    // 依加入順序保存所有服務 (含已完成的)，供統計使用
+    private final List<Entry<S>> entries = new ArrayList<>();
+    // 等待送出的服務 (含等待退避時間的重試)
+    private final LinkedList<Entry<S>> pending = new LinkedList<>();
+    private Entry<S> current;
+    private long attemptSequence;
+    private ScheduledFuture<?> timeoutFuture;
+    private ScheduledFuture<?> wakeupFuture;
+    private boolean closed;
+    private boolean drainReported;
+    private final GattTransport.Callback<S, C> callback = new GattTransport.Callback<S, C>() {
+        @Override
+        public void onServiceAdded(S service, boolean success) {
+            ServiceRegistrar.this.onServiceAdded(service, success);
+        }
+    };
+
+    /**
+     * 建立註冊器並註冊為傳輸層的監聽者，不再使用時要呼叫 {@link #close()}。
+     */
+    public ServiceRegistrar(GattTransport<S, C> transport, Config config, Listener listener) {
+        this.transport = transport;
+        this.config = config;
+        this.listener = listener != null ? listener : new Listener() {};
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ble-service-registrar");
+            thread.setDaemon(true);
+            return thread;
+        });
+        transport.addCallback(callback);
+    }
+
+    /**
+     * 將服務加入佇列，若目前沒有進行中的註冊就立刻開始。
+     * @param name 用於統計與日誌的名稱 (例如服務 UUID)。
+     */
+    public void enqueue(S service, String name) {
+        synchronized (this) {
+            if (closed) return;
+            Entry<S> entry = new Entry<>(service, name, System.nanoTime());
+            entries.add(entry);
+            pending.add(entry);
+            drainReported = false;
+        }
+        pump();
+    }
+
+    /**
+     * 尚未完成 (等待中或進行中) 的服務數。
+     */
+    public synchronized int remaining() {
+        return pending.size() + (current != null ? 1 : 0);
+    }
+
+    /**
+     * 依加入順序回傳每個服務的統計快照。
+     */
+    public synchronized List<ServiceStats> getStats() {
+        return snapshot();
+    }
+
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            pending.clear();
+            current = null;
+        }
+        transport.removeCallback(callback);
+        timer.shutdownNow();
+    }
+
+    /**
+     * 沒有進行中的註冊時，送出下一個已經可以送出的服務。
+     */
+    private void pump() {
+        Entry<S> next;
+        long sequence;
+        List<ServiceStats> drained = null;
+        synchronized (this) {
+            if (closed || current != null) return;
+            long now = System.nanoTime();
+            next = pollReady(now);
+            if (next == null) {
+                if (!pending.isEmpty()) {
+                    scheduleWakeup(now);
+                } else if (!drainReported) {
+                    drainReported = true;
+                    drained = snapshot();
+                }
+                sequence = 0;
+            } else {
+                current = next;
+                next.attempts++;
+                next.attemptStartNanos = now;
+                sequence = ++attemptSequence;
+                final long timedOutSequence = sequence;
+                timeoutFuture = schedule(() -> onTimeout(timedOutSequence), config.timeoutMillis);
+            }
+        }
+        if (drained != null) listener.onQueueDrained(drained);
+        if (next == null) return;
+        if (!transport.addService(next.service)) {
+            onAttemptFailed(sequence, false);
+        }
+    }
+
+    private void onServiceAdded(S service, boolean success) {
+        ServiceStats registered = null;
+        ServiceStats failed = null;
+        synchronized (this) {
+            if (closed) return;
+            Entry<S> entry = current != null && current.service == service ? current : null;
+            if (entry == null) {
+                // 逾時後才到達的回呼：成功就直接視為已註冊，失敗則交給已排好的重試
+                Entry<S> late = find(service);
+                if (late != null && success && late.outcome != Outcome.REGISTERED) {
+                    pending.remove(late);
+                    late.completedAtNanos = System.nanoTime();
+                    late.outcome = Outcome.REGISTERED;
+                    registered = new ServiceStats(late);
+                }
+            } else {
+                cancelTimeout();
+                current = null;
+                long now = System.nanoTime();
+                entry.lastAttemptNanos = now - entry.attemptStartNanos;
+                if (success) {
+                    entry.completedAtNanos = now;
+                    entry.outcome = Outcome.REGISTERED;
+                    registered = new ServiceStats(entry);
+                } else if (!retryLater(entry, now)) {
+                    failed = new ServiceStats(entry);
+                }
+            }
+        }
+        if (registered != null) listener.onServiceRegistered(registered);
+        if (failed != null) listener.onServiceFailed(failed);
+        pump();
+    }
+
+    private void onTimeout(long sequence) {
+        onAttemptFailed(sequence, true);
+    }
+
+    private void onAttemptFailed(long sequence, boolean timedOut) {
+        ServiceStats failed = null;
+        synchronized (this) {
+            if (closed || current == null || sequence != attemptSequence) return;
+            Entry<S> entry = current;
+            cancelTimeout();
+            current = null;
+            long now = System.nanoTime();
+            entry.lastAttemptNanos = now - entry.attemptStartNanos;
+            if (timedOut) entry.timeouts++;
+            if (!retryLater(entry, now)) {
+                failed = new ServiceStats(entry);
+            }
+        }
+        if (failed != null) listener.onServiceFailed(failed);
+        pump();
+    }
+
+    /**
+     * 還有重試次數就排到佇列尾端並設定退避時間，否則標記為失敗。
+     * @return 是否會再重試。
+     */
+    private boolean retryLater(Entry<S> entry, long now) {
+        if (entry.attempts > config.maxRetries) {
+            entry.completedAtNanos = now;
+            entry.outcome = Outcome.FAILED;
+            return false;
+        }
+        long backoff = config.initialBackoffMillis << Math.min(entry.attempts - 1, 20);
+        backoff = Math.min(backoff, config.maxBackoffMillis);
+        entry.readyAtNanos = now + TimeUnit.MILLISECONDS.toNanos(backoff);
+        pending.add(entry);
+        return true;
+    }
+
+    private Entry<S> pollReady(long now) {
+        for (Iterator<Entry<S>> it = pending.iterator(); it.hasNext(); ) {
+            Entry<S> entry = it.next();
+            if (entry.readyAtNanos - now <= 0) {
+                it.remove();
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 佇列中只剩等待退避的重試時，在最早可以送出的時間再執行一次 pump。
+     */
+    private void scheduleWakeup(long now) {
+        long earliest = Long.MAX_VALUE;
+        for (Entry<S> entry : pending) {
+            earliest = Math.min(earliest, entry.readyAtNanos - now);
+        }
+        if (wakeupFuture != null) wakeupFuture.cancel(false);
+        wakeupFuture = schedule(this::pump, Math.max(1, TimeUnit.NANOSECONDS.toMillis(earliest)));
+    }
+
+    private ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        try {
+            return timer.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return null; // 已經 close
+        }
+    }
+
+    private void cancelTimeout() {
+        if (timeoutFuture != null) {
+            timeoutFuture.cancel(false);
+            timeoutFuture = null;
+        }
+    }
+
+    private Entry<S> find(S service) {
+        for (Entry<S> entry : entries) {
+            if (entry.service == service) return entry;
+        }
+        return null;
+    }
+
+    private List<ServiceStats> snapshot() {
+        List<ServiceStats> stats = new ArrayList<>(entries.size());
+        for (Entry<S> entry : entries) {
+            stats.add(new ServiceStats(entry));
+        }
+        return stats;
+    }
+
+    /**
+     * 單一服務的註冊統計快照。
+     */
+    public static final class ServiceStats {
+        public final String name;
+        public final Outcome outcome;
+        public final int attempts;
+        public final int timeouts;
+        /** 最後一次嘗試從 addService 到回呼 (或逾時) 的時間。 */
+        public final long lastAttemptNanos;
+        /** 從加入佇列到註冊成功或放棄的時間；尚未完成時為 0。 */
+        public final long totalNanos;
+
+        ServiceStats(Entry<?> entry) {
+            this.name = entry.name;
+            this.outcome = entry.outcome;
+            this.attempts = entry.attempts;
+            this.timeouts = entry.timeouts;
+            this.lastAttemptNanos = entry.lastAttemptNanos;
+            this.totalNanos = entry.outcome == Outcome.PENDING ? 0 : entry.completedAtNanos - entry.enqueuedAtNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + outcome
+                    + " attempts=" + attempts
+                    + " timeouts=" + timeouts
+                    + " last=" + (lastAttemptNanos / 1000) + "us"
+                    + " total=" + (totalNanos / 1000) + "us";
+        }
+    }
+}
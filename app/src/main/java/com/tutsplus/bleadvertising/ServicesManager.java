@@ -1,24 +1,32 @@
 package com.tutsplus.bleadvertising;
 
 import android.Manifest;
-import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattServer;
 import android.bluetooth.BluetoothGattService;
+import android.content.Context;
 import android.util.Log;
 
 import androidx.annotation.RequiresPermission;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 一個單例 (Singleton)，負責建立和管理所有的 GATT 服務，並模擬數據變化與發送通知。
@@ -27,6 +35,8 @@ public class ServicesManager {
     private static final String TAG = "ServicesManager";
 
     // --- CF597 Health Scale C2 UUIDs ---
+    // 定義在 src/main/gattProfiles/healthScaleC2.json
+    public static final String PROFILE_HEALTH_SCALE_C2 = "healthScaleC2";
     public static final UUID HEALTH_SCALE_C2_SERVICE_UUID = UUID.fromString("0000FFF0-0000-1000-8000-00805f9b34fb");
     public static final UUID HEALTH_SCALE_C2_WRITE_UUID = UUID.fromString("0000FFF1-0000-1000-8000-00805f9b34fb");
     public static final UUID HEALTH_SCALE_C2_RWN_UUID = UUID.fromString("0000FFF2-0000-1000-8000-00805f9b34fb");
@@ -40,119 +50,318 @@ public class ServicesManager {
 
     // Standard CCCD
     public static final UUID CCCD_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    // --- 控制點 UUIDs (寫入由 writeDispatcher 分派) ---
+    public static final UUID FTMS_CONTROL_POINT_UUID = UUID.fromString("00002AD9-0000-1000-8000-00805f9b34fb");
+    public static final UUID PRESET_CONTROL_POINT_UUID = UUID.fromString("00002FDB-0000-1000-8000-00805f9b34fb");
+    public static final UUID DEVICE_TIME_CONTROL_POINT_UUID = UUID.fromString("00002B91-0000-1000-8000-00805f9b34fb");
+    public static final UUID HEART_RATE_CONTROL_POINT_UUID = UUID.fromString("00002A39-0000-1000-8000-00805f9b34fb");
+    public static final UUID GLUCOSE_MEASUREMENT_UUID = UUID.fromString("00002A18-0000-1000-8000-00805f9b34fb");
+    public static final UUID RACP_UUID = UUID.fromString("00002A52-0000-1000-8000-00805f9b34fb");
     private static ServicesManager instance;
 
-    // --- GATT Server 和連線裝置的引用 ---
-    private BluetoothGattServer gattServer;
-    private HashSet<BluetoothDevice> connectedDevices;
-
-    // --- 所有服務和重要特徵的引用 ---
-    private final BluetoothGattService batteryService;
-    private final BluetoothGattService heartRateService;
-    private final BluetoothGattService healthThermometerService;
-    private final BluetoothGattService deviceInfoService;
-    private final BluetoothGattService currentTimeService;
-    private final BluetoothGattService bloodPressureService; // 新增
-    private final BluetoothGattService deviceTimeService; // 新增
-    private final BluetoothGattService fitnessMachineService;
-    private final BluetoothGattService glucoseService; // 新增
-
-    private final BluetoothGattService hearingAidService; // 新增
-
-    private final BluetoothGattService pulseOximeterService; // 新增
-    private final BluetoothGattService cyclingPowerService;
-    private final BluetoothGattService environmentalSensingService; // 新增
-
-
-    private final BluetoothGattService weightScaleService;
-
-    private final BluetoothGattCharacteristic batteryLevelCharacteristic;
-    private final BluetoothGattCharacteristic heartRateMeasurementCharacteristic;
-    private final BluetoothGattCharacteristic temperatureMeasurementCharacteristic;
-    private final BluetoothGattCharacteristic currentTimeCharacteristic;
-    private final BluetoothGattCharacteristic bloodPressureMeasurementCharacteristic; // 新增
-    private final BluetoothGattCharacteristic deviceTimeCharacteristic;
-    private final BluetoothGattCharacteristic pulseOximeterMeasurementCharacteristic; // 新增
-    private final BluetoothGattCharacteristic cyclingPowerMeasurementCharacteristic;
+    // --- GATT 傳輸層與連線裝置的訂閱狀態 ---
+    private volatile GattTransport<BluetoothGattService, BluetoothGattCharacteristic> transport;
+    // 每個裝置的發送佇列，依 onNotificationSent 逐一送出
+    private NotificationQueue<BluetoothGattService, BluetoothGattCharacteristic> notificationQueue;
+    // 一次編碼、扇出給所有訂閱的裝置
+    private volatile NotificationFanOut<BluetoothGattService, BluetoothGattCharacteristic> fanOut;
+    private final SubscriptionRegistry<String> subscriptions = new SubscriptionRegistry<>();
+    // 已成功加入傳輸層的服務 (客戶端實際看得到、可以訂閱的那些實例)
+    private final List<BluetoothGattService> registeredServices = new CopyOnWriteArrayList<>();
+    // 已註冊特徵的索引：UUID -> 第一個註冊的特徵；服務 UUID -> (特徵 UUID -> 特徵)
+    private final Map<UUID, BluetoothGattCharacteristic> characteristicsByUuid = new ConcurrentHashMap<>();
+    private final Map<UUID, Map<UUID, BluetoothGattCharacteristic>> characteristicsByService = new ConcurrentHashMap<>();
+    private final GattTransport.Callback<BluetoothGattService, BluetoothGattCharacteristic> transportCallback =
+            new GattTransport.Callback<BluetoothGattService, BluetoothGattCharacteristic>() {
+                @Override
+                public void onConnectionStateChange(String deviceId, boolean connected) {
+                    if (!connected) {
+                        subscriptions.onDeviceDisconnected(deviceId);
+                        fitnessMachineControl.onDeviceDisconnected(deviceId);
+                        preparedWrites.onDeviceDisconnected(deviceId);
+                    } else if (subscriptions.onDeviceConnected(deviceId) == SubscriptionRegistry.NONE) {
+                        Log.w(TAG, "連線裝置數已達上限，" + deviceId + " 將不會收到通知。");
+                    }
+                }
+
+                @Override
+                public void onServiceAdded(BluetoothGattService service, boolean success) {
+                    if (success) {
+                        registeredServices.add(service);
+                        indexCharacteristics(service);
+                        markLatestValueCharacteristics(service);
+                    }
+                }
+
+                @Override
+                public void onSubscriptionChanged(String deviceId, BluetoothGattCharacteristic characteristic, byte[] cccdValue) {
+                    subscriptions.onCccdWritten(deviceId, characteristic, cccdValue);
+                }
+
+                @Override
+                public void onCharacteristicReadRequest(String deviceId, int requestId, int offset, BluetoothGattCharacteristic characteristic) {
+                    GattTransport<BluetoothGattService, BluetoothGattCharacteristic> transport = ServicesManager.this.transport;
+                    if (transport == null) return;
+                    if (offset != 0) {
+                        transport.sendResponse(deviceId, requestId, BluetoothGatt.GATT_INVALID_OFFSET, 0, null);
+                        return;
+                    }
+                    transport.sendResponse(deviceId, requestId, BluetoothGatt.GATT_SUCCESS, 0, getReadableValue(characteristic));
+                }
+
+                /**
+                 * 控制點寫入依 UUID 交給 WriteDispatcher；Long Write 的片段 (preparedWrite) 先暫存，等 onExecuteWrite 提交後才重組並分派。
+                 */
+                @Override
+                public void onCharacteristicWriteRequest(String deviceId, int requestId, BluetoothGattCharacteristic characteristic,
+                                                         boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+                    int status;
+                    if (preparedWrite) {
+                        status = prepareCharacteristicWrite(deviceId, characteristic, offset, value);
+                    } else if (offset != 0) {
+                        status = BluetoothGatt.GATT_INVALID_OFFSET;
+                    } else {
+                        status = dispatchCharacteristicWrite(deviceId, characteristic, value);
+                    }
+                    GattTransport<BluetoothGattService, BluetoothGattCharacteristic> transport = ServicesManager.this.transport;
+                    // Prepare Write Response 必須回傳原本的 offset 與值，讓客戶端核對
+                    if (responseNeeded && transport != null) {
+                        transport.sendResponse(deviceId, requestId, status, offset, value);
+                    }
+                }
+
+                @Override
+                public void onExecuteWrite(String deviceId, int requestId, boolean execute) {
+                    int status = executeCharacteristicWrites(deviceId, execute);
+                    GattTransport<BluetoothGattService, BluetoothGattCharacteristic> transport = ServicesManager.this.transport;
+                    if (transport != null) transport.sendResponse(deviceId, requestId, status, 0, null);
+                }
+            };
+
+    // 只在乎最新值的特徵：連線間隔比產生速度慢時，以新值取代尚未送出的舊值
+    // (Indoor Bike Data, Battery Level, ESS Temperature/Humidity/Pressure/Wind Chill)
+    private static final Set<UUID> LATEST_VALUE_CHARACTERISTICS = new HashSet<>(Arrays.asList(
+            UUID.fromString("00002AD2-0000-1000-8000-00805f9b34fb"),
+            UUID.fromString("00002A19-0000-1000-8000-00805f9b34fb"),
+            UUID.fromString("00002A6E-0000-1000-8000-00805f9b34fb"),
+            UUID.fromString("00002A6F-0000-1000-8000-00805f9b34fb"),
+            UUID.fromString("00002A6D-0000-1000-8000-00805f9b34fb"),
+            UUID.fromString("00002A79-0000-1000-8000-00805f9b34fb")));
+
+    // --- 所有服務 (每個 profile 第一次使用時才建立，之後重複使用同一個實例) ---
+    // profiles 必須宣告在各 profile 欄位之前，欄位初始化時會把自己加入清單 (順序即 getAllServices 的順序)
+    // 純靜態的服務 (設備資訊、CF597、標準電池等) 定義在 src/main/gattProfiles，由 loadProfileDatabase() 加到清單尾端
+    private final List<LazyProfile<BluetoothGattService>> profiles = new CopyOnWriteArrayList<>();
+    private GattProfileDatabase profileDatabase;
+    private final LazyProfile<BluetoothGattService> batteryService = profile("battery", this::buildBatteryProfile);
+    private final LazyProfile<BluetoothGattService> heartRateService = profile("heartRate", this::buildHeartRateProfile);
+    private final LazyProfile<BluetoothGattService> healthThermometerService = profile("healthThermometer", this::buildHealthThermometerProfile);
+    private final LazyProfile<BluetoothGattService> currentTimeService = profile("currentTime", this::buildCurrentTimeProfile);
+    private final LazyProfile<BluetoothGattService> hearingAidService = profile("hearingAid", this::buildHearingAidProfile);
+    private final LazyProfile<BluetoothGattService> bloodPressureService = profile("bloodPressure", this::buildBloodPressureProfile);
+    private final LazyProfile<BluetoothGattService> deviceTimeService = profile("deviceTime", this::buildDeviceTimeProfile);
+    private final LazyProfile<BluetoothGattService> glucoseService = profile("glucose", this::buildGlucoseProfile);
+    private final LazyProfile<BluetoothGattService> cyclingPowerService = profile("cyclingPower", this::buildCyclingPowerProfile);
+    private final LazyProfile<BluetoothGattService> environmentalSensingService = profile("environmentalSensing", this::buildEnvironmentalSensingProfile);
+    private final LazyProfile<BluetoothGattService> pulseOximeterService = profile("pulseOximeter", this::buildPulseOximeterProfile);
+    private final LazyProfile<BluetoothGattService> weightScaleService = profile("weightScale", this::buildWeightScaleProfile);
+    private final LazyProfile<BluetoothGattService> fitnessMachineService = profile("fitnessMachine", this::buildFitnessMachineProfile);
+
+    // --- 需要動態更新的特徵 (在對應的 profile 建立時設定) ---
+    private BluetoothGattCharacteristic batteryLevelCharacteristic;
+    private BluetoothGattCharacteristic heartRateMeasurementCharacteristic;
+    private BluetoothGattCharacteristic temperatureMeasurementCharacteristic;
+    private BluetoothGattCharacteristic currentTimeCharacteristic;
+    private BluetoothGattCharacteristic bloodPressureMeasurementCharacteristic;
+    private BluetoothGattCharacteristic deviceTimeCharacteristic;
+    private BluetoothGattCharacteristic pulseOximeterMeasurementCharacteristic;
+    private BluetoothGattCharacteristic cyclingPowerMeasurementCharacteristic;
     // 為 ESS 新增多個特徵的引用
-    private final BluetoothGattCharacteristic essTemperatureCharacteristic;
-    private final BluetoothGattCharacteristic essHumidityCharacteristic;
-    private final BluetoothGattCharacteristic essPressureCharacteristic;
-    private final BluetoothGattCharacteristic essWindChillCharacteristic;
-    private final BluetoothGattCharacteristic activePresetIndexCharacteristic; // 新增
-    private final BluetoothGattCharacteristic indoorBikeDataCharacteristic; // 新增
+    private BluetoothGattCharacteristic essTemperatureCharacteristic;
+    private BluetoothGattCharacteristic essHumidityCharacteristic;
+    private BluetoothGattCharacteristic essPressureCharacteristic;
+    private BluetoothGattCharacteristic essWindChillCharacteristic;
+    private BluetoothGattCharacteristic activePresetIndexCharacteristic;
+    private BluetoothGattCharacteristic indoorBikeDataCharacteristic;
+    private BluetoothGattCharacteristic fitnessMachineControlPointCharacteristic;
+    private BluetoothGattCharacteristic fitnessMachineStatusCharacteristic;
+    private BluetoothGattCharacteristic glucoseMeasurementCharacteristic;
+    private BluetoothGattCharacteristic weightScaleMeasurementCharacteristic;
+
+    // --- 數據模擬排程器 (所有感測器共用) ---
+    private static final long SCHEDULER_STOP_TIMEOUT_MS = 1000;
+    private final SimulationScheduler scheduler = new SimulationScheduler();
+    private int fitnessMachineTotalDistance = 0;
+    private static final int CF597_REALTIME_FRAME_COUNT = 3;
+    private SimulationScheduler.ScheduledTask cf597DeviceInfoTask;
+    private SimulationScheduler.ScheduledTask cf597RealtimeTask;
+    // CF597 歷史記錄：模擬 4 位使用者、一個月、每人每天 8 次量測 (992 筆)，F2 時串流送出
+    private static final int CF597_HISTORY_USERS = 4;
+    private static final int CF597_HISTORY_DAYS = 31;
+    private static final int CF597_HISTORY_PER_DAY = 8;
+    // 每個裝置的佇列中最多等待的歷史封包數 (佇列上限 32，其餘留給其他通知)
+    private static final int CF597_HISTORY_WINDOW_PACKETS = 8;
+    private final MeasurementHistory cf597History = new MeasurementHistory(
+            CF597_HISTORY_USERS * CF597_HISTORY_DAYS * CF597_HISTORY_PER_DAY);
+    private HistoryTransfer<BluetoothGattService, BluetoothGattCharacteristic> historyTransfer;
+
+    private int glucoseSequence = 0; // 用於血糖測量的序列號，開啟量測日誌後從最後一筆血糖記錄接續
+    // --- 量測日誌：模擬器產生的每個值都寫入 (見 MeasurementJournal) ---
+    private static final String JOURNAL_DIRECTORY = "measurement-journal";
+    // 每個分段 1 MiB (16384 筆 × 64 bytes)，最多保留 64 個分段
+    private static final int JOURNAL_RECORDS_PER_SEGMENT = 16384;
+    private static final int JOURNAL_MAX_SEGMENTS = 64;
+    private volatile MeasurementJournal journal;
+    // 開啟日誌要對映所有分段並重播血糖記錄，在這個執行緒上進行，不佔用主執行緒
+    private final ExecutorService journalExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "measurement-journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 日誌開啟中時呼叫的 startSimulation() 延到重建完成後 (以 this 保護)
+    private boolean journalOpening;
+    private boolean simulationPending;
+    // --- Glucose RACP：儲存的血糖記錄 (開啟量測日誌時由日誌重建) ---
+    private static final int GLUCOSE_RACP_WINDOW_PACKETS = 8;
+    private final GlucoseRecordStore glucoseRecords = new GlucoseRecordStore(1024);
+    private RecordAccessControlPoint<BluetoothGattService, BluetoothGattCharacteristic> glucoseRacp;
+    private final Random random = new Random();
+    // --- FTMS 控制點 ---
+    // 控制點的回應、狀態與目標改變後的 Indoor Bike Data 在這個執行緒上送出，讓 ATT 寫入回應先送出
+    private final ExecutorService fitnessMachineExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ftms-control-point");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final FitnessMachineControlPoint fitnessMachineControl = new FitnessMachineControlPoint(
+            new FitnessMachineControlPoint.Listener() {
+                @Override
+                public void onResponse(byte[] response) {
+                    BluetoothGattCharacteristic characteristic = fitnessMachineControlPointCharacteristic;
+                    if (characteristic != null) notifyCharacteristicChanged(characteristic, response, true);
+                }
 
+                @Override
+                public void onStatus(byte[] status) {
+                    BluetoothGattCharacteristic characteristic = fitnessMachineStatusCharacteristic;
+                    if (characteristic != null) notifyCharacteristicChanged(characteristic, status, false);
+                }
 
-    private final BluetoothGattCharacteristic glucoseMeasurementCharacteristic; // 新增
+                @Override
+                public void onTargetChanged(long writeNanos) {
+                    // 不等下一次週期性更新，立刻送出反映新目標的數據
+                    publishIndoorBikeData(false);
+                    Log.d(TAG, "FTMS: 寫入到 Indoor Bike Data 的延遲 " + (System.nanoTime() - writeNanos) / 1000 + "us");
+                }
+            });
+    // Hearing Aid 預設 (Features 宣告支援 4 個預設，編號 1..4)
+    private static final int HEARING_AID_PRESET_COUNT = 4;
+    private int activePresetIndex = 1;
 
-    private final BluetoothGattCharacteristic weightScaleMeasurementCharacteristic; // 新增
+    // 控制點寫入：特徵 UUID -> 各 profile 的處理器
+    private final WriteDispatcher<BluetoothGattCharacteristic> writeDispatcher = new WriteDispatcher<>();
+    // Long Write 的片段：每個裝置一次交易最多 2KB / 64 個片段，提交後重組交給 writeDispatcher
+    private final PreparedWriteQueue<BluetoothGattCharacteristic> preparedWrites = new PreparedWriteQueue<>(2048, 64);
 
-    // --- 數據模擬線程 ---
-    private Thread batterySimulatorThread;
-    private Thread heartRateSimulatorThread;
-    private Thread temperatureSimulatorThread;
-    private Thread bloodPressureSimulatorThread;
+    // --- 私有建構函式，確保單例 ---
+    // 服務不在這裡建立，而是在 getAllServices()/getServices() 第一次用到時才建立
+    private ServicesManager() {
+        scheduler.setFailureListener((name, error) -> Log.e(TAG, "模擬任務失敗: " + name, error));
+        registerWriteHandlers();
+        cf597History.simulate(CF597_HISTORY_USERS, CF597_HISTORY_DAYS, CF597_HISTORY_PER_DAY,
+                System.currentTimeMillis() / 1000L, 597);
+    }
 
-    private Thread deviceTimeSimulatorThread;
+    private LazyProfile<BluetoothGattService> profile(String name, LazyProfile.Factory<BluetoothGattService> factory) {
+        LazyProfile<BluetoothGattService> profile = new LazyProfile<>(name, factory);
+        profiles.add(profile);
+        return profile;
+    }
 
-    private Thread cyclingPowerSimulatorThread;
-    private Thread environmentalSensingSimulatorThread;
+    // --- 各 profile 的建立：建立服務並保存需要動態更新的特徵 ---
 
-    private Thread glucoseSimulatorThread;
+    private BluetoothGattService buildBatteryProfile() {
+        BluetoothGattService service = createBatteryService();
+        batteryLevelCharacteristic = service.getCharacteristic(UUID.fromString("00002A19-0000-1000-8000-00805f9b34fb"));
+        return service;
+    }
 
-    private Thread fitnessMachineSimulatorThread;
+    private BluetoothGattService buildHeartRateProfile() {
+        BluetoothGattService service = createHeartRateService();
+        heartRateMeasurementCharacteristic = service.getCharacteristic(UUID.fromString("00002A37-0000-1000-8000-00805f9b34fb"));
+        return service;
+    }
 
-    private Thread pulseOximeterSimulatorThread;
+    private BluetoothGattService buildHealthThermometerProfile() {
+        BluetoothGattService service = createHealthThermometerService();
+        temperatureMeasurementCharacteristic = service.getCharacteristic(UUID.fromString("00002A1C-0000-1000-8000-00805f9b34fb"));
+        return service;
+    }
 
-    private Thread weightScaleSimulatorThread;
+    private BluetoothGattService buildCurrentTimeProfile() {
+        BluetoothGattService service = createCurrentTimeService();
+        currentTimeCharacteristic = service.getCharacteristic(UUID.fromString("00002A2B-0000-1000-8000-00805f9b34fb"));
+        return service;
+    }
 
-    private Thread cf597SimulatorThread;
-    private volatile boolean isSimulating = false;
+    private BluetoothGattService buildHearingAidProfile() {
+        BluetoothGattService service = createHearingAidService();
+        activePresetIndexCharacteristic = service.getCharacteristic(UUID.fromString("00002FDC-0000-1000-8000-00805f9b34fb"));
+        return service;
+    }
 
-    private int glucoseSequence = 0; // 用於血糖測量的序列號
-    // --- 新增 FTMS 控制相關的成員變數 ---
-    private int targetResistanceLevel = 0; // 客戶端設定的目標阻力
-    private final Random random = new Random();
+    private BluetoothGattService buildBloodPressureProfile() {
+        BluetoothGattService service = createBloodPressureService();
+        bloodPressureMeasurementCharacteristic = service.getCharacteristic(UUID.fromString("00002A35-0000-1000-8000-00805f9b34fb"));
+        return service;
+    }
 
-    // --- 私有建構函式，確保單例 ---
-    private ServicesManager() {
-        // 在建構時就建立好所有服務
-        this.batteryService = createBatteryService();
-        this.heartRateService = createHeartRateService();
-        this.healthThermometerService = createHealthThermometerService();
-        this.deviceInfoService = createDeviceInfoService();
-        this.currentTimeService = createCurrentTimeService();
-        this.bloodPressureService = createBloodPressureService();
-        this.deviceTimeService = createDeviceTimeService(); // 新增
-        this.hearingAidService = createHearingAidService(); // 新增
-        this.cyclingPowerService = createCyclingPowerService();
-        this.environmentalSensingService = createEnvironmentalSensingService(); // 新增
-        this.fitnessMachineService = createFitnessMachineService(); // 新增
-
-        this.glucoseService = createGlucoseService();
-        this.pulseOximeterService = createPulseOximeterService(); // 新增
-
-        this.weightScaleService = createWeightScaleService(); // 新增
-
-        // 儲存需要動態更新的特徵的引用
-        this.activePresetIndexCharacteristic = hearingAidService.getCharacteristic(UUID.fromString("00002FDC-0000-1000-8000-00805f9b34fb")); // 新增
-
-        this.batteryLevelCharacteristic = batteryService.getCharacteristic(UUID.fromString("00002A19-0000-1000-8000-00805f9b34fb"));
-        this.heartRateMeasurementCharacteristic = heartRateService.getCharacteristic(UUID.fromString("00002A37-0000-1000-8000-00805f9b34fb"));
-        this.temperatureMeasurementCharacteristic = healthThermometerService.getCharacteristic(UUID.fromString("00002A1C-0000-1000-8000-00805f9b34fb"));
-        this.currentTimeCharacteristic = currentTimeService.getCharacteristic(UUID.fromString("00002A2B-0000-1000-8000-00805f9b34fb"));
-        this.bloodPressureMeasurementCharacteristic = bloodPressureService.getCharacteristic(UUID.fromString("00002A35-0000-1000-8000-00805f9b34fb"));
-        this.deviceTimeCharacteristic = deviceTimeService.getCharacteristic(UUID.fromString("00002B90-0000-1000-8000-00805f9b34fb"));
-        this.glucoseMeasurementCharacteristic = glucoseService.getCharacteristic(UUID.fromString("00002A18-0000-1000-8000-00805f9b34fb")); // 新增
-        this.pulseOximeterMeasurementCharacteristic = pulseOximeterService.getCharacteristic(UUID.fromString("00002A5E-0000-1000-8000-00805f9b34fb")); // 新增
-        this.cyclingPowerMeasurementCharacteristic = cyclingPowerService.getCharacteristic(UUID.fromString("00002A63-0000-1000-8000-00805f9b34fb"));
-        this.essTemperatureCharacteristic = environmentalSensingService.getCharacteristic(UUID.fromString("00002A6E-0000-1000-8000-00805f9b34fb"));
-        this.essHumidityCharacteristic = environmentalSensingService.getCharacteristic(UUID.fromString("00002A6F-0000-1000-8000-00805f9b34fb"));
-        this.essPressureCharacteristic = environmentalSensingService.getCharacteristic(UUID.fromString("00002A6D-0000-1000-8000-00805f9b34fb"));
-        this.essWindChillCharacteristic = environmentalSensingService.getCharacteristic(UUID.fromString("00002A79-0000-1000-8000-00805f9b34fb"));
-        this.indoorBikeDataCharacteristic = fitnessMachineService.getCharacteristic(UUID.fromString("00002AD2-0000-1000-8000-00805f9b34fb")); // 新增
-
-        this.weightScaleMeasurementCharacteristic = weightScaleService.getCharacteristic(UUID.fromString("00002A9D-0000-1000-8000-00805f9b34fb")); // 新增
+    private BluetoothGattService buildDeviceTimeProfile() {
+        BluetoothGattService service = createDeviceTimeService();
+        deviceTimeCharacteristic = service.getCharacteristic(UUID.fromString("00002B90-0000-1000-8000-00805f9b34fb"));
+        return service;
+    }
+
+    private BluetoothGattService buildGlucoseProfile() {
+        BluetoothGattService service = createGlucoseService();
+        glucoseMeasurementCharacteristic = service.getCharacteristic(UUID.fromString("00002A18-0000-1000-8000-00805f9b34fb"));
+        return service;
+    }
+
+    private BluetoothGattService buildCyclingPowerProfile() {
+        BluetoothGattService service = createCyclingPowerService();
+        cyclingPowerMeasurementCharacteristic = service.getCharacteristic(UUID.fromString("00002A63-0000-1000-8000-00805f9b34fb"));
+        return service;
+    }
+
+    private BluetoothGattService buildEnvironmentalSensingProfile() {
+        BluetoothGattService service = createEnvironmentalSensingService();
+        essTemperatureCharacteristic = service.getCharacteristic(UUID.fromString("00002A6E-0000-1000-8000-00805f9b34fb"));
+        essHumidityCharacteristic = service.getCharacteristic(UUID.fromString("00002A6F-0000-1000-8000-00805f9b34fb"));
+        essPressureCharacteristic = service.getCharacteristic(UUID.fromString("00002A6D-0000-1000-8000-00805f9b34fb"));
+        essWindChillCharacteristic = service.getCharacteristic(UUID.fromString("00002A79-0000-1000-8000-00805f9b34fb"));
+        return service;
+    }
+
+    private BluetoothGattService buildPulseOximeterProfile() {
+        BluetoothGattService service = createPulseOximeterService();
+        pulseOximeterMeasurementCharacteristic = service.getCharacteristic(UUID.fromString("00002A5E-0000-1000-8000-00805f9b34fb"));
+        return service;
+    }
+
+    private BluetoothGattService buildWeightScaleProfile() {
+        BluetoothGattService service = createWeightScaleService();
+        weightScaleMeasurementCharacteristic = service.getCharacteristic(UUID.fromString("00002A9D-0000-1000-8000-00805f9b34fb"));
+        return service;
+    }
+
+    private BluetoothGattService buildFitnessMachineProfile() {
+        BluetoothGattService service = createFitnessMachineService();
+        indoorBikeDataCharacteristic = service.getCharacteristic(UUID.fromString("00002AD2-0000-1000-8000-00805f9b34fb"));
+        fitnessMachineControlPointCharacteristic = service.getCharacteristic(FTMS_CONTROL_POINT_UUID);
+        fitnessMachineStatusCharacteristic = service.getCharacteristic(UUID.fromString("00002ADA-0000-1000-8000-00805f9b34fb"));
+        return service;
     }
 
     // --- 獲取單例實例的方法 ---
@@ -163,411 +372,676 @@ public class ServicesManager {
         return instance;
     }
 
+    /**
+     * 載入建置時由 src/main/gattProfiles 編譯出的 GATT 屬性資料庫，並把其中的 profile 加入服務清單。
+     * 必須在 {@link #getAllServices()} 之前呼叫；重複呼叫不會重新載入。
+     * 資料庫中的 profile 同樣是第一次使用時才建立服務。
+     */
+    public synchronized void loadProfileDatabase(Context context) {
+        if (profileDatabase != null) return;
+        final GattProfileDatabase database;
+        long start = System.nanoTime();
+        try {
+            database = GattProfileLoader.open(context);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "無法載入 GATT profile 資料庫: " + GattProfileLoader.ASSET_NAME, e);
+            return;
+        }
+        for (final String name : database.getProfileNames()) {
+            if (findProfile(name) != null) {
+                Log.w(TAG, "GATT profile 資料庫中的 " + name + " 與內建的 profile 重複，略過。");
+                continue;
+            }
+            profile(name, () -> GattProfileLoader.toService(database.getProfile(name).service));
+        }
+        profileDatabase = database;
+        Log.d(TAG, "GATT profile 資料庫已載入: " + database.getProfileNames() + "，耗時 "
+                + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) + "us");
+    }
+
+    /**
+     * 在背景執行緒開啟 (或建立) 量測日誌，由日誌重建 RACP 的血糖記錄，並從最後一筆血糖測量接續序列號。
+     * 要在 {@link #startSimulation()} 之前呼叫；重建完成前呼叫的 startSimulation() 會等到重建完成後才開始，
+     * 模擬產生的血糖記錄不會與重播的記錄交錯。重複呼叫不會重新開啟。無法開啟日誌時模擬照常進行，只是不記錄。
+     */
+    public synchronized void openJournal(Context context) {
+        if (journal != null || journalOpening) return;
+        journalOpening = true;
+        final Context appContext = context.getApplicationContext();
+        journalExecutor.execute(() -> {
+            replayJournal(new File(appContext.getFilesDir(), JOURNAL_DIRECTORY));
+            boolean start;
+            synchronized (ServicesManager.this) {
+                journalOpening = false;
+                start = simulationPending;
+                simulationPending = false;
+            }
+            if (start) startSimulation();
+        });
+    }
+
+    /**
+     * 開啟日誌並依序重播血糖測量與 RACP 的刪除指令。只檢查這兩個特徵的記錄，其他記錄不讀出也不檢查 CRC。
+     */
+    private void replayJournal(File directory) {
+        long start = System.nanoTime();
+        final MeasurementJournal opened;
+        try {
+            opened = MeasurementJournal.open(directory, JOURNAL_RECORDS_PER_SEGMENT, JOURNAL_MAX_SEGMENTS);
+        } catch (IOException e) {
+            Log.e(TAG, "無法開啟量測日誌: " + JOURNAL_DIRECTORY, e);
+            return;
+        }
+        // 依序重播血糖測量與 RACP 的刪除指令，重建可以查詢的血糖記錄
+        final int glucoseId = shortUuid(GLUCOSE_MEASUREMENT_UUID);
+        final int racpId = shortUuid(RACP_UUID);
+        opened.scan(opened.firstSequence(), new int[]{glucoseId, racpId}, (sequence, timestampMillis, characteristicId, payload, offset, length) -> {
+            if (characteristicId == glucoseId && length >= GlucoseRecordStore.MIN_RECORD_LENGTH
+                    && length <= GlucoseRecordStore.MAX_RECORD_LENGTH) {
+                glucoseRecords.append(payload, offset, length);
+            } else if (characteristicId == racpId) {
+                RecordAccessControlPoint.replayDelete(glucoseRecords, Arrays.copyOfRange(payload, offset, offset + length));
+            }
+            return true;
+        });
+        if (glucoseRecords.nextSequence() > 0) {
+            glucoseSequence = glucoseRecords.nextSequence();
+        }
+        journal = opened;
+        Log.d(TAG, "量測日誌已開啟: " + opened.getStats() + "，血糖記錄 " + glucoseRecords.size() + " 筆，序列號從 "
+                + glucoseSequence + " 開始，耗時 " + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) + "us");
+    }
+
+    /**
+     * 把模擬器產生的值寫入量測日誌 (只是一次記憶體複製，可以在模擬任務中直接呼叫)。
+     */
+    private void journal(UUID characteristicUuid, byte[] value) {
+        MeasurementJournal journal = this.journal;
+        if (journal == null) return;
+        try {
+            journal.append(System.currentTimeMillis(), shortUuid(characteristicUuid), value);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "無法寫入量測日誌: " + characteristicUuid, e);
+        }
+    }
+
+    /**
+     * 模擬器的一筆新值：更新特徵值、寫入量測日誌，再發送通知/指示。
+     * 特徵值與所有裝置的通知共用 value 這個陣列 (不再複製)，呼叫端交出後不可以再修改。
+     */
+    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+    private void publishSample(BluetoothGattCharacteristic characteristic, byte[] value, boolean isIndication) {
+        setReadableValue(characteristic, value);
+        journal(characteristic.getUuid(), value);
+        NotificationFanOut<BluetoothGattService, BluetoothGattCharacteristic> fanOut = this.fanOut;
+        if (fanOut != null) {
+            fanOut.publishShared(characteristic, value, isIndication);
+        }
+    }
+
+    /**
+     * 同上，但值編碼在 buffer 的前 length bytes (通常是 {@link GattValueBuilder#pooledBuffer()})。
+     * 高頻率的模擬任務以此避免編碼時配置記憶體：每筆只複製一次，特徵值與通知共用這份複本。
+     */
+    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+    private void publishSample(BluetoothGattCharacteristic characteristic, byte[] buffer, int length, boolean isIndication) {
+        publishSample(characteristic, Arrays.copyOf(buffer, length), isIndication);
+    }
+
+    /**
+     * 更新客戶端讀取時看到的特徵值。特徵物件由所有裝置共用，
+     * 舊版 API 的通知會暫時改寫特徵值 (見 {@link AndroidGattTransport})，因此讀寫都鎖特徵本身。
+     */
+    private static void setReadableValue(BluetoothGattCharacteristic characteristic, byte[] value) {
+        synchronized (characteristic) {
+            characteristic.setValue(value);
+        }
+    }
+
+    /**
+     * 客戶端讀取特徵時回應的值。
+     */
+    public static byte[] getReadableValue(BluetoothGattCharacteristic characteristic) {
+        synchronized (characteristic) {
+            return characteristic.getValue();
+        }
+    }
+
+    /**
+     * 藍牙基底 UUID (0000xxxx-0000-1000-8000-00805f9b34fb) 中的 16-bit 部分。
+     */
+    private static int shortUuid(UUID uuid) {
+        return (int) (uuid.getMostSignificantBits() >>> 32) & 0xFFFF;
+    }
+
+    private LazyProfile<BluetoothGattService> findProfile(String name) {
+        for (LazyProfile<BluetoothGattService> profile : profiles) {
+            if (profile.getName().equals(name)) return profile;
+        }
+        return null;
+    }
+
+    private boolean isProfileBuilt(String name) {
+        LazyProfile<BluetoothGattService> profile = findProfile(name);
+        return profile != null && profile.isBuilt();
+    }
+
     // --- 提供給外部獲取所有服務的方法 ---
     public List<BluetoothGattService> getAllServices() {
         List<BluetoothGattService> services = new ArrayList<>();
-        services.add(batteryService);
-        services.add(heartRateService);
-        services.add(healthThermometerService);
-        services.add(deviceInfoService);
-        services.add(currentTimeService);
-        services.add(hearingAidService);
-        services.add(bloodPressureService); // 新增
-        services.add(deviceTimeService); // 新增
-        services.add(glucoseService);
-        services.add(cyclingPowerService);
-        services.add(environmentalSensingService);
-        services.add(pulseOximeterService);
-        services.add(weightScaleService); // 新增
-        services.add(fitnessMachineService);
-
-        services.add(createHealthScaleC2Service());
-        services.add(createStandardBatteryService()); // 標準電池服務
-        services.add(createStandardDeviceInfoService()); // 標準設備資訊服務
+        for (LazyProfile<BluetoothGattService> profile : profiles) {
+            services.add(build(profile));
+        }
+        return services;
+    }
 
+    /**
+     * 只取得指定名稱的 profile 的服務 (名稱見 {@link #getProfileNames()})，其他 profile 不會被建立，
+     * 其模擬任務也不會執行。
+     */
+    public List<BluetoothGattService> getServices(List<String> profileNames) {
+        List<BluetoothGattService> services = new ArrayList<>();
+        for (LazyProfile<BluetoothGattService> profile : profiles) {
+            if (profileNames.contains(profile.getName())) {
+                services.add(build(profile));
+            }
+        }
         return services;
     }
 
+    public List<String> getProfileNames() {
+        List<String> names = new ArrayList<>();
+        for (LazyProfile<BluetoothGattService> profile : profiles) {
+            names.add(profile.getName());
+        }
+        return names;
+    }
+
     /**
-     * 從 ViewModel 注入 GattServer 和連線裝置列表的引用
+     * 每個 profile 是否已建立以及建立所花的時間。
      */
-    public void setGattServer(BluetoothGattServer server, HashSet<BluetoothDevice> devices) {
-        this.gattServer = server;
-        this.connectedDevices = devices;
+    public List<LazyProfile<BluetoothGattService>> getProfiles() {
+        return new ArrayList<>(profiles);
+    }
+
+    private BluetoothGattService build(LazyProfile<BluetoothGattService> profile) {
+        boolean built = profile.isBuilt();
+        BluetoothGattService service = profile.get();
+        if (!built) {
+            Log.d(TAG, "Profile 建立完成: " + profile);
+        }
+        return service;
+    }
+
+    /**
+     * 從 ViewModel 注入 GATT 傳輸層。
+     * ServicesManager 會註冊為傳輸層的監聽者，自行追蹤連線、訂閱與已加入的服務。
+     * 傳入 null 表示與目前的傳輸層脫離。
+     */
+    public synchronized void setTransport(GattTransport<BluetoothGattService, BluetoothGattCharacteristic> transport) {
+        if (this.transport != null) {
+            this.transport.removeCallback(transportCallback);
+        }
+        if (this.historyTransfer != null) {
+            this.historyTransfer.close();
+            this.historyTransfer = null;
+        }
+        if (this.glucoseRacp != null) {
+            this.glucoseRacp.close();
+            this.glucoseRacp = null;
+        }
+        if (this.notificationQueue != null) {
+            this.notificationQueue.close();
+            this.notificationQueue = null;
+            this.fanOut = null;
+        }
+        this.transport = transport;
+        this.subscriptions.clear();
+        this.registeredServices.clear();
+        this.characteristicsByUuid.clear();
+        this.characteristicsByService.clear();
+        if (transport != null) {
+            transport.addCallback(transportCallback);
+            this.notificationQueue = new NotificationQueue<>(transport, NotificationQueue.Config.defaults());
+            this.fanOut = new NotificationFanOut<>(subscriptions, notificationQueue);
+            this.historyTransfer = new HistoryTransfer<>(transport, notificationQueue, cf597History,
+                    CF597_HISTORY_WINDOW_PACKETS, stats -> Log.i(TAG, "CF597 歷史傳輸結束: " + stats));
+            this.glucoseRacp = new RecordAccessControlPoint<>(transport, notificationQueue, glucoseRecords,
+                    GLUCOSE_RACP_WINDOW_PACKETS, new RecordAccessControlPoint.Listener() {
+                        @Override
+                        public void onRecordsDeleted(String deviceId, byte[] command, int deleted) {
+                            // 刪除指令也寫入日誌，重新啟動後重播
+                            journal(RACP_UUID, command);
+                            Log.i(TAG, deviceId + " 刪除了 " + deleted + " 筆血糖記錄，剩下 " + glucoseRecords.size() + " 筆。");
+                        }
+
+                        @Override
+                        public void onReportFinished(String deviceId, int records, long elapsedNanos, boolean complete) {
+                            Log.i(TAG, "RACP 記錄傳送" + (complete ? "完成" : "中斷") + ": " + deviceId + " " + records + " 筆，耗時 "
+                                    + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms");
+                        }
+                    });
+        }
     }
 
     /**
-     * 開始模擬數據變化
+     * 開始模擬數據變化。
+     * 所有感測器共用 {@link SimulationScheduler} 的小型執行緒池，以固定頻率 (含漂移補償) 執行。
      */
     public void startSimulation() {
-        if (isSimulating) {
+        synchronized (this) {
+            if (journalOpening) {
+                simulationPending = true;
+                Log.d(TAG, "量測日誌重建完成後才開始模擬。");
+                return;
+            }
+        }
+        if (scheduler.isRunning()) {
             Log.d(TAG, "模擬已經在運行中。");
             return;
         }
-        isSimulating = true;
+        scheduler.start();
+        synchronized (fitnessMachineControl) {
+            fitnessMachineControl.reset();
+            fitnessMachineTotalDistance = 0;
+        }
 
         // 模擬電池電量變化
-        batterySimulatorThread = new Thread(() -> {
-            while (isSimulating) {
-                int batteryLevel = 20 + random.nextInt(80);
-                byte[] value = GattValueBuilder.forBatteryLevel(batteryLevel);
-                batteryLevelCharacteristic.setValue(value);
-                notifyCharacteristicChanged(batteryLevelCharacteristic, false);
-
-                try {
-                    Thread.sleep(30000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
+        scheduleForProfile(batteryService, "battery", 0, 30000, () -> {
+            int batteryLevel = 20 + random.nextInt(80);
+            byte[] value = GattValueBuilder.forBatteryLevel(batteryLevel);
+            publishSample(batteryLevelCharacteristic, value, false);
         });
-        batterySimulatorThread.start();
 
         // 模擬心率變化
-        heartRateSimulatorThread = new Thread(() -> {
-            while (isSimulating) {
-                int heartRate = 60 + random.nextInt(15);
-                byte[] value = GattValueBuilder.forHeartRateMeasurement(heartRate);
-                heartRateMeasurementCharacteristic.setValue(value);
-
-                notifyCharacteristicChanged(heartRateMeasurementCharacteristic, false);
-
-                try {
-                    Thread.sleep(29000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
+        scheduleForProfile(heartRateService, "heartRate", 0, 29000, () -> {
+            int heartRate = 60 + random.nextInt(15);
+            byte[] buffer = GattValueBuilder.pooledBuffer();
+            int length = GattValueBuilder.forHeartRateMeasurement(buffer, 0, heartRate);
+            publishSample(heartRateMeasurementCharacteristic, buffer, length, false);
         });
-        heartRateSimulatorThread.start();
 
         // 模擬溫度變化
-        temperatureSimulatorThread = new Thread(() -> {
-            while (isSimulating) {
-                float temperature = 36.5f + random.nextFloat();
-                byte[] value = GattValueBuilder.forTemperatureMeasurement(temperature);
-                temperatureMeasurementCharacteristic.setValue(value);
-                notifyCharacteristicChanged(temperatureMeasurementCharacteristic, true);
-
-                try {
-                    Thread.sleep(60000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
-        });
-        temperatureSimulatorThread.start();
-
-        // 模擬血壓變化
-        bloodPressureSimulatorThread = new Thread(() -> {
-            while (isSimulating) {
-                float systolic = 110 + random.nextInt(20);
-                float diastolic = 70 + random.nextInt(15);
-                float map = diastolic + (systolic - diastolic) / 3.0f;
-                float pulse = 65 + random.nextInt(10);
-                byte[] value = GattValueBuilder.forBloodPressureMeasurement(systolic, diastolic, map, pulse, true);
-                bloodPressureMeasurementCharacteristic.setValue(value);
-                notifyCharacteristicChanged(bloodPressureMeasurementCharacteristic, true); // 血壓使用Indication
-
-                try {
-                    // 血壓測量通常不是連續的，間隔可以長一點
-                    Thread.sleep(45000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
+        scheduleForProfile(healthThermometerService, "temperature", 0, 60000, () -> {
+            float temperature = 36.5f + random.nextFloat();
+            byte[] value = GattValueBuilder.forTemperatureMeasurement(temperature);
+            publishSample(temperatureMeasurementCharacteristic, value, true);
         });
-        bloodPressureSimulatorThread.start();
-
-        deviceTimeSimulatorThread = new Thread(() -> {
-            while (isSimulating) {
-                byte[] value = GattValueBuilder.forDeviceTime(Calendar.getInstance());
-                deviceTimeCharacteristic.setValue(value);
-                // Device Time 通常是可讀/可寫，但不一定會通知
-                // 如果需要通知，取消下面的註解
-                // notifyCharacteristicChanged(deviceTimeCharacteristic, false);
-
-                try {
-                    // 每秒更新一次時間
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
+
+        // 模擬血壓變化 (血壓測量通常不是連續的，間隔可以長一點)
+        scheduleForProfile(bloodPressureService, "bloodPressure", 0, 45000, () -> {
+            float systolic = 110 + random.nextInt(20);
+            float diastolic = 70 + random.nextInt(15);
+            float map = diastolic + (systolic - diastolic) / 3.0f;
+            float pulse = 65 + random.nextInt(10);
+            byte[] value = GattValueBuilder.forBloodPressureMeasurement(systolic, diastolic, map, pulse, true);
+            publishSample(bloodPressureMeasurementCharacteristic, value, true); // 血壓使用Indication
         });
-        deviceTimeSimulatorThread.start();
-
-        glucoseSimulatorThread = new Thread(() -> {
-            while (isSimulating) {
-                // 模擬飯前血糖值 (80-120 mg/dL)
-                float glucoseLevel = 80 + random.nextInt(40);
-                byte[] value = GattValueBuilder.forGlucoseMeasurement(glucoseSequence++, glucoseLevel, false, true);
-                glucoseMeasurementCharacteristic.setValue(value);
-                // 血糖測量使用 Notification
-                notifyCharacteristicChanged(glucoseMeasurementCharacteristic, false);
-
-                try {
-                    // 血糖測量間隔較長
-                    Thread.sleep(65000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
+
+        // 每秒更新一次時間
+        scheduleForProfile(deviceTimeService, "deviceTime", 0, 1000, () -> {
+            byte[] value = GattValueBuilder.forDeviceTime();
+            setReadableValue(deviceTimeCharacteristic, value);
+            journal(deviceTimeCharacteristic.getUuid(), value);
+            // Device Time 通常是可讀/可寫，但不一定會通知
+            // 如果需要通知，取消下面的註解
+            // notifyCharacteristicChanged(deviceTimeCharacteristic, false);
         });
-        glucoseSimulatorThread.start();
-
-        pulseOximeterSimulatorThread = new Thread(() -> {
-            while (isSimulating) {
-                // 模擬一個正常的血氧值 (95-99%) 和脈率 (60-90 bpm)
-                float spo2 = 95 + random.nextInt(5);
-                float pulseRate = 60 + random.nextInt(30);
-
-                byte[] value = GattValueBuilder.forPulseOximeterSpotCheck(spo2, pulseRate, true);
-                pulseOximeterMeasurementCharacteristic.setValue(value);
-                // 血氧測量使用 Notification
-                notifyCharacteristicChanged(pulseOximeterMeasurementCharacteristic, false);
-
-                try {
-                    // 血氧測量間隔
-                    Thread.sleep(15000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
+
+        // 血糖測量間隔較長
+        scheduleForProfile(glucoseService, "glucose", 0, 65000, () -> {
+            // 模擬飯前血糖值 (80-120 mg/dL)
+            float glucoseLevel = 80 + random.nextInt(40);
+            byte[] value = GattValueBuilder.forGlucoseMeasurement(glucoseSequence++, glucoseLevel, false, true);
+            glucoseRecords.append(value);
+            // 血糖測量使用 Notification
+            publishSample(glucoseMeasurementCharacteristic, value, false);
         });
-        pulseOximeterSimulatorThread.start();
-
-        weightScaleSimulatorThread = new Thread(() -> {
-            while (isSimulating) {
-                // 模擬一個 65.0kg 到 66.0kg 之間的體重
-                float weight = 65.0f + random.nextFloat();
-                byte[] value = GattValueBuilder.forWeightScaleMeasurement(weight);
-                weightScaleMeasurementCharacteristic.setValue(value);
-                // 體重測量通常使用 Indication
-                notifyCharacteristicChanged(weightScaleMeasurementCharacteristic, true);
-
-                try {
-                    // 體重測量間隔較長
-                    Thread.sleep(55000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
+
+        // 血氧測量間隔
+        scheduleForProfile(pulseOximeterService, "pulseOximeter", 0, 15000, () -> {
+            // 模擬一個正常的血氧值 (95-99%) 和脈率 (60-90 bpm)
+            float spo2 = 95 + random.nextInt(5);
+            float pulseRate = 60 + random.nextInt(30);
+            byte[] value = GattValueBuilder.forPulseOximeterSpotCheck(spo2, pulseRate, true);
+            // 血氧測量使用 Notification
+            publishSample(pulseOximeterMeasurementCharacteristic, value, false);
         });
-        weightScaleSimulatorThread.start(); // 新增
-
-        environmentalSensingSimulatorThread = new Thread(() -> {
-            while (isSimulating) {
-                // 模擬溫度: 20.0 - 25.0 °C
-                float temperature = 20.0f + random.nextFloat() * 5;
-                // 模擬濕度: 40.0 - 60.0 %
-                float humidity = 40.0f + random.nextFloat() * 20;
-                // 模擬氣壓: 1010.0 - 1015.0 hPa
-                float pressure = 1010.0f + random.nextFloat() * 5;
-                // 模擬風寒: 比實際溫度低 2 度
-                int windChill = (int) temperature - 2;
-
-                // 更新特徵值
-                essTemperatureCharacteristic.setValue(GattValueBuilder.forTemperature(temperature));
-                essHumidityCharacteristic.setValue(GattValueBuilder.forHumidity(humidity));
-                essPressureCharacteristic.setValue(GattValueBuilder.forPressure(pressure));
-                essWindChillCharacteristic.setValue(GattValueBuilder.forWindChill(windChill));
-
-                // 發送通知 (假設這些特徵都支援 Notify)
-                notifyCharacteristicChanged(essTemperatureCharacteristic, false);
-                notifyCharacteristicChanged(essHumidityCharacteristic, false);
-                notifyCharacteristicChanged(essPressureCharacteristic, false);
-                notifyCharacteristicChanged(essWindChillCharacteristic, false);
-
-                try {
-                    // 環境數據不需要太頻繁更新
-                    Thread.sleep(10000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
+
+        // 體重測量間隔較長
+        scheduleForProfile(weightScaleService, "weightScale", 0, 55000, () -> {
+            // 模擬一個 65.0kg 到 66.0kg 之間的體重
+            float weight = 65.0f + random.nextFloat();
+            byte[] value = GattValueBuilder.forWeightScaleMeasurement(weight);
+            // 體重測量通常使用 Indication
+            publishSample(weightScaleMeasurementCharacteristic, value, true);
         });
-        environmentalSensingSimulatorThread.start();
-
-        fitnessMachineSimulatorThread = new Thread(() -> {
-            int totalDistance = 0;
-            while (isSimulating) {
-                // 模擬基礎數據
-                float speed = 25.0f + (random.nextFloat() * 10); // 25-35 km/h
-                float cadence = 85.0f + (random.nextFloat() * 10); // 85-95 rpm
-                int heartRate = 120 + random.nextInt(20); // 120-140 bpm
-                totalDistance += (int) (speed * 1000 / 3600); // 簡單累加距離 (m)
-
-                // 根據目標阻力簡單計算功率
-                int basePower = 150;
-                int power = basePower + (targetResistanceLevel * 10) + random.nextInt(10);
-
-                // --- 使用擴充後的 Builder ---
-                byte[] value = GattValueBuilder.forIndoorBikeData(speed, cadence, power, heartRate, totalDistance);
-                indoorBikeDataCharacteristic.setValue(value);
-                notifyCharacteristicChanged(indoorBikeDataCharacteristic, false); // Notify
-
-                try {
-                    Thread.sleep(1000); // FTMS 數據通常每秒更新一次
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
+
+        // 環境數據不需要太頻繁更新
+        scheduleForProfile(environmentalSensingService, "environmentalSensing", 0, 10000, () -> {
+            // 模擬溫度: 20.0 - 25.0 °C
+            float temperature = 20.0f + random.nextFloat() * 5;
+            // 模擬濕度: 40.0 - 60.0 %
+            float humidity = 40.0f + random.nextFloat() * 20;
+            // 模擬氣壓: 1010.0 - 1015.0 hPa
+            float pressure = 1010.0f + random.nextFloat() * 5;
+            // 模擬風寒: 比實際溫度低 2 度
+            int windChill = (int) temperature - 2;
+
+            // 更新特徵值並發送通知 (假設這些特徵都支援 Notify)；每個值在 publishSample 中就複製走，可以共用同一個緩衝區
+            byte[] buffer = GattValueBuilder.pooledBuffer();
+            publishSample(essTemperatureCharacteristic, buffer, GattValueBuilder.forTemperature(buffer, 0, temperature), false);
+            publishSample(essHumidityCharacteristic, buffer, GattValueBuilder.forHumidity(buffer, 0, humidity), false);
+            publishSample(essPressureCharacteristic, buffer, GattValueBuilder.forPressure(buffer, 0, pressure), false);
+            publishSample(essWindChillCharacteristic, buffer, GattValueBuilder.forWindChill(buffer, 0, windChill), false);
         });
-        fitnessMachineSimulatorThread.start();
-        startCf597Simulation();
+
+        // FTMS 數據通常每秒更新一次
+        // 控制點改變目標時會另外立刻送出一筆 (見 fitnessMachineControl)
+        scheduleForProfile(fitnessMachineService, "fitnessMachine", 0, 1000, () -> publishIndoorBikeData(true));
+        if (isProfileBuilt(PROFILE_HEALTH_SCALE_C2)) {
+            startCf597Simulation();
+        }
         Log.i(TAG, "數據模擬已開始。");
     }
 
     /**
-     * 停止模擬數據變化
+     * 只替已建立的 profile 排程模擬任務；沒有被使用的 profile 不會建立，也不會產生數據。
      */
-    public void stopSimulation() {
-        isSimulating = false;
-        if (batterySimulatorThread != null) batterySimulatorThread.interrupt();
-        if (heartRateSimulatorThread != null) heartRateSimulatorThread.interrupt();
-        if (temperatureSimulatorThread != null) temperatureSimulatorThread.interrupt();
-        if (weightScaleSimulatorThread != null) weightScaleSimulatorThread.interrupt();
-        if (glucoseSimulatorThread != null) glucoseSimulatorThread.interrupt();
-        if (pulseOximeterSimulatorThread != null) pulseOximeterSimulatorThread.interrupt(); // 新增
-        if (cyclingPowerSimulatorThread != null) cyclingPowerSimulatorThread.interrupt();
-        if (environmentalSensingSimulatorThread != null) environmentalSensingSimulatorThread.interrupt(); // 新增
-        if (fitnessMachineSimulatorThread != null) fitnessMachineSimulatorThread.interrupt(); // 新增
-        if (cf597SimulatorThread != null) {
-            cf597SimulatorThread.interrupt();
-            cf597SimulatorThread = null;
+    private void scheduleForProfile(LazyProfile<BluetoothGattService> profile, String name,
+                                    long initialDelayMillis, long periodMillis, Runnable task) {
+        if (!profile.isBuilt()) {
+            Log.d(TAG, "略過未建立的 profile 的模擬任務: " + name);
+            return;
         }
-        Log.i(TAG, "數據模擬已停止。");
+        scheduler.scheduleAtFixedRate(name, initialDelayMillis, periodMillis, task);
     }
 
     /**
-     * 輔助方法：發送通知/指示給所有已訂閱的裝置
+     * 停止模擬數據變化。
+     * 會取消所有排程中的任務並等待執行中的任務結束，之後可以安全地再次呼叫 {@link #startSimulation()}。
      */
-    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
-    private void notifyCharacteristicChanged(BluetoothGattCharacteristic characteristic, boolean isIndication) {
-        if (gattServer == null || connectedDevices == null || connectedDevices.isEmpty()) {
-            return;
+    public void stopSimulation() {
+        synchronized (this) {
+            simulationPending = false;
         }
-
-        UUID cccdUuid = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
-        BluetoothGattDescriptor cccd = characteristic.getDescriptor(cccdUuid);
-        if (cccd == null) return;
-
-        byte[] valueToCompare = isIndication ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE : BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
-
-        for (BluetoothDevice device : connectedDevices) {
-            // 這是一個簡化的檢查，在實際應用中，你需要在 onDescriptorWriteRequest 中為每個裝置儲存其訂閱狀態
-            // 這裡我們假設客戶端會正確寫入描述符的值，我們直接讀取它
-            if (cccd.getValue() != null && java.util.Arrays.equals(cccd.getValue(), valueToCompare)) {
-                try {
-                    gattServer.notifyCharacteristicChanged(device, characteristic, isIndication);
-                } catch (SecurityException e) {
-                    Log.e(TAG, "發送通知失敗，缺少權限", e);
-                }
+        if (!scheduler.isRunning()) return;
+        for (SimulationScheduler.TaskStats stats : scheduler.getStats()) {
+            Log.d(TAG, "模擬任務統計: " + stats);
+        }
+        for (NotificationQueue.DeviceStats stats : getNotificationStats()) {
+            Log.d(TAG, "通知佇列統計: " + stats);
+        }
+        for (WriteDispatcher.HandlerStats stats : writeDispatcher.getStats()) {
+            Log.d(TAG, "控制點統計: " + stats);
+        }
+        Log.d(TAG, "Long Write 統計: " + preparedWrites.getStats());
+        NotificationFanOut.Stats fanOutStats = getFanOutStats();
+        if (fanOutStats != null) {
+            Log.d(TAG, "扇出統計: " + fanOutStats);
+            for (NotificationFanOut.DeviceStats stats : fanOutStats.devices) {
+                Log.d(TAG, "扇出統計: " + stats);
             }
         }
+        if (!scheduler.stop(SCHEDULER_STOP_TIMEOUT_MS)) {
+            Log.w(TAG, "部分模擬任務未能在時限內結束。");
+        }
+        MeasurementJournal journal = this.journal;
+        if (journal != null) {
+            // 模擬停止時才寫回儲存裝置，平常附加記錄不做任何系統呼叫
+            journal.flush();
+            Log.d(TAG, "量測日誌統計: " + journal.getStats());
+        }
+        Log.i(TAG, "數據模擬已停止。");
+    }
+
+    /**
+     * 取得每個模擬任務的抖動 (jitter) 統計。
+     */
+    public List<SimulationScheduler.TaskStats> getSimulationStats() {
+        return scheduler.getStats();
     }
 
-    public void handleFitnessMachineControlCommand(byte[] command) {
-        if (command == null || command.length == 0) return;
+    /**
+     * 取得每個裝置的通知佇列統計。
+     */
+    public List<NotificationQueue.DeviceStats> getNotificationStats() {
+        NotificationQueue<BluetoothGattService, BluetoothGattCharacteristic> queue = this.notificationQueue;
+        return queue == null ? new ArrayList<NotificationQueue.DeviceStats>() : queue.getStats();
+    }
 
-        ByteBuffer buffer = ByteBuffer.wrap(command).order(ByteOrder.LITTLE_ENDIAN);
-        byte opCode = buffer.get();
+    /**
+     * 取得扇出統計；沒有傳輸層時回傳 null。
+     */
+    public NotificationFanOut.Stats getFanOutStats() {
+        NotificationFanOut<BluetoothGattService, BluetoothGattCharacteristic> fanOut = this.fanOut;
+        return fanOut == null ? null : fanOut.getStats();
+    }
 
-        switch (opCode) {
-            case 0x04: // Set Target Resistance Level
-                if (buffer.remaining() >= 1) {
-                    targetResistanceLevel = buffer.get() & 0xFF; // 讀取 uint8
-                    Log.i(TAG, "FTMS: 客戶端設定目標阻力為: " + targetResistanceLevel);
-                    // 在這裡，你可以根據 targetResistanceLevel 來調整功率的模擬計算
-                }
-                break;
-            // 在這裡可以新增其他 OpCode 的處理, 如 0x05 (Set Target Power)
-            default:
-                Log.w(TAG, "FTMS: 收到未處理的控制命令 OpCode: " + opCode);
-                break;
+    /**
+     * 輔助方法：發送通知/指示給所有已訂閱的裝置。
+     * 目前的特徵值只複製一次，由 {@link NotificationFanOut} 分派給在 {@link SubscriptionRegistry} 中訂閱了此特徵的裝置，
+     * 再交給 {@link NotificationQueue} 依各裝置的 onNotificationSent 節奏送出。
+     */
+    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+    void notifyCharacteristicChanged(BluetoothGattCharacteristic characteristic, boolean isIndication) {
+        publish(characteristic, getReadableValue(characteristic), isIndication);
+    }
+
+    /**
+     * 把 value 扇出給所有訂閱的裝置 (不經過共用的特徵值，避免被其他執行緒改寫)。
+     */
+    private void publish(BluetoothGattCharacteristic characteristic, byte[] value, boolean isIndication) {
+        NotificationFanOut<BluetoothGattService, BluetoothGattCharacteristic> fanOut = this.fanOut;
+        if (fanOut == null || value == null) {
+            return;
         }
+        fanOut.publish(characteristic, value, isIndication);
     }
 
+    /**
+     * 取得某裝置對某特徵的 CCCD 值。
+     */
+    public byte[] getCccdValue(String deviceId, BluetoothGattCharacteristic characteristic) {
+        return subscriptions.cccdValue(deviceId, characteristic);
+    }
 
-    // --- 所有服務的建立方法都移到這裡 ---
+    /**
+     * 先更新特徵值，再發送通知/指示
+     */
+    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+    private void notifyCharacteristicChanged(BluetoothGattCharacteristic characteristic, byte[] value, boolean isIndication) {
+        setReadableValue(characteristic, value);
+        publish(characteristic, value, isIndication);
+    }
 
+    // --- 控制點寫入 ---
+
+    private void registerWriteHandlers() {
+        writeDispatcher.register(FTMS_CONTROL_POINT_UUID, "ftmsControlPoint",
+                this::handleFitnessMachineControlCommand);
+        writeDispatcher.register(HEALTH_SCALE_C2_WRITE_UUID, "cf597Command",
+                (deviceId, characteristic, value) -> handleHealthScaleC2Command(deviceId, value));
+        writeDispatcher.register(PRESET_CONTROL_POINT_UUID, "hearingAidPresetControlPoint",
+                (deviceId, characteristic, value) -> handlePresetControlPoint(value));
+        writeDispatcher.register(DEVICE_TIME_CONTROL_POINT_UUID, "deviceTimeControlPoint",
+                (deviceId, characteristic, value) -> handleDeviceTimeControlPoint(value));
+        writeDispatcher.register(HEART_RATE_CONTROL_POINT_UUID, "heartRateControlPoint",
+                (deviceId, characteristic, value) -> handleHeartRateControlPoint(value));
+        writeDispatcher.register(RACP_UUID, "glucoseRacp",
+                this::handleGlucoseRacp);
+    }
 
     /**
-     * 根據 CF597 協議規格，建立自定義的健康體脂秤服務 (0xFFF0)
+     * 將特徵寫入交給該特徵註冊的處理器 (以特徵 UUID 查表)。
+     * @return 要回應給客戶端的 ATT 狀態；沒有處理器的特徵回傳成功。
      */
-    private BluetoothGattService createHealthScaleC2Service() {
-        BluetoothGattService service = new BluetoothGattService(HEALTH_SCALE_C2_SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    public int dispatchCharacteristicWrite(String deviceId, BluetoothGattCharacteristic characteristic, byte[] value) {
+        return writeDispatcher.dispatch(deviceId, characteristic.getUuid(), characteristic, value);
+    }
 
-        // 1. Write Characteristic (0xFFF1) - App -> 設備
-        BluetoothGattCharacteristic writeCharacteristic = new BluetoothGattCharacteristic(
-                HEALTH_SCALE_C2_WRITE_UUID,
-                BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
-                BluetoothGattCharacteristic.PERMISSION_WRITE);
-        service.addCharacteristic(writeCharacteristic);
+    /**
+     * 暫存 Long Write 的一個片段 (Prepare Write Request)，提交前不會交給處理器。
+     * @return 要回應給客戶端的 ATT 狀態。
+     */
+    public int prepareCharacteristicWrite(String deviceId, BluetoothGattCharacteristic characteristic, int offset, byte[] value) {
+        return preparedWrites.prepare(deviceId, characteristic, offset, value);
+    }
 
-        // 2. Notify Characteristic (0xFFF4) - 設備 -> App
-        BluetoothGattCharacteristic notifyCharacteristic = new BluetoothGattCharacteristic(
-                HEALTH_SCALE_C2_NOTIFY_UUID,
-                BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-                0 /* Permissions are not relevant for notifications */);
-        BluetoothGattDescriptor cccd = new BluetoothGattDescriptor(CCCD_UUID, BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
-        cccd.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-        notifyCharacteristic.addDescriptor(cccd);
-        service.addCharacteristic(notifyCharacteristic);
+    /**
+     * Execute Write Request：提交時把每個特徵重組後的完整值交給它的處理器；取消時丟棄所有片段。
+     * @return 要回應給客戶端的 ATT 狀態。
+     */
+    public int executeCharacteristicWrites(String deviceId, boolean execute) {
+        return preparedWrites.execute(deviceId, execute, this::dispatchCharacteristicWrite);
+    }
 
-        // 3. Secondary RWN Characteristic (0xFFF2) - 次要通道
-        BluetoothGattCharacteristic rwnCharacteristic = new BluetoothGattCharacteristic(
-                HEALTH_SCALE_C2_RWN_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
-        BluetoothGattDescriptor rwnCccd = new BluetoothGattDescriptor(CCCD_UUID, BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
-        rwnCccd.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-        rwnCharacteristic.addDescriptor(rwnCccd);
-        rwnCharacteristic.setValue(new byte[]{0x00}); // 初始值
-        service.addCharacteristic(rwnCharacteristic);
+    /**
+     * 取得每個控制點處理器的呼叫次數與處理時間。
+     */
+    public List<WriteDispatcher.HandlerStats> getWriteHandlerStats() {
+        return writeDispatcher.getStats();
+    }
 
-        return service;
+    /**
+     * FTMS Control Point (0x2AD9)：客戶端必須先啟用指示 (回應以指示送出)，否則回應 CCCD Improperly Configured (0xFD)。
+     * 指令交給 {@link FitnessMachineControlPoint} 在 FTMS 執行緒上處理，這裡只回應 ATT 寫入。
+     */
+    private int handleFitnessMachineControlCommand(final String deviceId, BluetoothGattCharacteristic characteristic, final byte[] command) {
+        if ((subscriptions.cccdValue(deviceId, characteristic)[0] & 0x02) == 0) {
+            return 0xFD;
+        }
+        final long writeNanos = System.nanoTime();
+        fitnessMachineExecutor.execute(() -> fitnessMachineControl.onWrite(deviceId, command, writeNanos));
+        return WriteDispatcher.STATUS_SUCCESS;
     }
 
     /**
-     * 建立標準的電池服務 (0x180F)，讓 App 可以讀取電量
+     * 依 FTMS 控制點的目前目標產生一筆 Indoor Bike Data 並通知。
+     * @param tick 週期性更新 (累加距離)；false 表示目標改變時的額外更新。
      */
-    private BluetoothGattService createStandardBatteryService() {
-        BluetoothGattService service = new BluetoothGattService(BATTERY_SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    private void publishIndoorBikeData(boolean tick) {
+        BluetoothGattCharacteristic characteristic = indoorBikeDataCharacteristic;
+        if (characteristic == null) return;
+        // 週期性更新與控制點執行緒可能同時送出，以控制點物件為鎖讓特徵值與距離保持一致
+        synchronized (fitnessMachineControl) {
+            boolean moving = fitnessMachineControl.isMoving();
+            // 模擬基礎數據
+            float speed = moving ? 25.0f + (random.nextFloat() * 10) : 0; // 25-35 km/h
+            float cadence = moving ? 85.0f + (random.nextFloat() * 10) : 0; // 85-95 rpm
+            int heartRate = 120 + random.nextInt(20); // 120-140 bpm
+            if (tick) {
+                fitnessMachineTotalDistance += (int) (speed * 1000 / 3600); // 簡單累加距離 (m)
+            }
+            // ERG 模式輸出目標功率；阻力與騎乘模擬模式依目標計算，再加上少量浮動
+            int power = fitnessMachineControl.power(speed, 150);
+            if (moving && fitnessMachineControl.getMode() != FitnessMachineControlPoint.Mode.POWER) {
+                power += random.nextInt(10);
+            }
+            byte[] buffer = GattValueBuilder.pooledBuffer();
+            int length = GattValueBuilder.forIndoorBikeData(buffer, 0, speed, cadence, power, heartRate, fitnessMachineTotalDistance);
+            publishSample(characteristic, buffer, length, false); // Notify
+        }
+    }
 
-        BluetoothGattCharacteristic batteryLevel = new BluetoothGattCharacteristic(
-                BATTERY_LEVEL_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
-                BluetoothGattCharacteristic.PERMISSION_READ);
+    /**
+     * CF597 指令 (0xFFF1)：目前只處理歷史數據請求 (F2)，由 0xFFF4 串流送出所有歷史記錄 (見 {@link HistoryTransfer})。
+     * {@code F2} 從上次中斷的位置續傳 (沒有時從頭開始)；{@code F2 index(2, LE)} 從指定的記錄索引開始。
+     */
+    private int handleHealthScaleC2Command(String deviceId, byte[] value) {
+        if (value == null || value.length == 0 || value[0] != (byte) 0xF2) {
+            return WriteDispatcher.STATUS_SUCCESS;
+        }
+        HistoryTransfer<BluetoothGattService, BluetoothGattCharacteristic> historyTransfer = this.historyTransfer;
+        BluetoothGattCharacteristic characteristic = characteristicsByUuid.get(HEALTH_SCALE_C2_NOTIFY_UUID);
+        if (historyTransfer == null || characteristic == null
+                || (subscriptions.cccdValue(deviceId, characteristic)[0] & 0x01) == 0) {
+            Log.w(TAG, "收到歷史數據請求 (F2)，但 " + deviceId + " 沒有訂閱 0xFFF4。");
+            return WriteDispatcher.STATUS_SUCCESS;
+        }
+        if (value.length >= 3) {
+            int from = (value[1] & 0xFF) | ((value[2] & 0xFF) << 8);
+            Log.d(TAG, "收到歷史數據請求 (F2)，從第 " + from + " 筆開始傳送 " + cf597History.size() + " 筆記錄...");
+            historyTransfer.start(deviceId, characteristic, from);
+        } else {
+            Log.d(TAG, "收到歷史數據請求 (F2)，從第 " + Math.max(0, historyTransfer.getResumeIndex(deviceId)) + " 筆開始傳送...");
+            historyTransfer.resume(deviceId, characteristic);
+        }
+        return WriteDispatcher.STATUS_SUCCESS;
+    }
 
-        BluetoothGattDescriptor cccd = new BluetoothGattDescriptor(CCCD_UUID, BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE);
-        cccd.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-        batteryLevel.addDescriptor(cccd);
+    /**
+     * Hearing Aid Preset Control Point (0x2FDB)：Set Active Preset (0x05/0x06)、Set Next (0x07/0x09)、Set Previous (0x08/0x0A)。
+     * 切換後以 Active Preset Index (0x2FDC) 通知。
+     */
+    private int handlePresetControlPoint(byte[] value) {
+        if (value == null || value.length == 0) return 0x84; // Invalid Parameters Length
+        int index;
+        synchronized (this) {
+            switch (value[0]) {
+                case 0x05: // Set Active Preset
+                case 0x06: // Set Active Preset - Synchronized Locally
+                    if (value.length != 2) return 0x84;
+                    index = value[1] & 0xFF;
+                    if (index < 1 || index > HEARING_AID_PRESET_COUNT) return 0x83; // Preset Operation Not Possible
+                    break;
+                case 0x07: // Set Next Preset
+                case 0x09:
+                    index = activePresetIndex % HEARING_AID_PRESET_COUNT + 1;
+                    break;
+                case 0x08: // Set Previous Preset
+                case 0x0A:
+                    index = activePresetIndex == 1 ? HEARING_AID_PRESET_COUNT : activePresetIndex - 1;
+                    break;
+                default:
+                    return 0x80; // Invalid Opcode
+            }
+            activePresetIndex = index;
+        }
+        Log.i(TAG, "Hearing Aid: 切換到預設 " + index);
+        BluetoothGattCharacteristic characteristic = activePresetIndexCharacteristic;
+        if (characteristic != null) {
+            notifyCharacteristicChanged(characteristic, GattValueBuilder.forActivePresetIndex(index), false);
+        }
+        return WriteDispatcher.STATUS_SUCCESS;
+    }
 
-        batteryLevel.setValue(new byte[]{(byte) 98}); // 設置初始電量為 98%
-        service.addCharacteristic(batteryLevel);
+    /**
+     * Device Time Control Point (0x2B91)：目前只記錄，時間仍由模擬任務每秒更新。
+     */
+    private int handleDeviceTimeControlPoint(byte[] value) {
+        if (value == null || value.length == 0) return WriteDispatcher.STATUS_SUCCESS;
+        Log.d(TAG, "Device Time: 收到控制點指令 OpCode: " + (value[0] & 0xFF));
+        return WriteDispatcher.STATUS_SUCCESS;
+    }
 
-        return service;
+    /**
+     * Heart Rate Control Point (0x2A39)：只定義了 Reset Energy Expended (0x01)，其他值回應 Control Point Not Supported (0x80)。
+     */
+    private int handleHeartRateControlPoint(byte[] value) {
+        if (value == null || value.length != 1 || value[0] != 0x01) return 0x80;
+        // 模擬的心率測量不含 Energy Expended，沒有累計值需要歸零
+        Log.d(TAG, "Heart Rate: Reset Energy Expended");
+        return WriteDispatcher.STATUS_SUCCESS;
     }
 
     /**
-     * 建立標準的設備資訊服務 (0x180A)，讓 App 可以讀取版本號
+     * Glucose Record Access Control Point (0x2A52)：見 {@link RecordAccessControlPoint}。
+     * 客戶端必須先啟用 RACP 的指示 (回應以指示送出)，否則回應 CCCD Improperly Configured (0xFD)。
      */
-    private BluetoothGattService createStandardDeviceInfoService() {
-        BluetoothGattService service = new BluetoothGattService(DEVICE_INFO_SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    private int handleGlucoseRacp(String deviceId, BluetoothGattCharacteristic characteristic, byte[] value) {
+        RecordAccessControlPoint<BluetoothGattService, BluetoothGattCharacteristic> racp = this.glucoseRacp;
+        BluetoothGattCharacteristic measurement = findRegisteredCharacteristic(GLUCOSE_MEASUREMENT_UUID);
+        if (racp == null || measurement == null) return WriteDispatcher.STATUS_SUCCESS;
+        if ((subscriptions.cccdValue(deviceId, characteristic)[0] & 0x02) == 0) {
+            return 0xFD;
+        }
+        return racp.onWrite(deviceId, measurement, characteristic, value);
+    }
 
-        // 韌體版本特徵 (0x2A26)
-        BluetoothGattCharacteristic firmwareRevision = new BluetoothGattCharacteristic(
-                FIRMWARE_REVISION_STRING_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ);
 
-        firmwareRevision.setValue("1.0.0"); // 設置韌體版本號
-        service.addCharacteristic(firmwareRevision);
+    // --- 所有服務的建立方法都移到這裡 ---
 
-        return service;
-    }
 
 
     private BluetoothGattService createBatteryService() {
@@ -671,7 +1145,7 @@ public class ServicesManager {
                 DEVICE_TIME_UUID,
                 BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE,
                 BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
-        timeCharacteristic.setValue(GattValueBuilder.forDeviceTime(Calendar.getInstance()));
+        timeCharacteristic.setValue(GattValueBuilder.forDeviceTime());
         service.addCharacteristic(timeCharacteristic);
 
 
@@ -807,11 +1281,8 @@ public class ServicesManager {
         // 加入 CCCD
         temperatureMeasurementCharacteristic.addDescriptor(new BluetoothGattDescriptor(CCCD_UUID, BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
 
-        // 設定初始溫度值 (37.0f)
-        float initialTemp = 37.0f;
-        int bits = Float.floatToIntBits(initialTemp);
-        temperatureMeasurementCharacteristic.setValue(new byte[5]); // Flags + float
-        temperatureMeasurementCharacteristic.setValue(bits, BluetoothGattCharacteristic.FORMAT_FLOAT, 1);
+        // 設定初始溫度值 (37.0f)：Flags + IEEE 11073 FLOAT
+        temperatureMeasurementCharacteristic.setValue(GattValueBuilder.forTemperatureMeasurement(37.0f));
         healthThermometerService.addCharacteristic(temperatureMeasurementCharacteristic);
 
         // --- 新增開始 ---
@@ -852,127 +1323,6 @@ public class ServicesManager {
         return healthThermometerService;
     }
 
-    private BluetoothGattService createDeviceInfoService() {
-        final UUID DEVICE_INFO_SERVICE_UUID = UUID.fromString("0000180A-0000-1000-8000-00805f9b34fb");
-        BluetoothGattService service = new BluetoothGattService(DEVICE_INFO_SERVICE_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
-
-        // --- 1. Manufacturer Name String (0x2A29) ---
-        final UUID MANUFACTURER_NAME_UUID = UUID.fromString("00002A29-0000-1000-8000-00805f9b34fb");
-        BluetoothGattCharacteristic manufacturerNameChar = new BluetoothGattCharacteristic(
-                MANUFACTURER_NAME_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-        // 設定一個範例製造商名稱
-        manufacturerNameChar.setValue("Android BLE Project");
-
-        // --- 2. Model Number String (0x2A24) ---
-        final UUID MODEL_NUMBER_UUID = UUID.fromString("00002A24-0000-1000-8000-00805f9b34fb");
-        BluetoothGattCharacteristic modelNumberChar = new BluetoothGattCharacteristic(
-                MODEL_NUMBER_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-        modelNumberChar.setValue("SimBLE-GATT-1000");
-
-        // --- 3. Serial Number String (0x2A25) ---
-        final UUID SERIAL_NUMBER_UUID = UUID.fromString("00002A25-0000-1000-8000-00805f9b34fb");
-        BluetoothGattCharacteristic serialNumberChar = new BluetoothGattCharacteristic(
-                SERIAL_NUMBER_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-        serialNumberChar.setValue("SN-20251220-001");
-
-        // --- 4. Hardware Revision String (0x2A27) ---
-        final UUID HARDWARE_REVISION_UUID = UUID.fromString("00002A27-0000-1000-8000-00805f9b34fb");
-        BluetoothGattCharacteristic hardwareRevisionChar = new BluetoothGattCharacteristic(
-                HARDWARE_REVISION_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-        hardwareRevisionChar.setValue("1.0.1");
-
-        // --- 5. Firmware Revision String (0x2A26) ---
-        final UUID FIRMWARE_REVISION_UUID = UUID.fromString("00002A26-0000-1000-8000-00805f9b34fb");
-        BluetoothGattCharacteristic firmwareRevisionChar = new BluetoothGattCharacteristic(
-                FIRMWARE_REVISION_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-        firmwareRevisionChar.setValue("1.2.3");
-
-        // --- 6. Software Revision String (0x2A28) ---
-        final UUID SOFTWARE_REVISION_UUID = UUID.fromString("00002A28-0000-1000-8000-00805f9b34fb");
-        BluetoothGattCharacteristic softwareRevisionChar = new BluetoothGattCharacteristic(
-                SOFTWARE_REVISION_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-        softwareRevisionChar.setValue("2.0.0-rc1");
-
-        // --- 7. System ID (0x2A23) ---
-        final UUID SYSTEM_ID_UUID = UUID.fromString("00002A23-0000-1000-8000-00805f9b34fb");
-        BluetoothGattCharacteristic systemIdChar = new BluetoothGattCharacteristic(
-                SYSTEM_ID_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-        // 格式: 64-bit Manufacturer Identifier + 24-bit Organizationally Unique Identifier
-        // 這裡我們使用一個範例值
-        ByteBuffer systemIdBuffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
-        systemIdBuffer.putLong(0x1122334455667788L);
-        systemIdChar.setValue(systemIdBuffer.array());
-
-        // --- 8. IEEE 11073-20601 Regulatory Certification Data List (0x2A2A) ---
-        final UUID REGULATORY_CERT_UUID = UUID.fromString("00002A2A-0000-1000-8000-00805f9b34fb");
-        BluetoothGattCharacteristic regulatoryCertChar = new BluetoothGattCharacteristic(
-                REGULATORY_CERT_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-        // 這裡我們建立一個範例的 FCC 認證數據
-        // 格式為 TLV (Type-Length-Value)
-        byte[] fccIdBytes = "FCC ID: ABC-12345".getBytes(StandardCharsets.UTF_8);
-        // 總長度 = 認證機構(2) + 類型(1) + 實際數據長度
-        int valueLength = 2 + 1 + fccIdBytes.length;
-        ByteBuffer regulatoryBuffer = ByteBuffer.allocate(2 + valueLength).order(ByteOrder.LITTLE_ENDIAN);
-        regulatoryBuffer.put((byte) 0x01); // Type: 0x01 (認證機構列表)
-        regulatoryBuffer.put((byte) valueLength); // Length: 後續所有數據的長度
-        regulatoryBuffer.putShort((short) 0x0100); // Value - 認證機構: 0x0100 (範例代碼)
-        regulatoryBuffer.put((byte) 0x01); // Value - 認證類型: 0x01 (範例類型, 如 FCC Part 15)
-        regulatoryBuffer.put(fccIdBytes); // Value - 實際認證字串
-        regulatoryCertChar.setValue(regulatoryBuffer.array());
-
-        // --- 9. PnP ID (0x2A50) ---
-        final UUID PNP_ID_UUID = UUID.fromString("00002A50-0000-1000-8000-00805f9b34fb");
-        BluetoothGattCharacteristic pnpIdChar = new BluetoothGattCharacteristic(
-                PNP_ID_UUID,
-                BluetoothGattCharacteristic.PROPERTY_READ,
-                BluetoothGattCharacteristic.PERMISSION_READ
-        );
-        // 格式: 1 byte Vendor ID Source, 2 bytes Vendor ID, 2 bytes Product ID, 2 bytes Product Version
-        ByteBuffer pnpIdBuffer = ByteBuffer.allocate(7).order(ByteOrder.LITTLE_ENDIAN);
-        pnpIdBuffer.put((byte) 0x01);      // Vendor ID Source: 0x01 = Bluetooth SIG assigned
-        pnpIdBuffer.putShort((short) 0x00E0); // Vendor ID: 0x00E0 = Google, Inc. (範例)
-        pnpIdBuffer.putShort((short) 0xABCD); // Product ID: 0xABCD (自訂產品ID)
-        pnpIdBuffer.putShort((short) 0x0101); // Product Version: 0x0101 (代表 1.0.1)
-        pnpIdChar.setValue(pnpIdBuffer.array());
-
-        // 將所有特徵加入服務中
-        service.addCharacteristic(manufacturerNameChar);
-        service.addCharacteristic(modelNumberChar);
-        service.addCharacteristic(serialNumberChar);
-        service.addCharacteristic(hardwareRevisionChar);
-        service.addCharacteristic(firmwareRevisionChar);
-        service.addCharacteristic(softwareRevisionChar);
-        service.addCharacteristic(systemIdChar);
-        service.addCharacteristic(regulatoryCertChar);
-        service.addCharacteristic(pnpIdChar);
-
-        return service;
-    }
-
     /**
      * 依據 SIG 標準建立當前時間服務 (Current Time Service)
      * Service UUID: 0x1805
@@ -998,32 +1348,7 @@ public class ServicesManager {
         currentTimeChar.addDescriptor(cccDescriptor);
 
         // 動態獲取當前時間並設定
-        Calendar calendar = Calendar.getInstance();
-        int year = calendar.get(Calendar.YEAR);
-        int month = calendar.get(Calendar.MONTH) + 1; // Month is 0-based
-        int day = calendar.get(Calendar.DAY_OF_MONTH);
-        int hour = calendar.get(Calendar.HOUR_OF_DAY);
-        int minute = calendar.get(Calendar.MINUTE);
-        int second = calendar.get(Calendar.SECOND);
-        int dayOfWeek = calendar.get(Calendar.DAY_OF_WEEK); // Sunday=1, ..., Saturday=7
-        if (dayOfWeek == Calendar.SUNDAY) {
-            dayOfWeek = 7;
-        } else {
-            dayOfWeek -= 1;
-        } // SIG: Monday=1..Sunday=7
-
-        byte[] timeValue = new byte[10];
-        timeValue[0] = (byte) (year & 0xFF);
-        timeValue[1] = (byte) ((year >> 8) & 0xFF);
-        timeValue[2] = (byte) month;
-        timeValue[3] = (byte) day;
-        timeValue[4] = (byte) hour;
-        timeValue[5] = (byte) minute;
-        timeValue[6] = (byte) second;
-        timeValue[7] = (byte) dayOfWeek;
-        timeValue[8] = 0; // Fractions256
-        timeValue[9] = 1; // Adjust Reason (Manual update)
-        currentTimeChar.setValue(timeValue);
+        currentTimeChar.setValue(GattValueBuilder.forCurrentTime());
 
         currentTimeService.addCharacteristic(currentTimeChar);
 
@@ -1083,7 +1408,7 @@ public class ServicesManager {
         service.addCharacteristic(featuresCharacteristic);
 
         // 2. Preset Control Point (0x2FDB) - 寫入/通知 (Write/Notify)
-        // 這個特徵由客戶端寫入來控制預設。我們需要在 onCharacteristicWriteRequest 中處理邏輯。
+        // 這個特徵由客戶端寫入來控制預設，寫入由 handlePresetControlPoint 處理。
         BluetoothGattCharacteristic presetCpCharacteristic = new BluetoothGattCharacteristic(
                 PRESET_CONTROL_POINT_UUID,
                 BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
@@ -1307,16 +1632,19 @@ public class ServicesManager {
                 BluetoothGattCharacteristic.PROPERTY_READ,
                 BluetoothGattCharacteristic.PERMISSION_READ
         );
-        // Flags: 宣告支援踏頻、心率、功率、阻力控制和距離。
-        // 這是一個 32-bit 的 bit-mask。
-        int featureFlags = 0b0000_0000_0000_0110_0100_0000_0000_0110;
+        // Fitness Machine Features (32-bit) + Target Setting Features (32-bit)，共 8 bytes。
+        int featureFlags = 0b0000_0000_0000_0000_0100_0100_0000_0110;
         // bit 1: Cadence
         // bit 2: Total Distance
-        // bit 8: Heart Rate
-        // bit 9: Resistance Control
-        // bit 13: Power Measurement
-        ByteBuffer featureBuffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        // bit 10: Heart Rate Measurement
+        // bit 14: Power Measurement
+        int targetSettingFlags = 0b0000_0000_0000_0000_0010_0000_0000_1100;
+        // bit 2: Resistance Target Setting
+        // bit 3: Power Target Setting
+        // bit 13: Indoor Bike Simulation Parameters
+        ByteBuffer featureBuffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
         featureBuffer.putInt(featureFlags);
+        featureBuffer.putInt(targetSettingFlags);
         featureChar.setValue(featureBuffer.array());
         service.addCharacteristic(featureChar);
 
@@ -1357,6 +1685,30 @@ public class ServicesManager {
         statusChar.addDescriptor(new BluetoothGattDescriptor(CCCD_UUID, BluetoothGattDescriptor.PERMISSION_READ | BluetoothGattDescriptor.PERMISSION_WRITE));
         service.addCharacteristic(statusChar);
 
+        // 5. **Supported Resistance Level Range (0x2AD6) - 唯讀**
+        //    最小值、最大值、最小間隔 (SINT16 x3，解析度 0.1)：0..20.0，間隔 1.0
+        BluetoothGattCharacteristic resistanceRangeChar = new BluetoothGattCharacteristic(
+                UUID.fromString("00002AD6-0000-1000-8000-00805f9b34fb"),
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ
+        );
+        ByteBuffer resistanceRange = ByteBuffer.allocate(6).order(ByteOrder.LITTLE_ENDIAN);
+        resistanceRange.putShort((short) 0).putShort((short) FitnessMachineControlPoint.MAX_RESISTANCE).putShort((short) 10);
+        resistanceRangeChar.setValue(resistanceRange.array());
+        service.addCharacteristic(resistanceRangeChar);
+
+        // 6. **Supported Power Range (0x2AD8) - 唯讀**
+        //    最小值、最大值 (SINT16, W)、最小間隔 (UINT16, W)
+        BluetoothGattCharacteristic powerRangeChar = new BluetoothGattCharacteristic(
+                UUID.fromString("00002AD8-0000-1000-8000-00805f9b34fb"),
+                BluetoothGattCharacteristic.PROPERTY_READ,
+                BluetoothGattCharacteristic.PERMISSION_READ
+        );
+        ByteBuffer powerRange = ByteBuffer.allocate(6).order(ByteOrder.LITTLE_ENDIAN);
+        powerRange.putShort((short) FitnessMachineControlPoint.MIN_POWER).putShort((short) FitnessMachineControlPoint.MAX_POWER).putShort((short) 1);
+        powerRangeChar.setValue(powerRange.array());
+        service.addCharacteristic(powerRangeChar);
+
 
         return service;
     }
@@ -1367,73 +1719,130 @@ public class ServicesManager {
      * 2. 延遲幾秒後，模擬用戶上秤，開始發送即時體重阻抗數據 (DF)
      */
     public void startCf597Simulation() {
-        if (gattServer == null || connectedDevices.isEmpty()) {
-            Log.w(TAG, "無法開始 CF597 模擬：沒有 GATT Server 或沒有已連接的設備。");
+        GattTransport<BluetoothGattService, BluetoothGattCharacteristic> transport = this.transport;
+        if (transport == null || transport.getConnectedDevices().isEmpty()) {
+            Log.w(TAG, "無法開始 CF597 模擬：沒有 GATT 傳輸層或沒有已連接的設備。");
             return;
         }
 
         // 停止之前的模擬（如果有的話）
-        if (cf597SimulatorThread != null) {
-            cf597SimulatorThread.interrupt();
-        }
-
-        cf597SimulatorThread = new Thread(() -> {
-            try {
-                Log.d(TAG, "CF597 模擬開始...");
+        if (cf597DeviceInfoTask != null) cf597DeviceInfoTask.cancel();
+        if (cf597RealtimeTask != null) cf597RealtimeTask.cancel();
 
-                // 步驟 1: 立即發送設備信息 (FE 36)，讓 App 知道我們的狀態
-                Log.d(TAG, "發送 CF597 設備信息 (FE 36)...");
-                byte[] deviceInfo = GattValueBuilder.forDeviceInfo_FE36(98, 101, 102); // 電量98%, MCU 1.01, BLE 1.02
-                notifyCharacteristicChanged(HEALTH_SCALE_C2_NOTIFY_UUID, deviceInfo, false);
+        Log.d(TAG, "CF597 模擬開始...");
 
-                // 步驟 2: 延遲 5 秒，模擬用戶站上體重計
-                Thread.sleep(5000);
-                if (!isSimulating) return;
+        // 步驟 1: 立即發送設備信息 (FE 36)，讓 App 知道我們的狀態
+        cf597DeviceInfoTask = scheduler.scheduleOnce("cf597-FE36", 0, () -> {
+            Log.d(TAG, "發送 CF597 設備信息 (FE 36)...");
+            byte[] deviceInfo = GattValueBuilder.forDeviceInfo_FE36(98, 101, 102); // 電量98%, MCU 1.01, BLE 1.02
+            journal(HEALTH_SCALE_C2_NOTIFY_UUID, deviceInfo);
+            notifyFramed(HEALTH_SCALE_C2_NOTIFY_UUID, deviceInfo, false);
+        });
 
-                // 步驟 3: 開始發送即時測量數據 (DF)，模擬稱重過程，發送 3 次
+        // 步驟 2: 延遲 5 秒，模擬用戶站上體重計
+        // 步驟 3: 開始發送即時測量數據 (DF)，模擬稱重過程，每秒發送一次，共 3 次
+        final int[] realtimeFrames = {0};
+        cf597RealtimeTask = scheduler.schedule("cf597-DF", 5000, 1000, CF597_REALTIME_FRAME_COUNT, () -> {
+            if (realtimeFrames[0] == 0) {
                 Log.d(TAG, "開始發送 CF597 即時測量數據 (DF)...");
-                for (int i = 0; i < 3; i++) {
-                    if (!isSimulating) break;
-                    // 模擬體重有輕微浮動
-                    float simulatedWeight = 65.5f + (random.nextFloat() * 0.1f);
-                    byte[] realtimeData = GattValueBuilder.forRealtimeImpedanceData_DF(simulatedWeight);
-                    notifyCharacteristicChanged(HEALTH_SCALE_C2_NOTIFY_UUID, realtimeData, false);
-                    Thread.sleep(1000); // 每秒發送一次
-                }
-
+            }
+            // 模擬體重有輕微浮動
+            float simulatedWeight = 65.5f + (random.nextFloat() * 0.1f);
+            byte[] buffer = GattValueBuilder.pooledBuffer();
+            byte[] realtimeData = Arrays.copyOf(buffer, GattValueBuilder.forRealtimeImpedanceData_DF(buffer, 0, simulatedWeight));
+            journal(HEALTH_SCALE_C2_NOTIFY_UUID, realtimeData);
+            notifyFramed(HEALTH_SCALE_C2_NOTIFY_UUID, realtimeData, false);
+            if (++realtimeFrames[0] == CF597_REALTIME_FRAME_COUNT) {
                 Log.d(TAG, "CF597 即時測量模擬完成。");
-
-            } catch (InterruptedException e) {
-                Log.d(TAG, "CF597 模擬線程被中斷。");
-                Thread.currentThread().interrupt();
             }
         });
-        cf597SimulatorThread.start();
     }
 
     /**
-     * 通用通知方法，通過特徵的 UUID 來發送通知或指示
+     * 服務加入傳輸層後建立特徵索引。
+     * 同一個 UUID 出現在多個服務時，只以 UUID 查找會得到最先註冊的那個；需要區分時請同時指定服務 UUID。
      */
-    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
-    private void notifyCharacteristicChanged(UUID characteristicUuid, byte[] value, boolean confirm) {
-        BluetoothGattService service = gattServer.getService(characteristicUuid.equals(HEALTH_SCALE_C2_NOTIFY_UUID) ? HEALTH_SCALE_C2_SERVICE_UUID : null);
-        if(service == null) {
-            // 為了兼容舊的寫法，我們遍歷查找
-            for(BluetoothGattService s : getAllServices()){
-                BluetoothGattCharacteristic c = s.getCharacteristic(characteristicUuid);
-                if(c != null){
-                    notifyCharacteristicChanged(c, value, confirm);
-                    return;
-                }
+    private void indexCharacteristics(BluetoothGattService service) {
+        Map<UUID, BluetoothGattCharacteristic> byUuid = characteristicsByService.get(service.getUuid());
+        if (byUuid == null) {
+            byUuid = new ConcurrentHashMap<>();
+            characteristicsByService.put(service.getUuid(), byUuid);
+        }
+        for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+            UUID uuid = characteristic.getUuid();
+            if (!byUuid.containsKey(uuid)) byUuid.put(uuid, characteristic);
+            if (!characteristicsByUuid.containsKey(uuid)) characteristicsByUuid.put(uuid, characteristic);
+        }
+    }
+
+    /**
+     * 依 UUID 將只在乎最新值的特徵設為合併模式。以 UUID 判斷，與 profile 的建立順序無關。
+     */
+    private void markLatestValueCharacteristics(BluetoothGattService service) {
+        NotificationQueue<BluetoothGattService, BluetoothGattCharacteristic> queue = notificationQueue;
+        if (queue == null) return;
+        for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+            if (LATEST_VALUE_CHARACTERISTICS.contains(characteristic.getUuid())) {
+                queue.setConflated(characteristic, true);
             }
+        }
+    }
+
+    /**
+     * 以 UUID 取得已註冊 (客戶端看得到) 的特徵，找不到時回傳 null。
+     */
+    BluetoothGattCharacteristic findRegisteredCharacteristic(UUID characteristicUuid) {
+        return characteristicsByUuid.get(characteristicUuid);
+    }
+
+    /**
+     * 以服務 UUID + 特徵 UUID 取得已註冊的特徵，找不到時回傳 null。
+     */
+    BluetoothGattCharacteristic findRegisteredCharacteristic(UUID serviceUuid, UUID characteristicUuid) {
+        Map<UUID, BluetoothGattCharacteristic> byUuid = characteristicsByService.get(serviceUuid);
+        return byUuid == null ? null : byUuid.get(characteristicUuid);
+    }
+
+    /**
+     * 通用通知方法，通過特徵的 UUID 來發送通知或指示。
+     * 只在已加入傳輸層的服務中查找 (雜湊索引)，因為客戶端只能訂閱那些實例上的特徵。
+     */
+    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+    void notifyCharacteristicChanged(UUID characteristicUuid, byte[] value, boolean confirm) {
+        BluetoothGattCharacteristic characteristic = characteristicsByUuid.get(characteristicUuid);
+        if (characteristic == null) {
             Log.e(TAG, "找不到特徵來發送通知: " + characteristicUuid);
             return;
         }
-        BluetoothGattCharacteristic characteristic = service.getCharacteristic(characteristicUuid);
-        if(characteristic != null) {
-            notifyCharacteristicChanged(characteristic, value, confirm);
-        } else {
+        notifyCharacteristicChanged(characteristic, value, confirm);
+    }
+
+    /**
+     * 同上，但依每個裝置協商後的 MTU 切片 (見 {@link PayloadFramer})，用於可能超過 MTU-3 的值
+     * (CF597 的即時與歷史數據)，避免被截斷。特徵值與通知共用 value 這個陣列，呼叫端交出後不可以再修改。
+     */
+    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+    void notifyFramed(UUID characteristicUuid, byte[] value, boolean confirm) {
+        BluetoothGattCharacteristic characteristic = characteristicsByUuid.get(characteristicUuid);
+        NotificationFanOut<BluetoothGattService, BluetoothGattCharacteristic> fanOut = this.fanOut;
+        if (characteristic == null || fanOut == null) {
             Log.e(TAG, "找不到特徵來發送通知: " + characteristicUuid);
+            return;
+        }
+        setReadableValue(characteristic, value);
+        fanOut.publishFramedShared(characteristic, value, confirm);
+    }
+
+    /**
+     * 同上，但同時指定服務 UUID，用於多個服務有相同特徵 UUID 的情況。
+     */
+    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
+    void notifyCharacteristicChanged(UUID serviceUuid, UUID characteristicUuid, byte[] value, boolean confirm) {
+        BluetoothGattCharacteristic characteristic = findRegisteredCharacteristic(serviceUuid, characteristicUuid);
+        if (characteristic == null) {
+            Log.e(TAG, "找不到特徵來發送通知: " + serviceUuid + "/" + characteristicUuid);
+            return;
         }
+        notifyCharacteristicChanged(characteristic, value, confirm);
     }
 }
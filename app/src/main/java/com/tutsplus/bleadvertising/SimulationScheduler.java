@@ -0,0 +1,293 @@
+package com.tutsplus.bleadvertising;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 所有感測器模擬共用的排程器。
+ * 以一個小型執行緒池取代「每個感測器一條 Thread + Thread.sleep」的作法：
+ * 每個任務以「起始時間 + n * 週期」計算絕對期限 (deadline)，因此執行時間不會累積成漂移；
+ * 若執行落後超過一個週期，會跳過錯過的 tick 而不是連續補發。
+ * 每個任務都會記錄實際執行時間相對於期限的抖動 (jitter) 統計。
+ * 任務拋出的例外 (包含 Error) 不會中止該任務的週期執行，只會計入失敗次數並交給 {@link FailureListener}。
+ *
+ * 此類別不依賴 Android API，可以在一般 JVM 上使用。
+ */
+public final class SimulationScheduler {
+
+    private static final int POOL_SIZE = 2;
+
+    /**
+     * 任務執行失敗時的通知，在排程執行緒上呼叫。
+     */
+    public interface FailureListener {
+        void onTaskFailed(String name, Throwable error);
+    }
+
+    private final Object lock = new Object();
+    private final List<ScheduledTask> tasks = new ArrayList<>();
+    private ScheduledThreadPoolExecutor executor;
+    private volatile FailureListener failureListener;
+
+    /**
+     * 設定任務失敗時的通知 (例如寫入 log)；null 表示只計數。
+     */
+    public void setFailureListener(FailureListener listener) {
+        this.failureListener = listener;
+    }
+
+    /**
+     * 啟動排程器。若已在運行中則不做任何事。
+     */
+    public void start() {
+        synchronized (lock) {
+            if (executor != null) return;
+            executor = new ScheduledThreadPoolExecutor(POOL_SIZE, new SimulatorThreadFactory());
+            executor.setRemoveOnCancelPolicy(true);
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            tasks.clear();
+        }
+    }
+
+    /**
+     * 停止所有任務並等待正在執行中的任務結束 (最多 timeoutMillis)。
+     * 停止後可以再次呼叫 {@link #start()} 重新開始，不會殘留任何執行緒。
+     * @return 是否在時限內完全停止。
+     */
+    public boolean stop(long timeoutMillis) {
+        ScheduledThreadPoolExecutor toStop;
+        synchronized (lock) {
+            toStop = executor;
+            executor = null;
+            for (ScheduledTask task : tasks) {
+                task.cancel();
+            }
+        }
+        if (toStop == null) return true;
+        toStop.shutdownNow();
+        try {
+            return toStop.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public boolean isRunning() {
+        synchronized (lock) {
+            return executor != null;
+        }
+    }
+
+    /**
+     * 以固定頻率重複執行任務 (不限次數)。
+     */
+    public ScheduledTask scheduleAtFixedRate(String name, long initialDelayMillis, long periodMillis, Runnable body) {
+        return schedule(name, initialDelayMillis, periodMillis, 0, body);
+    }
+
+    /**
+     * 延遲一段時間後執行一次任務。
+     */
+    public ScheduledTask scheduleOnce(String name, long delayMillis, Runnable body) {
+        return schedule(name, delayMillis, 0, 1, body);
+    }
+
+    /**
+     * 排程一個任務。
+     * @param periodMillis 週期；0 表示只執行一次。
+     * @param maxRuns 最多執行次數；0 表示不限次數。
+     * @return 任務的控制代碼；排程器未啟動時回傳 null。
+     */
+    public ScheduledTask schedule(String name, long initialDelayMillis, long periodMillis, int maxRuns, Runnable body) {
+        synchronized (lock) {
+            if (executor == null) return null;
+            pruneFinishedOneShots();
+            ScheduledTask task = new ScheduledTask(this, name, executor, TimeUnit.MILLISECONDS.toNanos(periodMillis), maxRuns, body);
+            tasks.add(task);
+            task.arm(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(initialDelayMillis));
+            return task;
+        }
+    }
+
+    /**
+     * 移除已執行完畢的一次性任務，避免長時間運行時清單無限成長。
+     */
+    private void pruneFinishedOneShots() {
+        for (int i = tasks.size() - 1; i >= 0; i--) {
+            ScheduledTask task = tasks.get(i);
+            if (task.periodNanos <= 0 && task.finished) {
+                tasks.remove(i);
+            }
+        }
+    }
+
+    /**
+     * 取得目前所有任務的抖動統計快照。
+     */
+    public List<TaskStats> getStats() {
+        List<TaskStats> result = new ArrayList<>();
+        synchronized (lock) {
+            for (ScheduledTask task : tasks) {
+                result.add(task.snapshot());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 單一排程任務。自行計算下一個絕對期限並重新排入執行緒池，
+     * 同一個任務永遠不會同時在兩條執行緒上執行。
+     */
+    public static final class ScheduledTask implements Runnable {
+        private final SimulationScheduler owner;
+        private final String name;
+        private final ScheduledThreadPoolExecutor executor;
+        private final long periodNanos;
+        private final int maxRuns;
+        private final Runnable body;
+
+        private volatile boolean cancelled;
+        private volatile boolean finished;
+        private volatile ScheduledFuture<?> future;
+        private long deadlineNanos;
+
+        // --- 抖動統計 (只由執行中的排程執行緒寫入) ---
+        private volatile long runs;
+        private volatile long skippedTicks;
+        private volatile long failures;
+        private volatile long lastJitterNanos;
+        private volatile long maxJitterNanos;
+        private volatile long totalJitterNanos;
+
+        ScheduledTask(SimulationScheduler owner, String name, ScheduledThreadPoolExecutor executor, long periodNanos, int maxRuns, Runnable body) {
+            this.owner = owner;
+            this.name = name;
+            this.executor = executor;
+            this.periodNanos = periodNanos;
+            this.maxRuns = maxRuns;
+            this.body = body;
+        }
+
+        void arm(long deadline) {
+            deadlineNanos = deadline;
+            long delay = Math.max(0L, deadline - System.nanoTime());
+            try {
+                future = executor.schedule(this, delay, TimeUnit.NANOSECONDS);
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+                // 排程器已停止
+                cancelled = true;
+            }
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) return;
+            long jitter = System.nanoTime() - deadlineNanos;
+            lastJitterNanos = jitter;
+            totalJitterNanos += jitter;
+            if (jitter > maxJitterNanos) maxJitterNanos = jitter;
+            long completed = ++runs;
+
+            try {
+                body.run();
+            } catch (Throwable t) {
+                // 單一感測器的錯誤 (包含 Error) 不應該讓這個任務或整個排程停止
+                failures++;
+                reportFailure(t);
+            }
+
+            if (cancelled || periodNanos <= 0 || (maxRuns > 0 && completed >= maxRuns)) {
+                finished = true;
+                return;
+            }
+            long next = deadlineNanos + periodNanos;
+            long now = System.nanoTime();
+            if (next < now) {
+                // 落後超過一個週期：跳過錯過的 tick，保持原本的相位
+                long missed = (now - next) / periodNanos + 1;
+                skippedTicks += missed;
+                next += missed * periodNanos;
+            }
+            arm(next);
+        }
+
+        private void reportFailure(Throwable error) {
+            FailureListener listener = owner.failureListener;
+            if (listener == null) return;
+            try {
+                listener.onTaskFailed(name, error);
+            } catch (Throwable ignored) {
+                // 回報失敗本身不能中止任務
+            }
+        }
+
+        public void cancel() {
+            cancelled = true;
+            ScheduledFuture<?> f = future;
+            if (f != null) f.cancel(false);
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        TaskStats snapshot() {
+            return new TaskStats(name, periodNanos, runs, skippedTicks, failures, lastJitterNanos, maxJitterNanos, totalJitterNanos);
+        }
+    }
+
+    /**
+     * 任務的抖動統計快照 (時間單位皆為奈秒)。
+     */
+    public static final class TaskStats {
+        public final String name;
+        public final long periodNanos;
+        public final long runs;
+        public final long skippedTicks;
+        public final long failures;
+        public final long lastJitterNanos;
+        public final long maxJitterNanos;
+        public final long meanJitterNanos;
+
+        TaskStats(String name, long periodNanos, long runs, long skippedTicks, long failures,
+                  long lastJitterNanos, long maxJitterNanos, long totalJitterNanos) {
+            this.name = name;
+            this.periodNanos = periodNanos;
+            this.runs = runs;
+            this.skippedTicks = skippedTicks;
+            this.failures = failures;
+            this.lastJitterNanos = lastJitterNanos;
+            this.maxJitterNanos = maxJitterNanos;
+            this.meanJitterNanos = runs == 0 ? 0 : totalJitterNanos / runs;
+        }
+
+        @Override
+        public String toString() {
+            return name + " runs=" + runs
+                    + " skipped=" + skippedTicks
+                    + " failures=" + failures
+                    + " jitter(mean/max/last)=" + (meanJitterNanos / 1000) + "/" + (maxJitterNanos / 1000) + "/" + (lastJitterNanos / 1000) + "us";
+        }
+    }
+
+    private static final class SimulatorThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ble-simulator-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.tutsplus.bleadvertising;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 每個裝置、每個特徵各自的 CCCD 訂閱表。
+ * 每個連線裝置分配一個 slot (0-63)，每個特徵分配一個整數 id；
+ * 對每個特徵保存兩個 64-bit 位元遮罩 (notify / indicate)，bit 的位置就是裝置的 slot。
+ * 因此「某裝置是否訂閱了某特徵」是 O(1) 的位元運算，而扇出 (fan-out) 時只需要走訪遮罩中被設定的位元。
+ *
+ * 寫入 (連線、斷線、CCCD 寫入) 會被序列化；讀取 ({@link #subscribers}、{@link #characteristicId}、
+ * {@link #slotOf}、{@link #deviceAt}、{@link #devicesBySlot}) 不需加鎖，也不會修改任何狀態，可以在模擬執行緒上直接呼叫：
+ * 位元遮罩放在 volatile 的 AtomicLongArray，slot 表在每次連線/斷線時整份複製後以 volatile 發佈。
+ *
+ * @param <D> 裝置的識別型別。
+ */
+public final class SubscriptionRegistry<D> {
+
+    /** 可同時追蹤的最大裝置數 (一個 long 的位元數)。 */
+    public static final int MAX_DEVICES = 64;
+    /** 找不到 slot 或 id 時的回傳值。 */
+    public static final int NONE = -1;
+
+    private static final int CCCD_NOTIFY_BIT = 0x01;
+    private static final int CCCD_INDICATE_BIT = 0x02;
+    private static final int INITIAL_CAPACITY = 32;
+
+    private final Object lock = new Object();
+    private final Map<D, Integer> slotByDevice = new ConcurrentHashMap<>();
+    private final Map<Object, Integer> idByCharacteristic = new ConcurrentHashMap<>();
+    // 只在持有 lock 時替換，讀取端拿到的陣列不會再被修改
+    private volatile Object[] deviceBySlot = new Object[MAX_DEVICES];
+    private long usedSlots;
+
+    private volatile AtomicLongArray notifyMasks = new AtomicLongArray(INITIAL_CAPACITY);
+    private volatile AtomicLongArray indicateMasks = new AtomicLongArray(INITIAL_CAPACITY);
+
+    /**
+     * 取得特徵的整數 id (不加鎖、不分配)。特徵以物件本身作為鍵，因此 UUID 重複的特徵會得到不同的 id。
+     * @return id；特徵從來沒有被寫過 CCCD (也就沒有任何訂閱者) 時回傳 {@link #NONE}。
+     */
+    public int characteristicId(Object characteristic) {
+        Integer id = idByCharacteristic.get(characteristic);
+        return id == null ? NONE : id;
+    }
+
+    /**
+     * 取得 (必要時分配) 特徵的整數 id。
+     */
+    public int registerCharacteristic(Object characteristic) {
+        synchronized (lock) {
+            Integer id = idByCharacteristic.get(characteristic);
+            if (id != null) return id;
+            int newId = idByCharacteristic.size();
+            ensureCapacity(newId + 1);
+            idByCharacteristic.put(characteristic, newId);
+            return newId;
+        }
+    }
+
+    /**
+     * 裝置連線時分配一個 slot。
+     * @return slot 編號；若已達 {@link #MAX_DEVICES} 則回傳 {@link #NONE}。
+     */
+    public int onDeviceConnected(D device) {
+        synchronized (lock) {
+            Integer existing = slotByDevice.get(device);
+            if (existing != null) return existing;
+            if (usedSlots == -1L) return NONE;
+            int slot = Long.numberOfTrailingZeros(~usedSlots);
+            usedSlots |= 1L << slot;
+            slotByDevice.put(device, slot);
+            publishSlot(slot, device);
+            return slot;
+        }
+    }
+
+    /**
+     * 裝置斷線時釋放 slot，並清除它在所有特徵上的訂閱位元。
+     */
+    public void onDeviceDisconnected(D device) {
+        synchronized (lock) {
+            Integer slot = slotByDevice.remove(device);
+            if (slot == null) return;
+            long clear = ~(1L << slot);
+            AtomicLongArray notify = notifyMasks;
+            AtomicLongArray indicate = indicateMasks;
+            for (int i = 0; i < notify.length(); i++) {
+                notify.set(i, notify.get(i) & clear);
+                indicate.set(i, indicate.get(i) & clear);
+            }
+            publishSlot(slot, null);
+            usedSlots &= clear;
+        }
+    }
+
+    /**
+     * 清除所有裝置與訂閱 (特徵 id 會保留)。
+     */
+    public void clear() {
+        synchronized (lock) {
+            slotByDevice.clear();
+            deviceBySlot = new Object[MAX_DEVICES];
+            usedSlots = 0;
+            notifyMasks = new AtomicLongArray(notifyMasks.length());
+            indicateMasks = new AtomicLongArray(indicateMasks.length());
+        }
+    }
+
+    /**
+     * 依照客戶端寫入的 CCCD 值更新該裝置對該特徵的訂閱狀態。
+     * @return 寫入的值是否合法 (2 bytes，只使用 notify/indicate 位元)。
+     */
+    public boolean onCccdWritten(D device, Object characteristic, byte[] value) {
+        if (!isValidCccdValue(value)) {
+            return false;
+        }
+        int id = registerCharacteristic(characteristic);
+        synchronized (lock) {
+            Integer slot = slotByDevice.get(device);
+            if (slot == null) return true; // 未追蹤的裝置 (例如超過上限)，忽略但不視為錯誤
+            long bit = 1L << slot;
+            AtomicLongArray notify = notifyMasks;
+            AtomicLongArray indicate = indicateMasks;
+            notify.set(id, (value[0] & CCCD_NOTIFY_BIT) != 0 ? notify.get(id) | bit : notify.get(id) & ~bit);
+            indicate.set(id, (value[0] & CCCD_INDICATE_BIT) != 0 ? indicate.get(id) | bit : indicate.get(id) & ~bit);
+            return true;
+        }
+    }
+
+    /**
+     * CCCD 值是否合法：2 bytes，只使用 notify/indicate 位元。
+     */
+    public static boolean isValidCccdValue(byte[] value) {
+        return value != null && value.length == 2 && value[1] == 0
+                && (value[0] & ~(CCCD_NOTIFY_BIT | CCCD_INDICATE_BIT)) == 0;
+    }
+
+    /**
+     * 取得訂閱了某特徵的裝置 slot 位元遮罩。
+     */
+    public long subscribers(int characteristicId, boolean indication) {
+        AtomicLongArray masks = indication ? indicateMasks : notifyMasks;
+        if (characteristicId < 0 || characteristicId >= masks.length()) return 0L;
+        return masks.get(characteristicId);
+    }
+
+    /**
+     * 取得訂閱了某特徵的裝置 slot 位元遮罩。
+     */
+    public long subscribers(Object characteristic, boolean indication) {
+        return subscribers(characteristicId(characteristic), indication);
+    }
+
+    /**
+     * O(1) 檢查某個 slot 的裝置是否訂閱了某特徵。
+     */
+    public boolean isSubscribed(int slot, int characteristicId, boolean indication) {
+        return slot >= 0 && (subscribers(characteristicId, indication) & (1L << slot)) != 0;
+    }
+
+    /**
+     * 回傳該裝置目前對該特徵的 CCCD 值 (供讀取描述符時使用)。
+     */
+    public byte[] cccdValue(D device, Object characteristic) {
+        int slot = slotOf(device);
+        int id = characteristicId(characteristic);
+        int bits = 0;
+        if (isSubscribed(slot, id, false)) bits |= CCCD_NOTIFY_BIT;
+        if (isSubscribed(slot, id, true)) bits |= CCCD_INDICATE_BIT;
+        return new byte[]{(byte) bits, 0x00};
+    }
+
+    public int slotOf(D device) {
+        Integer slot = slotByDevice.get(device);
+        return slot == null ? NONE : slot;
+    }
+
+    /**
+     * 由 slot 取回裝置；slot 未使用時回傳 null。
+     */
+    @SuppressWarnings("unchecked")
+    public D deviceAt(int slot) {
+        return (D) deviceBySlot[slot];
+    }
+
+    /**
+     * slot -> 裝置的快照 (長度 {@link #MAX_DEVICES}，未使用的 slot 為 null)。
+     * 扇出時讀一次、整個發佈過程重複使用；呼叫端不可修改。
+     */
+    public Object[] devicesBySlot() {
+        return deviceBySlot;
+    }
+
+    private void publishSlot(int slot, D device) {
+        Object[] copy = deviceBySlot.clone();
+        copy[slot] = device;
+        deviceBySlot = copy;
+    }
+
+    private void ensureCapacity(int size) {
+        AtomicLongArray notify = notifyMasks;
+        if (size <= notify.length()) return;
+        int newLength = Math.max(size, notify.length() * 2);
+        notifyMasks = copyOf(notify, newLength);
+        indicateMasks = copyOf(indicateMasks, newLength);
+    }
+
+    private static AtomicLongArray copyOf(AtomicLongArray source, int length) {
+        AtomicLongArray copy = new AtomicLongArray(length);
+        for (int i = 0; i < source.length(); i++) {
+            copy.set(i, source.get(i));
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,527 @@
+package com.tutsplus.bleadvertising;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 多個虛擬 central 對同一個 GATT 伺服器的負載產生器，可以在沒有藍牙硬體的 JVM 上 (例如 CI) 執行。
+ *
+ * 伺服器端使用與 {@link ServicesManager} 相同的元件：{@link LoopbackGattTransport} 上的
+ * {@link SubscriptionRegistry}、{@link NotificationQueue} 與 {@link NotificationFanOut}，
+ * 讀寫請求則比照 BleViewModel 的回呼直接回應。每個 central 依 {@link Stream#subscribeProbability}
+ * 訂閱部分特徵，並以固定速率發出讀取與寫入。
+ *
+ * 伺服器最多服務 {@link SubscriptionRegistry#MAX_DEVICES} 個訂閱者；超過的 central 仍可連線與讀寫，
+ * 但收不到通知，只計入 {@link Report#unservedCentrals}，不計入 {@link Report#expected}。
+ *
+ * 每個通知的前 4 個位元組是發佈序號 (little-endian)，central 收到時以發佈時間計算端到端延遲
+ * (包含 NotificationQueue 的排隊時間與連線間隔的等待)。
+ */
+public final class VirtualCentralLoadGenerator {
+
+    private static final int SEQUENCE_RING = 1 << 16;
+    private static final byte[] CCCD_NOTIFY = {0x01, 0x00};
+    private static final byte[] CCCD_INDICATE = {0x02, 0x00};
+
+    /**
+     * 一個由伺服器週期性發佈的特徵。
+     */
+    public static final class Stream {
+        public final String name;
+        public final double ratePerSecond;
+        /** 每個通知的長度，至少 4 (序號)，超過 MTU - 3 的部分會被傳輸層截斷。 */
+        public final int payloadSize;
+        public final boolean indication;
+        /** 每個 central 訂閱這個特徵的機率 (0..1)。 */
+        public final double subscribeProbability;
+
+        public Stream(String name, double ratePerSecond, int payloadSize, boolean indication, double subscribeProbability) {
+            if (ratePerSecond <= 0 || payloadSize < 4 || subscribeProbability < 0 || subscribeProbability > 1) {
+                throw new IllegalArgumentException("invalid stream: " + name);
+            }
+            this.name = name;
+            this.ratePerSecond = ratePerSecond;
+            this.payloadSize = payloadSize;
+            this.indication = indication;
+            this.subscribeProbability = subscribeProbability;
+        }
+    }
+
+    public static final class Config {
+        public final int centrals;
+        public final long durationMillis;
+        public final LoopbackGattTransport.Link link;
+        /** 每個 central 每秒的讀取次數，0 表示不讀取。 */
+        public final double readsPerSecond;
+        /** 每個 central 每秒的寫入 (需要回應) 次數，0 表示不寫入。 */
+        public final double writesPerSecond;
+        public final List<Stream> streams;
+        public final NotificationQueue.Config queue;
+        public final long seed;
+
+        public Config(int centrals, long durationMillis, LoopbackGattTransport.Link link,
+                      double readsPerSecond, double writesPerSecond, List<Stream> streams,
+                      NotificationQueue.Config queue, long seed) {
+            if (centrals <= 0 || durationMillis <= 0 || readsPerSecond < 0 || writesPerSecond < 0 || streams.isEmpty()) {
+                throw new IllegalArgumentException("invalid load configuration");
+            }
+            this.centrals = centrals;
+            this.durationMillis = durationMillis;
+            this.link = link;
+            this.readsPerSecond = readsPerSecond;
+            this.writesPerSecond = writesPerSecond;
+            this.streams = Collections.unmodifiableList(new ArrayList<>(streams));
+            this.queue = queue;
+            this.seed = seed;
+        }
+
+        /**
+         * 接近模擬器實際負載的組合：心率 1Hz、Indoor Bike Data 4Hz、CF597 即時資料 10Hz、溫度指示 0.5Hz。
+         */
+        public static Config typical(int centrals, long durationMillis) {
+            List<Stream> streams = new ArrayList<>();
+            streams.add(new Stream("2A37", 1, 6, false, 0.8));
+            streams.add(new Stream("2AD2", 4, 20, false, 0.5));
+            streams.add(new Stream("FFF4", 10, 20, false, 0.3));
+            streams.add(new Stream("2A1C", 0.5, 13, true, 0.2));
+            return new Config(centrals, durationMillis, LoopbackGattTransport.Link.typical(), 0.5, 0.2, streams,
+                    NotificationQueue.Config.defaults(), 1);
+        }
+    }
+
+    private final Config config;
+    private final LoopbackGattTransport<String, String> transport = new LoopbackGattTransport<>();
+    private final SubscriptionRegistry<String> subscriptions = new SubscriptionRegistry<>();
+    private final NotificationQueue<String, String> queue;
+    private final NotificationFanOut<String, String> fanOut;
+    private final Map<String, byte[]> currentValues = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLongArray publishedSequence = new AtomicLongArray(SEQUENCE_RING);
+    private final AtomicLongArray publishedAtNanos = new AtomicLongArray(SEQUENCE_RING);
+    // requestId -> 送出時間，以 pendingRequests 本身為鎖
+    private final Map<Integer, Long> pendingRequests = new HashMap<>();
+    private final Map<Integer, Long> pendingWrites = new HashMap<>();
+    private final AtomicInteger unservedCentrals = new AtomicInteger();
+
+    private final LatencyHistogram notificationLatency = new LatencyHistogram();
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong staleSequences = new AtomicLong();
+    private final AtomicLong readsIssued = new AtomicLong();
+    private final AtomicLong writesIssued = new AtomicLong();
+
+    private final GattTransport.Callback<String, String> server = new GattTransport.Callback<String, String>() {
+        @Override
+        public void onConnectionStateChange(String deviceId, boolean connected) {
+            if (!connected) {
+                subscriptions.onDeviceDisconnected(deviceId);
+            } else if (subscriptions.onDeviceConnected(deviceId) == SubscriptionRegistry.NONE) {
+                unservedCentrals.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onSubscriptionChanged(String deviceId, String characteristic, byte[] cccdValue) {
+            subscriptions.onCccdWritten(deviceId, characteristic, cccdValue);
+        }
+
+        @Override
+        public void onCharacteristicReadRequest(String deviceId, int requestId, int offset, String characteristic) {
+            transport.sendResponse(deviceId, requestId, 0, 0, currentValues.get(characteristic));
+        }
+
+        @Override
+        public void onCharacteristicWriteRequest(String deviceId, int requestId, String characteristic,
+                                                 boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+            if (responseNeeded) transport.sendResponse(deviceId, requestId, 0, 0, value);
+        }
+    };
+
+    public VirtualCentralLoadGenerator(Config config) {
+        this.config = config;
+        this.queue = new NotificationQueue<>(transport, config.queue);
+        this.fanOut = new NotificationFanOut<>(subscriptions, queue);
+        this.scheduler = Executors.newScheduledThreadPool(2, r -> {
+            Thread thread = new Thread(r, "ble-load-generator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        transport.addCallback(server);
+        for (Stream stream : config.streams) {
+            currentValues.put(stream.name, new byte[stream.payloadSize]);
+        }
+    }
+
+    /**
+     * 連線所有 central、執行 {@link Config#durationMillis}，停止發佈後等待佇列送完，回傳統計結果。
+     * 產生器只能執行一次。
+     */
+    public Report run() throws InterruptedException {
+        try {
+            connectCentrals();
+            long startNanos = System.nanoTime();
+            startPublishers();
+            startRequests();
+            Thread.sleep(config.durationMillis);
+            scheduler.shutdownNow();
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+            long elapsedNanos = System.nanoTime() - startNanos;
+            drain();
+            return buildReport(elapsedNanos);
+        } finally {
+            scheduler.shutdownNow();
+            queue.close();
+            transport.close();
+        }
+    }
+
+    private void connectCentrals() throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(config.centrals);
+        GattTransport.Callback<String, String> connected = new GattTransport.Callback<String, String>() {
+            @Override
+            public void onConnectionStateChange(String deviceId, boolean isConnected) {
+                if (isConnected) ready.countDown();
+            }
+        };
+        transport.addCallback(connected);
+        Random random = new Random(config.seed);
+        List<String> devices = new ArrayList<>(config.centrals);
+        for (int i = 0; i < config.centrals; i++) {
+            String deviceId = String.format(Locale.ROOT, "VC:%02X:%02X", (i >> 8) & 0xFF, i & 0xFF);
+            transport.connect(deviceId, config.link, central);
+            devices.add(deviceId);
+        }
+        ready.await(10, TimeUnit.SECONDS);
+        transport.removeCallback(connected);
+
+        List<String[]> planned = new ArrayList<>();
+        for (String deviceId : devices) {
+            for (Stream stream : config.streams) {
+                if (random.nextDouble() < stream.subscribeProbability) {
+                    planned.add(new String[]{deviceId, stream.name, stream.indication ? "i" : "n"});
+                }
+            }
+        }
+        // 伺服器的回呼先註冊，這個回呼被呼叫時該 CCCD 寫入已經生效
+        final CountDownLatch subscribed = new CountDownLatch(planned.size());
+        GattTransport.Callback<String, String> cccdWritten = new GattTransport.Callback<String, String>() {
+            @Override
+            public void onSubscriptionChanged(String deviceId, String characteristic, byte[] cccdValue) {
+                subscribed.countDown();
+            }
+        };
+        transport.addCallback(cccdWritten);
+        for (String[] subscription : planned) {
+            transport.writeCccd(subscription[0], subscription[1], "i".equals(subscription[2]) ? CCCD_INDICATE : CCCD_NOTIFY);
+        }
+        subscribed.await(10, TimeUnit.SECONDS);
+        transport.removeCallback(cccdWritten);
+    }
+
+    private void startPublishers() {
+        for (final Stream stream : config.streams) {
+            long periodMicros = Math.max(1, (long) (1_000_000 / stream.ratePerSecond));
+            final byte[] value = new byte[stream.payloadSize];
+            scheduler.scheduleAtFixedRate(() -> {
+                long seq = sequence.incrementAndGet();
+                int index = (int) (seq & (SEQUENCE_RING - 1));
+                publishedAtNanos.set(index, System.nanoTime());
+                publishedSequence.set(index, seq);
+                writeSequence(value, seq);
+                currentValues.put(stream.name, value.clone());
+                // publish 會複製 value，同一個陣列可以重複使用
+                fanOut.publish(stream.name, value, stream.indication);
+            }, periodMicros, periodMicros, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private void startRequests() {
+        final List<String> devices = new ArrayList<>(transport.getConnectedDevices());
+        Collections.sort(devices);
+        final Random random = new Random(config.seed + 1);
+        if (config.readsPerSecond > 0) {
+            scheduleRequests(devices, config.readsPerSecond, () -> {
+                String deviceId = devices.get(random.nextInt(devices.size()));
+                String characteristic = config.streams.get(random.nextInt(config.streams.size())).name;
+                // 回應可能在 readCharacteristic 返回前就到了，onResponse 以同一把鎖等待記錄完成
+                synchronized (pendingRequests) {
+                    long issuedAt = System.nanoTime();
+                    int requestId = transport.readCharacteristic(deviceId, characteristic);
+                    if (requestId > 0) {
+                        pendingRequests.put(requestId, issuedAt);
+                        readsIssued.incrementAndGet();
+                    }
+                }
+            });
+        }
+        if (config.writesPerSecond > 0) {
+            final byte[] command = {0x05, 0x00, 0x00};
+            scheduleRequests(devices, config.writesPerSecond, () -> {
+                String deviceId = devices.get(random.nextInt(devices.size()));
+                synchronized (pendingRequests) {
+                    long issuedAt = System.nanoTime();
+                    int requestId = transport.writeCharacteristic(deviceId, "2AD9", command, true);
+                    if (requestId > 0) {
+                        pendingWrites.put(requestId, issuedAt);
+                        writesIssued.incrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 所有 central 合計的速率 = 單一 central 的速率 x central 數，以一個週期性工作平均送出。
+     */
+    private void scheduleRequests(List<String> devices, double perCentralPerSecond, Runnable request) {
+        if (devices.isEmpty()) return;
+        long periodMicros = Math.max(1, (long) (1_000_000 / (perCentralPerSecond * devices.size())));
+        scheduler.scheduleAtFixedRate(request, periodMicros, periodMicros, TimeUnit.MICROSECONDS);
+    }
+
+    private final LoopbackGattTransport.Central<String> central = new LoopbackGattTransport.Central<String>() {
+        @Override
+        public void onNotification(String deviceId, String characteristic, byte[] value, boolean indication, long enqueuedAtNanos) {
+            long now = System.nanoTime();
+            received.incrementAndGet();
+            long seq = readSequence(value);
+            int index = (int) (seq & (SEQUENCE_RING - 1));
+            long publishedAt = publishedAtNanos.get(index);
+            if (publishedSequence.get(index) != seq) {
+                staleSequences.incrementAndGet();
+                return;
+            }
+            notificationLatency.record(now - publishedAt);
+        }
+
+        @Override
+        public void onResponse(int requestId, int status, int offset, byte[] value) {
+            long now = System.nanoTime();
+            Long readAt;
+            Long writeAt;
+            synchronized (pendingRequests) {
+                readAt = pendingRequests.remove(requestId);
+                writeAt = pendingWrites.remove(requestId);
+            }
+            if (readAt != null) readLatency.record(now - readAt);
+            if (writeAt != null) writeLatency.record(now - writeAt);
+        }
+    };
+
+    /**
+     * 等待所有裝置佇列送完 (最多 2 秒)，之後仍在佇列中的通知視為遺失。
+     */
+    private void drain() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (System.nanoTime() < deadline) {
+            boolean empty = true;
+            for (NotificationQueue.DeviceStats stats : queue.getStats()) {
+                if (stats.depth > 0 || stats.inFlight > 0) {
+                    empty = false;
+                    break;
+                }
+            }
+            if (empty) break;
+            Thread.sleep(10);
+        }
+        // 最後一個連線事件的回呼
+        Thread.sleep(config.link.intervalMicros / 1000 * 2 + 1);
+    }
+
+    private Report buildReport(long elapsedNanos) {
+        NotificationFanOut.Stats fanOutStats = fanOut.getStats();
+        long rejected = 0;
+        for (NotificationFanOut.DeviceStats device : fanOutStats.devices) {
+            rejected += device.rejected;
+        }
+        // 佇列的 dropped 已包含 DROP_NEWEST 時被拒絕的那些
+        long dropped = 0;
+        long conflated = 0;
+        for (NotificationQueue.DeviceStats stats : queue.getStats()) {
+            dropped += stats.dropped + stats.failed + stats.indicationTimeouts;
+            conflated += stats.conflated;
+        }
+        long expected = fanOutStats.deliveries + rejected;
+        long lost = Math.max(0, expected - dropped - conflated - received.get());
+        return new Report(config.centrals, unservedCentrals.get(), elapsedNanos, fanOutStats.published,
+                expected, received.get(), dropped, conflated, lost, staleSequences.get(),
+                notificationLatency, readsIssued.get(), readLatency, writesIssued.get(), writeLatency);
+    }
+
+    private static void writeSequence(byte[] value, long seq) {
+        value[0] = (byte) seq;
+        value[1] = (byte) (seq >>> 8);
+        value[2] = (byte) (seq >>> 16);
+        value[3] = (byte) (seq >>> 24);
+    }
+
+    private long readSequence(byte[] value) {
+        long low = (value[0] & 0xFFL) | (value[1] & 0xFFL) << 8 | (value[2] & 0xFFL) << 16 | (value[3] & 0xFFL) << 24;
+        // 只傳了低 32 位元，以目前的序號補上高位
+        long current = sequence.get();
+        long seq = (current & ~0xFFFFFFFFL) | low;
+        return seq > current ? seq - (1L << 32) : seq;
+    }
+
+    /**
+     * 一次負載測試的結果。延遲單位為奈秒。
+     */
+    public static final class Report {
+        public final int centrals;
+        /** 超過 {@link SubscriptionRegistry#MAX_DEVICES}、收不到通知的 central 數。 */
+        public final int unservedCentrals;
+        public final long elapsedNanos;
+        /** 伺服器的發佈次數 (每個特徵值一次，與 central 數無關)。 */
+        public final long published;
+        /** 應送達的通知數 (每個訂閱的 central 一次，不含 {@link #unservedCentrals})。 */
+        public final long expected;
+        public final long received;
+        /** 佇列已滿被拒絕、被丟棄或傳輸層回報失敗的通知數。 */
+        public final long dropped;
+        /** 被較新的值取代的通知數 (設定為只保留最新值的特徵)。 */
+        public final long conflated;
+        /** 被佇列接受但測試結束時仍未送達的通知數。 */
+        public final long lost;
+        /** 序號已被覆寫、無法計算延遲的通知數。 */
+        public final long staleSequences;
+        public final long notificationP50Nanos;
+        public final long notificationP99Nanos;
+        public final long notificationMaxNanos;
+        public final long readsIssued;
+        public final long readsCompleted;
+        public final long readP50Nanos;
+        public final long readP99Nanos;
+        public final long writesIssued;
+        public final long writesCompleted;
+        public final long writeP50Nanos;
+        public final long writeP99Nanos;
+
+        Report(int centrals, int unservedCentrals, long elapsedNanos, long published, long expected, long received,
+               long dropped, long conflated, long lost, long staleSequences, LatencyHistogram notifications,
+               long readsIssued, LatencyHistogram reads, long writesIssued, LatencyHistogram writes) {
+            this.centrals = centrals;
+            this.unservedCentrals = unservedCentrals;
+            this.elapsedNanos = elapsedNanos;
+            this.published = published;
+            this.expected = expected;
+            this.received = received;
+            this.dropped = dropped;
+            this.conflated = conflated;
+            this.lost = lost;
+            this.staleSequences = staleSequences;
+            this.notificationP50Nanos = notifications.percentile(0.50);
+            this.notificationP99Nanos = notifications.percentile(0.99);
+            this.notificationMaxNanos = notifications.max();
+            this.readsIssued = readsIssued;
+            this.readsCompleted = reads.count();
+            this.readP50Nanos = reads.percentile(0.50);
+            this.readP99Nanos = reads.percentile(0.99);
+            this.writesIssued = writesIssued;
+            this.writesCompleted = writes.count();
+            this.writeP50Nanos = writes.percentile(0.50);
+            this.writeP99Nanos = writes.percentile(0.99);
+        }
+
+        /** 每秒送達 central 的通知數。 */
+        public double throughputPerSecond() {
+            return elapsedNanos == 0 ? 0 : received * 1e9 / elapsedNanos;
+        }
+
+        /** (dropped + lost) / expected。 */
+        public double dropRate() {
+            return expected == 0 ? 0 : (double) (dropped + lost) / expected;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "centrals=%d (unserved=%d) elapsed=%.1fs%n"
+                            + "notifications: published=%d expected=%d received=%d dropped=%d conflated=%d lost=%d "
+                            + "dropRate=%.4f throughput=%.1f/s%n"
+                            + "notification latency: p50=%.2fms p99=%.2fms max=%.2fms%n"
+                            + "reads: %d/%d p50=%.2fms p99=%.2fms%n"
+                            + "writes: %d/%d p50=%.2fms p99=%.2fms",
+                    centrals, unservedCentrals, elapsedNanos / 1e9,
+                    published, expected, received, dropped, conflated, lost, dropRate(), throughputPerSecond(),
+                    notificationP50Nanos / 1e6, notificationP99Nanos / 1e6, notificationMaxNanos / 1e6,
+                    readsCompleted, readsIssued, readP50Nanos / 1e6, readP99Nanos / 1e6,
+                    writesCompleted, writesIssued, writeP50Nanos / 1e6, writeP99Nanos / 1e6);
+        }
+    }
+
+    /**
+     * 固定記憶體的延遲直方圖 (微秒解析度，128 微秒以上以 64 個子區間的對數刻度，相對誤差小於 1/64)。
+     */
+    static final class LatencyHistogram {
+        private static final int LINEAR = 128;
+        private static final int SUB_BUCKETS = 64;
+        private static final int BUCKETS = LINEAR + (63 - 7) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            counts.incrementAndGet(bucket(micros));
+            total.incrementAndGet();
+            long current;
+            while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+                // 重試
+            }
+        }
+
+        long count() {
+            return total.get();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /**
+         * @return 百分位數 (奈秒，取所在區間的上界)；沒有資料時為 0。
+         */
+        long percentile(double quantile) {
+            long n = total.get();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * n));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return Math.min(upperBoundMicros(i) * 1000, max.get());
+            }
+            return max.get();
+        }
+
+        static int bucket(long micros) {
+            if (micros < LINEAR) return (int) micros;
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (exponent - 6)) & (SUB_BUCKETS - 1);
+            return Math.min(BUCKETS - 1, LINEAR + (exponent - 7) * SUB_BUCKETS + sub);
+        }
+
+        static long upperBoundMicros(int bucket) {
+            if (bucket < LINEAR) return bucket;
+            int exponent = 7 + (bucket - LINEAR) / SUB_BUCKETS;
+            int sub = (bucket - LINEAR) % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 6)) - 1;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.tutsplus.bleadvertising;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 特徵寫入請求的分派表：各 profile 以特徵 UUID 註冊自己的控制點處理器，
+ * GATT 回呼只需要一次雜湊查詢就能找到處理器，不需要逐一比對 UUID。
+ *
+ * 每個處理器記錄呼叫次數、失敗次數 (回傳非 0 狀態)、例外次數與處理時間。
+ * 此類別不依賴 Android API。
+ *
+ * @param <C> 特徵的型別 (Android 上為 BluetoothGattCharacteristic)。
+ */
+public final class WriteDispatcher<C> {
+
+    /** ATT 成功。 */
+    public static final int STATUS_SUCCESS = 0x00;
+    /** ATT Unlikely Error，處理器拋出例外時回傳。 */
+    public static final int STATUS_UNLIKELY_ERROR = 0x0E;
+
+    /**
+     * 控制點處理器。在 GATT 回呼的執行緒上執行，應盡快返回，耗時的工作要自行排程。
+     */
+    public interface Handler<C> {
+        /**
+         * @return 要回應給客戶端的 ATT 狀態，{@link #STATUS_SUCCESS} 或 profile 定義的應用錯誤碼 (0x80-0x9F)。
+         */
+        int onWrite(String deviceId, C characteristic, byte[] value);
+    }
+
+    private static final class Entry<C> {
+        final UUID uuid;
+        final String name;
+        final Handler<C> handler;
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong exceptions = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        Entry(UUID uuid, String name, Handler<C> handler) {
+            this.uuid = uuid;
+            this.name = name;
+            this.handler = handler;
+        }
+    }
+
+    private final Map<UUID, Entry<C>> handlers = new ConcurrentHashMap<>();
+    private final AtomicLong unhandled = new AtomicLong();
+
+    /**
+     * 註冊一個處理器。
+     * @throws IllegalStateException 該 UUID 已經有處理器。
+     */
+    public void register(UUID uuid, String name, Handler<C> handler) {
+        if (handlers.putIfAbsent(uuid, new Entry<>(uuid, name, handler)) != null) {
+            throw new IllegalStateException("write handler already registered: " + uuid);
+        }
+    }
+
+    public boolean unregister(UUID uuid) {
+        return handlers.remove(uuid) != null;
+    }
+
+    public boolean isRegistered(UUID uuid) {
+        return handlers.containsKey(uuid);
+    }
+
+    /**
+     * 將寫入交給該 UUID 的處理器。沒有處理器的寫入一律接受 (例如 Device Time 等一般可寫特徵)，只記錄次數。
+     * @return 要回應給客戶端的 ATT 狀態。
+     */
+    public int dispatch(String deviceId, UUID uuid, C characteristic, byte[] value) {
+        Entry<C> entry = handlers.get(uuid);
+        if (entry == null) {
+            unhandled.incrementAndGet();
+            return STATUS_SUCCESS;
+        }
+        long start = System.nanoTime();
+        int status;
+        try {
+            status = entry.handler.onWrite(deviceId, characteristic, value);
+        } catch (RuntimeException e) {
+            entry.exceptions.incrementAndGet();
+            status = STATUS_UNLIKELY_ERROR;
+        }
+        long elapsed = System.nanoTime() - start;
+        entry.calls.incrementAndGet();
+        if (status != STATUS_SUCCESS) entry.failures.incrementAndGet();
+        entry.totalNanos.addAndGet(elapsed);
+        long max;
+        while (elapsed > (max = entry.maxNanos.get()) && !entry.maxNanos.compareAndSet(max, elapsed)) {
+            // 重試
+        }
+        return status;
+    }
+
+    /**
+     * 沒有處理器的寫入次數。
+     */
+    public long getUnhandledCount() {
+        return unhandled.get();
+    }
+
+    public List<HandlerStats> getStats() {
+        List<HandlerStats> stats = new ArrayList<>(handlers.size());
+        for (Entry<C> entry : handlers.values()) {
+            stats.add(new HandlerStats(entry.uuid, entry.name, entry.calls.get(), entry.failures.get(),
+                    entry.exceptions.get(), entry.totalNanos.get(), entry.maxNanos.get()));
+        }
+        return stats;
+    }
+
+    /**
+     * 單一處理器的統計。時間單位為奈秒。
+     */
+    public static final class HandlerStats {
+        public final UUID uuid;
+        public final String name;
+        public final long calls;
+        /** 回傳非 0 狀態的次數 (含例外)。 */
+        public final long failures;
+        public final long exceptions;
+        public final long totalNanos;
+        public final long maxNanos;
+
+        HandlerStats(UUID uuid, String name, long calls, long failures, long exceptions, long totalNanos, long maxNanos) {
+            this.uuid = uuid;
+            this.name = name;
+            this.calls = calls;
+            this.failures = failures;
+            this.exceptions = exceptions;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long meanNanos() {
+            return calls == 0 ? 0 : totalNanos / calls;
+        }
+
+        @Override
+        public String toString() {
+            return name + " calls=" + calls + " failures=" + failures + " exceptions=" + exceptions
+                    + " mean=" + meanNanos() / 1000 + "us max=" + maxNanos / 1000 + "us";
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FitnessMachineControlPointTest {
+
+    private static final UUID CONTROL_POINT_UUID = UUID.fromString("00002AD9-0000-1000-8000-00805f9b34fb");
+
+    private static final class RecordingListener implements FitnessMachineControlPoint.Listener {
+        final List<byte[]> responses = new ArrayList<>();
+        final List<byte[]> statuses = new ArrayList<>();
+        int targetChanges;
+
+        @Override
+        public void onResponse(byte[] response) {
+            responses.add(response);
+        }
+
+        @Override
+        public void onStatus(byte[] status) {
+            statuses.add(status);
+        }
+
+        @Override
+        public void onTargetChanged(long writeNanos) {
+            targetChanges++;
+        }
+
+        byte[] lastResponse() {
+            return responses.get(responses.size() - 1);
+        }
+    }
+
+    @Test
+    public void requiresControlBeforeOtherCommands() {
+        RecordingListener listener = new RecordingListener();
+        FitnessMachineControlPoint control = new FitnessMachineControlPoint(listener);
+
+        control.onWrite("A", new byte[]{0x04, 50});
+        assertArrayEquals(new byte[]{(byte) 0x80, 0x04, 0x05}, listener.lastResponse());
+        control.onWrite("A", new byte[]{0x30});
+        assertArrayEquals(new byte[]{(byte) 0x80, 0x30, 0x02}, listener.lastResponse());
+
+        control.onWrite("A", new byte[]{0x00});
+        assertArrayEquals(new byte[]{(byte) 0x80, 0x00, 0x01}, listener.lastResponse());
+        // 其他客戶端不能搶走控制權，斷線後才釋放
+        control.onWrite("B", new byte[]{0x00});
+        assertArrayEquals(new byte[]{(byte) 0x80, 0x00, 0x05}, listener.lastResponse());
+        control.onDeviceDisconnected("A");
+        control.onWrite("B", new byte[]{0x00});
+        assertArrayEquals(new byte[]{(byte) 0x80, 0x00, 0x01}, listener.lastResponse());
+        assertEquals("B", control.getControllingDevice());
+        assertTrue(listener.statuses.isEmpty());
+        assertEquals(0, listener.targetChanges);
+    }
+
+    @Test
+    public void appliesTargetsAndReportsStatus() {
+        RecordingListener listener = new RecordingListener();
+        FitnessMachineControlPoint control = new FitnessMachineControlPoint(listener);
+        control.onWrite("A", new byte[]{0x00});
+
+        // 阻力超出範圍、功率長度錯誤
+        control.onWrite("A", new byte[]{0x04, (byte) 201});
+        assertArrayEquals(new byte[]{(byte) 0x80, 0x04, 0x03}, listener.lastResponse());
+        control.onWrite("A", new byte[]{0x05, 0x10});
+        assertArrayEquals(new byte[]{(byte) 0x80, 0x05, 0x03}, listener.lastResponse());
+        assertTrue(listener.statuses.isEmpty());
+
+        control.onWrite("A", new byte[]{0x04, 50});
+        assertArrayEquals(new byte[]{(byte) 0x80, 0x04, 0x01}, listener.lastResponse());
+        assertArrayEquals(new byte[]{0x07, 50}, listener.statuses.get(0));
+        assertEquals(200, control.power(30, 150));
+
+        // ERG 模式：250 W
+        control.onWrite("A", new byte[]{0x05, (byte) 0xFA, 0x00});
+        assertArrayEquals(new byte[]{0x08, (byte) 0xFA, 0x00}, listener.statuses.get(1));
+        assertEquals(FitnessMachineControlPoint.Mode.POWER, control.getMode());
+        assertEquals(250, control.power(30, 150));
+
+        // 坡度 5%、Crr 0.004、Cw 0.51：上坡比平路費力
+        control.onWrite("A", new byte[]{0x11, 0, 0, (byte) 0xF4, 0x01, 40, 51});
+        assertEquals(0x12, listener.statuses.get(2)[0]);
+        int uphill = control.power(20, 150);
+        control.onWrite("A", new byte[]{0x11, 0, 0, 0, 0, 40, 51});
+        assertTrue(uphill > control.power(20, 150));
+
+        control.onWrite("A", new byte[]{0x08, 0x02});
+        assertArrayEquals(new byte[]{0x02, 0x02}, listener.statuses.get(4));
+        assertFalse(control.isMoving());
+        assertEquals(0, control.power(30, 150));
+        control.onWrite("A", new byte[]{0x07});
+        assertTrue(control.isMoving());
+        assertEquals(6, listener.targetChanges);
+
+        control.onWrite("A", new byte[]{0x01});
+        assertArrayEquals(new byte[]{0x01}, listener.statuses.get(6));
+        assertNull(control.getControllingDevice());
+        assertEquals(FitnessMachineControlPoint.Mode.RESISTANCE, control.getMode());
+    }
+
+    /**
+     * 透過 30ms 連線間隔的 loopback 連線，量測從寫入控制點到收到反映新目標的 Indoor Bike Data 的時間。
+     */
+    @Test
+    public void publishesIndoorBikeDataRightAfterTargetChange() throws Exception {
+        final LoopbackGattTransport<String, String> transport = new LoopbackGattTransport<>();
+        final SubscriptionRegistry<String> subscriptions = new SubscriptionRegistry<>();
+        final NotificationQueue<String, String> queue = new NotificationQueue<>(transport, NotificationQueue.Config.defaults());
+        final NotificationFanOut<String, String> fanOut = new NotificationFanOut<>(subscriptions, queue);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final AtomicReference<FitnessMachineControlPoint> engine = new AtomicReference<>();
+        final FitnessMachineControlPoint control = new FitnessMachineControlPoint(new FitnessMachineControlPoint.Listener() {
+            @Override
+            public void onResponse(byte[] response) {
+                fanOut.publish("controlPoint", response, true);
+            }
+
+            @Override
+            public void onStatus(byte[] status) {
+                fanOut.publish("status", status, false);
+            }
+
+            @Override
+            public void onTargetChanged(long writeNanos) {
+                fanOut.publish("bike", GattValueBuilder.forIndoorBikeData(30, 90, engine.get().power(30, 150), 130, 0), false);
+            }
+        });
+        engine.set(control);
+        final WriteDispatcher<String> dispatcher = new WriteDispatcher<>();
+        dispatcher.register(CONTROL_POINT_UUID, "ftmsControlPoint", (deviceId, characteristic, value) -> {
+            if ((subscriptions.cccdValue(deviceId, characteristic)[0] & 0x02) == 0) return 0xFD;
+            executor.execute(() -> control.onWrite(deviceId, value));
+            return WriteDispatcher.STATUS_SUCCESS;
+        });
+        final CountDownLatch subscribed = new CountDownLatch(3);
+        transport.addCallback(new GattTransport.Callback<String, String>() {
+            @Override
+            public void onConnectionStateChange(String deviceId, boolean connected) {
+                if (connected) subscriptions.onDeviceConnected(deviceId);
+            }
+
+            @Override
+            public void onSubscriptionChanged(String deviceId, String characteristic, byte[] value) {
+                subscriptions.onCccdWritten(deviceId, characteristic, value);
+                subscribed.countDown();
+            }
+
+            @Override
+            public void onCharacteristicWriteRequest(String deviceId, int requestId, String characteristic,
+                                                     boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+                int status = dispatcher.dispatch(deviceId, CONTROL_POINT_UUID, characteristic, value);
+                if (responseNeeded) transport.sendResponse(deviceId, requestId, status, offset, null);
+            }
+        });
+
+        final List<Integer> powers = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicLong writtenAt = new AtomicLong();
+        final AtomicLong latencyNanos = new AtomicLong(-1);
+        final CountDownLatch bikeData = new CountDownLatch(1);
+        final CountDownLatch controlGranted = new CountDownLatch(1);
+        final CountDownLatch response = new CountDownLatch(2);
+        transport.connect("A", LoopbackGattTransport.Link.typical(), new LoopbackGattTransport.Central<String>() {
+            @Override
+            public void onNotification(String deviceId, String characteristic, byte[] value, boolean indication, long enqueuedAtNanos) {
+                if (characteristic.equals("controlPoint")) {
+                    controlGranted.countDown();
+                    response.countDown();
+                } else if (characteristic.equals("bike")) {
+                    latencyNanos.compareAndSet(-1, System.nanoTime() - writtenAt.get());
+                    GattValueReader.IndoorBikeData bike = new GattValueReader.IndoorBikeData();
+                    assertTrue(bike.wrap(value));
+                    powers.add(bike.instantaneousPower());
+                    bikeData.countDown();
+                }
+            }
+        });
+        try {
+            transport.writeCccd("A", "controlPoint", new byte[]{0x02, 0x00});
+            transport.writeCccd("A", "status", new byte[]{0x01, 0x00});
+            transport.writeCccd("A", "bike", new byte[]{0x01, 0x00});
+            assertTrue(subscribed.await(1, TimeUnit.SECONDS));
+
+            // 客戶端先取得控制權，收到回應後才設定目標
+            transport.writeCharacteristic("A", "controlPoint", new byte[]{0x00}, true);
+            assertTrue(controlGranted.await(1, TimeUnit.SECONDS));
+            writtenAt.set(System.nanoTime());
+            transport.writeCharacteristic("A", "controlPoint", new byte[]{0x05, (byte) 0xFA, 0x00}, true);
+            assertTrue(response.await(2, TimeUnit.SECONDS));
+            assertTrue(bikeData.await(2, TimeUnit.SECONDS));
+
+            assertEquals(Integer.valueOf(250), powers.get(0));
+            long latencyMillis = TimeUnit.NANOSECONDS.toMillis(latencyNanos.get());
+            assertTrue("write-to-data latency " + latencyMillis + "ms", latencyMillis < 100);
+        } finally {
+            executor.shutdownNow();
+            queue.close();
+            transport.close();
+        }
+    }
+}
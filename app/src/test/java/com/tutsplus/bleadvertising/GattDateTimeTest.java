@@ -0,0 +1,100 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class GattDateTimeTest {
+
+    private static final class ManualClock implements GattDateTime.Clock {
+        long now;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private static byte[] expectedCurrentTime(TimeZone zone, long epochMillis) {
+        Calendar calendar = Calendar.getInstance(zone);
+        calendar.setTimeInMillis(epochMillis);
+        return GattValueBuilder.forCurrentTime(calendar);
+    }
+
+    @Test
+    public void matchesCalendarAcrossZones() {
+        String[] zoneIds = {"UTC", "Asia/Taipei", "America/New_York", "Australia/Lord_Howe", "Asia/Kathmandu", "America/St_Johns"};
+        Random random = new Random(597);
+        byte[] out = new byte[GattDateTime.CURRENT_TIME_LENGTH];
+        for (String zoneId : zoneIds) {
+            TimeZone zone = TimeZone.getTimeZone(zoneId);
+            ManualClock clock = new ManualClock();
+            GattDateTime dateTime = new GattDateTime(zone, clock);
+            long millis = 946684800000L; // 2000-01-01
+            for (int i = 0; i < 5000; i++) {
+                // 大多數是小步前進 (走同一天的快取路徑)，偶爾跳很遠
+                millis += random.nextInt(10) == 0 ? (long) (random.nextDouble() * 86400000L * 400) : random.nextInt(7200_000);
+                clock.now = millis;
+                dateTime.writeCurrentTime(out, 0);
+                assertArrayEquals(zoneId + " @" + millis, expectedCurrentTime(zone, millis), out);
+            }
+        }
+    }
+
+    @Test
+    public void formatsArePrefixesOfCurrentTime() {
+        ManualClock clock = new ManualClock();
+        clock.now = 1700000000123L;
+        GattDateTime dateTime = new GattDateTime(TimeZone.getTimeZone("UTC"), clock);
+        byte[] currentTime = new byte[GattDateTime.CURRENT_TIME_LENGTH];
+        byte[] dayDateTime = new byte[GattDateTime.DAY_DATE_TIME_LENGTH + 2];
+        byte[] date = new byte[GattDateTime.DATE_TIME_LENGTH];
+
+        dateTime.writeCurrentTime(currentTime, 0);
+        assertEquals(GattDateTime.DAY_DATE_TIME_LENGTH, dateTime.writeDayDateTime(dayDateTime, 2));
+        assertEquals(GattDateTime.DATE_TIME_LENGTH, dateTime.writeDateTime(date, 0));
+
+        // 2023-11-14 22:13:20 UTC，星期二
+        assertArrayEquals(new byte[]{(byte) 0xE7, 0x07, 11, 14, 22, 13, 20, 2, 0, 1}, currentTime);
+        assertArrayEquals(Arrays.copyOf(currentTime, 9), Arrays.copyOfRange(dayDateTime, 2, 11));
+        assertArrayEquals(Arrays.copyOf(currentTime, 7), date);
+    }
+
+    @Test
+    public void rollsOverMidnight() {
+        ManualClock clock = new ManualClock();
+        TimeZone zone = TimeZone.getTimeZone("Asia/Taipei");
+        GattDateTime dateTime = new GattDateTime(zone, clock);
+        byte[] out = new byte[GattDateTime.CURRENT_TIME_LENGTH];
+        // 2024-02-28 23:59:59 +08:00 起逐秒前進，跨過閏日
+        long start = 1709135999000L;
+        for (long millis = start; millis < start + 86400_000L + 5_000; millis += 500) {
+            clock.now = millis;
+            dateTime.writeCurrentTime(out, 0);
+            assertArrayEquals(expectedCurrentTime(zone, millis), out);
+        }
+    }
+
+    @Test
+    public void readsBackWallClockSeconds() {
+        ManualClock clock = new ManualClock();
+        GattDateTime utc = new GattDateTime(TimeZone.getTimeZone("UTC"), clock);
+        GattDateTime taipei = new GattDateTime(TimeZone.getTimeZone("Asia/Taipei"), clock);
+        byte[] out = new byte[GattDateTime.DATE_TIME_LENGTH];
+        Random random = new Random(2);
+        for (int i = 0; i < 2000; i++) {
+            // 1980 到 2100 年之間 (台北在 1980 年之後沒有日光節約時間)
+            long seconds = (long) ((random.nextDouble() * 120 + 10) * 365.25 * 86400);
+            clock.now = seconds * 1000;
+            utc.writeDateTime(out, 0);
+            assertEquals(seconds, GattDateTime.readWallClockSeconds(out, 0));
+            taipei.writeDateTime(out, 0);
+            assertEquals(seconds + 8 * 3600, GattDateTime.readWallClockSeconds(out, 0));
+        }
+    }
+}
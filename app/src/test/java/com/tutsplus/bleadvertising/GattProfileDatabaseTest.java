@@ -0,0 +1,196 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * GattProfileDatabase 的解碼測試。格式測試的資料依 app/build.gradle 的 compileGattProfiles 輸出的格式手動組出；
+ * {@link #decodesGeneratedDatabase()} 則讀取 compileGattProfiles 實際編譯出的 gatt_profiles.bin (測試工作依賴該工作)。
+ */
+public class GattProfileDatabaseTest {
+
+    private static final UUID CUSTOM = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+
+    private static UUID sig(int alias) {
+        return UUID.fromString(String.format("%08X-0000-1000-8000-00805f9b34fb", alias));
+    }
+
+    private static ByteBuffer generatedDatabase() throws IOException {
+        String path = System.getProperty("gattProfiles.database", "build/generated/gattProfiles/assets/gatt_profiles.bin");
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static ByteBuffer sampleDatabase() {
+        // profile "battery": 180F { 2A19 read|notify, read, value 0x62, CCCD rw 0x0000 }
+        ByteBuffer battery = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+        battery.put((byte) 2).putShort((short) 0x180F).put((byte) 0).put((byte) 1);
+        battery.put((byte) 2).putShort((short) 0x2A19).put((byte) 0x12).putShort((short) 0x01);
+        battery.putShort((short) 1).put((byte) 0x62);
+        battery.put((byte) 1);
+        battery.put((byte) 2).putShort((short) 0x2902).putShort((short) 0x11).putShort((short) 2).put((byte) 0).put((byte) 0);
+        battery.flip();
+
+        // profile "uart": 128-bit secondary service，特徵沒有初始值也沒有描述符
+        ByteBuffer uart = ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN);
+        uart.put((byte) 16).putLong(CUSTOM.getMostSignificantBits()).putLong(CUSTOM.getLeastSignificantBits());
+        uart.put((byte) 1).put((byte) 1);
+        uart.put((byte) 2).putShort((short) 0xFFF1).put((byte) 0x0C).putShort((short) 0x10);
+        uart.putShort((short) 0xFFFF);
+        uart.put((byte) 0);
+        uart.flip();
+
+        byte[] batteryName = "battery".getBytes(StandardCharsets.UTF_8);
+        byte[] uartName = "uart".getBytes(StandardCharsets.UTF_8);
+        int headerLength = 8 + (1 + batteryName.length + 8) + (1 + uartName.length + 8);
+        ByteBuffer out = ByteBuffer.allocate(headerLength + battery.remaining() + uart.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(GattProfileDatabase.MAGIC).putShort((short) GattProfileDatabase.VERSION).putShort((short) 2);
+        out.put((byte) batteryName.length).put(batteryName).putInt(headerLength).putInt(battery.remaining());
+        out.put((byte) uartName.length).put(uartName).putInt(headerLength + battery.remaining()).putInt(uart.remaining());
+        out.put(battery).put(uart);
+        out.flip();
+        return out;
+    }
+
+    @Test
+    public void decodesProfilesInFileOrder() {
+        GattProfileDatabase database = GattProfileDatabase.open(sampleDatabase());
+        assertEquals(Arrays.asList("battery", "uart"), database.getProfileNames());
+        assertNull(database.getProfile("missing"));
+
+        GattProfileDatabase.Service battery = database.getProfile("battery").service;
+        assertEquals(UUID.fromString("0000180F-0000-1000-8000-00805f9b34fb"), battery.uuid);
+        assertEquals(GattProfileDatabase.SERVICE_TYPE_PRIMARY, battery.type);
+        GattProfileDatabase.Characteristic level = battery.characteristics.get(0);
+        assertEquals(UUID.fromString("00002A19-0000-1000-8000-00805f9b34fb"), level.uuid);
+        assertEquals(0x12, level.properties);
+        assertEquals(0x01, level.permissions);
+        assertArrayEquals(new byte[]{0x62}, level.value);
+        GattProfileDatabase.Descriptor cccd = level.descriptors.get(0);
+        assertEquals(ServicesManager.CCCD_UUID, cccd.uuid);
+        assertEquals(0x11, cccd.permissions);
+        assertArrayEquals(new byte[]{0, 0}, cccd.value);
+
+        GattProfileDatabase.Service uart = database.getProfile("uart").service;
+        assertEquals(CUSTOM, uart.uuid);
+        assertEquals(GattProfileDatabase.SERVICE_TYPE_SECONDARY, uart.type);
+        assertNull(uart.characteristics.get(0).value);
+        assertTrue(uart.characteristics.get(0).descriptors.isEmpty());
+    }
+
+    @Test
+    public void openDoesNotDependOnBufferPosition() {
+        ByteBuffer buffer = sampleDatabase();
+        buffer.position(5);
+        assertEquals(2, GattProfileDatabase.open(buffer).getProfileNames().size());
+        assertEquals(5, buffer.position());
+    }
+
+    @Test
+    public void rejectsMalformedInput() {
+        ByteBuffer bad = sampleDatabase();
+        bad.put(0, (byte) 'X');
+        try {
+            GattProfileDatabase.open(bad);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+
+        ByteBuffer full = sampleDatabase();
+        ByteBuffer truncated = ByteBuffer.allocate(full.limit() - 3);
+        full.limit(full.limit() - 3);
+        truncated.put(full).flip();
+        try {
+            GattProfileDatabase.open(truncated);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void decodesGeneratedDatabase() throws IOException {
+        GattProfileDatabase database = GattProfileDatabase.open(generatedDatabase());
+        // 依 src/main/gattProfiles 的檔名排序
+        assertEquals(Arrays.asList("deviceInfo", "healthScaleC2", "standardBattery", "standardDeviceInfo"),
+                database.getProfileNames());
+
+        GattProfileDatabase.Service deviceInfo = database.getProfile("deviceInfo").service;
+        assertEquals(sig(0x180A), deviceInfo.uuid);
+        assertEquals(GattProfileDatabase.SERVICE_TYPE_PRIMARY, deviceInfo.type);
+        assertEquals(9, deviceInfo.characteristics.size());
+        GattProfileDatabase.Characteristic manufacturer = deviceInfo.characteristics.get(0);
+        assertEquals(sig(0x2A29), manufacturer.uuid);
+        assertEquals(0x02, manufacturer.properties);
+        assertEquals(0x01, manufacturer.permissions);
+        assertArrayEquals("Android BLE Project".getBytes(StandardCharsets.UTF_8), manufacturer.value);
+        assertTrue(manufacturer.descriptors.isEmpty());
+        GattProfileDatabase.Characteristic systemId = deviceInfo.characteristics.get(6);
+        assertEquals(sig(0x2A23), systemId.uuid);
+        assertArrayEquals(new byte[]{(byte) 0x88, 0x77, 0x66, 0x55, 0x44, 0x33, 0x22, 0x11}, systemId.value);
+        // hex 與 utf8 片段串接
+        GattProfileDatabase.Characteristic regulatory = deviceInfo.characteristics.get(7);
+        assertEquals(sig(0x2A2A), regulatory.uuid);
+        assertEquals(5 + "FCC ID: ABC-12345".length(), regulatory.value.length);
+        assertEquals(0x01, regulatory.value[0]);
+        assertEquals('F', regulatory.value[5]);
+        assertArrayEquals(new byte[]{0x01, (byte) 0xE0, 0x00, (byte) 0xCD, (byte) 0xAB, 0x01, 0x01},
+                deviceInfo.characteristics.get(8).value);
+
+        GattProfileDatabase.Service scale = database.getProfile("healthScaleC2").service;
+        assertEquals(sig(0xFFF0), scale.uuid);
+        assertEquals(3, scale.characteristics.size());
+        GattProfileDatabase.Characteristic write = scale.characteristics.get(0);
+        assertEquals(sig(0xFFF1), write.uuid);
+        assertEquals(0x0C, write.properties);
+        assertEquals(0x10, write.permissions);
+        assertNull(write.value);
+        assertTrue(write.descriptors.isEmpty());
+        GattProfileDatabase.Characteristic notify = scale.characteristics.get(1);
+        assertEquals(sig(0xFFF4), notify.uuid);
+        assertEquals(0x10, notify.properties);
+        assertEquals(0, notify.permissions);
+        assertCccd(notify);
+        GattProfileDatabase.Characteristic secondary = scale.characteristics.get(2);
+        assertEquals(sig(0xFFF2), secondary.uuid);
+        assertEquals(0x1A, secondary.properties);
+        assertEquals(0x11, secondary.permissions);
+        assertArrayEquals(new byte[]{0}, secondary.value);
+        assertCccd(secondary);
+
+        GattProfileDatabase.Service battery = database.getProfile("standardBattery").service;
+        assertEquals(sig(0x180F), battery.uuid);
+        assertEquals(1, battery.characteristics.size());
+        GattProfileDatabase.Characteristic level = battery.characteristics.get(0);
+        assertEquals(sig(0x2A19), level.uuid);
+        assertEquals(0x12, level.properties);
+        assertEquals(0x01, level.permissions);
+        assertArrayEquals(new byte[]{0x62}, level.value);
+        assertCccd(level);
+
+        GattProfileDatabase.Service firmware = database.getProfile("standardDeviceInfo").service;
+        assertEquals(sig(0x180A), firmware.uuid);
+        assertEquals(1, firmware.characteristics.size());
+        assertEquals(sig(0x2A26), firmware.characteristics.get(0).uuid);
+        assertArrayEquals("1.0.0".getBytes(StandardCharsets.UTF_8), firmware.characteristics.get(0).value);
+    }
+
+    private static void assertCccd(GattProfileDatabase.Characteristic characteristic) {
+        assertEquals(1, characteristic.descriptors.size());
+        GattProfileDatabase.Descriptor cccd = characteristic.descriptors.get(0);
+        assertEquals(ServicesManager.CCCD_UUID, cccd.uuid);
+        assertEquals(0x11, cccd.permissions);
+        assertArrayEquals(new byte[]{0, 0}, cccd.value);
+    }
+}
@@ -0,0 +1,67 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+import static org.junit.Assert.*;
+
+public class GattValueBuilderTest {
+
+    private static byte[] slice(byte[] buffer, int offset, int length) {
+        return Arrays.copyOfRange(buffer, offset, offset + length);
+    }
+
+    @Test
+    public void intoBufferMatchesAllocatingEncoder() {
+        byte[] out = new byte[64];
+        int offset = 7;
+
+        int length = GattValueBuilder.forIndoorBikeData(out, offset, 28.4f, 90.2f, 185, 131, 12345);
+        assertArrayEquals(GattValueBuilder.forIndoorBikeData(28.4f, 90.2f, 185, 131, 12345), slice(out, offset, length));
+
+        length = GattValueBuilder.forBloodPressureMeasurement(out, offset, 121f, 79f, 93f, 68f, true);
+        assertArrayEquals(GattValueBuilder.forBloodPressureMeasurement(121f, 79f, 93f, 68f, true), slice(out, offset, length));
+
+        length = GattValueBuilder.forHeartRateMeasurement(out, offset, 300, true, true, 250);
+        assertArrayEquals(GattValueBuilder.forHeartRateMeasurement(300, true, true, 250), slice(out, offset, length));
+
+        Calendar calendar = Calendar.getInstance();
+        length = GattValueBuilder.forCurrentTime(out, offset, calendar);
+        assertArrayEquals(GattValueBuilder.forCurrentTime(calendar), slice(out, offset, length));
+
+        length = GattValueBuilder.forRealtimeImpedanceData_DF(out, offset, 65.5f);
+        assertArrayEquals(GattValueBuilder.forRealtimeImpedanceData_DF(65.5f), slice(out, offset, length));
+    }
+
+    @Test
+    public void intoBufferDoesNotTouchNeighbours() {
+        byte[] out = new byte[32];
+        Arrays.fill(out, (byte) 0x5A);
+        int length = GattValueBuilder.forTreadmillData(out, 10, 12.3f, 1.5f, 4000);
+        assertEquals(GattValueBuilder.TREADMILL_DATA_LENGTH, length);
+        assertEquals(0x5A, out[9]);
+        assertEquals(0x5A, out[10 + length]);
+    }
+
+    @Test
+    public void cf597ChecksumCoversPayload() {
+        byte[] value = GattValueBuilder.forDeviceInfo_FE36(87, 101, 102);
+        byte sum = 0;
+        for (int i = 1; i < value.length - 1; i++) {
+            sum += value[i];
+        }
+        assertEquals(sum, value[value.length - 1]);
+    }
+
+    @Test
+    public void pooledBuffersRotatePerThread() {
+        byte[] first = GattValueBuilder.pooledBuffer();
+        assertEquals(GattValueBuilder.MAX_VALUE_LENGTH, first.length);
+        for (int i = 1; i < GattValueBuilder.POOL_SIZE; i++) {
+            assertNotSame(first, GattValueBuilder.pooledBuffer());
+        }
+        assertSame(first, GattValueBuilder.pooledBuffer());
+    }
+}
@@ -0,0 +1,247 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class GattValueReaderTest {
+
+    /** 把 value 放在較大緩衝區的中間，確認 view 只讀 [offset, offset + length)。 */
+    private static byte[] embed(byte[] value, int offset) {
+        byte[] buffer = new byte[offset + value.length + 8];
+        System.arraycopy(value, 0, buffer, offset, value.length);
+        return buffer;
+    }
+
+    @Test
+    public void decodesSigLayouts() {
+        GattValueReader.HeartRateMeasurement heartRate = new GattValueReader.HeartRateMeasurement();
+        assertTrue(heartRate.wrap(new byte[]{0x00, 72}));
+        assertEquals(72, heartRate.heartRate());
+        assertEquals(-1, heartRate.energyExpended());
+        assertEquals(0, heartRate.rrIntervalCount());
+        // UINT16 心率 + Energy Expended
+        byte[] wide = {0x09, 0x2C, 0x01, (byte) 0xFA, 0x00};
+        assertTrue(heartRate.wrap(embed(wide, 5), 5, wide.length));
+        assertEquals(300, heartRate.heartRate());
+        assertEquals(250, heartRate.energyExpended());
+        assertFalse(heartRate.wrap(wide, 0, wide.length - 1));
+        assertTrue(heartRate.wrap(new byte[]{0x16, 60, 0x00, 0x04, (byte) 0xF0, 0x03}));
+        assertTrue(heartRate.isSensorContactDetected());
+        assertEquals(2, heartRate.rrIntervalCount());
+        assertEquals(0x03F0, heartRate.rrInterval(1));
+
+        GattValueReader.BloodPressureMeasurement bloodPressure = new GattValueReader.BloodPressureMeasurement();
+        // Flags bit 2：含脈率
+        byte[] pressure = new byte[9];
+        pressure[0] = 0x04;
+        int i = MedicalFloat.putSfloat(pressure, 1, 121);
+        i = MedicalFloat.putSfloat(pressure, i, 79);
+        i = MedicalFloat.putSfloat(pressure, i, 93);
+        MedicalFloat.putSfloat(pressure, i, 68);
+        assertTrue(bloodPressure.wrap(pressure));
+        assertFalse(bloodPressure.isKilopascal());
+        assertEquals(121f, bloodPressure.systolic(), 0);
+        assertEquals(79f, bloodPressure.diastolic(), 0);
+        assertEquals(93f, bloodPressure.meanArterialPressure(), 0);
+        assertFalse(bloodPressure.hasTimestamp());
+        assertEquals(68f, bloodPressure.pulseRate(), 0);
+        pressure[0] = 0x00;
+        assertTrue(bloodPressure.wrap(pressure, 0, 7));
+        assertTrue(Float.isNaN(bloodPressure.pulseRate()));
+
+        GattValueReader.GlucoseMeasurement glucose = new GattValueReader.GlucoseMeasurement();
+        // Flags bit 0：Time Offset，bit 1：濃度 + Type/Sample Location；Base Time 2024-01-02 03:04:05
+        byte[] measurement = {0x03, 0x34, 0x12, (byte) 0xE8, 0x07, 1, 2, 3, 4, 5, 0x00, 0x00, 0, 0, 0x11};
+        MedicalFloat.putSfloat(measurement, 12, 0.000985);
+        assertTrue(glucose.wrap(measurement));
+        assertEquals(0x1234, glucose.sequenceNumber());
+        assertEquals(GattDateTime.readWallClockSeconds(measurement, 3), glucose.baseTimeSeconds());
+        assertEquals(0, glucose.timeOffsetMinutes());
+        assertEquals(glucose.baseTimeSeconds(), glucose.userFacingTimeSeconds());
+        assertFalse(glucose.isMolPerLiter());
+        assertEquals(0.000985f, glucose.concentration(), 1e-9f);
+        assertEquals(1, glucose.type());
+        assertEquals(1, glucose.sampleLocation());
+        assertEquals(-1, glucose.sensorStatus());
+        byte[] bare = {0x00, 0x07, 0x00, (byte) 0xE8, 0x07, 1, 2, 3, 4, 5};
+        assertEquals(GlucoseRecordStore.MIN_RECORD_LENGTH, bare.length);
+        assertTrue(glucose.wrap(bare));
+        assertFalse(glucose.hasConcentration());
+        assertTrue(Float.isNaN(glucose.concentration()));
+        // 宣告了 Time Offset 卻少了兩個位元組
+        bare[0] = 0x01;
+        assertFalse(glucose.wrap(bare));
+
+        GattValueReader.IndoorBikeData bike = new GattValueReader.IndoorBikeData();
+        // Flags 0x0254：Speed、Cadence (bit 2)、Total Distance (bit 4)、Power (bit 6)、Heart Rate (bit 9)，依位元順序排列
+        byte[] value = {0x54, 0x02, 0x18, 0x0B, (byte) 0xB5, 0x00, 0x39, 0x30, 0x00, (byte) 0xF4, (byte) 0xFF, (byte) 131};
+        assertTrue(bike.wrap(embed(value, 3), 3, value.length));
+        assertFalse(bike.hasMoreData());
+        assertEquals(28.4f, bike.instantaneousSpeed(), 0.01f);
+        assertTrue(Float.isNaN(bike.averageSpeed()));
+        assertEquals(90.5f, bike.instantaneousCadence(), 0);
+        assertEquals(12345, bike.totalDistance());
+        assertEquals(-12, bike.instantaneousPower());
+        assertEquals(Integer.MIN_VALUE, bike.averagePower());
+        assertEquals(-1, bike.totalEnergy());
+        assertEquals(131, bike.heartRate());
+        assertEquals(-1, bike.elapsedTime());
+        assertFalse(bike.wrap(value, 0, value.length - 1));
+        // More Data：沒有 Instantaneous Speed，只有 Elapsed Time
+        assertTrue(bike.wrap(new byte[]{0x01, 0x08, 0x2C, 0x01}));
+        assertTrue(Float.isNaN(bike.instantaneousSpeed()));
+        assertEquals(300, bike.elapsedTime());
+    }
+
+    @Test
+    public void readsBackHealthMeasurements() {
+        GattValueReader.HeartRateMeasurement heartRate = new GattValueReader.HeartRateMeasurement();
+        assertTrue(heartRate.wrap(GattValueBuilder.forHeartRateMeasurement(72)));
+        assertEquals(72, heartRate.heartRate());
+        assertEquals(-1, heartRate.energyExpended());
+        assertEquals(0, heartRate.rrIntervalCount());
+        byte[] wide = GattValueBuilder.forHeartRateMeasurement(300, true, true, 250);
+        assertTrue(heartRate.wrap(wide));
+        assertEquals(300, heartRate.heartRate());
+        assertEquals(250, heartRate.energyExpended());
+
+        GattValueReader.BloodPressureMeasurement bloodPressure = new GattValueReader.BloodPressureMeasurement();
+        assertTrue(bloodPressure.wrap(GattValueBuilder.forBloodPressureMeasurement(121f, 79f, 93f, 68f, true)));
+        assertEquals(121f, bloodPressure.systolic(), 0);
+        assertEquals(79f, bloodPressure.diastolic(), 0);
+        assertEquals(93f, bloodPressure.meanArterialPressure(), 0);
+        assertFalse(bloodPressure.hasTimestamp());
+        assertEquals(68f, bloodPressure.pulseRate(), 0);
+        assertTrue(bloodPressure.wrap(GattValueBuilder.forBloodPressureMeasurement(121f, 79f, 93f, 68f, false)));
+        assertTrue(Float.isNaN(bloodPressure.pulseRate()));
+
+        GattValueReader.GlucoseMeasurement glucose = new GattValueReader.GlucoseMeasurement();
+        assertTrue(glucose.wrap(GattValueBuilder.forGlucoseMeasurement(0x1234, 98.5f, true, true)));
+        assertEquals(0x1234, glucose.sequenceNumber());
+        assertEquals(0, glucose.timeOffsetMinutes());
+        assertEquals(0.000985f, glucose.concentration(), 1e-9f);
+        assertEquals(1, glucose.type());
+        assertEquals(1, glucose.sampleLocation());
+        byte[] bare = GattValueBuilder.forGlucoseMeasurement(7, 98.5f, false, false);
+        assertEquals(GlucoseRecordStore.MIN_RECORD_LENGTH, bare.length);
+        assertTrue(glucose.wrap(bare));
+        assertFalse(glucose.hasConcentration());
+
+        GattValueReader.TemperatureMeasurement temperature = new GattValueReader.TemperatureMeasurement();
+        assertTrue(temperature.wrap(GattValueBuilder.forTemperatureMeasurement(36.8f)));
+        assertFalse(temperature.isFahrenheit());
+        assertEquals(36.8f, temperature.temperature(), 0);
+        assertEquals(-1, temperature.timestampSeconds());
+
+        GattValueReader.PlxSpotCheck spotCheck = new GattValueReader.PlxSpotCheck();
+        byte[] plx = GattValueBuilder.forPulseOximeterSpotCheck(97.5f, 68f, true);
+        assertTrue(spotCheck.wrap(plx));
+        assertEquals(97.5f, spotCheck.spo2(), 0);
+        assertEquals(68f, spotCheck.pulseRate(), 0);
+        assertEquals(GattDateTime.readWallClockSeconds(plx, 5), spotCheck.timestampSeconds());
+        assertTrue(spotCheck.timestampSeconds() > 0);
+        assertEquals(-1, spotCheck.measurementStatus());
+        assertTrue(Float.isNaN(spotCheck.pulseAmplitudeIndex()));
+        assertFalse(spotCheck.wrap(plx, 0, plx.length - 1));
+
+        GattValueReader.WeightMeasurement weight = new GattValueReader.WeightMeasurement();
+        assertTrue(weight.wrap(GattValueBuilder.forWeightScaleMeasurement(65.5f)));
+        assertFalse(weight.isImperial());
+        assertEquals(65.5f, weight.weight(), 0.005f);
+        assertTrue(Float.isNaN(weight.bmi()));
+    }
+
+    @Test
+    public void readsBackFitnessAndEnvironmentalData() {
+        GattValueReader.IndoorBikeData bike = new GattValueReader.IndoorBikeData();
+        byte[] value = GattValueBuilder.forIndoorBikeData(28.4f, 90.5f, -12, 131, 12345);
+        assertTrue(bike.wrap(value));
+        assertFalse(bike.hasMoreData());
+        assertEquals(28.4f, bike.instantaneousSpeed(), 0.01f);
+        assertEquals(90.5f, bike.instantaneousCadence(), 0);
+        assertEquals(12345, bike.totalDistance());
+        assertEquals(-12, bike.instantaneousPower());
+        assertEquals(131, bike.heartRate());
+        assertEquals(-1, bike.elapsedTime());
+
+        assertEquals(-5.25f, GattValueReader.essTemperature(GattValueBuilder.forTemperature(-5.25f), 0), 0.01f);
+        assertEquals(48.3f, GattValueReader.essHumidity(GattValueBuilder.forHumidity(48.3f), 0), 0.02f);
+        assertEquals(1012.6f, GattValueReader.essPressureHectopascals(GattValueBuilder.forPressure(1012.6f), 0), 0.002f);
+        assertEquals(-7, GattValueReader.essWindChill(GattValueBuilder.forWindChill(-7), 0));
+    }
+
+    @Test
+    public void readsBackCurrentAndDeviceTime() {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(2024, Calendar.JANUARY, 2, 3, 4, 5); // 星期二
+
+        GattValueReader.CurrentTime currentTime = new GattValueReader.CurrentTime();
+        byte[] current = GattValueBuilder.forCurrentTime(calendar);
+        assertTrue(currentTime.wrap(embed(current, 2), 2, current.length));
+        assertEquals(calendar.getTimeInMillis() / 1000, currentTime.dateTimeSeconds());
+        assertEquals(2, currentTime.dayOfWeek());
+        assertEquals(0, currentTime.fractions256());
+        assertEquals(1, currentTime.adjustReason());
+        assertFalse(currentTime.wrap(current, 0, current.length - 1));
+        // 無參數版本寫的是本地牆上時間，與 UTC 最多差 14 小時
+        assertTrue(currentTime.wrap(GattValueBuilder.forCurrentTime()));
+        assertEquals(System.currentTimeMillis() / 1000, currentTime.dateTimeSeconds(), 14 * 3600 + 5);
+
+        GattValueReader.DeviceTime deviceTime = new GattValueReader.DeviceTime();
+        byte[] device = GattValueBuilder.forDeviceTime(calendar);
+        assertTrue(deviceTime.wrap(device));
+        assertEquals(calendar.getTimeInMillis() / 1000, deviceTime.dateTimeSeconds());
+        assertEquals(2, deviceTime.dayOfWeek());
+        assertEquals(0, deviceTime.fractions256());
+        assertFalse(deviceTime.wrap(device, 0, device.length - 1));
+    }
+
+    @Test
+    public void readsBackCf597Packets() {
+        GattValueReader.DeviceInfo deviceInfo = new GattValueReader.DeviceInfo();
+        byte[] info = GattValueBuilder.forDeviceInfo_FE36(87, 101, 102);
+        assertTrue(deviceInfo.wrap(info));
+        assertEquals(87, deviceInfo.batteryLevel());
+        assertEquals(0, deviceInfo.deviceStatus());
+        assertEquals(101, deviceInfo.mcuVersion());
+        assertEquals(102, deviceInfo.bleVersion());
+        assertEquals(System.currentTimeMillis() / 1000, deviceInfo.utcSeconds(), 5);
+        assertTrue(deviceInfo.isChecksumValid());
+        info[4]++;
+        assertFalse(deviceInfo.isChecksumValid());
+        assertFalse(deviceInfo.wrap(GattValueBuilder.forRealtimeImpedanceData_DF(65.5f)));
+
+        GattValueReader.RealtimeImpedance realtime = new GattValueReader.RealtimeImpedance();
+        assertTrue(realtime.wrap(GattValueBuilder.forRealtimeImpedanceData_DF(65.5f)));
+        assertEquals(65.5f, realtime.weightKg(), 0.001f);
+        assertTrue(realtime.isStable());
+        assertEquals(500, realtime.impedance(0));
+        assertEquals(1000, realtime.impedance(GattValueReader.RealtimeImpedance.IMPEDANCES - 1));
+        assertTrue(realtime.isChecksumValid());
+
+        GattValueReader.HistoryRecord history = new GattValueReader.HistoryRecord();
+        byte[] record = new byte[GattValueBuilder.CF597_HISTORY_LENGTH];
+        GattValueBuilder.forHistoryTlvData(record, 0, 1_700_000_000L, 72.35f, 75, 510, 515);
+        assertTrue(history.wrap(embed(record, 9), 9, record.length));
+        assertEquals(1_700_000_000L, history.utcSeconds());
+        assertEquals(72.35f, history.weightKg(), 0.001f);
+        assertEquals(75, history.heartRate());
+        assertEquals(510, history.tlvValue(history.findTlv(GattValueReader.HistoryRecord.TLV_IMPEDANCE_Z1)));
+        assertEquals(515, history.tlvValue(history.findTlv(GattValueReader.HistoryRecord.TLV_IMPEDANCE_Z2)));
+        assertEquals(-1, history.findTlv(0x7F));
+        int tlvs = 0;
+        for (int i = history.firstTlv(); i >= 0; i = history.nextTlv(i)) tlvs++;
+        assertEquals(4, tlvs);
+        assertTrue(history.isChecksumValid());
+        assertTrue(history.wrap(GattValueBuilder.forHistoryTlvData()));
+        assertTrue(history.isChecksumValid());
+        // TLV 的長度超出總長
+        record[7] = 0x20;
+        assertFalse(history.wrap(record));
+    }
+}
@@ -0,0 +1,127 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.Test;
+
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class GlucoseRecordStoreTest {
+
+    static final long START_SECONDS = 1_700_000_000L;
+
+    private static final class FixedClock implements GattDateTime.Clock {
+        long now;
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private static final FixedClock CLOCK = new FixedClock();
+    private static final GattDateTime UTC = new GattDateTime(TimeZone.getTimeZone("UTC"), CLOCK);
+
+    /**
+     * 一筆血糖測量 (含 Type/Location)，Base Time 為 UTC 的 seconds。
+     */
+    static synchronized byte[] measurement(int sequenceNumber, long seconds) {
+        byte[] value = new byte[15];
+        value[0] = 0x02;
+        value[1] = (byte) sequenceNumber;
+        value[2] = (byte) (sequenceNumber >> 8);
+        CLOCK.now = seconds * 1000;
+        UTC.writeDateTime(value, 3);
+        value[10] = 100;
+        value[12] = 0x11;
+        return value;
+    }
+
+    static byte[] dateTime(long seconds) {
+        byte[] value = new byte[GattDateTime.DATE_TIME_LENGTH];
+        System.arraycopy(measurement(0, seconds), 3, value, 0, value.length);
+        return value;
+    }
+
+    @Test
+    public void answersRangeQueriesOverWrappedSequenceNumbersInUnderAMillisecond() {
+        GlucoseRecordStore store = new GlucoseRecordStore(16);
+        // 150000 筆、每分鐘一筆：序號回繞兩次
+        int records = 150_000;
+        for (int i = 0; i < records; i++) {
+            assertEquals(i, store.append(measurement(i, START_SECONDS + i * 60L)));
+        }
+        assertEquals(records, store.size());
+        assertEquals(records, store.nextSequence());
+        assertEquals(records, store.count(GlucoseRecordStore.Query.all()));
+        assertEquals(1, store.count(GlucoseRecordStore.Query.last()));
+        assertArrayEquals(new int[]{records - 1}, store.select(GlucoseRecordStore.Query.last()));
+        assertArrayEquals(new int[]{0}, store.select(GlucoseRecordStore.Query.first()));
+
+        // 16-bit 序號以最新的 65536 筆解讀：最新記錄的低 16 bits 是 (149999 & 0xFFFF) = 18927
+        int newestLow = (records - 1) & 0xFFFF;
+        assertEquals(101, store.count(GlucoseRecordStore.Query.sequenceNumber(GlucoseRecordStore.Query.RANGE, newestLow - 100, newestLow)));
+        int[] tail = store.select(GlucoseRecordStore.Query.sequenceNumber(GlucoseRecordStore.Query.GREATER_OR_EQUAL, newestLow - 2, 0));
+        assertArrayEquals(new int[]{records - 3, records - 2, records - 1}, tail);
+        // 比最新記錄大的 16-bit 運算元屬於上一輪：最新的 65536 筆
+        assertEquals(0x10000, store.count(GlucoseRecordStore.Query.sequenceNumber(GlucoseRecordStore.Query.GREATER_OR_EQUAL, newestLow + 1, 0)));
+
+        // 使用者時間：一天 1440 筆
+        long dayStart = START_SECONDS + 100_000 * 60L;
+        GlucoseRecordStore.Query day = GlucoseRecordStore.Query.userFacingTime(GlucoseRecordStore.Query.RANGE, dayStart, dayStart + 86400 - 1);
+        assertEquals(1440, store.count(day));
+        int[] selected = store.select(day);
+        assertEquals(100_000, selected[0]);
+        assertEquals(101_439, selected[1439]);
+        assertEquals(100_001, store.count(GlucoseRecordStore.Query.userFacingTime(GlucoseRecordStore.Query.LESS_OR_EQUAL, 0, dayStart)));
+
+        // 暖機後量測平均查詢時間
+        GlucoseRecordStore.Query[] queries = {
+                day,
+                GlucoseRecordStore.Query.sequenceNumber(GlucoseRecordStore.Query.RANGE, 1000, 30000),
+                GlucoseRecordStore.Query.userFacingTime(GlucoseRecordStore.Query.GREATER_OR_EQUAL, dayStart, 0),
+        };
+        long sink = 0;
+        for (int i = 0; i < 20_000; i++) sink += store.count(queries[i % queries.length]);
+        int iterations = 30_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) sink += store.count(queries[i % queries.length]);
+        long averageNanos = (System.nanoTime() - start) / iterations;
+        assertTrue(sink > 0);
+        assertTrue("average query " + averageNanos + "ns", averageNanos < 1_000_000);
+    }
+
+    @Test
+    public void deletesRangesAndKeepsSequenceNumbersGoing() {
+        GlucoseRecordStore store = new GlucoseRecordStore(4);
+        for (int i = 0; i < 100; i++) store.append(measurement(i, START_SECONDS + i * 60L));
+        assertEquals(11, store.delete(GlucoseRecordStore.Query.sequenceNumber(GlucoseRecordStore.Query.RANGE, 10, 20)));
+        assertEquals(89, store.size());
+        assertNull(store.get(15));
+        assertArrayEquals(measurement(21, START_SECONDS + 21 * 60L), store.get(21));
+        assertEquals(10, store.count(GlucoseRecordStore.Query.sequenceNumber(GlucoseRecordStore.Query.LESS_OR_EQUAL, 0, 20)));
+        // 沒有回繞時，比最新記錄還新的序號沒有記錄
+        assertEquals(0, store.count(GlucoseRecordStore.Query.sequenceNumber(GlucoseRecordStore.Query.GREATER_OR_EQUAL, 200, 0)));
+        assertEquals(1, store.delete(GlucoseRecordStore.Query.last()));
+        assertEquals(0, store.delete(GlucoseRecordStore.Query.sequenceNumber(GlucoseRecordStore.Query.RANGE, 10, 20)));
+
+        store.delete(GlucoseRecordStore.Query.all());
+        assertEquals(0, store.size());
+        assertEquals(100, store.nextSequence());
+        assertEquals(100, store.append(measurement(100, START_SECONDS)));
+    }
+
+    @Test
+    public void fallsBackToScanningWhenTimesAreNotOrdered() {
+        GlucoseRecordStore store = new GlucoseRecordStore(4);
+        long[] minutes = {0, 10, 5, 20, 15, 30};
+        for (int i = 0; i < minutes.length; i++) store.append(measurement(i, START_SECONDS + minutes[i] * 60));
+        GlucoseRecordStore.Query query = GlucoseRecordStore.Query.userFacingTime(GlucoseRecordStore.Query.RANGE,
+                START_SECONDS + 5 * 60, START_SECONDS + 15 * 60);
+        assertArrayEquals(new int[]{1, 2, 4}, store.select(query));
+        assertEquals(3, store.delete(query));
+        // 剩下 0, 20, 30 分鐘：時間又是遞增的
+        assertArrayEquals(new int[]{3, 5}, store.select(GlucoseRecordStore.Query.userFacingTime(
+                GlucoseRecordStore.Query.GREATER_OR_EQUAL, START_SECONDS + 60, 0)));
+    }
+}
@@ -0,0 +1,196 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class HistoryTransferTest {
+
+    private static final byte[] END_OF_TRANSFER = {(byte) 0xFD, (byte) 0xF2, 0x00};
+
+    private final LoopbackGattTransport<String, String> transport = new LoopbackGattTransport<>();
+    private final NotificationQueue<String, String> queue = new NotificationQueue<>(transport, NotificationQueue.Config.defaults());
+
+    @After
+    public void tearDown() {
+        queue.close();
+        transport.close();
+    }
+
+    /**
+     * 虛擬 central：重組片段、把通知切成一筆一筆的 F2 記錄。其他特徵的通知只計數。
+     */
+    private static class HistoryCentral implements LoopbackGattTransport.Central<String> {
+        final List<byte[]> records = Collections.synchronizedList(new ArrayList<byte[]>());
+        final PayloadFramer.Reassembler reassembler = new PayloadFramer.Reassembler();
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile int notifications;
+        volatile int otherNotifications;
+
+        @Override
+        public void onNotification(String deviceId, String characteristic, byte[] value, boolean indication, long enqueuedAtNanos) {
+            if (!"fff4".equals(characteristic)) {
+                otherNotifications++;
+                return;
+            }
+            notifications++;
+            byte[] complete = reassembler.onNotification(value);
+            if (complete == null) return;
+            if (Arrays.equals(END_OF_TRANSFER, complete)) {
+                finished.countDown();
+                return;
+            }
+            assertEquals(0, complete.length % MeasurementHistory.RECORD_LENGTH);
+            for (int i = 0; i < complete.length; i += MeasurementHistory.RECORD_LENGTH) {
+                records.add(Arrays.copyOfRange(complete, i, i + MeasurementHistory.RECORD_LENGTH));
+            }
+        }
+    }
+
+    private static byte[] record(MeasurementHistory history, int index) {
+        byte[] record = new byte[MeasurementHistory.RECORD_LENGTH];
+        assertEquals(1, history.copy(index, 1, record, 0));
+        return record;
+    }
+
+    private void connect(String deviceId, int mtu, HistoryCentral central) throws InterruptedException {
+        connect(deviceId, new LoopbackGattTransport.Link(1_000, 4, 8, mtu), central);
+    }
+
+    private void connect(String deviceId, LoopbackGattTransport.Link link, HistoryCentral central) throws InterruptedException {
+        final int mtu = link.mtu;
+        final CountDownLatch connected = new CountDownLatch(1);
+        GattTransport.Callback<String, String> callback = new GattTransport.Callback<String, String>() {
+            @Override
+            public void onConnectionStateChange(String id, boolean isConnected) {
+                if (isConnected && mtu == GattTransport.DEFAULT_MTU) connected.countDown();
+            }
+
+            @Override
+            public void onMtuChanged(String id, int newMtu) {
+                connected.countDown();
+            }
+        };
+        transport.addCallback(callback);
+        transport.connect(deviceId, link, central);
+        assertTrue(connected.await(1, TimeUnit.SECONDS));
+        transport.removeCallback(callback);
+    }
+
+    @Test
+    public void streamsAllRecordsInOrderPackedToTheMtu() throws Exception {
+        MeasurementHistory history = new MeasurementHistory(16);
+        history.simulate(2, 10, 5, 1_700_000_000L, 1);
+        assertEquals(100, history.size());
+        final AtomicReference<HistoryTransfer.Stats> result = new AtomicReference<>();
+        HistoryTransfer<String, String> transfer = new HistoryTransfer<>(transport, queue, history, 8, result::set);
+
+        // MTU 247：每個通知 10 筆；預設 MTU：每筆切成 2 個片段
+        HistoryCentral large = new HistoryCentral();
+        HistoryCentral small = new HistoryCentral();
+        connect("L", 247, large);
+        connect("S", GattTransport.DEFAULT_MTU, small);
+        transfer.start("L", "fff4", 0);
+        assertTrue(large.finished.await(5, TimeUnit.SECONDS));
+        transfer.start("S", "fff4", 40);
+        assertTrue(small.finished.await(5, TimeUnit.SECONDS));
+
+        assertEquals(100, large.records.size());
+        assertEquals(10 + 1, large.notifications);
+        for (int i = 0; i < 100; i++) {
+            assertArrayEquals(record(history, i), large.records.get(i));
+        }
+        assertEquals(60, small.records.size());
+        assertEquals(60 * 2 + 1, small.notifications);
+        for (int i = 0; i < 60; i++) {
+            assertArrayEquals(record(history, 40 + i), small.records.get(i));
+        }
+        // 結束通知送出後才回報
+        for (int i = 0; i < 100 && transfer.isActive("S"); i++) Thread.sleep(10);
+        HistoryTransfer.Stats stats = result.get();
+        assertTrue(stats.complete);
+        assertEquals("S", stats.deviceId);
+        assertEquals(60, stats.records);
+        assertEquals(60 * MeasurementHistory.RECORD_LENGTH, stats.bytes);
+        assertTrue(stats.recordsPerSecond() > 0);
+        transfer.close();
+    }
+
+    @Test
+    public void resumesAfterDisconnectWithoutLosingRecords() throws Exception {
+        MeasurementHistory history = new MeasurementHistory(16);
+        history.simulate(4, 31, 8, 1_700_000_000L, 2);
+        final List<HistoryTransfer.Stats> results = Collections.synchronizedList(new ArrayList<HistoryTransfer.Stats>());
+        HistoryTransfer<String, String> transfer = new HistoryTransfer<>(transport, queue, history, 8, results::add);
+
+        final CountDownLatch halfway = new CountDownLatch(1);
+        HistoryCentral first = new HistoryCentral() {
+            @Override
+            public void onNotification(String deviceId, String characteristic, byte[] value, boolean indication, long enqueuedAtNanos) {
+                super.onNotification(deviceId, characteristic, value, indication, enqueuedAtNanos);
+                if (records.size() >= 400) halfway.countDown();
+            }
+        };
+        connect("A", 247, first);
+        transfer.start("A", "fff4", 0);
+        assertTrue(halfway.await(5, TimeUnit.SECONDS));
+        transport.disconnect("A");
+        for (int i = 0; i < 100 && transfer.isActive("A"); i++) Thread.sleep(10);
+        assertFalse(transfer.isActive("A"));
+        int received = first.records.size();
+        int resumeIndex = transfer.getResumeIndex("A");
+        assertTrue("resume " + resumeIndex + " received " + received, resumeIndex <= received);
+        assertTrue(resumeIndex > 0);
+        assertFalse(results.get(0).complete);
+
+        HistoryCentral second = new HistoryCentral();
+        connect("A", 247, second);
+        transfer.resume("A", "fff4");
+        assertTrue(second.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(history.size() - resumeIndex, second.records.size());
+        for (int i = 0; i < second.records.size(); i++) {
+            assertArrayEquals(record(history, resumeIndex + i), second.records.get(i));
+        }
+        transfer.close();
+    }
+
+    @Test
+    public void competingNotificationsOnAStalledLinkDoNotEvictHistory() throws Exception {
+        MeasurementHistory history = new MeasurementHistory(16);
+        history.simulate(1, 8, 5, 1_700_000_000L, 3);
+        final AtomicReference<HistoryTransfer.Stats> result = new AtomicReference<>();
+        HistoryTransfer<String, String> transfer = new HistoryTransfer<>(transport, queue, history, 8, result::set);
+
+        // 每 10ms 只送出一個封包，其他特徵在這段時間內排入的通知遠超過佇列長度
+        HistoryCentral central = new HistoryCentral();
+        connect("A", new LoopbackGattTransport.Link(10_000, 1, 1, GattTransport.DEFAULT_MTU), central);
+        transfer.start("A", "fff4", 0);
+        for (int i = 0; i < 200; i++) {
+            queue.enqueue("A", "ess", new byte[]{(byte) i}, false);
+            if (i % 20 == 0) Thread.sleep(5);
+        }
+        assertTrue(central.finished.await(10, TimeUnit.SECONDS));
+
+        assertEquals(history.size(), central.records.size());
+        for (int i = 0; i < history.size(); i++) {
+            assertArrayEquals(record(history, i), central.records.get(i));
+        }
+        for (int i = 0; i < 100 && transfer.isActive("A"); i++) Thread.sleep(10);
+        assertTrue(result.get().complete);
+        assertEquals(history.size(), result.get().records);
+        // 被丟棄的都是其他特徵的通知
+        NotificationQueue.DeviceStats stats = queue.getStats().get(0);
+        assertTrue(stats.dropped > 0);
+        assertTrue(central.otherNotifications > 0);
+        transfer.close();
+    }
+}
@@ -0,0 +1,62 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * LazyProfile 的延遲建立與 memoization 測試。
+ */
+public class LazyProfileTest {
+
+    @Test
+    public void buildsOnFirstGetOnly() {
+        final AtomicInteger created = new AtomicInteger();
+        LazyProfile<Object> profile = new LazyProfile<>("test", () -> {
+            created.incrementAndGet();
+            return new Object();
+        });
+
+        assertFalse(profile.isBuilt());
+        assertEquals(0, created.get());
+        assertEquals(0, profile.getConstructionNanos());
+
+        Object first = profile.get();
+        assertTrue(profile.isBuilt());
+        assertSame(first, profile.get());
+        assertEquals(1, created.get());
+        assertTrue(profile.getConstructionNanos() > 0);
+    }
+
+    @Test
+    public void concurrentGetBuildsOnce() throws Exception {
+        final AtomicInteger created = new AtomicInteger();
+        final LazyProfile<Object> profile = new LazyProfile<>("test", () -> {
+            created.incrementAndGet();
+            return new Object();
+        });
+        final CountDownLatch start = new CountDownLatch(1);
+        final Object[] results = new Object[8];
+        Thread[] threads = new Thread[results.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int index = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                results[index] = profile.get();
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+
+        assertEquals(1, created.get());
+        for (Object result : results) assertSame(results[0], result);
+    }
+}
@@ -0,0 +1,165 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class LoopbackGattTransportTest {
+
+    private final LoopbackGattTransport<String, String> transport = new LoopbackGattTransport<>();
+
+    @After
+    public void tearDown() {
+        transport.close();
+    }
+
+    @Test
+    public void notificationsAreBoundedByControllerBuffer() throws Exception {
+        final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+        final AtomicInteger sent = new AtomicInteger();
+        final CountDownLatch connected = new CountDownLatch(1);
+        transport.addCallback(new GattTransport.Callback<String, String>() {
+            @Override
+            public void onConnectionStateChange(String deviceId, boolean isConnected) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onNotificationSent(String deviceId, boolean success) {
+                sent.incrementAndGet();
+            }
+        });
+        // 間隔很長，讓測試在第一個連線事件前就把緩衝區填滿
+        transport.connect("A", new LoopbackGattTransport.Link(200_000, 2, 3, GattTransport.DEFAULT_MTU),
+                (deviceId, characteristic, value, indication, enqueuedAtNanos) -> received.add(value));
+        assertTrue(connected.await(1, TimeUnit.SECONDS));
+
+        assertTrue(transport.notifyCharacteristicChanged("A", "hr", new byte[]{1}, false));
+        assertTrue(transport.notifyCharacteristicChanged("A", "hr", new byte[]{2}, false));
+        assertTrue(transport.notifyCharacteristicChanged("A", "hr", new byte[]{3}, false));
+        assertFalse(transport.notifyCharacteristicChanged("A", "hr", new byte[]{4}, false));
+        assertFalse(transport.notifyCharacteristicChanged("B", "hr", new byte[]{5}, false));
+
+        // 每個連線事件最多送 2 個
+        Thread.sleep(300);
+        assertEquals(2, received.size());
+        Thread.sleep(200);
+        assertEquals(3, received.size());
+        assertEquals(3, sent.get());
+    }
+
+    @Test
+    public void payloadIsTruncatedToMtu() throws Exception {
+        final CountDownLatch delivered = new CountDownLatch(1);
+        final byte[][] payload = new byte[1][];
+        transport.connect("A", new LoopbackGattTransport.Link(1_000, 4, 8, GattTransport.DEFAULT_MTU),
+                (deviceId, characteristic, value, indication, enqueuedAtNanos) -> {
+                    payload[0] = value;
+                    delivered.countDown();
+                });
+
+        assertTrue(transport.notifyCharacteristicChanged("A", "fff4", new byte[40], false));
+        assertTrue(delivered.await(1, TimeUnit.SECONDS));
+        assertEquals(GattTransport.DEFAULT_MTU - 3, payload[0].length);
+    }
+
+    @Test
+    public void onlyOneIndicationInFlight() throws Exception {
+        final CountDownLatch confirmed = new CountDownLatch(1);
+        transport.addCallback(new GattTransport.Callback<String, String>() {
+            @Override
+            public void onNotificationSent(String deviceId, boolean success) {
+                confirmed.countDown();
+            }
+        });
+        transport.connect("A", new LoopbackGattTransport.Link(5_000, 4, 8, GattTransport.DEFAULT_MTU),
+                (deviceId, characteristic, value, indication, enqueuedAtNanos) -> {});
+
+        assertTrue(transport.notifyCharacteristicChanged("A", "weight", new byte[]{1}, true));
+        assertFalse(transport.notifyCharacteristicChanged("A", "weight", new byte[]{2}, true));
+        assertTrue(confirmed.await(1, TimeUnit.SECONDS));
+        assertTrue(transport.notifyCharacteristicChanged("A", "weight", new byte[]{3}, true));
+    }
+
+    @Test
+    public void disconnectDropsPendingRequests() throws Exception {
+        final CountDownLatch requested = new CountDownLatch(1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        final AtomicInteger responses = new AtomicInteger();
+        transport.addCallback(new GattTransport.Callback<String, String>() {
+            @Override
+            public void onCharacteristicReadRequest(String deviceId, int requestId, int offset, String characteristic) {
+                requested.countDown();
+            }
+
+            @Override
+            public void onConnectionStateChange(String deviceId, boolean connected) {
+                if (!connected) disconnected.countDown();
+            }
+        });
+        transport.connect("A", LoopbackGattTransport.Link.typical(), new LoopbackGattTransport.Central<String>() {
+            @Override
+            public void onNotification(String deviceId, String characteristic, byte[] value, boolean indication, long enqueuedAtNanos) {
+            }
+
+            @Override
+            public void onResponse(int requestId, int status, int offset, byte[] value) {
+                responses.incrementAndGet();
+            }
+        });
+        int requestId = transport.readCharacteristic("A", "battery");
+        assertTrue(requested.await(1, TimeUnit.SECONDS));
+        transport.disconnect("A");
+        assertTrue(disconnected.await(1, TimeUnit.SECONDS));
+        assertFalse(transport.sendResponse("A", requestId, 0, 0, new byte[]{80}));
+        assertEquals(0, responses.get());
+    }
+
+    @Test
+    public void responseOnAnotherDeviceIsNotDelivered() throws Exception {
+        final CountDownLatch requested = new CountDownLatch(1);
+        final AtomicInteger responsesA = new AtomicInteger();
+        final AtomicInteger responsesB = new AtomicInteger();
+        transport.addCallback(new GattTransport.Callback<String, String>() {
+            @Override
+            public void onCharacteristicReadRequest(String deviceId, int requestId, int offset, String characteristic) {
+                requested.countDown();
+            }
+        });
+        transport.connect("A", LoopbackGattTransport.Link.typical(), countingCentral(responsesA));
+        transport.connect("B", LoopbackGattTransport.Link.typical(), countingCentral(responsesB));
+        int requestId = transport.readCharacteristic("A", "battery");
+        assertTrue(requested.await(1, TimeUnit.SECONDS));
+
+        // 回應了錯誤的裝置：兩個 central 都收不到，請求仍在等待
+        assertFalse(transport.sendResponse("B", requestId, 0, 0, new byte[]{80}));
+        assertEquals(0, responsesA.get());
+        assertEquals(0, responsesB.get());
+
+        assertTrue(transport.sendResponse("A", requestId, 0, 0, new byte[]{80}));
+        assertEquals(1, responsesA.get());
+        assertEquals(0, responsesB.get());
+        assertFalse(transport.sendResponse("A", requestId, 0, 0, new byte[]{80}));
+    }
+
+    private static LoopbackGattTransport.Central<String> countingCentral(final AtomicInteger responses) {
+        return new LoopbackGattTransport.Central<String>() {
+            @Override
+            public void onNotification(String deviceId, String characteristic, byte[] value, boolean indication, long enqueuedAtNanos) {
+            }
+
+            @Override
+            public void onResponse(int requestId, int status, int offset, byte[] value) {
+                responses.incrementAndGet();
+            }
+        };
+    }
+}
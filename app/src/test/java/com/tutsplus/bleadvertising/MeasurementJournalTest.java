@@ -0,0 +1,118 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MeasurementJournalTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] payload(long sequence) {
+        byte[] value = new byte[(int) (sequence % (MeasurementJournal.MAX_PAYLOAD_LENGTH + 1))];
+        Arrays.fill(value, (byte) sequence);
+        return value;
+    }
+
+    private static List<Long> sequences(MeasurementJournal journal, long from) {
+        final List<Long> result = new ArrayList<>();
+        journal.scan(from, (sequence, timestampMillis, characteristicId, payload, offset, length) -> {
+            assertEquals(1000 + sequence, timestampMillis);
+            assertEquals(0x2A18, characteristicId);
+            assertArrayEquals(payload(sequence), Arrays.copyOfRange(payload, offset, offset + length));
+            result.add(sequence);
+            return true;
+        });
+        return result;
+    }
+
+    @Test
+    public void appendsAcrossSegmentsAndDropsTheOldest() throws Exception {
+        File directory = folder.newFolder("journal");
+        MeasurementJournal journal = MeasurementJournal.open(directory, 8, 3);
+        for (long i = 0; i < 30; i++) {
+            assertEquals(i, journal.append(1000 + i, 0x2A18, payload(i)));
+        }
+        // 30 筆 = 4 個分段，只保留最新的 3 個 (序號 8 之後)
+        assertEquals(3, directory.listFiles().length);
+        assertEquals(8, journal.firstSequence());
+        assertEquals(30, journal.nextSequence());
+        List<Long> all = sequences(journal, 0);
+        assertEquals(22, all.size());
+        assertEquals(Long.valueOf(8), all.get(0));
+        assertEquals(Long.valueOf(29), all.get(21));
+        assertEquals(Arrays.asList(27L, 28L, 29L), sequences(journal, 27));
+        assertTrue(sequences(journal, 30).isEmpty());
+
+        final List<Long> backward = new ArrayList<>();
+        journal.scanBackward((sequence, timestampMillis, characteristicId, payload, offset, length) -> {
+            backward.add(sequence);
+            return backward.size() < 2;
+        });
+        assertEquals(Arrays.asList(29L, 28L), backward);
+
+        try {
+            journal.append(0, 0x2A18, new byte[MeasurementJournal.MAX_PAYLOAD_LENGTH + 1]);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // payload 太長
+        }
+        assertEquals(1, journal.getStats().rejected);
+        journal.close();
+    }
+
+    @Test
+    public void filteredScanVisitsOnlyTheRequestedCharacteristics() throws Exception {
+        MeasurementJournal journal = MeasurementJournal.open(folder.newFolder("journal"), 8, 0);
+        int[] ids = {0x2A18, 0x2A37, 0x2A52};
+        for (long i = 0; i < 20; i++) journal.append(1000 + i, ids[(int) (i % 3)], payload(i));
+
+        final List<Long> visited = new ArrayList<>();
+        long next = journal.scan(0, new int[]{0x2A18, 0x2A52}, (sequence, timestampMillis, characteristicId, payload, offset, length) -> {
+            assertTrue(characteristicId != 0x2A37);
+            assertArrayEquals(payload(sequence), Arrays.copyOfRange(payload, offset, offset + length));
+            visited.add(sequence);
+            return true;
+        });
+        assertEquals(20, next);
+        assertEquals(Arrays.asList(0L, 2L, 3L, 5L, 6L, 8L, 9L, 11L, 12L, 14L, 15L, 17L, 18L), visited);
+        journal.close();
+    }
+
+    @Test
+    public void reopenContinuesAfterTheLastRecordAndDiscardsATornTail() throws Exception {
+        File directory = folder.newFolder("journal");
+        MeasurementJournal journal = MeasurementJournal.open(directory, 16, 0);
+        for (long i = 0; i < 21; i++) journal.append(1000 + i, 0x2A18, payload(i));
+        journal.close();
+
+        journal = MeasurementJournal.open(directory, 16, 0);
+        assertEquals(21, journal.nextSequence());
+        assertEquals(21, journal.getStats().recoveredRecords);
+        assertFalse(journal.getStats().tornTail);
+        assertEquals(21, sequences(journal, 0).size());
+        journal.close();
+
+        // 模擬寫到一半就當掉：最後一筆記錄的 payload 損毀
+        File last = new File(directory, String.format("%020d.journal", 16));
+        try (RandomAccessFile raf = new RandomAccessFile(last, "rw")) {
+            raf.seek(4 * MeasurementJournal.RECORD_LENGTH + MeasurementJournal.HEADER_LENGTH);
+            raf.write(0x7F);
+        }
+        journal = MeasurementJournal.open(directory, 16, 0);
+        assertTrue(journal.getStats().tornTail);
+        assertEquals(20, journal.nextSequence());
+        assertEquals(20, journal.append(1000 + 20, 0x2A18, payload(20)));
+        assertEquals(21, sequences(journal, 0).size());
+        journal.close();
+    }
+}
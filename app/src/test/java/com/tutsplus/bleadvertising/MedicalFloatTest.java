@@ -0,0 +1,127 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MedicalFloatTest {
+
+    private static int sfloatMantissa(int raw) {
+        return (raw << 20) >> 20;
+    }
+
+    private static int sfloatExponent(int raw) {
+        return (raw << 16) >> 28;
+    }
+
+    private static boolean isSfloatSpecial(int raw) {
+        return raw >= MedicalFloat.SFLOAT_POSITIVE_INFINITY && raw <= MedicalFloat.SFLOAT_NEGATIVE_INFINITY;
+    }
+
+    @Test
+    public void everySfloatRoundTripsToTheSameValueWithTheBestExponent() {
+        for (int raw = 0; raw <= 0xFFFF; raw++) {
+            double value = MedicalFloat.sfloatToDouble(raw);
+            if (isSfloatSpecial(raw)) {
+                assertTrue(Double.isNaN(value) || Double.isInfinite(value));
+                continue;
+            }
+            int encoded = MedicalFloat.toSfloat(value);
+            if (Math.abs(sfloatMantissa(raw)) > MedicalFloat.SFLOAT_MAX_MANTISSA) {
+                // 指數不為 0 時尾數 ±2046..2048 仍是合法的值，但編碼器不產生這些尾數，改用大一個指數的最接近值
+                int exponent = sfloatExponent(raw) + 1;
+                if (exponent > MedicalFloat.SFLOAT_MAX_EXPONENT) {
+                    assertEquals(value < 0 ? MedicalFloat.SFLOAT_NEGATIVE_INFINITY : MedicalFloat.SFLOAT_POSITIVE_INFINITY, encoded);
+                    continue;
+                }
+                double unit = exponent < 0 ? 1 / Math.pow(10, -exponent) : Math.pow(10, exponent);
+                assertEquals(Integer.toHexString(raw), value, MedicalFloat.sfloatToDouble(encoded), unit / 2);
+                assertEquals(exponent, sfloatExponent(encoded));
+                continue;
+            }
+            assertEquals(Integer.toHexString(raw), value, MedicalFloat.sfloatToDouble(encoded), 0);
+            int mantissa = sfloatMantissa(encoded);
+            int exponent = sfloatExponent(encoded);
+            if (mantissa == 0) {
+                assertEquals(0, encoded);
+                continue;
+            }
+            assertFalse(isSfloatSpecial(encoded));
+            // 同一個值不會用比原本更大的指數，而且再小一個指數就放不下
+            assertTrue(exponent <= sfloatExponent(raw));
+            assertTrue(exponent == MedicalFloat.SFLOAT_MIN_EXPONENT
+                    || Math.abs(mantissa) * 10 > MedicalFloat.SFLOAT_MAX_MANTISSA);
+            // 編碼器收到的是 float：經過 float 的值也要編回同樣的數值
+            assertEquals((float) value, (float) MedicalFloat.sfloatToDouble(MedicalFloat.toSfloat((float) value)), 0);
+        }
+    }
+
+    @Test
+    public void encodesSpecialAndOutOfRangeValues() {
+        assertEquals(MedicalFloat.SFLOAT_NAN, MedicalFloat.toSfloat(Double.NaN));
+        assertEquals(MedicalFloat.SFLOAT_POSITIVE_INFINITY, MedicalFloat.toSfloat(Double.POSITIVE_INFINITY));
+        assertEquals(MedicalFloat.SFLOAT_NEGATIVE_INFINITY, MedicalFloat.toSfloat(Double.NEGATIVE_INFINITY));
+        assertEquals(MedicalFloat.SFLOAT_POSITIVE_INFINITY, MedicalFloat.toSfloat(2045.5e7));
+        assertEquals(0x77FD, MedicalFloat.toSfloat(2045.4e7));
+        assertEquals(MedicalFloat.SFLOAT_NEGATIVE_INFINITY, MedicalFloat.toSfloat(-1e300));
+        assertEquals(0, MedicalFloat.toSfloat(-0.0));
+        assertEquals(0, MedicalFloat.toSfloat(4e-9));
+        assertEquals(0x8001, MedicalFloat.toSfloat(6e-9));
+        assertTrue(Double.isNaN(MedicalFloat.sfloatToDouble(MedicalFloat.SFLOAT_NRES)));
+        assertTrue(Double.isNaN(MedicalFloat.sfloatToDouble(MedicalFloat.SFLOAT_RESERVED)));
+
+        assertEquals(MedicalFloat.FLOAT_NAN, MedicalFloat.toFloat(Float.NaN));
+        assertEquals(MedicalFloat.FLOAT_POSITIVE_INFINITY, MedicalFloat.toFloat(Float.POSITIVE_INFINITY));
+        assertEquals(MedicalFloat.FLOAT_NEGATIVE_INFINITY, MedicalFloat.toFloat(Double.NEGATIVE_INFINITY));
+        assertEquals(MedicalFloat.FLOAT_POSITIVE_INFINITY, MedicalFloat.toFloat(1e300));
+        assertEquals(0, MedicalFloat.toFloat(1e-200));
+        assertEquals(Double.POSITIVE_INFINITY, MedicalFloat.floatToDouble(MedicalFloat.FLOAT_POSITIVE_INFINITY), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, MedicalFloat.floatToDouble(MedicalFloat.FLOAT_NEGATIVE_INFINITY), 0);
+        assertTrue(Double.isNaN(MedicalFloat.floatToDouble(MedicalFloat.FLOAT_NRES)));
+    }
+
+    @Test
+    public void floatRoundTripsAcrossEveryExponent() {
+        Random random = new Random(11073);
+        for (int exponent = MedicalFloat.FLOAT_MIN_EXPONENT; exponent <= MedicalFloat.FLOAT_MAX_EXPONENT; exponent++) {
+            for (int i = 0; i < 2000; i++) {
+                int mantissa = i < 4
+                        ? new int[]{1, -1, MedicalFloat.FLOAT_MAX_MANTISSA, -MedicalFloat.FLOAT_MAX_MANTISSA}[i]
+                        : random.nextInt(2 * MedicalFloat.FLOAT_MAX_MANTISSA + 1) - MedicalFloat.FLOAT_MAX_MANTISSA;
+                int raw = (exponent << 24) | (mantissa & 0x00FFFFFF);
+                double value = MedicalFloat.floatToDouble(raw);
+                int encoded = MedicalFloat.toFloat(value);
+                assertEquals(value, MedicalFloat.floatToDouble(encoded), Math.abs(value) * 1e-15);
+                assertTrue((encoded >> 24) <= exponent);
+            }
+        }
+    }
+
+    @Test
+    public void writesLittleEndianWireValues() {
+        byte[] out = new byte[8];
+        // 121 mmHg -> 1210 × 10^-1 = 0xF4BA
+        assertEquals(3, MedicalFloat.putSfloat(out, 1, 121));
+        assertEquals((byte) 0xBA, out[1]);
+        assertEquals((byte) 0xF4, out[2]);
+        assertEquals(121, MedicalFloat.readSfloat(out, 1), 0);
+        // 36.8 °C -> 3680000 × 10^-5 = 0xFB382700
+        assertEquals(6, MedicalFloat.putFloat(out, 2, 36.8f));
+        assertEquals(0xFB382700, (out[2] & 0xFF) | (out[3] & 0xFF) << 8 | (out[4] & 0xFF) << 16 | (out[5] & 0xFF) << 24);
+        assertEquals(36.8, MedicalFloat.readFloat(out, 2), 0);
+
+        byte[] temperature = GattValueBuilder.forTemperatureMeasurement(36.8f);
+        assertEquals(36.8, MedicalFloat.readFloat(temperature, 1), 0);
+        byte[] bloodPressure = GattValueBuilder.forBloodPressureMeasurement(121f, 79f, 93.3f, 68f, true);
+        assertEquals(79, MedicalFloat.readSfloat(bloodPressure, 3), 0);
+        assertEquals(93.3, MedicalFloat.readSfloat(bloodPressure, 5), 1e-12);
+        assertEquals(68, MedicalFloat.readSfloat(bloodPressure, 7), 0);
+        // 98.5 mg/dL = 0.000985 kg/L
+        byte[] glucose = GattValueBuilder.forGlucoseMeasurement(1, 98.5f, false, true);
+        assertEquals(0.000985, MedicalFloat.readSfloat(glucose, 10), 1e-12);
+        byte[] spotCheck = GattValueBuilder.forPulseOximeterSpotCheck(97.5f, 68f, false);
+        assertEquals(97.5, MedicalFloat.readSfloat(spotCheck, 1), 0);
+    }
+}
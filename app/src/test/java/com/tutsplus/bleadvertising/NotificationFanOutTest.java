@@ -0,0 +1,161 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class NotificationFanOutTest {
+
+    private static final byte[] NOTIFY = {0x01, 0x00};
+
+    @Test
+    public void publishesOneSnapshotToEverySubscriber() {
+        RecordingTransport transport = new RecordingTransport();
+        SubscriptionRegistry<String> subscriptions = new SubscriptionRegistry<>();
+        NotificationQueue<String, String> queue = new NotificationQueue<>(transport, NotificationQueue.Config.defaults());
+        NotificationFanOut<String, String> fanOut = new NotificationFanOut<>(subscriptions, queue);
+        subscriptions.onDeviceConnected("A");
+        subscriptions.onDeviceConnected("B");
+        subscriptions.onDeviceConnected("C");
+        subscriptions.onCccdWritten("A", "hr", NOTIFY);
+        subscriptions.onCccdWritten("C", "hr", NOTIFY);
+
+        byte[] value = {7, 8};
+        NotificationFanOut.Payload payload = fanOut.publish("hr", value, false);
+        // 呼叫端之後修改自己的陣列不影響已送出的內容
+        value[0] = 0;
+
+        assertNotNull(payload);
+        assertArrayEquals(new byte[]{7, 8}, payload.toByteArray());
+        assertEquals(Arrays.asList("A", "C"), transport.devices);
+        assertSame(transport.values.get(0), transport.values.get(1));
+        assertArrayEquals(new byte[]{7, 8}, transport.values.get(0));
+        NotificationFanOut.Stats stats = fanOut.getStats();
+        assertEquals(1, stats.published);
+        assertEquals(2, stats.deliveries);
+        queue.close();
+    }
+
+    @Test
+    public void sharedPublishHandsTheCallersArrayToEverySubscriber() {
+        RecordingTransport transport = new RecordingTransport();
+        SubscriptionRegistry<String> subscriptions = new SubscriptionRegistry<>();
+        NotificationQueue<String, String> queue = new NotificationQueue<>(transport, NotificationQueue.Config.defaults());
+        NotificationFanOut<String, String> fanOut = new NotificationFanOut<>(subscriptions, queue);
+        subscriptions.onDeviceConnected("A");
+        subscriptions.onDeviceConnected("B");
+        subscriptions.onCccdWritten("A", "hr", NOTIFY);
+        subscriptions.onCccdWritten("B", "hr", NOTIFY);
+
+        // 呼叫端已經複製過一次 (例如同時當作特徵值)，扇出不再複製
+        byte[] value = {7, 8};
+        assertNotNull(fanOut.publishShared("hr", value, false));
+        assertSame(value, transport.values.get(0));
+        assertSame(value, transport.values.get(1));
+        queue.close();
+    }
+
+    @Test
+    public void skipsCopyWithoutSubscribers() {
+        RecordingTransport transport = new RecordingTransport();
+        SubscriptionRegistry<String> subscriptions = new SubscriptionRegistry<>();
+        NotificationQueue<String, String> queue = new NotificationQueue<>(transport, NotificationQueue.Config.defaults());
+        NotificationFanOut<String, String> fanOut = new NotificationFanOut<>(subscriptions, queue);
+        subscriptions.onDeviceConnected("A");
+        subscriptions.onCccdWritten("A", "hr", NOTIFY);
+
+        assertFalse(fanOut.hasSubscribers("hr", true));
+        assertNull(fanOut.publish("hr", new byte[]{1}, true));
+        assertNull(fanOut.publish("temp", new byte[]{1}, false));
+        assertTrue(transport.devices.isEmpty());
+        NotificationFanOut.Stats stats = fanOut.getStats();
+        assertEquals(2, stats.withoutSubscribers);
+        assertEquals(0, stats.deliveries);
+        queue.close();
+    }
+
+    @Test
+    public void countsPerDeviceRejections() {
+        RecordingTransport transport = new RecordingTransport();
+        SubscriptionRegistry<String> subscriptions = new SubscriptionRegistry<>();
+        // 傳輸層不回呼 onNotificationSent：第一個封包在傳送中，佇列最多再放 1 個
+        NotificationQueue<String, String> queue = new NotificationQueue<>(transport,
+                new NotificationQueue.Config(1, 1, NotificationQueue.OverflowPolicy.DROP_NEWEST));
+        NotificationFanOut<String, String> fanOut = new NotificationFanOut<>(subscriptions, queue);
+        subscriptions.onDeviceConnected("A");
+        subscriptions.onCccdWritten("A", "hr", NOTIFY);
+
+        for (int i = 0; i < 4; i++) {
+            fanOut.publish("hr", new byte[]{(byte) i, 0, 0}, false);
+        }
+
+        NotificationFanOut.DeviceStats device = fanOut.getStats().devices.get(0);
+        assertEquals("A", device.deviceId);
+        assertEquals(4, device.offered);
+        assertEquals(2, device.rejected);
+        assertEquals(6, device.bytes);
+        assertEquals(2, fanOut.getStats().deliveries);
+
+        // slot 換給新的裝置後計數重新開始
+        subscriptions.onDeviceDisconnected("A");
+        subscriptions.onDeviceConnected("B");
+        subscriptions.onCccdWritten("B", "hr", NOTIFY);
+        fanOut.publish("hr", new byte[]{9}, false);
+        device = fanOut.getStats().devices.get(0);
+        assertEquals("B", device.deviceId);
+        assertEquals(1, device.offered);
+        assertEquals(0, device.rejected);
+        queue.close();
+    }
+
+    /**
+     * 記錄送出的裝置與陣列，永遠不回呼 onNotificationSent。裝置 A、B、C 一開始就已連線。
+     */
+    private static final class RecordingTransport implements GattTransport<String, String> {
+        final List<String> devices = Collections.synchronizedList(new ArrayList<String>());
+        final List<byte[]> values = Collections.synchronizedList(new ArrayList<byte[]>());
+
+        @Override
+        public void addCallback(Callback<String, String> callback) {}
+
+        @Override
+        public void removeCallback(Callback<String, String> callback) {}
+
+        @Override
+        public boolean addService(String service) {
+            return true;
+        }
+
+        @Override
+        public boolean notifyCharacteristicChanged(String deviceId, String characteristic, byte[] value, boolean confirm) {
+            devices.add(deviceId);
+            values.add(value);
+            return true;
+        }
+
+        @Override
+        public boolean sendResponse(String deviceId, int requestId, int status, int offset, byte[] value) {
+            return true;
+        }
+
+        @Override
+        public Set<String> getConnectedDevices() {
+            return new HashSet<>(Arrays.asList("A", "B", "C"));
+        }
+
+        @Override
+        public int getMtu(String deviceId) {
+            return DEFAULT_MTU;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,305 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NotificationQueueTest {
+
+    private final LoopbackGattTransport<String, String> transport = new LoopbackGattTransport<>();
+
+    @After
+    public void tearDown() {
+        transport.close();
+    }
+
+    private List<Integer> connect(String deviceId, final CountDownLatch delivered) throws InterruptedException {
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch connected = new CountDownLatch(1);
+        GattTransport.Callback<String, String> callback = new GattTransport.Callback<String, String>() {
+            @Override
+            public void onConnectionStateChange(String id, boolean isConnected) {
+                connected.countDown();
+            }
+        };
+        transport.addCallback(callback);
+        transport.connect(deviceId, new LoopbackGattTransport.Link(20_000, 4, 8, GattTransport.DEFAULT_MTU),
+                (id, characteristic, value, indication, enqueuedAtNanos) -> {
+                    received.add((int) value[0]);
+                    delivered.countDown();
+                });
+        assertTrue(connected.await(1, TimeUnit.SECONDS));
+        transport.removeCallback(callback);
+        return received;
+    }
+
+    @Test
+    public void sendsOneAtATimeInOrder() throws Exception {
+        NotificationQueue<String, String> queue = new NotificationQueue<>(transport, NotificationQueue.Config.defaults());
+        CountDownLatch delivered = new CountDownLatch(10);
+        List<Integer> received = connect("A", delivered);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.enqueue("A", "ess", new byte[]{(byte) i}, false));
+        }
+        // 第一個已送出、等待 onNotificationSent，其餘在佇列中
+        assertEquals(9, queue.depth("A"));
+
+        assertTrue(delivered.await(2, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), received);
+        NotificationQueue.DeviceStats stats = queue.getStats().get(0);
+        assertEquals(10, stats.sent);
+        assertEquals(0, stats.dropped);
+        assertEquals(9, stats.maxDepth);
+        queue.close();
+    }
+
+    @Test
+    public void dropOldestKeepsNewestValues() throws Exception {
+        NotificationQueue<String, String> queue = new NotificationQueue<>(transport,
+                new NotificationQueue.Config(1, 3, NotificationQueue.OverflowPolicy.DROP_OLDEST));
+        CountDownLatch delivered = new CountDownLatch(4);
+        List<Integer> received = connect("A", delivered);
+
+        for (int i = 1; i <= 6; i++) {
+            assertTrue(queue.enqueue("A", "hr", new byte[]{(byte) i}, false));
+        }
+
+        assertTrue(delivered.await(2, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(Arrays.asList(1, 4, 5, 6), received);
+        assertEquals(2, queue.getStats().get(0).dropped);
+        queue.close();
+    }
+
+    @Test
+    public void dropNewestRejectsWhenFull() throws Exception {
+        NotificationQueue<String, String> queue = new NotificationQueue<>(transport,
+                new NotificationQueue.Config(1, 2, NotificationQueue.OverflowPolicy.DROP_NEWEST));
+        CountDownLatch delivered = new CountDownLatch(3);
+        List<Integer> received = connect("A", delivered);
+
+        assertTrue(queue.enqueue("A", "hr", new byte[]{1}, false));
+        assertTrue(queue.enqueue("A", "hr", new byte[]{2}, false));
+        assertTrue(queue.enqueue("A", "hr", new byte[]{3}, false));
+        assertFalse(queue.enqueue("A", "hr", new byte[]{4}, false));
+
+        assertTrue(delivered.await(2, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1, 2, 3), received);
+        queue.close();
+    }
+
+    @Test
+    public void conflatedCharacteristicKeepsOnlyLatestQueuedValue() throws Exception {
+        NotificationQueue<String, String> queue = new NotificationQueue<>(transport, NotificationQueue.Config.defaults());
+        queue.setConflated("bike", true);
+        CountDownLatch delivered = new CountDownLatch(4);
+        List<Integer> received = connect("A", delivered);
+
+        assertTrue(queue.enqueue("A", "bike", new byte[]{1}, false)); // 立刻送出
+        assertTrue(queue.enqueue("A", "bike", new byte[]{2}, false));
+        assertTrue(queue.enqueue("A", "hr", new byte[]{10}, false));
+        assertTrue(queue.enqueue("A", "bike", new byte[]{3}, false)); // 取代 2，位置不變
+        assertTrue(queue.enqueue("A", "hr", new byte[]{11}, false));
+        assertTrue(queue.enqueue("A", "bike", new byte[]{4}, false)); // 取代 3
+        assertEquals(3, queue.depth("A"));
+
+        assertTrue(delivered.await(2, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(Arrays.asList(1, 4, 10, 11), received);
+        assertEquals(2, queue.getStats().get(0).conflated);
+        queue.close();
+    }
+
+    @Test
+    public void indicationsWaitForConfirmationAndRecordRtt() throws Exception {
+        NotificationQueue<String, String> queue = new NotificationQueue<>(transport,
+                new NotificationQueue.Config(4, 32, NotificationQueue.OverflowPolicy.DROP_OLDEST));
+        CountDownLatch delivered = new CountDownLatch(4);
+        List<Integer> received = connect("A", delivered);
+
+        assertTrue(queue.enqueue("A", "weight", new byte[]{1}, true));
+        assertTrue(queue.enqueue("A", "weight", new byte[]{2}, true));
+        assertTrue(queue.enqueue("A", "hr", new byte[]{3}, false));
+        assertTrue(queue.enqueue("A", "weight", new byte[]{4}, true));
+        // 第一個指示在途中，其餘 (包含通知) 都要等它確認
+        assertEquals(3, queue.depth("A"));
+
+        assertTrue(delivered.await(2, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(Arrays.asList(1, 2, 3, 4), received);
+        NotificationQueue.DeviceStats stats = queue.getStats().get(0);
+        assertEquals(3, stats.indicationsConfirmed);
+        assertEquals(0, stats.indicationTimeouts);
+        assertTrue(stats.meanRttNanos > 0);
+        assertTrue(stats.maxRttNanos >= stats.meanRttNanos);
+        queue.close();
+    }
+
+    @Test
+    public void unconfirmedIndicationTimesOutWithoutResendAndLateConfirmationIsNotMisattributed() throws Exception {
+        SilentTransport silent = new SilentTransport();
+        NotificationQueue<String, String> queue = new NotificationQueue<>(silent,
+                new NotificationQueue.Config(1, 32, NotificationQueue.OverflowPolicy.DROP_OLDEST, 50));
+
+        assertTrue(queue.enqueue("A", "temp", new byte[]{1}, true));
+        assertTrue(queue.enqueue("A", "hr", new byte[]{2}, false));
+        assertEquals(1, silent.sent.size());
+
+        // 逾時後不重送；堆疊仍在等待原本的確認，後面的通知也要等
+        Thread.sleep(200);
+        assertEquals(Arrays.asList(1), silent.sent);
+        assertEquals(1, queue.depth("A"));
+        NotificationQueue.DeviceStats stats = queue.getStats().get(0);
+        assertEquals(1, stats.indicationTimeouts);
+        assertEquals(0, stats.indicationsConfirmed);
+
+        // 遲到的確認只歸還額度，接著送出通知
+        silent.sent("A");
+        assertEquals(Arrays.asList(1, 2), silent.sent);
+        stats = queue.getStats().get(0);
+        assertEquals(1, stats.lateConfirmations);
+        assertEquals(0, stats.indicationsConfirmed);
+        assertEquals(1, stats.inFlight);
+
+        // 通知的回呼之後，多出來的回呼沒有對應的封包，忽略
+        silent.sent("A");
+        silent.sent("A");
+        stats = queue.getStats().get(0);
+        assertEquals(0, stats.inFlight);
+        assertEquals(1, stats.strayCallbacks);
+        assertEquals(0, stats.failed);
+        queue.close();
+    }
+
+    @Test
+    public void rejectedPacketsStayQueuedUntilTheStackHasRoom() throws Exception {
+        SilentTransport busy = new SilentTransport();
+        busy.accepting = false;
+        NotificationQueue<String, String> queue = new NotificationQueue<>(busy,
+                new NotificationQueue.Config(8, 32, NotificationQueue.OverflowPolicy.DROP_OLDEST, 5000, 10));
+
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(queue.enqueue("A", "ess", new byte[]{(byte) i}, false));
+        }
+        // 第一個被拒絕後就停止送出，沒有在迴圈中把整個佇列丟光
+        assertEquals(5, queue.depth("A"));
+        NotificationQueue.DeviceStats stats = queue.getStats().get(0);
+        assertEquals(0, stats.failed);
+        assertEquals(0, stats.dropped);
+        assertTrue(stats.rejected >= 1);
+
+        busy.accepting = true;
+        Thread.sleep(100);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), busy.sent);
+        assertEquals(0, queue.depth("A"));
+
+        // 斷線後被拒絕的封包才丟棄
+        busy.accepting = false;
+        assertTrue(queue.enqueue("A", "ess", new byte[]{6}, false));
+        busy.disconnect("A");
+        queue.flush("A");
+        assertEquals(0, queue.getStats().size());
+        queue.close();
+    }
+
+    @Test
+    public void laterOffersNeverEvictFragmentsOfAQueuedValue() {
+        SilentTransport stalled = new SilentTransport();
+        NotificationQueue<String, String> queue = new NotificationQueue<>(stalled,
+                new NotificationQueue.Config(1, 4, NotificationQueue.OverflowPolicy.DROP_OLDEST));
+
+        // 第一個封包送出後沒有 onNotificationSent，之後的封包都留在佇列中
+        assertTrue(queue.enqueue("A", "ess", new byte[]{1}, false));
+        assertTrue(queue.offerAll("A", "df", new byte[][]{{10}, {11}, {12}}, false));
+        for (int i = 20; i < 30; i++) {
+            assertTrue(queue.enqueue("A", "ess", new byte[]{(byte) i}, false));
+        }
+        assertEquals(4, queue.depth("A"));
+        // 只剩一個可以丟棄的封包，放不下另一個值的兩個片段
+        assertFalse(queue.offerAll("A", "df", new byte[][]{{40}, {41}}, false));
+        // 佇列中全部都是片段時拒絕新的一般封包
+        assertTrue(queue.offerAll("A", "df", new byte[][]{{50}}, false));
+        assertFalse(queue.enqueue("A", "ess", new byte[]{60}, false));
+
+        for (int i = 0; i < 4; i++) {
+            queue.onNotificationSent("A", true);
+        }
+        assertEquals(Arrays.asList(1, 10, 11, 12, 50), stalled.sent);
+        // 被擠掉的 20~28、放不下的兩個片段、替 50 騰出空間的 29、被拒絕的 60
+        assertEquals(9 + 2 + 1 + 1, queue.getStats().get(0).dropped);
+        queue.close();
+    }
+
+    /**
+     * 接受所有封包但永遠不回呼 onNotificationSent 的傳輸層。
+     */
+    private static final class SilentTransport implements GattTransport<String, String> {
+        final List<Integer> sent = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Callback<String, String>> callbacks = new CopyOnWriteArrayList<>();
+        // false 時模擬堆疊緩衝區已滿，notify 回傳 false
+        volatile boolean accepting = true;
+
+        void disconnect(String deviceId) {
+            for (Callback<String, String> callback : callbacks) {
+                callback.onConnectionStateChange(deviceId, false);
+            }
+        }
+
+        void sent(String deviceId) {
+            for (Callback<String, String> callback : callbacks) {
+                callback.onNotificationSent(deviceId, true);
+            }
+        }
+
+        @Override
+        public void addCallback(Callback<String, String> callback) {
+            callbacks.add(callback);
+        }
+
+        @Override
+        public void removeCallback(Callback<String, String> callback) {
+            callbacks.remove(callback);
+        }
+
+        @Override
+        public boolean addService(String service) {
+            return true;
+        }
+
+        @Override
+        public boolean notifyCharacteristicChanged(String deviceId, String characteristic, byte[] value, boolean confirm) {
+            if (!accepting) return false;
+            sent.add((int) value[0]);
+            return true;
+        }
+
+        @Override
+        public boolean sendResponse(String deviceId, int requestId, int status, int offset, byte[] value) {
+            return true;
+        }
+
+        @Override
+        public Set<String> getConnectedDevices() {
+            return Collections.singleton("A");
+        }
+
+        @Override
+        public int getMtu(String deviceId) {
+            return DEFAULT_MTU;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
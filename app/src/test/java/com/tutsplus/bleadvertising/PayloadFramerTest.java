@@ -0,0 +1,136 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PayloadFramerTest {
+
+    private static byte[] range(int length) {
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) value[i] = (byte) i;
+        return value;
+    }
+
+    @Test
+    public void splitsOnlyWhenValueExceedsOneNotification() {
+        byte[] history = GattValueBuilder.forHistoryTlvData();
+        byte[][] single = PayloadFramer.split(history, 64);
+        assertEquals(1, single.length);
+        assertSame(history, single[0]);
+
+        // 預設 MTU 23：每個通知 20 bytes，片段扣掉標頭後 19 bytes
+        byte[][] fragments = PayloadFramer.split(history, GattTransport.DEFAULT_MTU);
+        assertEquals(2, fragments.length);
+        assertEquals(20, fragments[0].length);
+        assertEquals(0x00, fragments[0][0]);
+        assertEquals(0x41, fragments[1][0]);
+        assertEquals(1 + 4, fragments[1].length);
+        assertEquals(2, PayloadFramer.fragmentCount(history.length, GattTransport.DEFAULT_MTU));
+
+        byte[] max = range(PayloadFramer.maxPayloadLength(GattTransport.DEFAULT_MTU));
+        assertEquals(PayloadFramer.MAX_FRAGMENTS, PayloadFramer.split(max, GattTransport.DEFAULT_MTU).length);
+        try {
+            PayloadFramer.split(range(max.length + 1), GattTransport.DEFAULT_MTU);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // 超過 64 個片段
+        }
+    }
+
+    @Test
+    public void reassemblerRestoresValuesAndDropsIncompleteOnes() {
+        PayloadFramer.Reassembler reassembler = new PayloadFramer.Reassembler();
+        byte[] deviceInfo = GattValueBuilder.forDeviceInfo_FE36(80, 101, 102);
+        assertSame(deviceInfo, reassembler.onNotification(deviceInfo));
+
+        byte[] value = range(300);
+        byte[][] fragments = PayloadFramer.split(value, 40);
+        for (int i = 0; i < fragments.length - 1; i++) {
+            assertNull(reassembler.onNotification(fragments[i]));
+        }
+        assertArrayEquals(value, reassembler.onNotification(fragments[fragments.length - 1]));
+
+        // 中間少一個片段：整個值被丟棄，下一個值照常重組
+        assertNull(reassembler.onNotification(fragments[0]));
+        assertNull(reassembler.onNotification(fragments[2]));
+        assertNull(reassembler.onNotification(fragments[fragments.length - 1]));
+        assertEquals(1, reassembler.getDiscarded());
+        byte[][] again = PayloadFramer.split(value, 23);
+        byte[] result = null;
+        for (byte[] fragment : again) result = reassembler.onNotification(fragment);
+        assertArrayEquals(value, result);
+    }
+
+    /**
+     * 兩個 MTU 不同的裝置訂閱同一個特徵：預設 MTU 的裝置收到片段，MTU 較大的收到原值，兩者重組後一致。
+     */
+    @Test
+    public void publishFramedUsesEachDevicesMtu() throws Exception {
+        final LoopbackGattTransport<String, String> transport = new LoopbackGattTransport<>();
+        final SubscriptionRegistry<String> subscriptions = new SubscriptionRegistry<>();
+        final NotificationQueue<String, String> queue = new NotificationQueue<>(transport, NotificationQueue.Config.defaults());
+        final NotificationFanOut<String, String> fanOut = new NotificationFanOut<>(subscriptions, queue);
+        final CountDownLatch ready = new CountDownLatch(2 + 2 + 1);
+        transport.addCallback(new GattTransport.Callback<String, String>() {
+            @Override
+            public void onConnectionStateChange(String deviceId, boolean connected) {
+                subscriptions.onDeviceConnected(deviceId);
+                ready.countDown();
+            }
+
+            @Override
+            public void onMtuChanged(String deviceId, int mtu) {
+                ready.countDown();
+            }
+
+            @Override
+            public void onSubscriptionChanged(String deviceId, String characteristic, byte[] cccdValue) {
+                subscriptions.onCccdWritten(deviceId, characteristic, cccdValue);
+                ready.countDown();
+            }
+        });
+        final List<Integer> notificationsA = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<byte[]> valuesA = Collections.synchronizedList(new ArrayList<byte[]>());
+        final List<byte[]> valuesB = Collections.synchronizedList(new ArrayList<byte[]>());
+        final CountDownLatch received = new CountDownLatch(2);
+        final PayloadFramer.Reassembler reassemblerA = new PayloadFramer.Reassembler();
+        transport.connect("A", new LoopbackGattTransport.Link(5_000, 4, 8, GattTransport.DEFAULT_MTU),
+                (deviceId, characteristic, value, indication, enqueuedAtNanos) -> {
+                    notificationsA.add(value.length);
+                    byte[] complete = reassemblerA.onNotification(value);
+                    if (complete != null) {
+                        valuesA.add(complete);
+                        received.countDown();
+                    }
+                });
+        transport.connect("B", new LoopbackGattTransport.Link(5_000, 4, 8, 247),
+                (deviceId, characteristic, value, indication, enqueuedAtNanos) -> {
+                    valuesB.add(value);
+                    received.countDown();
+                });
+        try {
+            transport.writeCccd("A", "fff4", new byte[]{0x01, 0x00});
+            transport.writeCccd("B", "fff4", new byte[]{0x01, 0x00});
+            assertTrue(ready.await(1, TimeUnit.SECONDS));
+
+            byte[] history = GattValueBuilder.forHistoryTlvData();
+            assertNotNull(fanOut.publishFramed("fff4", history, false));
+            assertTrue(received.await(2, TimeUnit.SECONDS));
+
+            assertEquals(2, notificationsA.size());
+            assertArrayEquals(history, valuesA.get(0));
+            assertEquals(1, valuesB.size());
+            assertArrayEquals(history, valuesB.get(0));
+        } finally {
+            queue.close();
+            transport.close();
+        }
+    }
+}
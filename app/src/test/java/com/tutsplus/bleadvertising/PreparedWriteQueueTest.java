@@ -0,0 +1,166 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PreparedWriteQueueTest {
+
+    private static final class RecordingHandler implements WriteDispatcher.Handler<String> {
+        final List<String> characteristics = new ArrayList<>();
+        final List<byte[]> values = new ArrayList<>();
+
+        @Override
+        public int onWrite(String deviceId, String characteristic, byte[] value) {
+            characteristics.add(characteristic);
+            values.add(value);
+            return WriteDispatcher.STATUS_SUCCESS;
+        }
+    }
+
+    private static byte[] range(int from, int to) {
+        byte[] value = new byte[to - from];
+        for (int i = 0; i < value.length; i++) value[i] = (byte) (from + i);
+        return value;
+    }
+
+    @Test
+    public void reassemblesEachCharacteristicOnExecute() {
+        PreparedWriteQueue<String> queue = new PreparedWriteQueue<>(1024, 16);
+        RecordingHandler handler = new RecordingHandler();
+        byte[] segment = range(0, 18);
+        assertEquals(PreparedWriteQueue.STATUS_SUCCESS, queue.prepare("A", "cf597", 0, segment));
+        // 呼叫端重複使用自己的陣列
+        System.arraycopy(range(18, 36), 0, segment, 0, 18);
+        queue.prepare("A", "cf597", 18, segment);
+        queue.prepare("A", "racp", 0, new byte[]{1, 1});
+        queue.prepare("A", "cf597", 36, range(36, 40));
+        // 其他裝置的片段互不影響
+        queue.prepare("B", "cf597", 0, new byte[]{9});
+        assertEquals(42, queue.pendingBytes("A"));
+
+        assertEquals(PreparedWriteQueue.STATUS_SUCCESS, queue.execute("A", true, handler));
+        assertEquals(Arrays.asList("cf597", "racp"), handler.characteristics);
+        assertArrayEquals(range(0, 40), handler.values.get(0));
+        assertArrayEquals(new byte[]{1, 1}, handler.values.get(1));
+        assertEquals(0, queue.pendingBytes("A"));
+        assertEquals(1, queue.pendingBytes("B"));
+
+        // 取消後不會呼叫處理器；沒有片段時提交也是成功
+        queue.execute("B", false, handler);
+        assertEquals(PreparedWriteQueue.STATUS_SUCCESS, queue.execute("B", true, handler));
+        assertEquals(2, handler.values.size());
+        PreparedWriteQueue.Stats stats = queue.getStats();
+        assertEquals(5, stats.prepared);
+        assertEquals(1, stats.executed);
+        assertEquals(1, stats.cancelled);
+    }
+
+    @Test
+    public void rejectsOverflowAndInvalidOffsets() {
+        PreparedWriteQueue<String> queue = new PreparedWriteQueue<>(32, 2);
+        RecordingHandler handler = new RecordingHandler();
+        assertEquals(PreparedWriteQueue.STATUS_SUCCESS, queue.prepare("A", "c", 0, range(0, 20)));
+        assertEquals(PreparedWriteQueue.STATUS_PREPARE_QUEUE_FULL, queue.prepare("A", "c", 20, range(20, 40)));
+        assertEquals(PreparedWriteQueue.STATUS_SUCCESS, queue.prepare("A", "c", 20, range(20, 30)));
+        assertEquals(PreparedWriteQueue.STATUS_PREPARE_QUEUE_FULL, queue.prepare("A", "c", 30, new byte[]{30}));
+        assertEquals(2, queue.getStats().rejected);
+
+        // 片段之間有空洞
+        queue.execute("A", false, handler);
+        queue.prepare("A", "c", 0, range(0, 4));
+        queue.prepare("A", "c", 8, range(8, 12));
+        assertEquals(PreparedWriteQueue.STATUS_INVALID_OFFSET, queue.execute("A", true, handler));
+
+        assertTrue(handler.values.isEmpty());
+
+        // 重複使用池中的佇列時不會帶著上一筆交易的內容
+        queue.prepare("A", "c", 0, range(0, 30));
+        assertEquals(PreparedWriteQueue.STATUS_SUCCESS, queue.execute("A", true, handler));
+        assertEquals(1, handler.values.size());
+        assertArrayEquals(range(0, 30), handler.values.get(0));
+
+        // 超過屬性值的長度上限
+        PreparedWriteQueue<String> large = new PreparedWriteQueue<>(1024, 4);
+        large.prepare("A", "c", 0, new byte[500]);
+        large.prepare("A", "c", 500, new byte[20]);
+        assertEquals(PreparedWriteQueue.STATUS_INVALID_ATTRIBUTE_LENGTH, large.execute("A", true, handler));
+        assertEquals(1, handler.values.size());
+
+        // 斷線時丟棄尚未提交的片段
+        queue.prepare("A", "c", 0, range(0, 4));
+        queue.onDeviceDisconnected("A");
+        assertEquals(0, queue.pendingBytes("A"));
+        assertEquals(PreparedWriteQueue.STATUS_SUCCESS, queue.execute("A", true, handler));
+        assertEquals(1, handler.values.size());
+    }
+
+    /**
+     * 透過 loopback 傳輸層以 Long Write 寫入超過 MTU-3 的指令，處理器收到完整的值。
+     */
+    @Test
+    public void longWriteThroughTransportReachesHandler() throws Exception {
+        final UUID commandUuid = UUID.fromString("0000FFF1-0000-1000-8000-00805f9b34fb");
+        final LoopbackGattTransport<String, String> transport = new LoopbackGattTransport<>();
+        final PreparedWriteQueue<String> queue = new PreparedWriteQueue<>(2048, 64);
+        final WriteDispatcher<String> dispatcher = new WriteDispatcher<>();
+        final List<byte[]> commands = Collections.synchronizedList(new ArrayList<byte[]>());
+        dispatcher.register(commandUuid, "cf597Command", (deviceId, characteristic, value) -> {
+            commands.add(value);
+            return WriteDispatcher.STATUS_SUCCESS;
+        });
+        final WriteDispatcher.Handler<String> dispatch =
+                (deviceId, characteristic, value) -> dispatcher.dispatch(deviceId, commandUuid, characteristic, value);
+        transport.addCallback(new GattTransport.Callback<String, String>() {
+            @Override
+            public void onCharacteristicWriteRequest(String deviceId, int requestId, String characteristic,
+                                                     boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
+                int status = preparedWrite
+                        ? queue.prepare(deviceId, characteristic, offset, value)
+                        : dispatch.onWrite(deviceId, characteristic, value);
+                if (responseNeeded) transport.sendResponse(deviceId, requestId, status, offset, value);
+            }
+
+            @Override
+            public void onExecuteWrite(String deviceId, int requestId, boolean execute) {
+                transport.sendResponse(deviceId, requestId, queue.execute(deviceId, execute, dispatch), 0, null);
+            }
+        });
+
+        final List<Integer> statuses = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch responses = new CountDownLatch(8);
+        transport.connect("A", LoopbackGattTransport.Link.typical(), new LoopbackGattTransport.Central<String>() {
+            @Override
+            public void onNotification(String deviceId, String characteristic, byte[] value, boolean indication, long enqueuedAtNanos) {}
+
+            @Override
+            public void onResponse(int requestId, int status, int offset, byte[] value) {
+                statuses.add(status);
+                responses.countDown();
+            }
+        });
+        try {
+            byte[] command = range(0, 120);
+            int chunk = GattTransport.DEFAULT_MTU - 5;
+            for (int offset = 0; offset < command.length; offset += chunk) {
+                transport.prepareWrite("A", "cf597", offset,
+                        Arrays.copyOfRange(command, offset, Math.min(command.length, offset + chunk)));
+            }
+            transport.executeWrite("A", true);
+            assertTrue(responses.await(2, TimeUnit.SECONDS));
+            assertEquals(Collections.nCopies(8, WriteDispatcher.STATUS_SUCCESS), statuses);
+            assertEquals(1, commands.size());
+            assertArrayEquals(command, commands.get(0));
+        } finally {
+            transport.close();
+        }
+    }
+}
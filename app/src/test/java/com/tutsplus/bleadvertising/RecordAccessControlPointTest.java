@@ -0,0 +1,187 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RecordAccessControlPointTest {
+
+    private static final String MEASUREMENT = "2a18";
+    private static final String RACP = "2a52";
+    // 模擬器其他特徵的通知
+    private static final String OTHER = "2a9d";
+
+    private final LoopbackGattTransport<String, String> transport = new LoopbackGattTransport<>();
+    private final NotificationQueue<String, String> queue = new NotificationQueue<>(transport, NotificationQueue.Config.defaults());
+    private final GlucoseRecordStore store = new GlucoseRecordStore(64);
+    private final List<byte[]> deletes = Collections.synchronizedList(new ArrayList<byte[]>());
+    private RecordAccessControlPoint<String, String> racp;
+
+    private final List<byte[]> records = Collections.synchronizedList(new ArrayList<byte[]>());
+    private final BlockingQueue<byte[]> responses = new LinkedBlockingQueue<>();
+    private volatile int recordsBeforeLastResponse = -1;
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < 500; i++) {
+            store.append(GlucoseRecordStoreTest.measurement(i, GlucoseRecordStoreTest.START_SECONDS + i * 60L));
+        }
+        racp = new RecordAccessControlPoint<>(transport, queue, store, 8, (deviceId, command, deleted) -> deletes.add(command));
+        final CountDownLatch connected = new CountDownLatch(1);
+        transport.addCallback(new GattTransport.Callback<String, String>() {
+            @Override
+            public void onConnectionStateChange(String deviceId, boolean isConnected) {
+                connected.countDown();
+            }
+        });
+        transport.connect("A", new LoopbackGattTransport.Link(1_000, 4, 8, GattTransport.DEFAULT_MTU),
+                (deviceId, characteristic, value, indication, enqueuedAtNanos) -> {
+                    if (OTHER.equals(characteristic)) return;
+                    if (MEASUREMENT.equals(characteristic)) {
+                        assertFalse(indication);
+                        records.add(value);
+                    } else {
+                        assertTrue(indication);
+                        recordsBeforeLastResponse = records.size();
+                        responses.add(value);
+                    }
+                });
+        assertTrue(connected.await(1, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        racp.close();
+        queue.close();
+        transport.close();
+    }
+
+    private byte[] write(int... command) throws InterruptedException {
+        byte[] value = new byte[command.length];
+        for (int i = 0; i < command.length; i++) value[i] = (byte) command[i];
+        return write(value);
+    }
+
+    private byte[] write(byte[] command) throws InterruptedException {
+        assertEquals(0, racp.onWrite("A", MEASUREMENT, RACP, command));
+        byte[] response = responses.poll(5, TimeUnit.SECONDS);
+        assertNotNull(response);
+        return response;
+    }
+
+    private static byte[] response(int opCode, int code) {
+        return new byte[]{0x06, 0x00, (byte) opCode, (byte) code};
+    }
+
+    @Test
+    public void reportsRecordsThenIndicatesTheResponse() throws Exception {
+        assertArrayEquals(new byte[]{0x05, 0x00, (byte) 0xF4, 0x01}, write(0x04, 0x01));
+        // Sequence Number ≥ 450
+        assertArrayEquals(new byte[]{0x05, 0x00, 50, 0x00}, write(0x04, 0x03, 0x01, 0xC2, 0x01));
+
+        assertArrayEquals(response(0x01, 0x01), write(0x01, 0x01));
+        assertEquals(500, recordsBeforeLastResponse);
+        for (int i = 0; i < 500; i++) {
+            assertArrayEquals(store.get(i), records.get(i));
+        }
+
+        // User Facing Time 範圍：第 100 到 109 分鐘
+        records.clear();
+        byte[] from = GlucoseRecordStoreTest.dateTime(GlucoseRecordStoreTest.START_SECONDS + 100 * 60L);
+        byte[] to = GlucoseRecordStoreTest.dateTime(GlucoseRecordStoreTest.START_SECONDS + 109 * 60L);
+        byte[] range = new byte[3 + 14];
+        range[0] = 0x01;
+        range[1] = 0x04;
+        range[2] = 0x02;
+        System.arraycopy(from, 0, range, 3, 7);
+        System.arraycopy(to, 0, range, 10, 7);
+        assertArrayEquals(response(0x01, 0x01), write(range));
+        assertEquals(10, records.size());
+        assertArrayEquals(store.get(100), records.get(0));
+
+        records.clear();
+        assertArrayEquals(response(0x01, 0x01), write(0x01, 0x06));
+        assertEquals(1, records.size());
+        assertArrayEquals(store.get(499), records.get(0));
+    }
+
+    @Test
+    public void rejectsMalformedRequests() throws Exception {
+        assertArrayEquals(response(0x07, 0x02), write(0x07, 0x01));
+        assertArrayEquals(response(0x01, 0x03), write(0x01, 0x00));
+        assertArrayEquals(response(0x01, 0x04), write(0x01, 0x09));
+        assertArrayEquals(response(0x01, 0x05), write(0x01, 0x01, 0x00));
+        assertArrayEquals(response(0x04, 0x09), write(0x04, 0x03, 0x03, 0x00, 0x00));
+        assertArrayEquals(response(0x04, 0x05), write(0x04, 0x03, 0x01, 0x00));
+        // 範圍的最小值大於最大值
+        assertArrayEquals(response(0x02, 0x05), write(0x02, 0x04, 0x01, 20, 0, 10, 0));
+        assertArrayEquals(response(0x03, 0x03), write(0x03, 0x01));
+        assertArrayEquals(response(0x01, 0x06), write(0x01, 0x03, 0x01, 0xE8, 0x03));
+        assertTrue(records.isEmpty());
+    }
+
+    @Test
+    public void abortStopsAStreamAndDeletesAreReplayable() throws Exception {
+        assertEquals(0, racp.onWrite("A", MEASUREMENT, RACP, new byte[]{0x01, 0x01}));
+        assertTrue(racp.isActive("A"));
+        assertEquals(RecordAccessControlPoint.ATT_PROCEDURE_ALREADY_IN_PROGRESS,
+                racp.onWrite("A", MEASUREMENT, RACP, new byte[]{0x04, 0x01}));
+        assertArrayEquals(response(0x03, 0x01), write(0x03, 0x00));
+        assertFalse(racp.isActive("A"));
+        int received = records.size();
+        assertTrue(received < 500);
+        // Abort 的回應之後不會再收到記錄
+        Thread.sleep(50);
+        assertEquals(recordsBeforeLastResponse, records.size());
+
+        // 刪除序號 100 到 199，之後只剩 400 筆
+        assertArrayEquals(response(0x02, 0x01), write(0x02, 0x04, 0x01, 100, 0, 199, 0));
+        assertArrayEquals(new byte[]{0x05, 0x00, (byte) 0x90, 0x01}, write(0x04, 0x01));
+        assertArrayEquals(response(0x02, 0x06), write(0x02, 0x04, 0x01, 100, 0, 199, 0));
+        assertEquals(1, deletes.size());
+
+        GlucoseRecordStore replayed = new GlucoseRecordStore(64);
+        for (int i = 0; i < 500; i++) {
+            replayed.append(GlucoseRecordStoreTest.measurement(i, GlucoseRecordStoreTest.START_SECONDS + i * 60L));
+        }
+        assertEquals(100, RecordAccessControlPoint.replayDelete(replayed, deletes.get(0)));
+        assertEquals(400, replayed.size());
+        assertNull(replayed.get(150));
+    }
+
+    @Test
+    public void competingNotificationsDoNotEvictRecordsOrResponses() throws Exception {
+        assertEquals(0, racp.onWrite("A", MEASUREMENT, RACP, new byte[]{0x01, 0x01}));
+        // 串流期間其他特徵的通知一直把佇列塞滿
+        for (int i = 0; i < 2000 && racp.isActive("A"); i++) {
+            queue.enqueue("A", OTHER, new byte[]{(byte) i}, false);
+            if (i % 50 == 0) Thread.sleep(1);
+        }
+        assertArrayEquals(response(0x01, 0x01), responses.poll(10, TimeUnit.SECONDS));
+        assertEquals(500, recordsBeforeLastResponse);
+        for (int i = 0; i < 500; i++) {
+            assertArrayEquals(store.get(i), records.get(i));
+        }
+
+        // 佇列已滿時排入的回應，之後再被其他通知擠也仍然會送達
+        for (int i = 0; i < 100; i++) {
+            queue.enqueue("A", OTHER, new byte[]{(byte) i}, false);
+        }
+        assertEquals(0, racp.onWrite("A", MEASUREMENT, RACP, new byte[]{0x04, 0x01}));
+        for (int i = 0; i < 100; i++) {
+            queue.enqueue("A", OTHER, new byte[]{(byte) i}, false);
+        }
+        assertArrayEquals(new byte[]{0x05, 0x00, (byte) 0xF4, 0x01}, responses.poll(5, TimeUnit.SECONDS));
+        assertTrue(queue.getStats().get(0).dropped > 0);
+    }
+}
@@ -0,0 +1,154 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ScanResultAggregatorTest {
+
+    /** 代替 Android ScanResult 的掃描結果。 */
+    private static final class FakeResult {
+        final String address;
+        final String name;
+        final int rssi;
+        final byte[] serviceData;
+
+        FakeResult(String address, String name, int rssi, byte[] serviceData) {
+            this.address = address;
+            this.name = name;
+            this.rssi = rssi;
+            this.serviceData = serviceData;
+        }
+    }
+
+    private final AtomicInteger nameLookups = new AtomicInteger();
+    private final List<List<ScanResultAggregator.Device>> snapshots = new ArrayList<>();
+    private ScanResultAggregator<FakeResult> aggregator;
+
+    private final ScanResultAggregator.Adapter<FakeResult> adapter = new ScanResultAggregator.Adapter<FakeResult>() {
+        @Override
+        public String address(FakeResult result) {
+            return result.address;
+        }
+
+        @Override
+        public int rssi(FakeResult result) {
+            return result.rssi;
+        }
+
+        @Override
+        public String name(FakeResult result) {
+            nameLookups.incrementAndGet();
+            return result.name;
+        }
+
+        @Override
+        public byte[] serviceData(FakeResult result) {
+            return result.serviceData;
+        }
+    };
+
+    /** 發佈間隔設得很長，快照只在 flush 時產生。 */
+    private ScanResultAggregator<FakeResult> newAggregator(int capacity, int maxPending) {
+        aggregator = new ScanResultAggregator<>(new ScanResultAggregator.Config(capacity, 60_000, maxPending),
+                adapter, devices -> {
+                    synchronized (snapshots) {
+                        snapshots.add(devices);
+                    }
+                });
+        return aggregator;
+    }
+
+    private List<ScanResultAggregator.Device> lastSnapshot() {
+        synchronized (snapshots) {
+            return snapshots.get(snapshots.size() - 1);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (aggregator != null) aggregator.close();
+    }
+
+    @Test
+    public void mergesResultsByAddressIntoOneSnapshotPerFlush() throws InterruptedException {
+        ScanResultAggregator<FakeResult> aggregator = newAggregator(16, 1024);
+        for (int i = 0; i < 300; i++) {
+            aggregator.offer(new FakeResult("AA:00", "Scale", -60 - i % 5, new byte[]{1, 2}));
+            aggregator.offer(new FakeResult("AA:01", null, -70, null));
+        }
+        aggregator.offer(new FakeResult("AA:00", "Scale", -42, new byte[]{3}));
+        aggregator.flush();
+
+        assertEquals(1, snapshots.size());
+        List<ScanResultAggregator.Device> devices = lastSnapshot();
+        assertEquals(2, devices.size());
+        // 最新出現的在前
+        ScanResultAggregator.Device scale = devices.get(0);
+        assertEquals("AA:00", scale.address);
+        assertEquals("Scale", scale.name);
+        assertEquals(-42, scale.rssi);
+        assertArrayEquals(new byte[]{3}, scale.serviceData);
+        assertEquals(301, scale.sightings);
+        assertNull(devices.get(1).name);
+        // 有名稱的裝置只解析一次；沒有名稱的每 32 次重試一次
+        assertEquals(1 + (300 + 31) / 32, nameLookups.get());
+
+        // 沒有變化時不發佈
+        aggregator.offer(new FakeResult("AA:01", null, -70, null));
+        aggregator.flush();
+        assertEquals(1, snapshots.size());
+
+        aggregator.clear();
+        aggregator.flush();
+        assertEquals(2, snapshots.size());
+        assertTrue(lastSnapshot().isEmpty());
+    }
+
+    @Test
+    public void evictsLeastRecentlySeenDevices() throws InterruptedException {
+        ScanResultAggregator<FakeResult> aggregator = newAggregator(3, 1024);
+        aggregator.offer(new FakeResult("A", "a", -50, null));
+        aggregator.offer(new FakeResult("B", "b", -50, null));
+        aggregator.offer(new FakeResult("C", "c", -50, null));
+        aggregator.offer(new FakeResult("A", "a", -51, null));
+        aggregator.offer(new FakeResult("D", "d", -50, null));
+        aggregator.flush();
+
+        List<ScanResultAggregator.Device> devices = lastSnapshot();
+        assertEquals(3, devices.size());
+        assertEquals("D", devices.get(0).address);
+        assertEquals("A", devices.get(1).address);
+        assertEquals("C", devices.get(2).address);
+        ScanResultAggregator.Stats stats = aggregator.getStats();
+        assertEquals(5, stats.received);
+        assertEquals(1, stats.evicted);
+        assertEquals(3, stats.devices);
+        assertEquals(1, stats.snapshots);
+    }
+
+    @Test
+    public void dropsResultsBeyondThePendingLimit() throws InterruptedException {
+        ScanResultAggregator<FakeResult> aggregator = newAggregator(16, 4);
+        int accepted = 0;
+        for (int i = 0; i < 10; i++) {
+            if (aggregator.offer(new FakeResult("A", "a", -50 - i, null))) accepted++;
+        }
+        assertEquals(4, accepted);
+        assertEquals(6, aggregator.getStats().dropped);
+        aggregator.flush();
+        assertEquals(4, lastSnapshot().get(0).sightings);
+        // 合併之後佇列又有空間
+        assertTrue(aggregator.offer(new FakeResult("A", "a", -50, null)));
+
+        aggregator.close();
+        assertFalse(aggregator.offer(new FakeResult("A", "a", -50, null)));
+        aggregator.flush();
+        assertEquals(1, snapshots.size());
+    }
+}
@@ -0,0 +1,175 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ServiceRegistrarTest {
+
+    /**
+     * 依腳本回應 addService 的傳輸層：每個服務依序取出一個結果，用完後一律成功。
+     */
+    private static final class ScriptedTransport implements GattTransport<String, String> {
+        enum Result { OK, FAIL, REJECT, SILENT }
+
+        final List<String> added = new CopyOnWriteArrayList<>();
+        final Map<String, List<Result>> script = new HashMap<>();
+        final List<Callback<String, String>> callbacks = new CopyOnWriteArrayList<>();
+
+        void script(String service, Result... results) {
+            List<Result> list = new ArrayList<>();
+            Collections.addAll(list, results);
+            script.put(service, list);
+        }
+
+        @Override
+        public void addCallback(Callback<String, String> callback) {
+            callbacks.add(callback);
+        }
+
+        @Override
+        public void removeCallback(Callback<String, String> callback) {
+            callbacks.remove(callback);
+        }
+
+        @Override
+        public boolean addService(final String service) {
+            List<Result> results = script.get(service);
+            Result result;
+            synchronized (script) {
+                result = results == null || results.isEmpty() ? Result.OK : results.remove(0);
+            }
+            if (result == Result.REJECT) return false;
+            if (result == Result.SILENT) return true;
+            final boolean success = result == Result.OK;
+            if (success) added.add(service);
+            // 和 Android 一樣在其他執行緒上回呼
+            new Thread(() -> {
+                for (Callback<String, String> callback : callbacks) callback.onServiceAdded(service, success);
+            }).start();
+            return true;
+        }
+
+        @Override
+        public boolean notifyCharacteristicChanged(String deviceId, String characteristic, byte[] value, boolean confirm) {
+            return false;
+        }
+
+        @Override
+        public boolean sendResponse(String deviceId, int requestId, int status, int offset, byte[] value) {
+            return false;
+        }
+
+        @Override
+        public Set<String> getConnectedDevices() {
+            return new HashSet<>();
+        }
+
+        @Override
+        public int getMtu(String deviceId) {
+            return DEFAULT_MTU;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static final class DrainLatch implements ServiceRegistrar.Listener {
+        final CountDownLatch drained = new CountDownLatch(1);
+        final List<String> failed = new CopyOnWriteArrayList<>();
+        volatile List<ServiceRegistrar.ServiceStats> stats;
+
+        @Override
+        public void onServiceFailed(ServiceRegistrar.ServiceStats stats) {
+            failed.add(stats.name);
+        }
+
+        @Override
+        public void onQueueDrained(List<ServiceRegistrar.ServiceStats> stats) {
+            this.stats = stats;
+            drained.countDown();
+        }
+    }
+
+    @Test
+    public void registersAllServicesInOrderWithLatency() throws Exception {
+        LoopbackGattTransport<String, String> transport = new LoopbackGattTransport<>();
+        transport.setServiceAddDelayMicros(2000);
+        DrainLatch listener = new DrainLatch();
+        ServiceRegistrar<String, String> registrar = new ServiceRegistrar<>(transport, ServiceRegistrar.Config.defaults(), listener);
+        for (int i = 0; i < 5; i++) registrar.enqueue("s" + i, "s" + i);
+
+        assertTrue(listener.drained.await(2, TimeUnit.SECONDS));
+        assertEquals(5, transport.getServices().size());
+        assertEquals(0, registrar.remaining());
+        for (ServiceRegistrar.ServiceStats stats : listener.stats) {
+            assertEquals(ServiceRegistrar.Outcome.REGISTERED, stats.outcome);
+            assertEquals(1, stats.attempts);
+            assertTrue(stats.lastAttemptNanos >= TimeUnit.MICROSECONDS.toNanos(2000));
+            // 總時間包含在佇列中等待前面服務完成的時間
+            assertTrue(stats.totalNanos >= stats.lastAttemptNanos);
+        }
+        registrar.close();
+        transport.close();
+    }
+
+    @Test
+    public void failedServiceIsRetriedAfterOthersAndBrokenOneIsSkipped() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport();
+        transport.script("flaky", ScriptedTransport.Result.FAIL, ScriptedTransport.Result.REJECT);
+        transport.script("broken", ScriptedTransport.Result.FAIL, ScriptedTransport.Result.FAIL, ScriptedTransport.Result.FAIL);
+        DrainLatch listener = new DrainLatch();
+        ServiceRegistrar<String, String> registrar = new ServiceRegistrar<>(transport,
+                new ServiceRegistrar.Config(1000, 2, 10, 40), listener);
+        registrar.enqueue("flaky", "flaky");
+        registrar.enqueue("broken", "broken");
+        registrar.enqueue("ok", "ok");
+
+        assertTrue(listener.drained.await(2, TimeUnit.SECONDS));
+        // 失敗的服務不會擋住後面的服務
+        assertEquals("ok", transport.added.get(0));
+        assertEquals("flaky", transport.added.get(1));
+        assertEquals(2, transport.added.size());
+        assertEquals(Collections.singletonList("broken"), listener.failed);
+
+        ServiceRegistrar.ServiceStats flaky = listener.stats.get(0);
+        assertEquals(ServiceRegistrar.Outcome.REGISTERED, flaky.outcome);
+        assertEquals(3, flaky.attempts);
+        ServiceRegistrar.ServiceStats broken = listener.stats.get(1);
+        assertEquals(ServiceRegistrar.Outcome.FAILED, broken.outcome);
+        assertEquals(3, broken.attempts);
+        registrar.close();
+    }
+
+    @Test
+    public void stuckAdditionTimesOutAndIsRetried() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport();
+        transport.script("stuck", ScriptedTransport.Result.SILENT);
+        DrainLatch listener = new DrainLatch();
+        ServiceRegistrar<String, String> registrar = new ServiceRegistrar<>(transport,
+                new ServiceRegistrar.Config(50, 1, 0, 0), listener);
+        registrar.enqueue("stuck", "stuck");
+        registrar.enqueue("next", "next");
+
+        assertTrue(listener.drained.await(2, TimeUnit.SECONDS));
+        assertEquals("next", transport.added.get(0));
+        assertEquals("stuck", transport.added.get(1));
+        ServiceRegistrar.ServiceStats stuck = listener.stats.get(0);
+        assertEquals(ServiceRegistrar.Outcome.REGISTERED, stuck.outcome);
+        assertEquals(1, stuck.timeouts);
+        assertEquals(2, stuck.attempts);
+        registrar.close();
+    }
+}
@@ -0,0 +1,97 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SimulationSchedulerTest {
+
+    private final SimulationScheduler scheduler = new SimulationScheduler();
+
+    @After
+    public void tearDown() {
+        scheduler.stop(1000);
+    }
+
+    private SimulationScheduler.TaskStats stats(String name) {
+        for (SimulationScheduler.TaskStats stats : scheduler.getStats()) {
+            if (stats.name.equals(name)) return stats;
+        }
+        throw new AssertionError(name);
+    }
+
+    @Test
+    public void runsAtTheRequestedPeriodAndStopsOnCancel() throws Exception {
+        assertNull(scheduler.scheduleAtFixedRate("idle", 0, 10, () -> { }));
+        scheduler.start();
+        final CountDownLatch ticks = new CountDownLatch(10);
+        final AtomicInteger runs = new AtomicInteger();
+        long start = System.nanoTime();
+        SimulationScheduler.ScheduledTask task = scheduler.scheduleAtFixedRate("tick", 0, 20, () -> {
+            runs.incrementAndGet();
+            ticks.countDown();
+        });
+        assertTrue(ticks.await(2, TimeUnit.SECONDS));
+        // 10 次執行至少經過 9 個週期：期限是絕對時間，不會提早
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(9 * 20));
+
+        task.cancel();
+        assertTrue(task.isCancelled());
+        int afterCancel = runs.get();
+        Thread.sleep(100);
+        assertTrue(runs.get() <= afterCancel + 1);
+        assertEquals(20_000_000L, stats("tick").periodNanos);
+    }
+
+    @Test
+    public void keepsRunningAfterTheTaskThrows() throws Exception {
+        final CountDownLatch failures = new CountDownLatch(3);
+        final AtomicInteger reported = new AtomicInteger();
+        scheduler.setFailureListener((name, error) -> {
+            assertEquals("broken", name);
+            reported.incrementAndGet();
+            failures.countDown();
+        });
+        scheduler.start();
+        final AtomicInteger runs = new AtomicInteger();
+        scheduler.scheduleAtFixedRate("broken", 0, 10, () -> {
+            if (runs.incrementAndGet() % 2 == 0) throw new IllegalStateException("runtime");
+            throw new AssertionError("error");
+        });
+        assertTrue(failures.await(2, TimeUnit.SECONDS));
+        SimulationScheduler.TaskStats stats = stats("broken");
+        assertTrue(stats.failures >= 3);
+        assertTrue(reported.get() >= 3);
+    }
+
+    @Test
+    public void stopsEveryTaskAndCanRestart() throws Exception {
+        scheduler.start();
+        final AtomicInteger runs = new AtomicInteger();
+        scheduler.scheduleAtFixedRate("a", 0, 5, runs::incrementAndGet);
+        final CountDownLatch once = new CountDownLatch(1);
+        scheduler.scheduleOnce("once", 0, once::countDown);
+        assertTrue(once.await(1, TimeUnit.SECONDS));
+
+        assertTrue(scheduler.stop(1000));
+        assertFalse(scheduler.isRunning());
+        int stopped = runs.get();
+        Thread.sleep(50);
+        assertEquals(stopped, runs.get());
+        assertNull(scheduler.scheduleOnce("late", 0, () -> { }));
+
+        scheduler.start();
+        assertTrue(scheduler.isRunning());
+        List<SimulationScheduler.TaskStats> stats = scheduler.getStats();
+        assertTrue(stats.isEmpty());
+        final CountDownLatch restarted = new CountDownLatch(1);
+        assertNotNull(scheduler.scheduleOnce("again", 0, restarted::countDown));
+        assertTrue(restarted.await(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,86 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionRegistryTest {
+
+    private static final byte[] NOTIFY = {0x01, 0x00};
+    private static final byte[] INDICATE = {0x02, 0x00};
+    private static final byte[] DISABLE = {0x00, 0x00};
+
+    @Test
+    public void subscriptionsAreTrackedPerDevice() {
+        SubscriptionRegistry<String> registry = new SubscriptionRegistry<>();
+        UUID heartRate = UUID.randomUUID();
+        int a = registry.onDeviceConnected("A");
+        int b = registry.onDeviceConnected("B");
+
+        assertTrue(registry.onCccdWritten("A", heartRate, NOTIFY));
+        int id = registry.characteristicId(heartRate);
+
+        assertTrue(registry.isSubscribed(a, id, false));
+        assertFalse(registry.isSubscribed(b, id, false));
+        assertFalse(registry.isSubscribed(a, id, true));
+        assertEquals(1L << a, registry.subscribers(heartRate, false));
+
+        registry.onCccdWritten("A", heartRate, DISABLE);
+        assertEquals(0L, registry.subscribers(heartRate, false));
+    }
+
+    @Test
+    public void disconnectClearsSubscriptionsAndFreesSlot() {
+        SubscriptionRegistry<String> registry = new SubscriptionRegistry<>();
+        UUID weight = UUID.randomUUID();
+        int a = registry.onDeviceConnected("A");
+        registry.onCccdWritten("A", weight, INDICATE);
+        assertEquals(1L << a, registry.subscribers(weight, true));
+
+        registry.onDeviceDisconnected("A");
+        assertEquals(0L, registry.subscribers(weight, true));
+        assertNull(registry.deviceAt(a));
+        assertEquals(a, registry.onDeviceConnected("C"));
+    }
+
+    @Test
+    public void rejectsMalformedCccdValues() {
+        SubscriptionRegistry<String> registry = new SubscriptionRegistry<>();
+        registry.onDeviceConnected("A");
+        assertFalse(registry.onCccdWritten("A", "x", new byte[]{0x01}));
+        assertFalse(registry.onCccdWritten("A", "x", new byte[]{0x04, 0x00}));
+        assertFalse(registry.onCccdWritten("A", "x", null));
+        assertArrayEquals(DISABLE, registry.cccdValue("A", "x"));
+    }
+
+    @Test
+    public void readsNeverAssignIdsOrChangeTheSlotSnapshot() {
+        SubscriptionRegistry<String> registry = new SubscriptionRegistry<>();
+        int a = registry.onDeviceConnected("A");
+        assertEquals(SubscriptionRegistry.NONE, registry.characteristicId("unknown"));
+        assertEquals(0L, registry.subscribers("unknown", false));
+        assertArrayEquals(DISABLE, registry.cccdValue("A", "unknown"));
+        assertEquals(SubscriptionRegistry.NONE, registry.characteristicId("unknown"));
+        assertEquals(0, registry.registerCharacteristic("first"));
+
+        Object[] before = registry.devicesBySlot();
+        assertEquals("A", before[a]);
+        int b = registry.onDeviceConnected("B");
+        // 已經拿到的快照不會被之後的連線修改
+        assertNull(before[b]);
+        assertEquals("B", registry.devicesBySlot()[b]);
+        assertEquals(b, registry.slotOf("B"));
+        assertEquals(SubscriptionRegistry.NONE, registry.slotOf("C"));
+    }
+
+    @Test
+    public void limitsTrackedDevices() {
+        SubscriptionRegistry<Integer> registry = new SubscriptionRegistry<>();
+        for (int i = 0; i < SubscriptionRegistry.MAX_DEVICES; i++) {
+            assertEquals(i, registry.onDeviceConnected(i));
+        }
+        assertEquals(SubscriptionRegistry.NONE, registry.onDeviceConnected(-1));
+    }
+}
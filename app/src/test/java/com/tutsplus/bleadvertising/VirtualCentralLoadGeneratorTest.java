@@ -0,0 +1,63 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class VirtualCentralLoadGeneratorTest {
+
+    @Test
+    public void deliversEverySubscribedNotification() throws Exception {
+        VirtualCentralLoadGenerator.Config config = new VirtualCentralLoadGenerator.Config(
+                4, 400, new LoopbackGattTransport.Link(5_000, 4, 8, GattTransport.DEFAULT_MTU), 20, 10,
+                Arrays.asList(
+                        new VirtualCentralLoadGenerator.Stream("hr", 50, 6, false, 1),
+                        new VirtualCentralLoadGenerator.Stream("temp", 5, 13, true, 0.5)),
+                NotificationQueue.Config.defaults(), 7);
+
+        VirtualCentralLoadGenerator.Report report = new VirtualCentralLoadGenerator(config).run();
+
+        assertEquals(0, report.unservedCentrals);
+        assertTrue(report.published > 0);
+        // hr 每個 central 都訂閱了，預期送達數至少是發佈次數的數倍
+        assertTrue(report.expected > report.published);
+        assertEquals(report.expected, report.received);
+        assertEquals(0, report.dropped);
+        assertEquals(0, report.lost);
+        assertTrue(report.notificationP50Nanos > 0);
+        assertTrue(report.notificationP99Nanos >= report.notificationP50Nanos);
+        assertTrue(report.readsIssued > 0);
+        assertEquals(report.readsIssued, report.readsCompleted);
+        assertEquals(report.writesIssued, report.writesCompleted);
+    }
+
+    @Test
+    public void centralsBeyondSubscriberLimitAreReportedUnserved() throws Exception {
+        VirtualCentralLoadGenerator.Config config = new VirtualCentralLoadGenerator.Config(
+                SubscriptionRegistry.MAX_DEVICES + 3, 200, new LoopbackGattTransport.Link(5_000, 4, 8, GattTransport.DEFAULT_MTU),
+                0, 0, Arrays.asList(new VirtualCentralLoadGenerator.Stream("hr", 20, 6, false, 1)),
+                NotificationQueue.Config.defaults(), 7);
+
+        VirtualCentralLoadGenerator.Report report = new VirtualCentralLoadGenerator(config).run();
+
+        // 多出的 3 個 central 不計入 expected，掉包率看不出來，只能由 unservedCentrals 判斷
+        assertEquals(3, report.unservedCentrals);
+        assertEquals(0, report.dropRate(), 0);
+        assertEquals(report.expected, report.received);
+    }
+
+    @Test
+    public void histogramPercentilesStayWithinBucketError() {
+        VirtualCentralLoadGenerator.LatencyHistogram histogram = new VirtualCentralLoadGenerator.LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1_000_000L); // 1..1000 ms
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(500_000_000L, histogram.percentile(0.50), 500_000_000L / 64.0);
+        assertEquals(990_000_000L, histogram.percentile(0.99), 990_000_000L / 64.0);
+        assertEquals(1_000_000_000L, histogram.percentile(1.0));
+        assertEquals(0, new VirtualCentralLoadGenerator.LatencyHistogram().percentile(0.99));
+    }
+}
@@ -0,0 +1,70 @@
+package com.tutsplus.bleadvertising;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class WriteDispatcherTest {
+
+    private static final UUID FTMS = UUID.fromString("00002AD9-0000-1000-8000-00805f9b34fb");
+    private static final UUID HR = UUID.fromString("00002A39-0000-1000-8000-00805f9b34fb");
+
+    @Test
+    public void dispatchesByUuidAndRecordsStats() {
+        WriteDispatcher<String> dispatcher = new WriteDispatcher<>();
+        final List<String> calls = new ArrayList<>();
+        dispatcher.register(FTMS, "ftms", (deviceId, characteristic, value) -> {
+            calls.add(deviceId + ":" + characteristic + ":" + value[0]);
+            return WriteDispatcher.STATUS_SUCCESS;
+        });
+        dispatcher.register(HR, "hr", (deviceId, characteristic, value) -> value[0] == 0x01 ? WriteDispatcher.STATUS_SUCCESS : 0x80);
+
+        assertEquals(WriteDispatcher.STATUS_SUCCESS, dispatcher.dispatch("A", FTMS, "cp", new byte[]{4}));
+        assertEquals(0x80, dispatcher.dispatch("A", HR, "hrcp", new byte[]{2}));
+        assertEquals(WriteDispatcher.STATUS_SUCCESS, dispatcher.dispatch("A", HR, "hrcp", new byte[]{1}));
+        // 沒有處理器的特徵一律接受
+        assertEquals(WriteDispatcher.STATUS_SUCCESS, dispatcher.dispatch("A", UUID.randomUUID(), "other", new byte[]{1}));
+
+        assertEquals(1, calls.size());
+        assertEquals("A:cp:4", calls.get(0));
+        assertEquals(1, dispatcher.getUnhandledCount());
+        for (WriteDispatcher.HandlerStats stats : dispatcher.getStats()) {
+            if (stats.name.equals("hr")) {
+                assertEquals(2, stats.calls);
+                assertEquals(1, stats.failures);
+                assertTrue(stats.maxNanos >= stats.meanNanos());
+            } else {
+                assertEquals(1, stats.calls);
+                assertEquals(0, stats.failures);
+            }
+        }
+    }
+
+    @Test
+    public void handlerExceptionBecomesUnlikelyError() {
+        WriteDispatcher<String> dispatcher = new WriteDispatcher<>();
+        dispatcher.register(FTMS, "ftms", (deviceId, characteristic, value) -> value[5]);
+
+        assertEquals(WriteDispatcher.STATUS_UNLIKELY_ERROR, dispatcher.dispatch("A", FTMS, "cp", new byte[]{4}));
+        WriteDispatcher.HandlerStats stats = dispatcher.getStats().get(0);
+        assertEquals(1, stats.exceptions);
+        assertEquals(1, stats.failures);
+    }
+
+    @Test
+    public void rejectsDuplicateRegistration() {
+        WriteDispatcher<String> dispatcher = new WriteDispatcher<>();
+        dispatcher.register(FTMS, "ftms", (deviceId, characteristic, value) -> 0);
+        try {
+            dispatcher.register(FTMS, "again", (deviceId, characteristic, value) -> 0);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertTrue(dispatcher.unregister(FTMS));
+        assertFalse(dispatcher.isRegistered(FTMS));
+    }
+}
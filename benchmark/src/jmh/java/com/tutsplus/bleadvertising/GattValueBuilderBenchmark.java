@@ -0,0 +1,202 @@
+package com.tutsplus.bleadvertising;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Calendar;
+
+/**
+ * GattValueBuilder 每一個編碼器的 JMH 基準測試。
+ * 每個 benchmark 都回傳編碼結果 (由 JMH 自動交給 Blackhole)，搭配 gc profiler 可以看到每次呼叫配置的位元組數。
+ * 輸入值放在 State 中的非 final 欄位，避免被 JIT 當成常數折疊。
+ */
+@State(Scope.Thread)
+public class GattValueBuilderBenchmark {
+
+    int batteryLevel;
+    float systolic;
+    float diastolic;
+    float meanArterialPressure;
+    float pulseRate;
+    Calendar calendar;
+    int glucoseSequence;
+    float glucoseConcentration;
+    int presetIndex;
+    float speed;
+    float cadence;
+    int power;
+    int heartRate;
+    int totalDistance;
+    float incline;
+    int energyExpended;
+    float bodyTemperature;
+    float ambientTemperature;
+    float humidity;
+    float pressure;
+    int windChill;
+    float spo2;
+    float weightKg;
+    byte subOpCode;
+    byte status;
+
+    @Setup
+    public void setUp() {
+        batteryLevel = 87;
+        systolic = 121f;
+        diastolic = 79f;
+        meanArterialPressure = 93f;
+        pulseRate = 68f;
+        calendar = Calendar.getInstance();
+        glucoseSequence = 42;
+        glucoseConcentration = 98.5f;
+        presetIndex = 3;
+        speed = 28.4f;
+        cadence = 90.2f;
+        power = 185;
+        heartRate = 131;
+        totalDistance = 12345;
+        incline = 1.5f;
+        energyExpended = 250;
+        bodyTemperature = 36.8f;
+        ambientTemperature = 22.4f;
+        humidity = 48.3f;
+        pressure = 1012.6f;
+        windChill = 20;
+        spo2 = 97f;
+        weightKg = 65.5f;
+        subOpCode = (byte) 0xF2;
+        status = 0x00;
+    }
+
+    @Benchmark
+    public byte[] batteryLevel() {
+        return GattValueBuilder.forBatteryLevel(batteryLevel);
+    }
+
+    @Benchmark
+    public byte[] bloodPressureMeasurement() {
+        return GattValueBuilder.forBloodPressureMeasurement(systolic, diastolic, meanArterialPressure, pulseRate, true);
+    }
+
+    @Benchmark
+    public byte[] deviceTime() {
+        return GattValueBuilder.forDeviceTime(calendar);
+    }
+
+    @Benchmark
+    public byte[] deviceTimeNow() {
+        return GattValueBuilder.forDeviceTime();
+    }
+
+    @Benchmark
+    public byte[] glucoseMeasurement() {
+        return GattValueBuilder.forGlucoseMeasurement(glucoseSequence, glucoseConcentration, false, true);
+    }
+
+    @Benchmark
+    public byte[] glucoseMeasurementWithTimeOffset() {
+        return GattValueBuilder.forGlucoseMeasurement(glucoseSequence, glucoseConcentration, true, true);
+    }
+
+    @Benchmark
+    public byte[] activePresetIndex() {
+        return GattValueBuilder.forActivePresetIndex(presetIndex);
+    }
+
+    @Benchmark
+    public byte[] indoorBikeData() {
+        return GattValueBuilder.forIndoorBikeData(speed, cadence, power, heartRate, totalDistance);
+    }
+
+    @Benchmark
+    public byte[] treadmillData() {
+        return GattValueBuilder.forTreadmillData(speed, incline, totalDistance);
+    }
+
+    @Benchmark
+    public byte[] crossTrainerData() {
+        return GattValueBuilder.forCrossTrainerData(speed, power, totalDistance);
+    }
+
+    @Benchmark
+    public byte[] heartRateMeasurement() {
+        return GattValueBuilder.forHeartRateMeasurement(heartRate);
+    }
+
+    @Benchmark
+    public byte[] heartRateMeasurementUint16WithEnergy() {
+        return GattValueBuilder.forHeartRateMeasurement(heartRate, true, true, energyExpended);
+    }
+
+    @Benchmark
+    public byte[] temperatureMeasurement() {
+        return GattValueBuilder.forTemperatureMeasurement(bodyTemperature);
+    }
+
+    @Benchmark
+    public byte[] currentTime() {
+        return GattValueBuilder.forCurrentTime(calendar);
+    }
+
+    @Benchmark
+    public byte[] currentTimeNow() {
+        return GattValueBuilder.forCurrentTime();
+    }
+
+    @Benchmark
+    public byte[] essTemperature() {
+        return GattValueBuilder.forTemperature(ambientTemperature);
+    }
+
+    @Benchmark
+    public byte[] essHumidity() {
+        return GattValueBuilder.forHumidity(humidity);
+    }
+
+    @Benchmark
+    public byte[] essPressure() {
+        return GattValueBuilder.forPressure(pressure);
+    }
+
+    @Benchmark
+    public byte[] essWindChill() {
+        return GattValueBuilder.forWindChill(windChill);
+    }
+
+    @Benchmark
+    public byte[] pulseOximeterSpotCheck() {
+        return GattValueBuilder.forPulseOximeterSpotCheck(spo2, pulseRate, true);
+    }
+
+    @Benchmark
+    public byte[] weightScaleMeasurement() {
+        return GattValueBuilder.forWeightScaleMeasurement(weightKg);
+    }
+
+    @Benchmark
+    public byte[] cf597DeviceInfoFE36() {
+        return GattValueBuilder.forDeviceInfo_FE36(batteryLevel, 101, 102);
+    }
+
+    @Benchmark
+    public byte[] cf597RealtimeImpedanceDF() {
+        return GattValueBuilder.forRealtimeImpedanceData_DF(weightKg);
+    }
+
+    @Benchmark
+    public byte[] cf597HistoryTlvF2() {
+        return GattValueBuilder.forHistoryTlvData();
+    }
+
+    @Benchmark
+    public byte[] cf597GenericAck() {
+        return GattValueBuilder.forGenericAck(subOpCode, status);
+    }
+
+    @Benchmark
+    public byte[] cf597GenericMcuResponse() {
+        return GattValueBuilder.forGenericMcuResponse(subOpCode);
+    }
+}
@@ -0,0 +1,182 @@
+package com.tutsplus.bleadvertising;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Calendar;
+
+/**
+ * GattValueBuilder 寫入呼叫端緩衝區的編碼器 (forXxx(byte[] out, int offset, ...)) 的 JMH 基準測試。
+ * 與 {@link GattValueBuilderBenchmark} 使用相同的輸入，比較兩者即可看出配置 byte[] 的成本。
+ * 回傳寫入長度，避免結果被 JIT 消除。
+ */
+@State(Scope.Thread)
+public class GattValueBuilderIntoBenchmark {
+
+    byte[] out;
+    int offset;
+    int batteryLevel;
+    float systolic;
+    float diastolic;
+    float meanArterialPressure;
+    float pulseRate;
+    Calendar calendar;
+    int glucoseSequence;
+    float glucoseConcentration;
+    float speed;
+    float cadence;
+    int power;
+    int heartRate;
+    int totalDistance;
+    float incline;
+    int energyExpended;
+    float bodyTemperature;
+    float ambientTemperature;
+    float humidity;
+    float pressure;
+    float spo2;
+    float weightKg;
+    byte subOpCode;
+    byte status;
+
+    @Setup
+    public void setUp() {
+        out = new byte[GattValueBuilder.MAX_VALUE_LENGTH];
+        offset = 0;
+        batteryLevel = 87;
+        systolic = 121f;
+        diastolic = 79f;
+        meanArterialPressure = 93f;
+        pulseRate = 68f;
+        calendar = Calendar.getInstance();
+        glucoseSequence = 42;
+        glucoseConcentration = 98.5f;
+        speed = 28.4f;
+        cadence = 90.2f;
+        power = 185;
+        heartRate = 131;
+        totalDistance = 12345;
+        incline = 1.5f;
+        energyExpended = 250;
+        bodyTemperature = 36.8f;
+        ambientTemperature = 22.4f;
+        humidity = 48.3f;
+        pressure = 1012.6f;
+        spo2 = 97f;
+        weightKg = 65.5f;
+        subOpCode = (byte) 0xF2;
+        status = 0x00;
+    }
+
+    @Benchmark
+    public int batteryLevelInto() {
+        return GattValueBuilder.forBatteryLevel(out, offset, batteryLevel);
+    }
+
+    @Benchmark
+    public int bloodPressureMeasurementInto() {
+        return GattValueBuilder.forBloodPressureMeasurement(out, offset, systolic, diastolic, meanArterialPressure, pulseRate, true);
+    }
+
+    @Benchmark
+    public int deviceTimeInto() {
+        return GattValueBuilder.forDeviceTime(out, offset, calendar);
+    }
+
+    @Benchmark
+    public int deviceTimeNowInto() {
+        return GattValueBuilder.forDeviceTime(out, offset);
+    }
+
+    @Benchmark
+    public int glucoseMeasurementInto() {
+        return GattValueBuilder.forGlucoseMeasurement(out, offset, glucoseSequence, glucoseConcentration, false, true);
+    }
+
+    @Benchmark
+    public int indoorBikeDataInto() {
+        return GattValueBuilder.forIndoorBikeData(out, offset, speed, cadence, power, heartRate, totalDistance);
+    }
+
+    @Benchmark
+    public int treadmillDataInto() {
+        return GattValueBuilder.forTreadmillData(out, offset, speed, incline, totalDistance);
+    }
+
+    @Benchmark
+    public int crossTrainerDataInto() {
+        return GattValueBuilder.forCrossTrainerData(out, offset, speed, power, totalDistance);
+    }
+
+    @Benchmark
+    public int heartRateMeasurementUint16WithEnergyInto() {
+        return GattValueBuilder.forHeartRateMeasurement(out, offset, heartRate, true, true, energyExpended);
+    }
+
+    @Benchmark
+    public int temperatureMeasurementInto() {
+        return GattValueBuilder.forTemperatureMeasurement(out, offset, bodyTemperature);
+    }
+
+    @Benchmark
+    public int currentTimeInto() {
+        return GattValueBuilder.forCurrentTime(out, offset, calendar);
+    }
+
+    @Benchmark
+    public int currentTimeNowInto() {
+        return GattValueBuilder.forCurrentTime(out, offset);
+    }
+
+    @Benchmark
+    public int essTemperatureInto() {
+        return GattValueBuilder.forTemperature(out, offset, ambientTemperature);
+    }
+
+    @Benchmark
+    public int essHumidityInto() {
+        return GattValueBuilder.forHumidity(out, offset, humidity);
+    }
+
+    @Benchmark
+    public int essPressureInto() {
+        return GattValueBuilder.forPressure(out, offset, pressure);
+    }
+
+    @Benchmark
+    public int pulseOximeterSpotCheckInto() {
+        return GattValueBuilder.forPulseOximeterSpotCheck(out, offset, spo2, pulseRate, true);
+    }
+
+    @Benchmark
+    public int weightScaleMeasurementInto() {
+        return GattValueBuilder.forWeightScaleMeasurement(out, offset, weightKg);
+    }
+
+    @Benchmark
+    public int cf597DeviceInfoFE36Into() {
+        return GattValueBuilder.forDeviceInfo_FE36(out, offset, batteryLevel, 101, 102);
+    }
+
+    @Benchmark
+    public int cf597RealtimeImpedanceDFInto() {
+        return GattValueBuilder.forRealtimeImpedanceData_DF(out, offset, weightKg);
+    }
+
+    @Benchmark
+    public int cf597HistoryTlvF2Into() {
+        return GattValueBuilder.forHistoryTlvData(out, offset);
+    }
+
+    @Benchmark
+    public int cf597GenericAckInto() {
+        return GattValueBuilder.forGenericAck(out, offset, subOpCode, status);
+    }
+
+    @Benchmark
+    public int pooledIndoorBikeData() {
+        return GattValueBuilder.forIndoorBikeData(GattValueBuilder.pooledBuffer(), 0, speed, cadence, power, heartRate, totalDistance);
+    }
+}
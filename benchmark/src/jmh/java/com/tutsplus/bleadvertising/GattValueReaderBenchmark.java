@@ -0,0 +1,69 @@
+package com.tutsplus.bleadvertising;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * {@link GattValueReader} 的 flyweight view 解碼 {@link GattValueBuilder} 產生的特徵值：
+ * 每次呼叫都重新 wrap 並讀出所有欄位，相當於負載測試中逐筆做往返驗證的成本。
+ * view 在 setUp 建立後重複使用，搭配 -prof gc 可以確認解碼不配置記憶體。
+ */
+@State(Scope.Thread)
+public class GattValueReaderBenchmark {
+
+    byte[] heartRate;
+    byte[] bloodPressure;
+    byte[] glucose;
+    byte[] indoorBikeData;
+    byte[] history;
+
+    final GattValueReader.HeartRateMeasurement heartRateView = new GattValueReader.HeartRateMeasurement();
+    final GattValueReader.BloodPressureMeasurement bloodPressureView = new GattValueReader.BloodPressureMeasurement();
+    final GattValueReader.GlucoseMeasurement glucoseView = new GattValueReader.GlucoseMeasurement();
+    final GattValueReader.IndoorBikeData indoorBikeDataView = new GattValueReader.IndoorBikeData();
+    final GattValueReader.HistoryRecord historyView = new GattValueReader.HistoryRecord();
+
+    @Setup
+    public void setUp() {
+        heartRate = GattValueBuilder.forHeartRateMeasurement(131, true, true, 250);
+        bloodPressure = GattValueBuilder.forBloodPressureMeasurement(121f, 79f, 93f, 68f, true);
+        glucose = GattValueBuilder.forGlucoseMeasurement(42, 98.5f, true, true);
+        indoorBikeData = GattValueBuilder.forIndoorBikeData(28.4f, 90.2f, 185, 131, 12345);
+        history = new byte[GattValueBuilder.CF597_HISTORY_LENGTH];
+        GattValueBuilder.forHistoryTlvData(history, 0, 1_700_000_000L, 65.5f, 75, 500, 505);
+    }
+
+    @Benchmark
+    public int heartRateMeasurement() {
+        if (!heartRateView.wrap(heartRate)) return -1;
+        return heartRateView.heartRate() + heartRateView.energyExpended();
+    }
+
+    @Benchmark
+    public float bloodPressureMeasurement() {
+        if (!bloodPressureView.wrap(bloodPressure)) return -1;
+        return bloodPressureView.systolic() + bloodPressureView.diastolic()
+                + bloodPressureView.meanArterialPressure() + bloodPressureView.pulseRate();
+    }
+
+    @Benchmark
+    public double glucoseMeasurement() {
+        if (!glucoseView.wrap(glucose)) return -1;
+        return glucoseView.sequenceNumber() + glucoseView.userFacingTimeSeconds() + glucoseView.concentration();
+    }
+
+    @Benchmark
+    public float indoorBikeData() {
+        if (!indoorBikeDataView.wrap(indoorBikeData)) return -1;
+        return indoorBikeDataView.instantaneousSpeed() + indoorBikeDataView.instantaneousCadence()
+                + indoorBikeDataView.totalDistance() + indoorBikeDataView.instantaneousPower() + indoorBikeDataView.heartRate();
+    }
+
+    @Benchmark
+    public float historyRecord() {
+        if (!historyView.wrap(history) || !historyView.isChecksumValid()) return -1;
+        return historyView.weightKg() + historyView.heartRate() + historyView.utcSeconds();
+    }
+}
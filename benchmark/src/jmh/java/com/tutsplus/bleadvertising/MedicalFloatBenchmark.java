@@ -0,0 +1,83 @@
+package com.tutsplus.bleadvertising;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * {@link MedicalFloat} 編解碼的成本。輸入是一組典型的生理量測值 (血壓、血糖 kg/L、體溫、血氧)，
+ * 每次呼叫輪流取下一個，避免分支預測只學到單一個值。
+ * castToShort 是原本 (short) 強制轉型的寫法，作為下限的參考。
+ */
+@State(Scope.Thread)
+public class MedicalFloatBenchmark {
+
+    private static final int VALUES = 1024;
+    private static final int MASK = VALUES - 1;
+
+    float[] values;
+    int[] sfloats;
+    int[] floats;
+    byte[] out;
+    int index;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(11073);
+        values = new float[VALUES];
+        sfloats = new int[VALUES];
+        floats = new int[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            switch (i % 4) {
+                case 0:
+                    values[i] = 60 + random.nextInt(120) + random.nextInt(10) / 10f; // mmHg
+                    break;
+                case 1:
+                    values[i] = (70 + random.nextInt(1100) / 10f) * 1e-5f; // kg/L
+                    break;
+                case 2:
+                    values[i] = 35 + random.nextInt(60) / 10f; // °C
+                    break;
+                default:
+                    values[i] = 90 + random.nextInt(11); // %
+                    break;
+            }
+            sfloats[i] = MedicalFloat.toSfloat(values[i]);
+            floats[i] = MedicalFloat.toFloat(values[i]);
+        }
+        out = new byte[4];
+    }
+
+    @Benchmark
+    public int castToShort() {
+        return (short) values[index++ & MASK];
+    }
+
+    @Benchmark
+    public int toSfloat() {
+        return MedicalFloat.toSfloat(values[index++ & MASK]);
+    }
+
+    @Benchmark
+    public int toFloat() {
+        return MedicalFloat.toFloat(values[index++ & MASK]);
+    }
+
+    @Benchmark
+    public int putSfloat() {
+        return MedicalFloat.putSfloat(out, 0, values[index++ & MASK]);
+    }
+
+    @Benchmark
+    public double sfloatToDouble() {
+        return MedicalFloat.sfloatToDouble(sfloats[index++ & MASK]);
+    }
+
+    @Benchmark
+    public double floatToDouble() {
+        return MedicalFloat.floatToDouble(floats[index++ & MASK]);
+    }
+}
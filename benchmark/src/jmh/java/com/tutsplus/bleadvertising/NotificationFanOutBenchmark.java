@@ -0,0 +1,96 @@
+package com.tutsplus.bleadvertising;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 同一個特徵值送給 N 個訂閱裝置的成本：
+ * perDeviceEnqueue 是原本的做法 (每個裝置各自 enqueue，排入後立刻呼叫傳輸層)，
+ * fanOutPublish 使用 {@link NotificationFanOut} (複製一次、先排入全部裝置再逐一送出)。
+ * 傳輸層不做任何事，每次操作後直接模擬 onNotificationSent，讓佇列維持在穩定狀態。
+ */
+@State(Scope.Thread)
+public class NotificationFanOutBenchmark {
+
+    /** 不做任何事的傳輸層，只用來量測扇出本身的成本。 */
+    static final class NullTransport implements GattTransport<String, String> {
+        final Set<String> connected = new HashSet<>();
+
+        @Override public void addCallback(Callback<String, String> callback) {}
+        @Override public void removeCallback(Callback<String, String> callback) {}
+        @Override public boolean addService(String service) { return true; }
+        @Override public boolean notifyCharacteristicChanged(String deviceId, String characteristic, byte[] value, boolean confirm) { return true; }
+        @Override public boolean sendResponse(String deviceId, int requestId, int status, int offset, byte[] value) { return true; }
+        @Override public Set<String> getConnectedDevices() { return connected; }
+        @Override public int getMtu(String deviceId) { return DEFAULT_MTU; }
+        @Override public void close() {}
+    }
+
+    @Param({"1", "6"})
+    int devices;
+
+    SubscriptionRegistry<String> subscriptions;
+    NotificationQueue<String, String> queue;
+    NotificationFanOut<String, String> fanOut;
+    String[] deviceIds;
+    String characteristic;
+    byte[] value;
+
+    @Setup
+    public void setUp() {
+        subscriptions = new SubscriptionRegistry<>();
+        NullTransport transport = new NullTransport();
+        characteristic = "indoorBikeData";
+        value = GattValueBuilder.forIndoorBikeData(28.4f, 90.2f, 185, 131, 12345);
+        deviceIds = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            deviceIds[i] = "AA:BB:CC:DD:EE:0" + i;
+            transport.connected.add(deviceIds[i]);
+            subscriptions.onDeviceConnected(deviceIds[i]);
+            subscriptions.onCccdWritten(deviceIds[i], characteristic, new byte[]{0x01, 0x00});
+        }
+        // 佇列只替已連線的裝置建立
+        queue = new NotificationQueue<>(transport, NotificationQueue.Config.defaults());
+        fanOut = new NotificationFanOut<>(subscriptions, queue);
+    }
+
+    @TearDown
+    public void tearDown() {
+        queue.close();
+    }
+
+    @Benchmark
+    public int perDeviceEnqueue() {
+        long subscribers = subscriptions.subscribers(characteristic, false);
+        int sent = 0;
+        while (subscribers != 0) {
+            int slot = Long.numberOfTrailingZeros(subscribers);
+            subscribers &= subscribers - 1;
+            String deviceId = subscriptions.deviceAt(slot);
+            if (deviceId == null) continue;
+            if (queue.enqueue(deviceId, characteristic, value, false)) sent++;
+        }
+        acknowledge();
+        return sent;
+    }
+
+    @Benchmark
+    public Object fanOutPublish() {
+        Object payload = fanOut.publish(characteristic, value, false);
+        acknowledge();
+        return payload;
+    }
+
+    private void acknowledge() {
+        for (String deviceId : deviceIds) {
+            queue.onNotificationSent(deviceId, true);
+        }
+    }
+}
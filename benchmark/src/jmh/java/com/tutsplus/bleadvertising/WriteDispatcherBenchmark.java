@@ -0,0 +1,66 @@
+package com.tutsplus.bleadvertising;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+
+/**
+ * 一次控制點寫入找到處理器的成本：
+ * ifChain 是原本的做法 (每次寫入 UUID.fromString 再逐一 equals)，
+ * dispatch 使用 {@link WriteDispatcher} (以 UUID 查表並記錄處理時間)。
+ * target 決定寫入的是 if-chain 中第一個還是最後一個特徵。
+ */
+@State(Scope.Thread)
+public class WriteDispatcherBenchmark {
+
+    private static final String[] CONTROL_POINTS = {
+            "00002AD9-0000-1000-8000-00805f9b34fb",
+            "0000FFF1-0000-1000-8000-00805f9b34fb",
+            "00002FDB-0000-1000-8000-00805f9b34fb",
+            "00002B91-0000-1000-8000-00805f9b34fb",
+            "00002A39-0000-1000-8000-00805f9b34fb",
+            "00002A52-0000-1000-8000-00805f9b34fb",
+    };
+
+    @Param({"first", "last"})
+    String target;
+
+    WriteDispatcher<String> dispatcher;
+    UUID uuid;
+    byte[] value;
+    int sink;
+
+    @Setup
+    public void setUp() {
+        dispatcher = new WriteDispatcher<>();
+        for (int i = 0; i < CONTROL_POINTS.length; i++) {
+            final int id = i;
+            dispatcher.register(UUID.fromString(CONTROL_POINTS[i]), "cp" + i, (deviceId, characteristic, v) -> {
+                sink += id + v[0];
+                return WriteDispatcher.STATUS_SUCCESS;
+            });
+        }
+        uuid = UUID.fromString(CONTROL_POINTS["first".equals(target) ? 0 : CONTROL_POINTS.length - 1]);
+        value = new byte[]{0x04, 0x10};
+    }
+
+    @Benchmark
+    public int ifChain() {
+        for (int i = 0; i < CONTROL_POINTS.length; i++) {
+            if (UUID.fromString(CONTROL_POINTS[i]).equals(uuid)) {
+                sink += i + value[0];
+                return WriteDispatcher.STATUS_SUCCESS;
+            }
+        }
+        return WriteDispatcher.STATUS_SUCCESS;
+    }
+
+    @Benchmark
+    public int dispatch() {
+        return dispatcher.dispatch("AA:BB:CC:DD:EE:01", uuid, "cp", value);
+    }
+}
@@ -0,0 +1,48 @@
+package com.tutsplus.bleadvertising;
+
+/**
+ * {@link VirtualCentralLoadGenerator} 的命令列入口 (./gradlew :benchmark:loadTest)。
+ *
+ * 參數以 system property 傳入：
+ * <pre>
+ * load.centrals          虛擬 central 數 (預設 {@link SubscriptionRegistry#MAX_DEVICES})
+ * load.durationMillis    執行時間 (預設 10000)
+ * load.maxP99Millis      通知延遲 p99 上限，超過時以結束碼 1 結束 (未設定則不檢查)
+ * load.maxDropRate       (dropped + lost) / expected 上限，超過時以結束碼 1 結束 (未設定則不檢查)
+ * </pre>
+ *
+ * 伺服器最多服務 {@link SubscriptionRegistry#MAX_DEVICES} 個訂閱者，超過的 central 收不到任何通知，
+ * 也不計入 expected。因此設定任一門檻時，只要有 unserved central 就以結束碼 1 結束，
+ * 否則 load.centrals 設得再大，掉包率仍只反映前 64 個 central。
+ */
+public final class LoadTestMain {
+
+    private LoadTestMain() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int centrals = Integer.getInteger("load.centrals", SubscriptionRegistry.MAX_DEVICES);
+        long durationMillis = Long.getLong("load.durationMillis", 10_000L);
+        VirtualCentralLoadGenerator.Report report =
+                new VirtualCentralLoadGenerator(VirtualCentralLoadGenerator.Config.typical(centrals, durationMillis)).run();
+        System.out.println(report);
+
+        boolean failed = false;
+        String maxP99 = System.getProperty("load.maxP99Millis");
+        String maxDropRate = System.getProperty("load.maxDropRate");
+        if ((maxP99 != null || maxDropRate != null) && report.unservedCentrals > 0) {
+            System.err.println(report.unservedCentrals + " 個 central 超過 " + SubscriptionRegistry.MAX_DEVICES
+                    + " 個訂閱者的上限，收不到通知");
+            failed = true;
+        }
+        if (maxP99 != null && report.notificationP99Nanos / 1e6 > Double.parseDouble(maxP99)) {
+            System.err.println("通知延遲 p99 超過 " + maxP99 + "ms");
+            failed = true;
+        }
+        if (maxDropRate != null && report.dropRate() > Double.parseDouble(maxDropRate)) {
+            System.err.println("掉包率超過 " + maxDropRate);
+            failed = true;
+        }
+        if (failed) System.exit(1);
+    }
+}